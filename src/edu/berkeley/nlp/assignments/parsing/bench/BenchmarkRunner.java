@@ -0,0 +1,222 @@
+package edu.berkeley.nlp.assignments.parsing.bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * A small average-time microbenchmark harness in the manner of JMH, for
+ * running the parser benchmarks without any dependency beyond the JDK.
+ * Each benchmark is run for a number of timed warmup iterations, whose
+ * results are discarded, then for a number of timed measurement
+ * iterations; an iteration calls the operation repeatedly until its time
+ * is up.  The score is the mean time per operation over the measurement
+ * iterations, and the error is the half-width of its 99.9% confidence
+ * interval, as JMH reports them.
+ * <p>
+ * Results are written as a JSON array with the same shape as the output
+ * of JMH's <code>-rf json</code>, so the usual JMH result tooling can
+ * read them.
+ */
+public class BenchmarkRunner {
+
+  /** Two-sided 99.9% quantiles of Student's t for 1 to 30 degrees of freedom. */
+  private static final double[] T_999 = {
+      636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59,
+      4.44, 4.32, 4.22, 4.14, 4.07, 4.01, 3.97, 3.92, 3.88, 3.85,
+      3.82, 3.79, 3.77, 3.75, 3.73, 3.71, 3.69, 3.67, 3.66, 3.65};
+
+  private final int warmupIterations;
+  private final int measurementIterations;
+  private final long iterationMillis;
+  private final Pattern filter;
+
+  private final List<Result> results = new ArrayList<>();
+
+  /** Results are folded into this so that the JIT cannot drop the work. */
+  private volatile int sink;
+
+  /**
+   * @param warmupIterations Number of discarded iterations per benchmark
+   * @param measurementIterations Number of measured iterations per benchmark
+   * @param iterationMillis Length of one iteration
+   * @param filter Only benchmarks whose full name contains a match are run;
+   *     null runs them all
+   */
+  public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis, Pattern filter) {
+    if (measurementIterations < 1) {
+      throw new IllegalArgumentException("Need at least one measurement iteration");
+    }
+    this.warmupIterations = warmupIterations;
+    this.measurementIterations = measurementIterations;
+    this.iterationMillis = iterationMillis;
+    this.filter = filter;
+  }
+
+  /** Run a benchmark without parameters. */
+  public void run(String name, Supplier<?> op) {
+    run(name, Collections.emptyMap(), op);
+  }
+
+  /**
+   * Run a benchmark and record its result.
+   *
+   * @param name The benchmark's full name, e.g. Class.method
+   * @param params The parameter values of this run, reported with the result
+   * @param op One operation; its result is consumed so it is not optimized away
+   */
+  public void run(String name, Map<String, String> params, Supplier<?> op) {
+    if ( ! selected(name)) {
+      return;
+    }
+    for (int i = 0; i < warmupIterations; i++) {
+      iteration(op);
+    }
+    double[] raw = new double[measurementIterations];
+    for (int i = 0; i < measurementIterations; i++) {
+      raw[i] = iteration(op);
+    }
+    Result result = new Result(name, new LinkedHashMap<>(params), raw);
+    results.add(result);
+    System.out.printf(Locale.ROOT, "%-60s %-14s %14.3f +- %10.3f us/op%n",
+        name, params.isEmpty() ? "" : params.toString(), result.score, result.error);
+  }
+
+  /** Whether benchmarks of this name are run, so that setup for them can be skipped if not. */
+  public boolean selected(String name) {
+    return filter == null || filter.matcher(name).find();
+  }
+
+  /** Run op for one iteration and return the mean microseconds per call. */
+  private double iteration(Supplier<?> op) {
+    long deadline = System.nanoTime() + iterationMillis * 1000000L;
+    long ops = 0;
+    int h = 0;
+    long start = System.nanoTime();
+    long now;
+    do {
+      Object o = op.get();
+      h += o == null ? 0 : o.hashCode();
+      ops++;
+      now = System.nanoTime();
+    } while (now < deadline);
+    sink += h;
+    return (now - start) / 1000.0 / ops;
+  }
+
+  public List<Result> results() {
+    return results;
+  }
+
+  /** Write all results so far to a file as a JMH style JSON array. */
+  public void writeJson(String path) throws IOException {
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))) {
+      out.println("[");
+      for (int i = 0; i < results.size(); i++) {
+        results.get(i).writeJson(out);
+        out.println(i + 1 < results.size() ? "," : "");
+      }
+      out.println("]");
+    }
+  }
+
+  private static String quote(String s) {
+    StringBuilder sb = new StringBuilder("\"");
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.append('"').toString();
+  }
+
+  private static String number(double d) {
+    return Double.isFinite(d) ? String.format(Locale.ROOT, "%.6f", d) : "\"NaN\"";
+  }
+
+  /** The measurements of one benchmark with one set of parameters. */
+  public class Result {
+
+    public final String benchmark;
+    public final Map<String, String> params;
+    /** Microseconds per operation, one entry per measurement iteration. */
+    public final double[] rawData;
+    public final double score;
+    public final double error;
+
+    Result(String benchmark, Map<String, String> params, double[] rawData) {
+      this.benchmark = benchmark;
+      this.params = params;
+      this.rawData = rawData;
+      int n = rawData.length;
+      double sum = 0.0;
+      for (double d : rawData) {
+        sum += d;
+      }
+      score = sum / n;
+      if (n > 1) {
+        double ss = 0.0;
+        for (double d : rawData) {
+          ss += (d - score) * (d - score);
+        }
+        double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.29;
+        error = t * Math.sqrt(ss / (n - 1) / n);
+      } else {
+        error = Double.NaN;
+      }
+    }
+
+    void writeJson(PrintWriter out) {
+      out.println("  {");
+      out.println("    \"jmhVersion\" : \"compatible\",");
+      out.println("    \"benchmark\" : " + quote(benchmark) + ",");
+      out.println("    \"mode\" : \"avgt\",");
+      out.println("    \"threads\" : 1,");
+      out.println("    \"forks\" : 0,");
+      out.println("    \"jvm\" : " + quote(System.getProperty("java.home")) + ",");
+      out.println("    \"jdkVersion\" : " + quote(System.getProperty("java.version")) + ",");
+      out.println("    \"warmupIterations\" : " + warmupIterations + ",");
+      out.println("    \"warmupTime\" : \"" + iterationMillis + " ms\",");
+      out.println("    \"measurementIterations\" : " + measurementIterations + ",");
+      out.println("    \"measurementTime\" : \"" + iterationMillis + " ms\",");
+      if ( ! params.isEmpty()) {
+        out.println("    \"params\" : {");
+        int i = 0;
+        for (Map.Entry<String, String> e : params.entrySet()) {
+          out.println("      " + quote(e.getKey()) + " : " + quote(e.getValue()) + (++i < params.size() ? "," : ""));
+        }
+        out.println("    },");
+      }
+      out.println("    \"primaryMetric\" : {");
+      out.println("      \"score\" : " + number(score) + ",");
+      out.println("      \"scoreError\" : " + number(error) + ",");
+      out.println("      \"scoreConfidence\" : [ " + number(score - error) + ", " + number(score + error) + " ],");
+      out.println("      \"scoreUnit\" : \"us/op\",");
+      StringBuilder raw = new StringBuilder();
+      for (int i = 0; i < rawData.length; i++) {
+        raw.append(i == 0 ? "" : ", ").append(number(rawData[i]));
+      }
+      out.println("      \"rawData\" : [ [ " + raw + " ] ]");
+      out.println("    },");
+      out.println("    \"secondaryMetrics\" : {}");
+      out.print("  }");
+    }
+
+  }
+
+}
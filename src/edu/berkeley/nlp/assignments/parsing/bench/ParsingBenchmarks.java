@@ -0,0 +1,1244 @@
+package edu.berkeley.nlp.assignments.parsing.bench;
+
+import edu.berkeley.nlp.assignments.parsing.ling.CoreLabel;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.BinaryGrammar;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.BinaryGrammarExtractor;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.Debinarizer;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.DependencyGrammar;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.ExhaustiveDependencyParser;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.ExhaustivePCFGParser;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntDependency;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.Lexicon;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.LexicalizedParserQuery;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.MLEDependencyGrammar;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.Options;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.SplittingGrammarExtractor;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.TestOptions;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.TrainOptions;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.TreeAnnotatorAndBinarizer;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.UnaryGrammar;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.UnaryRule;
+import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
+import edu.berkeley.nlp.assignments.parsing.student.GenerativeParserFactory.GenerativeParser;
+import edu.berkeley.nlp.assignments.parsing.trees.DiskTreebank;
+import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeReaderFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeReader;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeTransformer;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredObject;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntDependency.ANY_DISTANCE_INT;
+import static edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord.ANY_TAG_INT;
+import static edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord.ANY_WORD_INT;
+import static edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord.STOP_TAG_INT;
+import static edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord.STOP_WORD_INT;
+
+/**
+ * Microbenchmarks of the stages of training and parsing with the
+ * lexparser PCFG: exhaustive parsing by sentence length, lexicon scoring
+ * (with and without the score cache), lexicon training, unary closure,
+ * grammar extraction, tree annotation and binarization, and
+ * debinarization; and, through {@link GenerativeParser}, the latency of a
+ * sentence with the parsing options set each way: the chart filled by
+ * one or more threads, exhaustive against A* search, with and without a
+ * pruning beam, with the best parse read off chart back-pointers or
+ * found by matching scores, by inside-outside with each semiring, with
+ * the output tree built in one pass or a copy at a time, and by the PCFG
+ * alone against the factored model, searched exactly or by rescoring;
+ * the count lookups of the dependency grammar in packed and in classic
+ * counters; the dependency parser with its dependency scores computed
+ * before parsing or as needed; the k best parses for several k; and a
+ * parser trained against one loaded from a model file; and split-merge
+ * EM and training by number of training threads; and reading a
+ * treebank file mapped into memory or through a Reader.
+ * Where two settings should give the same parses,
+ * the sentences whose parses differ are checked or counted.  Everything
+ * is trained on a {@link SyntheticTreebank}, so the suite runs offline,
+ * and the results are written as JMH style JSON (see
+ * {@link BenchmarkRunner}).  A regexp selects benchmarks by name, say
+ * <code>chartThreads</code>.
+ * <p>
+ * Usage: ParsingBenchmarks [-o results.json] [-wi warmupIterations]
+ * [-i iterations] [-r iterationMillis] [-t trainTrees] [regexp]
+ * <br>
+ * The Ant target <code>bench</code> builds and runs it.
+ */
+public class ParsingBenchmarks {
+
+  private static final int[] LENGTHS = {10, 20, 30, 40};
+  private static final int SENTENCES_PER_LENGTH = 10;
+  private static final int TREES_PER_OP = 100;
+  /** The values of TestOptions.chartThreads to parse with; 1 fills the chart sequentially. */
+  private static final int[] CHART_THREADS = {1, 2, 4};
+  /** The beams to parse with, as TestOptions.pcfgBeamSize and pcfgBeamWidth; the first prunes nothing. */
+  private static final int[] BEAM_SIZES = {0, 20, 5};
+  private static final double[] BEAM_WIDTHS = {Double.POSITIVE_INFINITY, 10.0, 5.0};
+  /** The values of TrainOptions.trainingThreads to train with. */
+  private static final int[] TRAINING_THREADS = {1, 2, 4};
+  /** The number of split-merge splits to time an EM iteration after. */
+  private static final int SPLITS = 3;
+  /** The numbers of substates to split each state into for the unary closure. */
+  private static final int[] SUBSTATES = {1, 4, 16, 32};
+  /** The size of the treebank file the tree readers read. */
+  private static final long TREEBANK_BYTES = 8L * 1024 * 1024;
+  /** The numbers of parses to take from GenerativeParser.getKBestParses. */
+  private static final int[] KS = {1, 10, 100, 1000};
+
+  private final Options op;
+  private final TreeAnnotatorAndBinarizer binarizer;
+  private final TreeTransformer debinarizer = new Debinarizer(false);
+
+  /** The training trees as SyntheticTreebank makes them, for the GenerativeParsers. */
+  private final List<edu.berkeley.nlp.ling.Tree<String>> trainTrees;
+  /** Converted but not yet annotated training trees. */
+  private final List<Tree> rawTrees;
+  /** Annotated and binarized training trees. */
+  private final List<Tree> binarizedTrees;
+
+  private final Index<String> stateIndex = new HashIndex<>();
+  private final Index<String> wordIndex = new HashIndex<>();
+  private final Index<String> tagIndex = new HashIndex<>();
+  private final BinaryGrammar bg;
+  private final UnaryGrammar ug;
+  private final Lexicon lex;
+
+  public ParsingBenchmarks(int numTrain) {
+    op = new Options();
+    op.doDep = false;
+    op.testOptions.iterativeCKY = false;
+    op.testOptions.chartStorage = TestOptions.ChartStorage.FLAT;
+    binarizer = new TreeAnnotatorAndBinarizer(op.tlpParams, op.forceCNF, ! op.trainOptions.outsideFactor(),
+        ! op.trainOptions.predictSplits, op);
+
+    trainTrees = new SyntheticTreebank(1).trees(numTrain);
+    rawTrees = convert(trainTrees);
+    binarizedTrees = new ArrayList<>(rawTrees.size());
+    for (Tree tree : rawTrees) {
+      binarizedTrees.add(binarizer.transformTree(tree));
+    }
+
+    Pair<UnaryGrammar, BinaryGrammar> bgug = new BinaryGrammarExtractor(stateIndex).extract(binarizedTrees);
+    bg = bgug.second;
+    bg.splitRules();
+    ug = bgug.first;
+    ug.purgeRules();
+
+    lex = op.tlpParams.lex(op, wordIndex, tagIndex);
+    lex.initializeTraining(binarizedTrees.size());
+    lex.train(binarizedTrees);
+    lex.finishTraining();
+  }
+
+  public void run(BenchmarkRunner runner) throws IOException {
+    String prefix = getClass().getName() + '.';
+
+    ExhaustivePCFGParser parser = new ExhaustivePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex);
+    List<List<List<String>>> testSentences = yields(testTrees(2, 2));
+    List<String> words = new ArrayList<>();
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<List<HasWord>> sentences = new ArrayList<>();
+      for (List<String> yield : testSentences.get(i)) {
+        sentences.add(sentence(yield));
+        words.addAll(yield);
+      }
+      Iterator<List<HasWord>> it = cycle(sentences);
+      runner.run(prefix + "parse", Collections.singletonMap("length", Integer.toString(LENGTHS[i])), () -> {
+        parser.parse(it.next());
+        return parser.getBestScore();
+      });
+    }
+    // how sparse the charts of all the sentences parsed above were
+    double[] density = parser.liveStateDensity();
+    if (density.length > 1) {
+      StringBuilder sb = new StringBuilder("Live states by span length, % of " + stateIndex.size() + ':');
+      for (int span = 1; span < density.length; span++) {
+        sb.append(String.format(Locale.ROOT, " %d=%.1f", span, 100.0 * density[span]));
+      }
+      System.out.println(sb);
+    }
+
+    // the parser's taggings of every test token, so that only scoring is timed
+    List<IntTaggedWord[]> taggings = new ArrayList<>(words.size());
+    for (String word : words) {
+      List<IntTaggedWord> tags = new ArrayList<>();
+      for (Iterator<IntTaggedWord> it = lex.ruleIteratorByWord(word, 0, null); it.hasNext(); ) {
+        tags.add(it.next());
+      }
+      taggings.add(tags.toArray(new IntTaggedWord[0]));
+    }
+    runner.run(prefix + "lexiconScore", () -> {
+      double sum = 0.0;
+      for (int i = 0; i < taggings.size(); i++) {
+        String word = words.get(i);
+        for (IntTaggedWord itw : taggings.get(i)) {
+          sum += lex.score(itw, i, word, null);
+        }
+      }
+      return sum;
+    });
+
+    // the same scores computed from the counts each time, with no score cache
+    Options uncachedOp = new Options();
+    uncachedOp.testOptions.lexiconScoreCacheSize = 0;
+    Lexicon uncached = uncachedOp.tlpParams.lex(uncachedOp, wordIndex, tagIndex);
+    uncached.initializeTraining(binarizedTrees.size());
+    uncached.train(binarizedTrees);
+    uncached.finishTraining();
+    runner.run(prefix + "lexiconScoreUncached", () -> {
+      double sum = 0.0;
+      for (int i = 0; i < taggings.size(); i++) {
+        String word = words.get(i);
+        for (IntTaggedWord itw : taggings.get(i)) {
+          sum += uncached.score(itw, i, word, null);
+        }
+      }
+      return sum;
+    });
+
+    runner.run(prefix + "lexiconTrain", () -> {
+      Lexicon trained = op.tlpParams.lex(op, wordIndex, tagIndex);
+      trained.initializeTraining(binarizedTrees.size());
+      trained.train(binarizedTrees);
+      trained.finishTraining();
+      return trained.numRules();
+    });
+
+    runUnaryClosure(runner, prefix + "unaryClosure");
+
+    runner.run(prefix + "binaryGrammarExtract", () ->
+        new BinaryGrammarExtractor(new HashIndex<>()).extract(binarizedTrees).second.numRules());
+
+    Iterator<List<Tree>> raw = cycle(batches(rawTrees));
+    runner.run(prefix + "annotateAndBinarize", () -> {
+      int nodes = 0;
+      for (Tree tree : raw.next()) {
+        nodes += binarizer.transformTree(tree).size();
+      }
+      return nodes;
+    });
+
+    Iterator<List<Tree>> binarized = cycle(batches(binarizedTrees));
+    runner.run(prefix + "debinarize", () -> {
+      int nodes = 0;
+      for (Tree tree : binarized.next()) {
+        nodes += debinarizer.transformTree(tree).size();
+      }
+      return nodes;
+    });
+
+    runChartThreads(runner, prefix + "chartThreads", testSentences);
+    runAStar(runner, prefix + "aStar");
+    runBeam(runner, prefix + "beam", testSentences);
+    runBackPointers(runner, prefix + "backPointers", testSentences);
+    runInsideOutside(runner, prefix + "insideOutside", testSentences);
+    runOutputTrees(runner, prefix + "outputTrees", testSentences);
+    runFactored(runner, prefix + "factored");
+    runDependencyScore(runner, prefix + "dependencyScore", testSentences);
+    runDependencyParse(runner, prefix + "dependencyParse", testSentences);
+    runKBest(runner, prefix + "kBest", testSentences);
+    runModelFile(runner, prefix + "modelFile");
+    runSplitMerge(runner, prefix + "splitMerge");
+    runTrainingThreads(runner, prefix + "trainingThreads");
+    runTreeReader(runner, prefix + "treeReader");
+  }
+
+  /**
+   * The time to build the unary closure (UnaryGrammar.addRule for every
+   * rule, then purgeRules) of the unary grammar, with a rare random unary
+   * rule added from each state so that there are chains to close, and with
+   * each state split into each number of SUBSTATES, as split-merge
+   * training makes them, with random rule probabilities among the
+   * substates.  Prints the number of states, rules and closed rules, and
+   * the peak heap of a closure.
+   */
+  private void runUnaryClosure(BenchmarkRunner runner, String name) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    List<UnaryRule> base = ug.rules();
+    Random random = new Random(1);
+    for (int state = 0; state < stateIndex.size(); state++) {
+      int child = random.nextInt(stateIndex.size() - 1);
+      base.add(new UnaryRule(state, (child < state) ? child : child + 1, Math.log(0.01)));
+    }
+    for (int substates : SUBSTATES) {
+      Index<String> splitIndex = new HashIndex<>();
+      List<UnaryRule> rules = splitUnaries(base, substates, splitIndex);
+      runner.run(name, params("substates", substates), () -> closeUnaries(splitIndex, rules).numClosedRules());
+      resetPeakHeap();
+      UnaryGrammar closed = closeUnaries(splitIndex, rules);
+      System.out.printf(Locale.ROOT, "Unary closure, %d substates: %d states, %d rules, %d closed, peak %.1f MB%n",
+          substates, splitIndex.size(), rules.size(), closed.numClosedRules(), peakHeapMB());
+    }
+  }
+
+  private static UnaryGrammar closeUnaries(Index<String> stateIndex, List<UnaryRule> rules) {
+    UnaryGrammar closed = new UnaryGrammar(stateIndex);
+    for (UnaryRule ur : rules) {
+      closed.addRule(new UnaryRule(ur.parent, ur.child, ur.score));
+    }
+    closed.purgeRules();
+    return closed;
+  }
+
+  /** The rules of the base grammar between every pair of substates, each
+   *  parent substate's share of a rule spread randomly over the child's. */
+  private List<UnaryRule> splitUnaries(List<UnaryRule> base, int substates, Index<String> splitIndex) {
+    for (String state : stateIndex) {
+      for (int a = 0; a < substates; a++) {
+        splitIndex.addToIndex(state + '-' + a);
+      }
+    }
+    Random random = new Random(1);
+    List<UnaryRule> rules = new ArrayList<>();
+    double[] weights = new double[substates];
+    for (UnaryRule ur : base) {
+      for (int a = 0; a < substates; a++) {
+        double total = 0.0;
+        for (int b = 0; b < substates; b++) {
+          weights[b] = 0.5 + random.nextDouble();
+          total += weights[b];
+        }
+        for (int b = 0; b < substates; b++) {
+          rules.add(new UnaryRule(ur.parent * substates + a, ur.child * substates + b,
+              ur.score + Math.log(weights[b] / total)));
+        }
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * The latency of a sentence with the cells of each chart diagonal filled
+   * by each number of threads in CHART_THREADS (TestOptions.chartThreads).
+   * Every number must give the sequential parses.
+   */
+  private void runChartThreads(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<String> expected = null;
+      for (int threads : CHART_THREADS) {
+        parser.testOptions().chartThreads = threads;
+        runBestParse(runner, name, params("length", LENGTHS[i], "threads", threads), parser, sentences.get(i));
+        List<String> parses = parseAll(parser, sentences.get(i));
+        if (expected == null) {
+          expected = parses;
+        } else if (differing(expected, parses) > 0) {
+          throw new IllegalStateException(threads + " chart threads gave different parses at length " + LENGTHS[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * The latency of a sentence with the exhaustive and the A* PCFG parsers
+   * trained on the same trees, and the number of sentences on which they
+   * pick different parses.  Both find Viterbi parses, so those can only
+   * differ where two parses tie.  The sentences are at most as long as
+   * each of LENGTHS, as TestOptions.aStarMaxSentenceLength is 40 and longer
+   * ones are parsed exhaustively.
+   */
+  private void runAStar(BenchmarkRunner runner, String name) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser.Search[] searches = {GenerativeParser.Search.EXHAUSTIVE, GenerativeParser.Search.A_STAR};
+    GenerativeParser[] parsers = new GenerativeParser[searches.length];
+    for (int j = 0; j < searches.length; j++) {
+      parsers[j] = new GenerativeParser(trainTrees, searches[j]);
+    }
+    List<List<List<String>>> sentences = yields(testTrees(4, 0));
+    for (int i = 0; i < LENGTHS.length; i++) {
+      for (int j = 0; j < searches.length; j++) {
+        runBestParse(runner, name, params("length", LENGTHS[i], "search", searches[j]), parsers[j], sentences.get(i));
+      }
+      System.out.printf(Locale.ROOT, "A* ties, length %d: %d of %d parses differ from exhaustive%n", LENGTHS[i],
+          differing(parseAll(parsers[0], sentences.get(i)), parseAll(parsers[1], sentences.get(i))),
+          sentences.get(i).size());
+    }
+  }
+
+  /**
+   * The latency of a sentence with each of the beams of BEAM_SIZES and
+   * BEAM_WIDTHS, and the number of sentences whose parse a beam changes.
+   */
+  private void runBeam(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<String> expected = null;
+      for (int j = 0; j < BEAM_SIZES.length; j++) {
+        parser.testOptions().pcfgBeamSize = BEAM_SIZES[j];
+        parser.testOptions().pcfgBeamWidth = BEAM_WIDTHS[j];
+        runBestParse(runner, name, params("length", LENGTHS[i], "beamSize", BEAM_SIZES[j], "beamWidth", BEAM_WIDTHS[j]),
+            parser, sentences.get(i));
+        List<String> parses = parseAll(parser, sentences.get(i));
+        if (expected == null) {
+          expected = parses;
+        } else {
+          System.out.printf(Locale.ROOT, "Beam %d, %.1f, length %d: %d of %d parses changed%n", BEAM_SIZES[j],
+              BEAM_WIDTHS[j], LENGTHS[i], differing(expected, parses), parses.size());
+        }
+      }
+    }
+  }
+
+  /**
+   * The latency of a sentence when the best parse is read off chart
+   * back-pointers (TestOptions.pcfgBackPointers) and when the chart is
+   * searched for matching scores, and the number of sentences on which the
+   * two differ, which should be none but for ties.
+   */
+  private void runBackPointers(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<List<String>> parses = new ArrayList<>(2);
+      for (boolean backPointers : new boolean[] {false, true}) {
+        parser.testOptions().pcfgBackPointers = backPointers;
+        runBestParse(runner, name, params("length", LENGTHS[i], "backPointers", backPointers), parser, sentences.get(i));
+        parses.add(parseAll(parser, sentences.get(i)));
+      }
+      System.out.printf(Locale.ROOT, "Back-pointers, length %d: %d of %d parses differ from matching scores%n",
+          LENGTHS[i], differing(parses.get(0), parses.get(1)), sentences.get(i).size());
+    }
+  }
+
+  /**
+   * The latency of a sentence parsed by inside-outside with each
+   * TestOptions.insideOutsideSemiring and decoded by max-rule-product, and
+   * the number of sentences on which SCALED and LOG_SUM give different
+   * parses, which should be none but for ties; then the number of test
+   * trees each TestOptions.pcfgDecoder reproduces exactly.
+   */
+  private void runInsideOutside(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    TestOptions options = parser.testOptions();
+    options.pcfgDecoder = TestOptions.Decoder.MAX_RULE_PRODUCT;
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<String> logSum = null;
+      List<String> scaled = null;
+      for (TestOptions.Semiring semiring : TestOptions.Semiring.values()) {
+        options.insideOutsideSemiring = semiring;
+        runBestParse(runner, name, params("length", LENGTHS[i], "semiring", semiring), parser, sentences.get(i));
+        if (semiring == TestOptions.Semiring.LOG_SUM) {
+          logSum = parseAll(parser, sentences.get(i));
+        } else if (semiring == TestOptions.Semiring.SCALED) {
+          scaled = parseAll(parser, sentences.get(i));
+        }
+      }
+      System.out.printf(Locale.ROOT, "Inside-outside, length %d: %d of %d SCALED parses differ from LOG_SUM%n",
+          LENGTHS[i], differing(logSum, scaled), sentences.get(i).size());
+    }
+
+    List<edu.berkeley.nlp.ling.Tree<String>> gold = new SyntheticTreebank(3, 2.0).trees(5 * SENTENCES_PER_LENGTH, 3, 30);
+    for (TestOptions.Decoder decoder : TestOptions.Decoder.values()) {
+      options.pcfgDecoder = decoder;
+      int exact = 0;
+      for (edu.berkeley.nlp.ling.Tree<String> tree : gold) {
+        if (parser.getBestParse(tree.getYield()).toString().equals(tree.toString())) {
+          exact++;
+        }
+      }
+      System.out.printf(Locale.ROOT, "Decoder %s: %d of %d test trees exact%n", decoder, exact, gold.size());
+    }
+  }
+
+  /**
+   * The latency of a sentence when the output tree is built in one pass
+   * (TestOptions.fusedOutputTrees) and when the parse is debinarized,
+   * stripped and unannotated a copy at a time, with and without chart
+   * back-pointers.  The parsing is the same either way, so the differences
+   * are those of the output stage.  Also gives the heap allocated per
+   * sentence, which the output stage is most of, and the number of
+   * sentences whose output trees differ, which should be none.
+   */
+  private void runOutputTrees(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      for (boolean backPointers : new boolean[] {false, true}) {
+        parser.testOptions().pcfgBackPointers = backPointers;
+        List<List<String>> parses = new ArrayList<>(2);
+        double[] kb = new double[2];
+        for (boolean fused : new boolean[] {false, true}) {
+          parser.testOptions().fusedOutputTrees = fused;
+          runBestParse(runner, name, params("length", LENGTHS[i], "backPointers", backPointers, "fused", fused),
+              parser, sentences.get(i));
+          long bytes = threads.getThreadAllocatedBytes(thread);
+          for (List<String> sentence : sentences.get(i)) {
+            parser.getBestParse(sentence);
+          }
+          kb[parses.size()] = (threads.getThreadAllocatedBytes(thread) - bytes) / 1024.0 / sentences.get(i).size();
+          parses.add(parseAll(parser, sentences.get(i)));
+        }
+        System.out.printf(Locale.ROOT, "Output trees, length %d, back-pointers %s: %.1f KB per sentence a copy at "
+                + "a time, %.1f KB fused; %d of %d trees differ%n", LENGTHS[i], backPointers, kb[0], kb[1],
+            differing(parses.get(0), parses.get(1)), sentences.get(i).size());
+      }
+    }
+  }
+
+  /**
+   * The latency of a sentence parsed with the PCFG alone and with the
+   * factored model (GenerativeParser.Search.FACTORED), by the exact A*
+   * pipeline and by the TestOptions.useFastFactored shortcut, which
+   * rescores the PCFG's k best parses.  For the factored parses, prints
+   * the LexicalizedParserQuery.Stats of the timed runs (the time in each
+   * stage, the items built and how the searches ended), the number of
+   * parses of each that match the test trees exactly, and the number of
+   * sentences whose fast parse is not the exact one.
+   */
+  private void runFactored(BenchmarkRunner runner, String name) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser pcfg = new GenerativeParser(trainTrees);
+    GenerativeParser factored = new GenerativeParser(trainTrees, GenerativeParser.Search.FACTORED);
+    List<List<edu.berkeley.nlp.ling.Tree<String>>> gold = testTrees(2, 2);
+    List<List<List<String>>> sentences = yields(gold);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<String> goldParses = new ArrayList<>();
+      for (edu.berkeley.nlp.ling.Tree<String> tree : gold.get(i)) {
+        goldParses.add(tree.toString());
+      }
+      runBestParse(runner, name, params("length", LENGTHS[i], "model", "PCFG"), pcfg, sentences.get(i));
+      List<String> pcfgParses = parseAll(pcfg, sentences.get(i));
+      List<List<String>> factoredParses = new ArrayList<>(2);
+      for (boolean fast : new boolean[] {false, true}) {
+        String model = fast ? "FAST_FACTORED" : "FACTORED";
+        factored.testOptions().useFastFactored = fast;
+        factored.clearFactoredStats();
+        runBestParse(runner, name, params("length", LENGTHS[i], "model", model), factored, sentences.get(i));
+        LexicalizedParserQuery.Stats stats = factored.factoredStats();
+        factoredParses.add(parseAll(factored, sentences.get(i)));
+        System.out.printf(Locale.ROOT, "%s, length %d: %s%n", model, LENGTHS[i], stats);
+      }
+      int n = goldParses.size();
+      System.out.printf(Locale.ROOT, "Factored, length %d: exact PCFG %d, FACTORED %d, FAST_FACTORED %d of %d; "
+              + "%d fast parses differ from FACTORED%n", LENGTHS[i], n - differing(goldParses, pcfgParses),
+          n - differing(goldParses, factoredParses.get(0)), n - differing(goldParses, factoredParses.get(1)), n,
+          differing(factoredParses.get(0), factoredParses.get(1)));
+    }
+  }
+
+  /**
+   * The time to look up the counts MLEDependencyGrammar.probTB needs for
+   * the dependencies the ExhaustiveDependencyParser scores for a sentence,
+   * in the grammar's counters stored by packed long keys (PACKED) and in
+   * copies of them in ClassicCounters looked up by IntDependency (CLASSIC),
+   * as the grammar kept them before.  The dependencies are every head and
+   * argument word with every pair of tags the lexicon licenses for them,
+   * and a stop for every word, tag and distance.  Prints the number of
+   * dependencies and counts and the heap allocated per dependency by each
+   * counter, and checks that the two give the same counts.
+   */
+  private void runDependencyScore(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    MLEDependencyGrammar dg = (MLEDependencyGrammar) op.tlpParams.dependencyGrammarExtractor(op, wordIndex, tagIndex)
+        .extract(binarizedTrees);
+    ClassicCounter<IntDependency> classicArgs = new ClassicCounter<>(dg.argCounter());
+    ClassicCounter<IntDependency> classicStops = new ClassicCounter<>(dg.stopCounter());
+    LongCounter packedArgs = dg.argCounter().counts();
+    LongCounter packedStops = dg.stopCounter().counts();
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<List<int[]>> dependencies = new ArrayList<>();
+      int total = 0;
+      for (List<String> sentence : sentences.get(i)) {
+        dependencies.add(dependencies(dg, sentence));
+        total += dependencies.get(dependencies.size() - 1).size();
+      }
+      double[] sums = new double[2];
+      double[] bytes = new double[2];
+      for (int j = 0; j < 2; j++) {
+        boolean packed = j == 1;
+        Iterator<List<int[]>> it = cycle(dependencies);
+        runner.run(name, params("length", LENGTHS[i], "counter", packed ? "PACKED" : "CLASSIC"), () -> {
+          double sum = 0.0;
+          for (int[] d : it.next()) {
+            sum += packed ? packedCounts(packedArgs, packedStops, d) : classicCounts(classicArgs, classicStops, d);
+          }
+          return sum;
+        });
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (List<int[]> list : dependencies) {
+          for (int[] d : list) {
+            sums[j] += packed ? packedCounts(packedArgs, packedStops, d) : classicCounts(classicArgs, classicStops, d);
+          }
+        }
+        bytes[j] = (threads.getThreadAllocatedBytes(thread) - allocated) / (double) total;
+      }
+      if (sums[0] != sums[1]) {
+        throw new IllegalStateException("Packed and classic counters gave different counts at length " + LENGTHS[i]);
+      }
+      System.out.printf(Locale.ROOT, "Dependency counts, length %d: %.0f dependencies per sentence, %d arg and %d "
+              + "stop counts; %.1f bytes per dependency CLASSIC, %.1f PACKED%n", LENGTHS[i],
+          total / (double) dependencies.size(), packedArgs.size(), packedStops.size(), bytes[0], bytes[1]);
+    }
+  }
+
+  /**
+   * The latency of a sentence parsed by ExhaustiveDependencyParser when
+   * the dependencies are scored before parsing into a table over all pairs
+   * of words and tags, and when only those of the tags the lexicon licenses
+   * are scored, as the parse first needs them
+   * (TestOptions.lazyDependencyScores).  Prints the mean number of cells of
+   * the parser's table of scores in use and of dependencies scored, and
+   * the heap allocated, per sentence, and the number of sentences whose
+   * best parse or score differs, which should be none.
+   */
+  private void runDependencyParse(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    Options dependencyOp = new Options();
+    DependencyGrammar dg = dependencyOp.tlpParams.dependencyGrammarExtractor(dependencyOp, wordIndex, tagIndex)
+        .extract(binarizedTrees);
+    ExhaustiveDependencyParser parser = new ExhaustiveDependencyParser(dg, lex, dependencyOp, wordIndex, tagIndex);
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<List<HasWord>> lengthSentences = new ArrayList<>();
+      for (List<String> words : sentences.get(i)) {
+        lengthSentences.add(sentence(words));
+      }
+      int n = lengthSentences.size();
+      List<List<String>> parses = new ArrayList<>(2);
+      StringBuilder sb = new StringBuilder();
+      for (boolean lazy : new boolean[] {false, true}) {
+        dependencyOp.testOptions.lazyDependencyScores = lazy;
+        Iterator<List<HasWord>> it = cycle(lengthSentences);
+        runner.run(name, params("length", LENGTHS[i], "lazyDependencyScores", lazy), () -> {
+          parser.parse(it.next());
+          return parser.getBestScore();
+        });
+        List<String> lazyParses = new ArrayList<>(n);
+        long[] counts = new long[2];
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        for (List<HasWord> sentence : lengthSentences) {
+          parser.parse(sentence);
+          lazyParses.add(parser.getBestScore() + " " + parser.getBestParse());
+          int[] sentenceCounts = parser.dependencyScoreCounts();
+          counts[0] += sentenceCounts[0];
+          counts[1] += sentenceCounts[1];
+        }
+        double kb = (threads.getThreadAllocatedBytes(thread) - bytes) / 1024.0 / n;
+        parses.add(lazyParses);
+        sb.append(String.format(Locale.ROOT, "%s %.0f cells used, %.0f dependencies scored, %.1f KB; ",
+            lazy ? "lazy" : "eager", counts[0] / (double) n, counts[1] / (double) n, kb));
+      }
+      System.out.printf(Locale.ROOT, "Dependency parser, length %d: %s%d of %d parses differ%n", LENGTHS[i], sb,
+          differing(parses.get(0), parses.get(1)), n);
+    }
+  }
+
+  /**
+   * The latency of a sentence parsed and its k best parses taken from the
+   * chart (GenerativeParser.getKBestParses) for each k of KS.  Checks that
+   * the scores never increase, and prints the mean number of parses found
+   * (a sentence may have fewer than k) and the number of sentences whose
+   * first parse is not the Viterbi parse, which should be none but for
+   * ties.
+   */
+  private void runKBest(BenchmarkRunner runner, String name, List<List<List<String>>> sentences) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees);
+    for (int i = 0; i < LENGTHS.length; i++) {
+      List<String> viterbi = parseAll(parser, sentences.get(i));
+      StringBuilder found = new StringBuilder();
+      for (int k : KS) {
+        Iterator<List<String>> it = cycle(sentences.get(i));
+        runner.run(name, params("length", LENGTHS[i], "k", k), () -> kBest(parser, it.next(), k));
+        int parses = 0;
+        for (List<String> sentence : sentences.get(i)) {
+          parses += kBest(parser, sentence, k).size();
+        }
+        found.append(String.format(Locale.ROOT, " k=%d %.1f", k, parses / (double) sentences.get(i).size()));
+      }
+      List<String> first = new ArrayList<>(viterbi.size());
+      for (List<String> sentence : sentences.get(i)) {
+        first.add(String.valueOf(kBest(parser, sentence, 1).get(0).object()));
+      }
+      System.out.printf(Locale.ROOT, "K-best, length %d: parses found%s; %d of %d first parses differ from Viterbi%n",
+          LENGTHS[i], found, differing(viterbi, first), viterbi.size());
+    }
+  }
+
+  /** The first k parses of the sentence, checking that their scores never increase. */
+  private static List<ScoredObject<edu.berkeley.nlp.ling.Tree<String>>> kBest(GenerativeParser parser,
+                                                                             List<String> sentence, int k) {
+    List<ScoredObject<edu.berkeley.nlp.ling.Tree<String>>> parses = new ArrayList<>(k);
+    for (Iterator<ScoredObject<edu.berkeley.nlp.ling.Tree<String>>> it = parser.getKBestParses(sentence);
+         parses.size() < k && it.hasNext(); ) {
+      ScoredObject<edu.berkeley.nlp.ling.Tree<String>> parse = it.next();
+      if ( ! parses.isEmpty() && parse.score() > parses.get(parses.size() - 1).score() + 1.0e-4) {
+        throw new IllegalStateException("parse " + parses.size() + " of " + sentence + " scores higher than the one before");
+      }
+      parses.add(parse);
+    }
+    return parses;
+  }
+
+  /**
+   * The start-up time of a PCFG parser trained from the treebank (TRAIN)
+   * and of one loaded from a model file (FILE, see ParserModelFile)
+   * written by it.  Prints the size of the file and the number of test
+   * sentences on which the two parse differently, which should be none.
+   */
+  private void runModelFile(BenchmarkRunner runner, String name) throws IOException {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    Path file = Files.createTempFile("parser", ".model");
+    try {
+      GenerativeParser trained = new GenerativeParser(trainTrees);
+      trained.save(file);
+      runner.run(name, params("source", "TRAIN"), () -> new GenerativeParser(trainTrees));
+      runner.run(name, params("source", "FILE"), () -> {
+        try {
+          return GenerativeParser.load(file, GenerativeParser.Search.EXHAUSTIVE);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      GenerativeParser loaded = GenerativeParser.load(file, GenerativeParser.Search.EXHAUSTIVE);
+      List<List<String>> sentences = new ArrayList<>();
+      for (List<List<String>> lengthSentences : yields(testTrees(2, 2))) {
+        sentences.addAll(lengthSentences);
+      }
+      System.out.printf(Locale.ROOT, "Model file: %d bytes; %d of %d parses differ from the trained parser's%n",
+          Files.size(file), differing(parseAll(trained, sentences), parseAll(loaded, sentences)), sentences.size());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * The time of one split-merge EM iteration (SplittingGrammarExtractor)
+   * over the training trees after each of SPLITS splits, by number of
+   * training threads in TRAINING_THREADS.  Prints the number of substates
+   * after each split, and then the number of test trees that a parser
+   * trained with two split-merge cycles and one trained by MLE on
+   * parent-annotated trees reproduce exactly.
+   */
+  private void runSplitMerge(BenchmarkRunner runner, String name) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    Options splitOp = new Options();
+    splitOp.trainOptions.predictSplits = true;
+    TreeAnnotatorAndBinarizer splitBinarizer = new TreeAnnotatorAndBinarizer(splitOp.tlpParams, splitOp.forceCNF,
+        ! splitOp.trainOptions.outsideFactor(), ! splitOp.trainOptions.predictSplits, splitOp);
+    List<Tree> trees = new ArrayList<>(rawTrees.size());
+    for (Tree tree : rawTrees) {
+      trees.add(splitBinarizer.transformTree(tree));
+    }
+    SplittingGrammarExtractor extractor = new SplittingGrammarExtractor(splitOp, new HashIndex<>(), new HashIndex<>(),
+        new HashIndex<>());
+    extractor.initialize(trees);
+    for (int split = 1; split <= SPLITS; split++) {
+      extractor.split();
+      for (int threads : TRAINING_THREADS) {
+        splitOp.trainOptions.trainingThreads = threads;
+        runner.run(name, params("splits", split, "trainingThreads", threads), () -> extractor.emIteration(false));
+      }
+      System.out.printf(Locale.ROOT, "Split-merge, %d splits: %d substates%n", split, extractor.numSubstates());
+    }
+
+    TrainOptions trainOptions = new TrainOptions();
+    trainOptions.predictSplits = true;
+    trainOptions.splitCount = 2;
+    trainOptions.splitRecombineRate = 0.5;
+    trainOptions.trainingThreads = 0;
+    GenerativeParser splitMerge = new GenerativeParser(trainTrees, GenerativeParser.Search.EXHAUSTIVE, trainOptions);
+    GenerativeParser mle = new GenerativeParser(trainTrees);
+    List<edu.berkeley.nlp.ling.Tree<String>> gold = new SyntheticTreebank(3, 2.0).trees(5 * SENTENCES_PER_LENGTH, 3, 25);
+    List<String> goldParses = new ArrayList<>(gold.size());
+    List<List<String>> sentences = new ArrayList<>(gold.size());
+    for (edu.berkeley.nlp.ling.Tree<String> tree : gold) {
+      goldParses.add(tree.toString());
+      sentences.add(tree.getYield());
+    }
+    int n = gold.size();
+    System.out.printf(Locale.ROOT, "Split-merge: exact MLE %d, split-merge %d of %d test trees%n",
+        n - differing(goldParses, parseAll(mle, sentences)), n - differing(goldParses, parseAll(splitMerge, sentences)),
+        n);
+  }
+
+  /**
+   * The time to train the PCFG and lexicon, streamed through
+   * ParallelTreebankExtractor, by number of training threads in
+   * TRAINING_THREADS.  Prints the peak heap in use while training with
+   * each, and for comparison that of holding the whole annotated,
+   * binarized treebank at once, and checks that every number of threads
+   * gives the same parses.
+   */
+  private void runTrainingThreads(BenchmarkRunner runner, String name) {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    List<edu.berkeley.nlp.ling.Tree<String>> gold = new SyntheticTreebank(3, 2.0).trees(5 * SENTENCES_PER_LENGTH, 3, 25);
+    List<List<String>> sentences = new ArrayList<>(gold.size());
+    for (edu.berkeley.nlp.ling.Tree<String> tree : gold) {
+      sentences.add(tree.getYield());
+    }
+    List<String> expected = null;
+    StringBuilder sb = new StringBuilder("Training threads, peak heap:");
+    for (int threads : TRAINING_THREADS) {
+      TrainOptions trainOptions = new TrainOptions();
+      trainOptions.trainingThreads = threads;
+      runner.run(name, params("trainingThreads", threads),
+          () -> new GenerativeParser(trainTrees, GenerativeParser.Search.EXHAUSTIVE, trainOptions));
+      resetPeakHeap();
+      GenerativeParser parser = new GenerativeParser(trainTrees, GenerativeParser.Search.EXHAUSTIVE, trainOptions);
+      sb.append(String.format(Locale.ROOT, " %d threads %.1f MB;", threads, peakHeapMB()));
+      List<String> parses = parseAll(parser, sentences);
+      if (expected == null) {
+        expected = parses;
+      } else if (differing(expected, parses) > 0) {
+        throw new IllegalStateException(threads + " training threads gave a different grammar");
+      }
+    }
+    GenerativeParser parser = new GenerativeParser(trainTrees.subList(0, TREES_PER_OP));
+    resetPeakHeap();
+    List<Tree> treeBank = parser.convertTrainTrees(trainTrees);
+    System.out.printf(Locale.ROOT, "%s %d binarized trees held at once %.1f MB%n", sb, treeBank.size(), peakHeapMB());
+  }
+
+  /**
+   * The time to read a Penn Treebank file of TREEBANK_BYTES of synthetic
+   * trees through a DiskTreebank, whose reader tokenizes the file mapped
+   * into memory (MAPPED), through a PennTreeReader over a buffered Reader
+   * (READER), and through the assignment's
+   * edu.berkeley.nlp.ling.Trees.PennTreeReader (LING_TREES).  Prints the
+   * peak heap of each, and checks that the mapped reader and the
+   * assignment's read the same trees.  The file is written to a temporary
+   * file and deleted after.
+   */
+  private void runTreeReader(BenchmarkRunner runner, String name) throws IOException {
+    if ( ! runner.selected(name)) {
+      return;
+    }
+    Path file = Files.createTempFile("treebank", ".mrg");
+    try {
+      writeTreebank(file, TREEBANK_BYTES);
+      StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "Tree readers, %.1f MB file, peak heap:",
+          Files.size(file) / (1024.0 * 1024.0)));
+      for (String reader : new String[] {"MAPPED", "READER", "LING_TREES"}) {
+        Supplier<Long> read = () -> {
+          try {
+            return readTrees(file, reader);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        };
+        runner.run(name, params("reader", reader), read);
+        resetPeakHeap();
+        long trees = read.get();
+        sb.append(String.format(Locale.ROOT, " %s %.1f MB;", reader, peakHeapMB()));
+        if (trees == 0) {
+          throw new IllegalStateException(reader + " read no trees");
+        }
+      }
+      System.out.printf(Locale.ROOT, "%s %d trees differ%n", sb, differingTrees(file));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /** Time GenerativeParser.getBestParse on one sentence after another, with the options the parser has now. */
+  private static void runBestParse(BenchmarkRunner runner, String name, Map<String, String> params,
+                                   GenerativeParser parser, List<List<String>> sentences) {
+    Iterator<List<String>> it = cycle(sentences);
+    runner.run(name, params, () -> parser.getBestParse(it.next()));
+  }
+
+  /** The parser's best parses of the sentences, as strings. */
+  private static List<String> parseAll(GenerativeParser parser, List<List<String>> sentences) {
+    List<String> parses = new ArrayList<>(sentences.size());
+    for (List<String> sentence : sentences) {
+      parses.add(String.valueOf(parser.getBestParse(sentence)));
+    }
+    return parses;
+  }
+
+  /** The number of sentences whose two parses differ. */
+  private static int differing(List<String> parses, List<String> otherParses) {
+    int differing = 0;
+    for (int i = 0; i < parses.size(); i++) {
+      if ( ! parses.get(i).equals(otherParses.get(i))) {
+        differing++;
+      }
+    }
+    return differing;
+  }
+
+  /**
+   * The dependencies of a sentence, each as head word, head tag bin,
+   * argument word, argument tag bin, 1 if left headed, distance and
+   * binned distance, with the argument STOP for a stop.
+   */
+  private List<int[]> dependencies(MLEDependencyGrammar dg, List<String> words) {
+    List<int[]> dependencies = new ArrayList<>();
+    int length = words.size();
+    int[] ids = new int[length];
+    List<List<Integer>> tags = new ArrayList<>();
+    for (int i = 0; i < length; i++) {
+      ids[i] = wordIndex.indexOf(words.get(i));
+      if (ids[i] < 0) {
+        ids[i] = wordIndex.indexOf(Lexicon.UNKNOWN_WORD);
+      }
+      List<Integer> wordTags = new ArrayList<>();
+      for (Iterator<IntTaggedWord> it = lex.ruleIteratorByWord(words.get(i), i, null); it.hasNext(); ) {
+        int tag = dg.tagBin(it.next().tag);
+        if ( ! wordTags.contains(tag)) {
+          wordTags.add(tag);
+        }
+      }
+      tags.add(wordTags);
+    }
+    for (int head = 0; head < length; head++) {
+      for (int hTag : tags.get(head)) {
+        for (int split = 0; split <= length; split++) {
+          boolean right = split > head;
+          int distance = right ? split - head - 1 : head - split;
+          dependencies.add(new int[] {ids[head], hTag, STOP_WORD_INT, STOP_TAG_INT, right ? 1 : 0, distance,
+              dg.distanceBin(distance)});
+        }
+        for (int arg = 0; arg < length; arg++) {
+          if (arg == head) {
+            continue;
+          }
+          for (int aTag : tags.get(arg)) {
+            boolean leftHeaded = head < arg;
+            int distance = leftHeaded ? arg - head - 1 : head - arg - 1;
+            dependencies.add(new int[] {ids[head], hTag, ids[arg], aTag, leftHeaded ? 1 : 0, distance,
+                dg.distanceBin(distance)});
+          }
+        }
+      }
+    }
+    return dependencies;
+  }
+
+  /** The counts probTB looks up for a dependency, as the grammar looked them up in ClassicCounters. */
+  private static double classicCounts(ClassicCounter<IntDependency> args, ClassicCounter<IntDependency> stops, int[] d) {
+    IntTaggedWord head = new IntTaggedWord(d[0], d[1]);
+    IntTaggedWord arg = new IntTaggedWord(d[2], d[3]);
+    boolean leftHeaded = d[4] != 0;
+    IntDependency dependency = new IntDependency(head, arg, leftHeaded, d[6]);
+    IntTaggedWord wild = new IntTaggedWord(ANY_WORD_INT, ANY_TAG_INT);
+    IntTaggedWord stop = new IntTaggedWord(STOP_WORD_INT, STOP_TAG_INT);
+    IntTaggedWord anyHead = new IntTaggedWord(ANY_WORD_INT, dependency.head.tag);
+    double sum = stops.getCount(new IntDependency(dependency.head, stop, leftHeaded, dependency.distance)) +
+        stops.getCount(new IntDependency(anyHead, stop, leftHeaded, dependency.distance)) +
+        stops.getCount(new IntDependency(dependency.head, wild, leftHeaded, dependency.distance)) +
+        stops.getCount(new IntDependency(anyHead, wild, leftHeaded, dependency.distance));
+    if (arg.word == STOP_WORD_INT) {
+      return sum;
+    }
+    IntTaggedWord anyArg = new IntTaggedWord(ANY_WORD_INT, dependency.arg.tag);
+    IntTaggedWord anyTagArg = new IntTaggedWord(dependency.arg.word, ANY_TAG_INT);
+    return sum + args.getCount(new IntDependency(dependency.head, dependency.arg, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(dependency.head, anyArg, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(dependency.head, wild, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(anyHead, dependency.arg, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(anyHead, anyArg, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(anyHead, wild, leftHeaded, dependency.distance)) +
+        args.getCount(new IntDependency(wild, dependency.arg, false, ANY_DISTANCE_INT)) +
+        args.getCount(new IntDependency(wild, anyArg, false, ANY_DISTANCE_INT)) +
+        args.getCount(new IntDependency(wild, anyTagArg, false, ANY_DISTANCE_INT));
+  }
+
+  /** The same counts, looked up by packed key. */
+  private static double packedCounts(LongCounter args, LongCounter stops, int[] d) {
+    int hW = d[0];
+    int hT = d[1];
+    int aW = d[2];
+    int aT = d[3];
+    boolean leftHeaded = d[4] != 0;
+    int distance = d[6];
+    double sum = stops.getCount(IntDependency.pack(hW, hT, STOP_WORD_INT, STOP_TAG_INT, leftHeaded, distance)) +
+        stops.getCount(IntDependency.pack(ANY_WORD_INT, hT, STOP_WORD_INT, STOP_TAG_INT, leftHeaded, distance)) +
+        stops.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distance)) +
+        stops.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distance));
+    if (aW == STOP_WORD_INT) {
+      return sum;
+    }
+    return sum + args.getCount(IntDependency.pack(hW, hT, aW, aT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, aT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, hT, aW, aT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, aT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distance)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, aT, false, ANY_DISTANCE_INT)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, ANY_WORD_INT, aT, false, ANY_DISTANCE_INT)) +
+        args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, ANY_TAG_INT, false, ANY_DISTANCE_INT));
+  }
+
+  /** Write synthetic trees, as the Penn Treebank brackets them, until the file has at least the given size. */
+  private static void writeTreebank(Path file, long size) throws IOException {
+    long bytes = 0;
+    SyntheticTreebank synthetic = new SyntheticTreebank(1);
+    try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      while (bytes < size) {
+        for (edu.berkeley.nlp.ling.Tree<String> tree : synthetic.trees(1000)) {
+          String line = "( " + tree.getChildren().get(0) + ")\n";
+          out.write(line);
+          bytes += line.length();
+        }
+      }
+    }
+  }
+
+  /** The number of trees in the file, read by the named reader. */
+  private static long readTrees(Path file, String reader) throws IOException {
+    long count = 0;
+    switch (reader) {
+      case "MAPPED":
+        DiskTreebank treebank = new DiskTreebank(new LabeledScoredTreeReaderFactory());
+        treebank.loadPath(file.toFile());
+        for (Iterator<Tree> it = treebank.iterator(); it.hasNext(); it.next()) {
+          count++;
+        }
+        break;
+      case "READER":
+        try (TreeReader tr = new LabeledScoredTreeReaderFactory().newTreeReader(
+            Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+          while (tr.readTree() != null) {
+            count++;
+          }
+        }
+        break;
+      default:
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+          for (Iterator<edu.berkeley.nlp.ling.Tree<String>> it = new Trees.PennTreeReader(in); it.hasNext(); it.next()) {
+            count++;
+          }
+        }
+    }
+    return count;
+  }
+
+  /** The number of trees that the mapped reader and the assignment's reader read differently. */
+  private static int differingTrees(Path file) throws IOException {
+    int differ = 0;
+    DiskTreebank treebank = new DiskTreebank(new LabeledScoredTreeReaderFactory());
+    treebank.loadPath(file.toFile());
+    try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      Iterator<edu.berkeley.nlp.ling.Tree<String>> expected = new Trees.PennTreeReader(in);
+      for (Tree tree : treebank) {
+        // the assignment's reader names the unlabeled root ROOT
+        String actual = (tree.value() == null) ? "(ROOT" + tree.toString().substring(1) : tree.toString();
+        if ( ! expected.hasNext() || ! expected.next().toString().equals(actual)) {
+          differ++;
+        }
+      }
+      if (expected.hasNext()) {
+        differ++;
+      }
+    }
+    return differ;
+  }
+
+  private static void resetPeakHeap() {
+    System.gc();
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+      }
+    }
+  }
+
+  /** The sum of the heap pools' peaks, which bounds the peak heap in use from above. */
+  private static double peakHeapMB() {
+    long bytes = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        bytes += pool.getPeakUsage().getUsed();
+      }
+    }
+    return bytes / (1024.0 * 1024.0);
+  }
+
+  /** Benchmark parameters from names and values, in order. */
+  private static Map<String, String> params(Object... namesAndValues) {
+    Map<String, String> params = new LinkedHashMap<>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i].toString(), String.valueOf(namesAndValues[i + 1]));
+    }
+    return params;
+  }
+
+  /** Test trees for each of LENGTHS, from below words shorter to above words longer. */
+  private static List<List<edu.berkeley.nlp.ling.Tree<String>>> testTrees(int below, int above) {
+    SyntheticTreebank test = new SyntheticTreebank(2, 2.0);
+    List<List<edu.berkeley.nlp.ling.Tree<String>>> trees = new ArrayList<>(LENGTHS.length);
+    for (int length : LENGTHS) {
+      trees.add(test.trees(SENTENCES_PER_LENGTH, length - below, length + above));
+    }
+    return trees;
+  }
+
+  /** The words of each list of trees. */
+  private static List<List<List<String>>> yields(List<List<edu.berkeley.nlp.ling.Tree<String>>> trees) {
+    List<List<List<String>>> yields = new ArrayList<>(trees.size());
+    for (List<edu.berkeley.nlp.ling.Tree<String>> list : trees) {
+      List<List<String>> sentences = new ArrayList<>(list.size());
+      for (edu.berkeley.nlp.ling.Tree<String> tree : list) {
+        sentences.add(tree.getYield());
+      }
+      yields.add(sentences);
+    }
+    return yields;
+  }
+
+  private static List<Tree> convert(List<edu.berkeley.nlp.ling.Tree<String>> trees) {
+    TreeFactory tf = new LabeledScoredTreeFactory();
+    List<Tree> converted = new ArrayList<>(trees.size());
+    for (edu.berkeley.nlp.ling.Tree<String> tree : trees) {
+      converted.add(convert(tree, tf));
+    }
+    return converted;
+  }
+
+  private static Tree convert(edu.berkeley.nlp.ling.Tree<String> tree, TreeFactory tf) {
+    if (tree.isLeaf()) {
+      return tf.newLeaf(tree.getLabel());
+    }
+    List<Tree> children = new ArrayList<>();
+    for (edu.berkeley.nlp.ling.Tree<String> child : tree.getChildren()) {
+      children.add(convert(child, tf));
+    }
+    return tf.newTreeNode(tree.getLabel(), children);
+  }
+
+  /** The words of a sentence followed by the boundary symbol, as the parser expects them. */
+  private static List<HasWord> sentence(List<String> words) {
+    List<HasWord> sentence = new ArrayList<>(words.size() + 1);
+    for (String word : words) {
+      CoreLabel w = new CoreLabel();
+      w.setWord(word);
+      w.setValue(word);
+      sentence.add(w);
+    }
+    CoreLabel boundary = new CoreLabel();
+    boundary.setWord(Lexicon.BOUNDARY);
+    boundary.setValue(Lexicon.BOUNDARY);
+    boundary.setTag(Lexicon.BOUNDARY_TAG);
+    boundary.setIndex(words.size() + 1);
+    sentence.add(boundary);
+    return sentence;
+  }
+
+  private static List<List<Tree>> batches(List<Tree> trees) {
+    List<List<Tree>> batches = new ArrayList<>();
+    for (int i = 0; i + TREES_PER_OP <= trees.size(); i += TREES_PER_OP) {
+      batches.add(trees.subList(i, i + TREES_PER_OP));
+    }
+    return batches;
+  }
+
+  /** An endless iterator over the items of a non-empty list. */
+  private static <T> Iterator<T> cycle(List<T> items) {
+    return new Iterator<T>() {
+      private int i;
+
+      public boolean hasNext() {
+        return true;
+      }
+
+      public T next() {
+        T item = items.get(i);
+        i = (i + 1) % items.size();
+        return item;
+      }
+    };
+  }
+
+  public static void main(String[] args) throws IOException {
+    String output = "bench-results.json";
+    int warmup = 3;
+    int iterations = 5;
+    long millis = 1000;
+    int numTrain = 2000;
+    Pattern filter = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-o":
+          output = args[++i];
+          break;
+        case "-wi":
+          warmup = Integer.parseInt(args[++i]);
+          break;
+        case "-i":
+          iterations = Integer.parseInt(args[++i]);
+          break;
+        case "-r":
+          millis = Long.parseLong(args[++i]);
+          break;
+        case "-t":
+          numTrain = Integer.parseInt(args[++i]);
+          break;
+        default:
+          filter = Pattern.compile(args[i]);
+      }
+    }
+
+    BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, millis, filter);
+    new ParsingBenchmarks(numTrain).run(runner);
+    runner.writeJson(output);
+    System.out.println("Wrote " + runner.results().size() + " results to " + output);
+  }
+
+}
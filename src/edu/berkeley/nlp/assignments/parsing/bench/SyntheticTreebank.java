@@ -0,0 +1,188 @@
+package edu.berkeley.nlp.assignments.parsing.bench;
+
+import edu.berkeley.nlp.ling.Tree;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates Penn Treebank style trees from a small hand-written PCFG with
+ * recursive NP, PP, coordination and SBAR rules, for benchmarks that must
+ * run without the real treebank.  The trees are a deterministic function
+ * of the seed.
+ */
+public class SyntheticTreebank {
+
+  private static final String[] DT = {"the", "a", "this", "every", "some", "no"};
+  private static final String[] NN = {"dog", "cat", "man", "park", "telescope", "idea", "market", "company",
+      "share", "price", "report", "bank", "year", "week", "plan", "deal"};
+  private static final String[] NNS = {"dogs", "cats", "men", "parks", "shares", "prices", "reports", "banks",
+      "investors", "analysts"};
+  private static final String[] NNP = {"Smith", "Jones", "London", "Tuesday", "IBM"};
+  private static final String[] PRP = {"he", "she", "it", "they", "we"};
+  private static final String[] VBD = {"saw", "liked", "bought", "sold", "watched", "said", "reported", "expected"};
+  private static final String[] MD = {"will", "could", "might"};
+  private static final String[] VB = {"buy", "sell", "see", "watch", "report"};
+  private static final String[] IN = {"in", "with", "on", "near", "for", "from", "after"};
+  private static final String[] JJ = {"big", "small", "red", "old", "new", "strong", "weak", "early"};
+  private static final String[] RB = {"quickly", "also", "still", "recently"};
+  private static final String[] CC = {"and", "or", "but"};
+
+  private final Random random;
+  /** Scales the probability of the recursive rules; larger gives longer sentences. */
+  private final double recursion;
+
+  public SyntheticTreebank(long seed) {
+    this(seed, 1.0);
+  }
+
+  public SyntheticTreebank(long seed, double recursion) {
+    this.random = new Random(seed);
+    this.recursion = recursion;
+  }
+
+  /** The next n trees. */
+  public List<Tree<String>> trees(int n) {
+    List<Tree<String>> trees = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      trees.add(next());
+    }
+    return trees;
+  }
+
+  /** The next n trees whose sentence length is in [minLength, maxLength],
+   *  discarding others.
+   */
+  public List<Tree<String>> trees(int n, int minLength, int maxLength) {
+    List<Tree<String>> trees = new ArrayList<>(n);
+    while (trees.size() < n) {
+      Tree<String> tree = next();
+      int length = tree.getYield().size();
+      if (length >= minLength && length <= maxLength) {
+        trees.add(tree);
+      }
+    }
+    return trees;
+  }
+
+  public Tree<String> next() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("(ROOT ");
+    s(sb, 0);
+    sb.append(')');
+    return new Trees.PennTreeReader(new StringReader(sb.toString())).next();
+  }
+
+  private boolean recurse(double p, int depth) {
+    return random.nextDouble() < p * recursion * Math.pow(0.75, depth);
+  }
+
+  private void s(StringBuilder sb, int depth) {
+    sb.append("(S ");
+    np(sb, depth + 1);
+    sb.append(' ');
+    vp(sb, depth + 1);
+    if (depth == 0) {
+      sb.append(" (. .)");
+    }
+    sb.append(')');
+  }
+
+  private void np(StringBuilder sb, int depth) {
+    if (recurse(0.35, depth)) {
+      sb.append("(NP ");
+      np(sb, depth + 1);
+      sb.append(' ');
+      pp(sb, depth + 1);
+      sb.append(')');
+      return;
+    }
+    if (recurse(0.12, depth)) {
+      sb.append("(NP ");
+      np(sb, depth + 1);
+      sb.append(' ');
+      word(sb, "CC", CC);
+      sb.append(' ');
+      np(sb, depth + 1);
+      sb.append(')');
+      return;
+    }
+    sb.append("(NP ");
+    switch (random.nextInt(7)) {
+      case 0:
+        word(sb, "NNS", NNS);
+        break;
+      case 1:
+        word(sb, "PRP", PRP);
+        break;
+      case 2:
+        word(sb, "NNP", NNP);
+        break;
+      case 3:
+        word(sb, "DT", DT);
+        sb.append(' ');
+        word(sb, "JJ", JJ);
+        sb.append(' ');
+        word(sb, "NN", NN);
+        break;
+      case 4:
+        word(sb, "DT", DT);
+        sb.append(' ');
+        word(sb, "NN", NN);
+        sb.append(' ');
+        word(sb, "NN", NN);
+        break;
+      default:
+        word(sb, "DT", DT);
+        sb.append(' ');
+        word(sb, "NN", NN);
+    }
+    sb.append(')');
+  }
+
+  private void pp(StringBuilder sb, int depth) {
+    sb.append("(PP ");
+    word(sb, "IN", IN);
+    sb.append(' ');
+    np(sb, depth + 1);
+    sb.append(')');
+  }
+
+  private void vp(StringBuilder sb, int depth) {
+    sb.append("(VP ");
+    if (recurse(0.15, depth)) {
+      word(sb, "RB", RB);
+      sb.append(' ');
+    }
+    if (recurse(0.3, depth)) {
+      word(sb, "VBD", VBD);
+      sb.append(" (SBAR (IN that) ");
+      s(sb, depth + 1);
+      sb.append(')');
+    } else if (random.nextInt(4) == 0) {
+      word(sb, "MD", MD);
+      sb.append(" (VP ");
+      word(sb, "VB", VB);
+      sb.append(' ');
+      np(sb, depth + 1);
+      sb.append(')');
+    } else {
+      word(sb, "VBD", VBD);
+      sb.append(' ');
+      np(sb, depth + 1);
+      if (recurse(0.4, depth)) {
+        sb.append(' ');
+        pp(sb, depth + 1);
+      }
+    }
+    sb.append(')');
+  }
+
+  private void word(StringBuilder sb, String tag, String[] words) {
+    sb.append('(').append(tag).append(' ').append(words[random.nextInt(words.length)]).append(')');
+  }
+
+}
@@ -0,0 +1,6 @@
+/**
+ * Benchmarks for the parsers, run offline on a synthetic treebank
+ * generated by {@link edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank},
+ * so that they need no licensed Penn Treebank data.
+ */
+package edu.berkeley.nlp.assignments.parsing.bench;
@@ -0,0 +1,309 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.Arrays;
+
+/**
+ * An agenda-based A* PCFG parser.  Instead of filling every chart cell
+ * bottom up, edges (state over a span) are popped from an agenda in order
+ * of inside score plus an admissible, consistent outside estimate; each
+ * popped edge is combined with the already popped edges adjacent to it.
+ * The first time the goal over the whole sentence is popped its score is
+ * the Viterbi score, so parsing stops there having built a fraction of
+ * the exhaustive chart.
+ * <p>
+ * The outside estimate of an edge is the {@link SXOutsideEstimate} of its
+ * state and context, plus the best tag score of each word outside it.
+ * Only inside scores of popped edges, and of the derivations built from
+ * them, are written to the chart, so the best parse is read back exactly
+ * as for {@link ExhaustivePCFGParser}.
+ * <p>
+ * Lattices, and sentences longer than the estimate table or needing parse
+ * constraints, length normalization or multi-word tags, are parsed
+ * exhaustively.
+ */
+public class AStarPCFGParser extends ExhaustivePCFGParser {
+
+  private final SXOutsideEstimate estimate;
+  private final BinaryRuleTable rulesByLC;
+  private final BinaryRuleTable rulesByRC;
+  private final UnaryRuleTable unariesByChild;
+
+  /** The agenda: a binary max-heap of edge ids by priority. */
+  private float[] heapPriority = new float[1024];
+  private int[] heapEdge = new int[1024];
+  private int heapSize;
+
+  /** [edge id] -&gt; whether popped; edge id is ((start * (length + 1)) + end) * numStates + state. */
+  private boolean[] done = new boolean[0];
+  private int[] doneEdges = new int[1024];
+  private int numDone;
+
+  /** Extents of popped edges: [start][state] -&gt; least and greatest end, and
+   *  [end][state] -&gt; least and greatest start; -1 if none.
+   */
+  private int[][] minEnd;
+  private int[][] maxEnd;
+  private int[][] minStart;
+  private int[][] maxStart;
+
+  /** [position] -&gt; sum of the best tag scores of the words before / from it. */
+  private float[] lexLeft;
+  private float[] lexRight;
+
+  private boolean searched;
+  private int edgesPopped;
+  private int edgesPushed;
+
+  public AStarPCFGParser(BinaryGrammar bg, UnaryGrammar ug, Lexicon lex, Options op, Index<String> stateIndex,
+                         Index<String> wordIndex, Index<String> tagIndex, SXOutsideEstimate estimate) {
+    super(bg, ug, lex, op, stateIndex, wordIndex, tagIndex);
+    this.estimate = estimate;
+    this.rulesByLC = bg.ruleTableByLC();
+    this.rulesByRC = bg.ruleTableByRC();
+    this.unariesByChild = ug.ruleTableByChild();
+  }
+
+  /** Whether the last sentence was parsed by A* search rather than exhaustively. */
+  public boolean searched() {
+    return searched;
+  }
+
+  /** Number of edges taken off the agenda for the last sentence. */
+  public int edgesPopped() {
+    return edgesPopped;
+  }
+
+  /** Number of edges put on the agenda (counting improvements) for the last sentence. */
+  public int edgesPushed() {
+    return edgesPushed;
+  }
+
+  @Override
+  void doInsideScores() {
+    searched = lr == null && length <= estimate.maxLength() && getConstraints() == null
+        && ! op.testOptions.lengthNormalization && op.testOptions.maxSpanForTags <= 1
+        && (long) (length + 1) * (length + 1) * numStates <= Integer.MAX_VALUE;
+    edgesPopped = 0;
+    edgesPushed = 0;
+    if ( ! searched) {
+      super.doInsideScores();
+      return;
+    }
+    recordBackPointers = false;
+    search();
+  }
+
+  private void search() {
+    final int n = length;
+    final int goal = stateIndex.indexOf(goalStr);
+    prepare(n);
+
+    // the tag cells were filled (and unary closed) by initializeChart
+    float[] bestLex = new float[n];
+    for (int i = 0; i < n; i++) {
+      bestLex[i] = Float.NEGATIVE_INFINITY;
+      for (int state = 0; state < numStates; state++) {
+        if (isTag[state] && iScore.get(i, i + 1, state) > bestLex[i]) {
+          bestLex[i] = iScore.get(i, i + 1, state);
+        }
+      }
+    }
+    lexLeft[0] = 0.0f;
+    for (int i = 0; i < n; i++) {
+      lexLeft[i + 1] = lexLeft[i] + bestLex[i];
+    }
+    lexRight[n] = 0.0f;
+    for (int i = n - 1; i >= 0; i--) {
+      lexRight[i] = lexRight[i + 1] + bestLex[i];
+    }
+    for (int i = 0; i < n; i++) {
+      for (int state = 0; state < numStates; state++) {
+        float iS = iScore.get(i, i + 1, state);
+        if (iS > Float.NEGATIVE_INFINITY) {
+          float h = heuristic(i, i + 1, state, n);
+          if (h > Float.NEGATIVE_INFINITY) {
+            push(edgeId(i, i + 1, state, n), iS + h);
+          }
+        }
+      }
+    }
+
+    while (heapSize > 0) {
+      int edge = pop();
+      if (done[edge]) {
+        continue;
+      }
+      done[edge] = true;
+      if (numDone == doneEdges.length) {
+        doneEdges = Arrays.copyOf(doneEdges, 2 * numDone);
+      }
+      doneEdges[numDone++] = edge;
+      edgesPopped++;
+
+      int state = edge % numStates;
+      int cell = edge / numStates;
+      int start = cell / (n + 1);
+      int end = cell % (n + 1);
+      if (start == 0 && end == n && state == goal) {
+        break;
+      }
+      if (minEnd[start][state] < 0 || end < minEnd[start][state]) {
+        minEnd[start][state] = end;
+      }
+      if (end > maxEnd[start][state]) {
+        maxEnd[start][state] = end;
+      }
+      if (minStart[end][state] < 0 || start < minStart[end][state]) {
+        minStart[end][state] = start;
+      }
+      if (start > maxStart[end][state]) {
+        maxStart[end][state] = start;
+      }
+      float iS = iScore.get(start, end, state);
+
+      for (int r = unariesByChild.offsets[state], rMax = unariesByChild.offsets[state + 1]; r < rMax; r++) {
+        relax(start, end, unariesByChild.parent[r], iS + unariesByChild.score[r], n);
+      }
+      // this edge as a left child, with popped right siblings starting at end
+      if (end < n) {
+        for (int r = rulesByLC.offsets[state], rMax = rulesByLC.offsets[state + 1]; r < rMax; r++) {
+          int rightChild = rulesByLC.right[r];
+          int lo = minEnd[end][rightChild];
+          if (lo < 0) {
+            continue;
+          }
+          int hi = maxEnd[end][rightChild];
+          float score = iS + rulesByLC.score[r];
+          for (int newEnd = lo; newEnd <= hi; newEnd++) {
+            if (done[edgeId(end, newEnd, rightChild, n)]) {
+              relax(start, newEnd, rulesByLC.parent[r], score + iScore.get(end, newEnd, rightChild), n);
+            }
+          }
+        }
+      }
+      // this edge as a right child, with popped left siblings ending at start
+      if (start > 0) {
+        for (int r = rulesByRC.offsets[state], rMax = rulesByRC.offsets[state + 1]; r < rMax; r++) {
+          int leftChild = rulesByRC.left[r];
+          int hi = maxStart[start][leftChild];
+          if (hi < 0) {
+            continue;
+          }
+          int lo = minStart[start][leftChild];
+          float score = iS + rulesByRC.score[r];
+          for (int newStart = lo; newStart <= hi; newStart++) {
+            if (done[edgeId(newStart, start, leftChild, n)]) {
+              relax(newStart, end, rulesByRC.parent[r], score + iScore.get(newStart, start, leftChild), n);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Record a derivation of state over [start, end] and queue it if it is
+   *  the best so far.
+   */
+  private void relax(int start, int end, int state, float score, int n) {
+    // as in the exhaustive parser, only the whole sentence reaches the boundary
+    if (end == n && start != 0) {
+      return;
+    }
+    int edge = edgeId(start, end, state, n);
+    if (done[edge] || score <= iScore.get(start, end, state)) {
+      return;
+    }
+    float h = heuristic(start, end, state, n);
+    if (h == Float.NEGATIVE_INFINITY) {
+      return;
+    }
+    iScore.set(start, end, state, score);
+    push(edge, score + h);
+  }
+
+  private float heuristic(int start, int end, int state, int n) {
+    return estimate.outside(start, n - end, state) + lexLeft[start] + lexRight[end];
+  }
+
+  private int edgeId(int start, int end, int state, int n) {
+    return (start * (n + 1) + end) * numStates + state;
+  }
+
+  /** Clear the search state left by the last sentence and size it for n words. */
+  private void prepare(int n) {
+    heapSize = 0;
+    int size = (n + 1) * (n + 1) * numStates;
+    if (done.length < size) {
+      done = new boolean[size];
+    } else {
+      for (int i = 0; i < numDone; i++) {
+        done[doneEdges[i]] = false;
+      }
+    }
+    numDone = 0;
+    if (minEnd == null || minEnd.length < n + 1) {
+      minEnd = new int[n + 1][numStates];
+      maxEnd = new int[n + 1][numStates];
+      minStart = new int[n + 1][numStates];
+      maxStart = new int[n + 1][numStates];
+      lexLeft = new float[n + 1];
+      lexRight = new float[n + 1];
+    }
+    for (int i = 0; i <= n; i++) {
+      Arrays.fill(minEnd[i], -1);
+      Arrays.fill(maxEnd[i], -1);
+      Arrays.fill(minStart[i], -1);
+      Arrays.fill(maxStart[i], -1);
+    }
+  }
+
+  private void push(int edge, float priority) {
+    if (heapSize == heapEdge.length) {
+      heapEdge = Arrays.copyOf(heapEdge, 2 * heapSize);
+      heapPriority = Arrays.copyOf(heapPriority, 2 * heapSize);
+    }
+    edgesPushed++;
+    int i = heapSize++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heapPriority[parent] >= priority) {
+        break;
+      }
+      heapEdge[i] = heapEdge[parent];
+      heapPriority[i] = heapPriority[parent];
+      i = parent;
+    }
+    heapEdge[i] = edge;
+    heapPriority[i] = priority;
+  }
+
+  private int pop() {
+    int top = heapEdge[0];
+    int lastEdge = heapEdge[--heapSize];
+    float last = heapPriority[heapSize];
+    int i = 0;
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) {
+        break;
+      }
+      if (child + 1 < heapSize && heapPriority[child + 1] > heapPriority[child]) {
+        child++;
+      }
+      if (heapPriority[child] <= last) {
+        break;
+      }
+      heapEdge[i] = heapEdge[child];
+      heapPriority[i] = heapPriority[child];
+      i = child;
+    }
+    if (heapSize > 0) {
+      heapEdge[i] = lastEdge;
+      heapPriority[i] = last;
+    }
+    return top;
+  }
+
+}
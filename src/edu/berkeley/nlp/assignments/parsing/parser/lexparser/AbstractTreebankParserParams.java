@@ -180,7 +180,7 @@ public abstract class AbstractTreebankParserParams implements TreebankLangParser
   
   @Override
   public Treebank treebank() {
-    return null;
+    return new DiskTreebank(treeReaderFactory(), inputEncoding);
   }
 
   
@@ -451,6 +451,12 @@ public abstract class AbstractTreebankParserParams implements TreebankLangParser
     return new RemoveGFSubcategoryStripper();
   }
 
+  @Override
+  public String strippedCategory(String category) {
+    String s = treebankLanguagePack().basicCategory(category);
+    return evalGF ? s : treebankLanguagePack().stripGF(s);
+  }
+
   
   @Override
   public abstract Tree transformTree(Tree t, Tree root);
@@ -7,6 +7,8 @@ import edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack;
 import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
 import edu.berkeley.nlp.assignments.parsing.stats.Counter;
 import edu.berkeley.nlp.assignments.parsing.stats.Counters;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.*;
 
 import java.io.BufferedReader;
@@ -17,6 +19,7 @@ import java.io.StringWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -89,8 +92,9 @@ public class BaseLexicon implements Lexicon  {
 
   /** Records the number of times word/tag pair was seen in training data.
    *  Includes word/tag pairs where one is a wildcard not a real word/tag.
+   *  Stored by {@link IntTaggedWord#pack}; see {@link #seenCount}.
    */
-  public ClassicCounter<IntTaggedWord> seenCounter = new ClassicCounter<>();
+  public PackedCounter<IntTaggedWord> seenCounter = IntTaggedWord.newCounter();
 
   double[] smooth = { 1.0, 1.0 };
 
@@ -109,6 +113,15 @@ public class BaseLexicon implements Lexicon  {
    */
   private Map<String, Counter<String>> baseTagCounts = Generics.newHashMap();
 
+  /** Memoized scores, made on first use after training or tuning; see
+   *  {@link TestOptions#lexiconScoreCacheSize}.
+   */
+  private transient volatile LexiconScoreCache scoreCache;
+
+  private transient LongAdder scoreCacheHits = new LongAdder();
+
+  private transient LongAdder scoreCacheMisses = new LongAdder();
+
   public BaseLexicon(Index<String> wordIndex, Index<String> tagIndex) {
     this(new Options(), wordIndex, tagIndex);
   }
@@ -165,8 +178,12 @@ public class BaseLexicon implements Lexicon  {
   public boolean isKnown(String word) {
     if (!wordIndex.contains(word))
       return false;
-    IntTaggedWord iW = new IntTaggedWord(wordIndex.indexOf(word), nullTag);
-    return seenCounter.getCount(iW) > 0.0;
+    return seenCount(wordIndex.indexOf(word), nullTag) > 0.0;
+  }
+
+  /** The count in {@link #seenCounter} of a word and tag, either of which may be -1 for any. */
+  private double seenCount(int word, int tag) {
+    return seenCounter.counts().getCount(IntTaggedWord.pack(word, tag));
   }
 
   /** {@inheritDoc} */
@@ -192,7 +209,16 @@ public class BaseLexicon implements Lexicon  {
    *         <code>tag -&gt; word<code> rule.)
    */
   public Iterator<IntTaggedWord> ruleIteratorByWord(String word, int loc) {
-    return ruleIteratorByWord(wordIndex.addToIndex(word), loc, null);
+    return ruleIteratorByWord(wordId(word), loc, null);
+  }
+
+  /** The id of a word, which is added to an unlocked word index.  A word
+   *  missing from a locked (trained) index gets the first id past its end,
+   *  which is an unknown word.
+   */
+  private int wordId(String word) {
+    int id = wordIndex.addToIndex(word);
+    return (id >= 0) ? id : wordIndex.size();
   }
 
   /** Generate the possible taggings for a word at a sentence position.
@@ -219,8 +245,7 @@ public class BaseLexicon implements Lexicon  {
       } else {
         /* Allow all tags with same basicCategory */
         /* Allow all scored taggings, unless very common */
-        IntTaggedWord iW = new IntTaggedWord(word, nullTag);
-        if (seenCounter.getCount(iW) > smoothInUnknownsThreshold) {
+        if (seenCount(word, nullTag) > smoothInUnknownsThreshold) {
           return rulesWithWord[word].iterator();
         } else {
           // give it flexible tagging not just lexicon
@@ -245,7 +270,7 @@ public class BaseLexicon implements Lexicon  {
 
   @Override
   public Iterator<IntTaggedWord> ruleIteratorByWord(String word, int loc, String featureSpec) {
-    return ruleIteratorByWord(wordIndex.addToIndex(word), loc, featureSpec);
+    return ruleIteratorByWord(wordId(word), loc, featureSpec);
   }
 
   protected void initRulesWithWord() {
@@ -401,16 +426,20 @@ public class BaseLexicon implements Lexicon  {
 
     IntTaggedWord iTW =
       new IntTaggedWord(tw.word(), tw.tag(), wordIndex, tagIndex);
-    seenCounter.incrementCount(iTW, weight);
-    IntTaggedWord iT = new IntTaggedWord(nullWord, iTW.tag);
-    seenCounter.incrementCount(iT, weight);
-    IntTaggedWord iW = new IntTaggedWord(iTW.word, nullTag);
-    seenCounter.incrementCount(iW, weight);
-    IntTaggedWord i = new IntTaggedWord(nullWord, nullTag);
-    seenCounter.incrementCount(i, weight);
+    LongCounter seen = seenCounter.counts();
+    seen.incrementCount(iTW.pack(), weight);
+    long iT = IntTaggedWord.pack(nullWord, iTW.tag);
+    if ( ! seen.containsKey(iT)) {
+      tags.add(new IntTaggedWord(nullWord, iTW.tag));
+    }
+    seen.incrementCount(iT, weight);
+    long iW = IntTaggedWord.pack(iTW.word, nullTag);
+    if ( ! seen.containsKey(iW)) {
+      words.add(new IntTaggedWord(iTW.word, nullTag));
+    }
+    seen.incrementCount(iW, weight);
+    seen.incrementCount(IntTaggedWord.pack(nullWord, nullTag), weight);
     // rules.add(iTW);
-    tags.add(iT);
-    words.add(iW);
 
     String tag = tw.tag();
     String baseTag = op.langpack().basicCategory(tag);
@@ -431,12 +460,39 @@ public class BaseLexicon implements Lexicon  {
 
     // index the possible tags for each word
     initRulesWithWord();
+    invalidateScoreCache();
 
     if (DEBUG_LEXICON) {
       printLexStats();
     }
   }
 
+  /**
+   * Restore a trained lexicon from its count tables, as read by
+   * {@link ParserModelFile}, in place of training it.  The counters are
+   * used as given, not copied.
+   */
+  void restore(PackedCounter<IntTaggedWord> seenCounter, double[] smooth,
+               Map<String, Counter<String>> baseTagCounts, UnknownWordModel uwModel) {
+    this.seenCounter = seenCounter;
+    this.smooth = smooth;
+    this.baseTagCounts = baseTagCounts;
+    this.uwModel = uwModel;
+    words = Generics.newHashSet();
+    for (IntTaggedWord itw : seenCounter.keySet()) {
+      if (itw.word() != nullWord && itw.tag() == nullTag) {
+        words.add(itw);
+      }
+    }
+    initRulesWithWord();
+    invalidateScoreCache();
+  }
+
+  /** The tag counts of each basic category, for {@link ParserModelFile}. */
+  Map<String, Counter<String>> baseTagCounts() {
+    return baseTagCounts;
+  }
+
   /**
    * Adds the tagging with count to the data structures in this Lexicon.
    */
@@ -473,8 +529,7 @@ public class BaseLexicon implements Lexicon  {
     for (IntTaggedWord word : words) {
       double tot = 0.0;
       for (int t = 0; t < numTags; t++) {
-        IntTaggedWord iTW = new IntTaggedWord(word.word, t);
-        tmp[t] = seenCounter.getCount(iTW);
+        tmp[t] = seenCount(word.word, t);
         tot += tmp[t];
       }
       if (tot < 10) {
@@ -524,23 +579,30 @@ public class BaseLexicon implements Lexicon  {
    */
   @Override
   public float score(IntTaggedWord iTW, int loc, String word, String featureSpec) {
+    LexiconScoreCache cache = scoreCache();
+    if (cache != null) {
+      return cache.score(iTW, loc, word, featureSpec);
+    }
+    return computeScore(iTW, loc, word, featureSpec);
+  }
+
+  /** Computes {@link #score} from the counts, bypassing the score cache. */
+  protected float computeScore(IntTaggedWord iTW, int loc, String word, String featureSpec) {
     // both actual
-    double c_TW = seenCounter.getCount(iTW);
+    double c_TW = seenCount(iTW.word, iTW.tag);
     // double x_TW = xferCounter.getCount(iTW);
 
-    IntTaggedWord temp = new IntTaggedWord(iTW.word, nullTag);
     // word counts
-    double c_W = seenCounter.getCount(temp);
+    double c_W = seenCount(iTW.word, nullTag);
     // double x_W = xferCounter.getCount(temp);
 
     // totals
-    double total = seenCounter.getCount(NULL_ITW);
-    double totalUnseen = uwModel.unSeenCounter().getCount(NULL_ITW);
+    double total = seenCount(nullWord, nullTag);
+    double totalUnseen = uwModel.unSeenCount(nullWord, nullTag);
 
-    temp = new IntTaggedWord(nullWord, iTW.tag);
     // tag counts
-    double c_T = seenCounter.getCount(temp);
-    double c_Tunseen = uwModel.unSeenCounter().getCount(temp);
+    double c_T = seenCount(nullWord, iTW.tag);
+    double c_Tunseen = uwModel.unSeenCount(nullWord, iTW.tag);
 
     double pb_W_T; // always set below
 
@@ -573,8 +635,7 @@ public class BaseLexicon implements Lexicon  {
           p_T_U *= 0.1;
           // System.out.println("Checking "+iTW);
           for (int t = 0; t < numTags; t++) {
-            IntTaggedWord iTW2 = new IntTaggedWord(iTW.word, t);
-            double p_T_W2 = seenCounter.getCount(iTW2) / c_W;
+            double p_T_W2 = seenCount(iTW.word, t) / c_W;
             if (p_T_W2 > 0) {
               // System.out.println(" Observation of "+tagIndex.get(t)+"
               // ("+seenCounter.getCount(iTW2)+") mutated to
@@ -625,14 +686,43 @@ public class BaseLexicon implements Lexicon  {
       }
     }
 
-    String tag = tagIndex.get(iTW.tag());
-
     // Categorical cutoff if score is too low
     if (pb_W_T > -100.0) {
       return (float) pb_W_T;
     }
     return Float.NEGATIVE_INFINITY;
-  } // end score()
+  } // end computeScore()
+
+  private LexiconScoreCache scoreCache() {
+    LexiconScoreCache cache = scoreCache;
+    if (cache == null && rulesWithWord != null && testOptions.lexiconScoreCacheSize > 0) {
+      synchronized (this) {
+        cache = scoreCache;
+        if (cache == null) {
+          cache = new LexiconScoreCache(this, testOptions.lexiconScoreCacheSize, scoreCacheHits, scoreCacheMisses);
+          scoreCache = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  /** Drops the memoized scores, which must be done whenever the counts or
+   *  smoothing parameters change.  The cache is rebuilt when next used.
+   */
+  public void invalidateScoreCache() {
+    scoreCache = null;
+  }
+
+  /** Number of scores served from the score cache. */
+  public long scoreCacheHits() {
+    return scoreCacheHits.sum();
+  }
+
+  /** Number of scores computed from the counts, whether or not they were then cached. */
+  public long scoreCacheMisses() {
+    return scoreCacheMisses.sum();
+  }
 
 
   private transient int debugLastWord = -1;
@@ -673,6 +763,7 @@ public class BaseLexicon implements Lexicon  {
     if (testOptions.unseenSmooth > 0.0) {
       smooth[0] = testOptions.unseenSmooth;
     }
+    invalidateScoreCache();
   }
 
   private void readObject(ObjectInputStream ois)
@@ -683,6 +774,8 @@ public class BaseLexicon implements Lexicon  {
     // rather than lazily so that there is no race condition to
     // reinitialize them later.
     initRulesWithWord();
+    scoreCacheHits = new LongAdder();
+    scoreCacheMisses = new LongAdder();
   }
 
   /**
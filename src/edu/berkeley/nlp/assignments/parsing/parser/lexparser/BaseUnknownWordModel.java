@@ -4,6 +4,7 @@ import edu.berkeley.nlp.assignments.parsing.ling.Label;
 import edu.berkeley.nlp.assignments.parsing.ling.Tag;
 import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
 import edu.berkeley.nlp.assignments.parsing.stats.Counter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Generics;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
@@ -55,7 +56,7 @@ public class BaseUnknownWordModel implements UnknownWordModel  {
    * for (tag,sig), (tag,null), (null,sig), (null,null). (None for basic UNK if
    * there are signatures.)
    */
-  protected final ClassicCounter<IntTaggedWord> unSeenCounter;
+  protected final PackedCounter<IntTaggedWord> unSeenCounter;
 
   /** This maps from a tag (as a label) to a Counter from word signatures to
    *  their P(sig|tag), as estimated in the model. For Chinese, the word
@@ -76,7 +77,7 @@ public class BaseUnknownWordModel implements UnknownWordModel  {
   public BaseUnknownWordModel(Options op, Lexicon lex,
                               Index<String> wordIndex,
                               Index<String> tagIndex,
-                              ClassicCounter<IntTaggedWord> unSeenCounter,
+                              PackedCounter<IntTaggedWord> unSeenCounter,
                               Map<Label,ClassicCounter<String>> tagHash,
                               Map<String,Float> unknownGT,
                               Set<String> seenEnd) {
@@ -108,7 +109,7 @@ public class BaseUnknownWordModel implements UnknownWordModel  {
                               Index<String> wordIndex,
                               Index<String> tagIndex) {
     this(op, lex, wordIndex, tagIndex,
-            new ClassicCounter<>(),
+            IntTaggedWord.newCounter(),
          Generics.<Label,ClassicCounter<String>>newHashMap(),
          Generics.<String,Float>newHashMap(),
          Generics.<String>newHashSet());
@@ -254,4 +255,9 @@ public class BaseUnknownWordModel implements UnknownWordModel  {
     return unSeenCounter;
   }
 
+  @Override
+  public double unSeenCount(int word, int tag) {
+    return unSeenCounter.counts().getCount(IntTaggedWord.pack(word, tag));
+  }
+
 }
@@ -6,8 +6,10 @@ import edu.berkeley.nlp.assignments.parsing.parser.KBestViterbiParser;
 import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
 import edu.berkeley.nlp.assignments.parsing.trees.Tree;
 import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
+import edu.berkeley.nlp.assignments.parsing.util.ArrayHeap;
 import edu.berkeley.nlp.assignments.parsing.util.Heap;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredComparator;
 import edu.berkeley.nlp.assignments.parsing.util.ScoredObject;
 
 import java.util.*;
@@ -61,6 +63,8 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
   protected long builtEdges = 0;
   protected long extractedHooks = 0;
   protected long extractedEdges = 0;
+  /** Whether the last parse gave up on reaching TestOptions.MAX_ITEMS items. */
+  protected boolean hitMaxItems = false;
 
 
   private static final double TOL = 1e-10;
@@ -126,6 +130,25 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
     return goal != null && goal.iScore != Double.NEGATIVE_INFINITY;
   }
 
+  /** Number of edges and hooks built for the last sentence. */
+  public long itemsBuilt() {
+    return builtEdges + builtHooks;
+  }
+
+  /** Number of edges and hooks taken off the agenda for the last sentence. */
+  public long itemsExtracted() {
+    return extractedEdges + extractedHooks;
+  }
+
+  /**
+   * Whether the search for the last sentence was cut off at
+   * TestOptions.MAX_ITEMS items, rather than finding the goal or running
+   * out of items.
+   */
+  public boolean hitMaxItems() {
+    return hitMaxItems;
+  }
+
 
   // Added by Dan Zeman to store the list of N best trees.
   protected List<Edge> nGoodTrees = new LinkedList<>();
@@ -319,7 +342,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           if (!chart.isBuiltL(tempHook.subState, tempHook.end, tempHook.head, tempHook.tag)) {
             continue;
           }
-          tempHook.iScore = edge.iScore + br.score + dparser.headScore[dparser.binDistance[head][edge.end]][head][dg.tagBin(tag)][edge.head][dg.tagBin(edge.tag)] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.start] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.end];
+          tempHook.iScore = edge.iScore + br.score + dparser.headScore(dparser.binDistance[head][edge.end], head, dg.tagBin(tag), edge.head, dg.tagBin(edge.tag)) + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.start] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.end];
           tempHook.backEdge = edge;
           relaxTempHook();
         }
@@ -362,7 +385,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           if (!chart.isBuiltR(tempHook.subState, tempHook.start, tempHook.head, tempHook.tag)) {
             continue;
           }
-          tempHook.iScore = edge.iScore + br.score + dparser.headScore[dparser.binDistance[head][edge.start]][head][dg.tagBin(tag)][edge.head][dg.tagBin(edge.tag)] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.start] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.end];
+          tempHook.iScore = edge.iScore + br.score + dparser.headScore(dparser.binDistance[head][edge.start], head, dg.tagBin(tag), edge.head, dg.tagBin(edge.tag)) + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.start] + dparser.headStop[edge.head][dg.tagBin(edge.tag)][edge.end];
           tempHook.backEdge = edge;
           relaxTempHook();
         }
@@ -392,7 +415,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           tempHook.head = edge.head;
           tempHook.tag = edge.tag;
           tempHook.backEdge = real;
-          tempHook.iScore = real.iScore + br.score + dparser.headScore[dparser.binDistance[edge.head][edge.end]][edge.head][dg.tagBin(edge.tag)][real.head][dg.tagBin(real.tag)] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
+          tempHook.iScore = real.iScore + br.score + dparser.headScore(dparser.binDistance[edge.head][edge.end], edge.head, dg.tagBin(edge.tag), real.head, dg.tagBin(real.tag)) + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
           relaxTempHook();
         }
       }
@@ -410,7 +433,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           tempHook.head = edge.head;
           tempHook.tag = edge.tag;
           tempHook.backEdge = real;
-          tempHook.iScore = real.iScore + br.score + dparser.headScore[dparser.binDistance[edge.head][edge.start]][edge.head][dg.tagBin(edge.tag)][real.head][dg.tagBin(real.tag)] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
+          tempHook.iScore = real.iScore + br.score + dparser.headScore(dparser.binDistance[edge.head][edge.start], edge.head, dg.tagBin(edge.tag), real.head, dg.tagBin(real.tag)) + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
           relaxTempHook();
         }
       }
@@ -435,7 +458,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           tempHook.head = edge.head;
           tempHook.tag = edge.tag;
           tempHook.backEdge = real;
-          tempHook.iScore = real.iScore + br.score + dparser.headScore[dparser.binDistance[edge.head][edge.end]][edge.head][dg.tagBin(edge.tag)][real.head][dg.tagBin(real.tag)] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
+          tempHook.iScore = real.iScore + br.score + dparser.headScore(dparser.binDistance[edge.head][edge.end], edge.head, dg.tagBin(edge.tag), real.head, dg.tagBin(real.tag)) + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
           relaxTempHook();
         }
       }
@@ -453,7 +476,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
           tempHook.head = edge.head;
           tempHook.tag = edge.tag;
           tempHook.backEdge = real;
-          tempHook.iScore = real.iScore + br.score + dparser.headScore[dparser.binDistance[edge.head][edge.start]][edge.head][dg.tagBin(edge.tag)][real.head][dg.tagBin(real.tag)] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
+          tempHook.iScore = real.iScore + br.score + dparser.headScore(dparser.binDistance[edge.head][edge.start], edge.head, dg.tagBin(edge.tag), real.head, dg.tagBin(real.tag)) + dparser.headStop[real.head][dg.tagBin(real.tag)][real.start] + dparser.headStop[real.head][dg.tagBin(real.tag)][real.end];
           relaxTempHook();
         }
       }
@@ -597,7 +620,21 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
       }
       int word = wordIndex.indexOf(wordStr);
       words[i] = word;
-      for (Iterator<IntTaggedWord> tagI = lex.ruleIteratorByWord(word, i, wordContextStr); tagI.hasNext(); ) {
+      Iterator<IntTaggedWord> tagI = lex.ruleIteratorByWord(word, i, wordContextStr);
+      if ( ! tagI.hasNext()) {
+        // a word with no seen taggings gets every tag the lexicon does not
+        // score -Inf, as the PCFG and dependency parsers flood it
+        List<IntTaggedWord> flooded = new ArrayList<>();
+        for (int tag = 0; tag < numTags; tag++) {
+          IntTaggedWord tagging = new IntTaggedWord(word, tag);
+          if (stateIndex.contains(tagIndex.get(tag))
+              && lex.score(tagging, i, wordObject.word(), wordContextStr) > Float.NEGATIVE_INFINITY) {
+            flooded.add(tagging);
+          }
+        }
+        tagI = flooded.iterator();
+      }
+      while (tagI.hasNext()) {
         IntTaggedWord tagging = tagI.next();
         int tag = tagging.tag;
         //String curTagStr = tagIndex.get(tag);
@@ -632,7 +669,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
   protected void initialize(List<? extends HasWord> words) {
     length = words.size();
     interner = new Interner();
-    agenda = null;
+    agenda = new ArrayHeap<>(ScoredComparator.DESCENDING_COMPARATOR);
     chart = new HookChart();
     setGoal(length);
     List<Item> initialItems = makeInitialItems(words);
@@ -667,6 +704,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
     builtEdges = 0;
     extractedHooks = 0;
     extractedEdges = 0;
+    hitMaxItems = false;
     dparser.binDistance = dparser.binDistance; // THIS IS TERRIBLE, BUT SAVES MEMORY
     initialize(words);
     while (!agenda.isEmpty()) {
@@ -716,6 +754,7 @@ public class BiLexPCFGParser implements KBestViterbiParser  {
       }
       // Keep the number of items from getting too large
       if (op.testOptions.MAX_ITEMS > 0 && (builtEdges + builtHooks) >= op.testOptions.MAX_ITEMS) {
+        hitMaxItems = true;
         // Do not report failure in kGood mode if we found something earlier.
         if (nGoodTrees.size() > 0) {
           goal = nGoodTrees.get(0);
@@ -25,6 +25,11 @@ public class BinaryGrammar implements Serializable, Iterable<BinaryRule>  {
   private transient Set<BinaryRule>[] ruleSetWithRC;
   private transient BinaryRule[][] splitRulesWithLC;
   private transient BinaryRule[][] splitRulesWithRC;
+  private transient BinaryRuleTable splitRuleTableByLC;
+  private transient BinaryRuleTable splitRuleTableByRC;
+  private transient BinaryRuleTable ruleTableByParent;
+  private transient BinaryRuleTable ruleTableByLC;
+  private transient BinaryRuleTable ruleTableByRC;
   //  private transient BinaryRule[][] splitRulesWithParent = null;
   private transient Map<BinaryRule,BinaryRule> ruleMap;
   // for super speed! (maybe)
@@ -102,6 +107,19 @@ public class BinaryGrammar implements Serializable, Iterable<BinaryRule>  {
       // parent accessor
       //      splitRulesWithParent[state] = toBRArray(rulesWithParent[state]);
     }
+    splitRuleTableByLC = new BinaryRuleTable(splitRulesWithLC);
+    splitRuleTableByRC = new BinaryRuleTable(splitRulesWithRC);
+    ruleTableByParent = new BinaryRuleTable(toArrays(rulesWithParent));
+    ruleTableByLC = new BinaryRuleTable(toArrays(rulesWithLC));
+    ruleTableByRC = new BinaryRuleTable(toArrays(rulesWithRC));
+  }
+
+  private static BinaryRule[][] toArrays(List<BinaryRule>[] lists) {
+    BinaryRule[][] arrays = new BinaryRule[lists.length][];
+    for (int state = 0; state < lists.length; state++) {
+      arrays[state] = lists[state].toArray(new BinaryRule[lists[state].size()]);
+    }
+    return arrays;
   }
 
   public BinaryRule[] splitRulesWithLC(int state) {
@@ -118,6 +136,35 @@ public class BinaryGrammar implements Serializable, Iterable<BinaryRule>  {
     return splitRulesWithRC[state];
   }
 
+  /** The rules of {@link #splitRulesWithLC(int)} for every state, grouped
+   *  by left child state.  Built by {@link #splitRules()}.
+   */
+  public BinaryRuleTable splitRuleTableByLC() {
+    return splitRuleTableByLC;
+  }
+
+  /** The rules of {@link #splitRulesWithRC(int)} for every state, grouped
+   *  by right child state.  Built by {@link #splitRules()}.
+   */
+  public BinaryRuleTable splitRuleTableByRC() {
+    return splitRuleTableByRC;
+  }
+
+  /** All rules, grouped by parent state.  Built by {@link #splitRules()}. */
+  public BinaryRuleTable ruleTableByParent() {
+    return ruleTableByParent;
+  }
+
+  /** All rules, grouped by left child state.  Built by {@link #splitRules()}. */
+  public BinaryRuleTable ruleTableByLC() {
+    return ruleTableByLC;
+  }
+
+  /** All rules, grouped by right child state.  Built by {@link #splitRules()}. */
+  public BinaryRuleTable ruleTableByRC() {
+    return ruleTableByRC;
+  }
+
   //  public BinaryRule[] splitRulesWithParent(int state) {
   //    return splitRulesWithParent[state];
   //  }
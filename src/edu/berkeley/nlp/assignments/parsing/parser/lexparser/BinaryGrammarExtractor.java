@@ -1,22 +1,29 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
-import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
 import edu.berkeley.nlp.assignments.parsing.trees.Tree;
 import edu.berkeley.nlp.assignments.parsing.util.Generics;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 import edu.berkeley.nlp.assignments.parsing.util.Pair;
 
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class BinaryGrammarExtractor {
 
   protected Index<String> stateIndex;
-  private ClassicCounter<UnaryRule> unaryRuleCounter = new ClassicCounter<>();
-  private ClassicCounter<BinaryRule> binaryRuleCounter = new ClassicCounter<>();
-  protected ClassicCounter<String> symbolCounter = new ClassicCounter<>();
-  private Set<BinaryRule> binaryRules = Generics.newHashSet();
-  private Set<UnaryRule> unaryRules = Generics.newHashSet();
+  /** Rule counts, keyed by {@link #unaryKey} and {@link #binaryKey}. */
+  private final LongCounter unaryRuleCounter = new LongCounter();
+  private final LongCounter binaryRuleCounter = new LongCounter();
+  /** Parent state counts, keyed by state id. */
+  protected final LongCounter symbolCounter = new LongCounter();
+  /** The rules, each made once, when first seen. */
+  private final Set<BinaryRule> binaryRules;
+  private final Set<UnaryRule> unaryRules;
+
+  /** State ids must fit in this many bits to pack the three of a binary rule into a long. */
+  private static final int STATE_BITS = 21;
 
   //  protected void tallyTree(Tree t, double weight) {
   //    super.tallyTree(t, weight);
@@ -25,7 +32,17 @@ public class BinaryGrammarExtractor {
   //  }
 
   public BinaryGrammarExtractor(Index<String> index) {
+    this(index, false);
+  }
+
+  /**
+   * @param ordered Whether to keep the rules in the order they were first
+   *     seen, as {@link #addAll} needs of the extractor it adds
+   */
+  BinaryGrammarExtractor(Index<String> index, boolean ordered) {
     this.stateIndex = index;
+    binaryRules = ordered ? new LinkedHashSet<>() : Generics.newHashSet();
+    unaryRules = ordered ? new LinkedHashSet<>() : Generics.newHashSet();
   }
 
   protected void tallyLocalTree(Tree lt, double weight) {
@@ -61,18 +78,75 @@ public class BinaryGrammarExtractor {
 
   protected void tallyInternalNode(Tree lt, double weight) {
     if (lt.children().length == 1) {
-      UnaryRule ur = new UnaryRule(stateIndex.addToIndex(lt.label().value()),
-                        stateIndex.addToIndex(lt.children()[0].label().value()));
-      symbolCounter.incrementCount(stateIndex.get(ur.parent), weight);
-      unaryRuleCounter.incrementCount(ur, weight);
-      unaryRules.add(ur);
+      int parent = stateIndex.addToIndex(lt.label().value());
+      int child = stateIndex.addToIndex(lt.children()[0].label().value());
+      tallyUnary(parent, child, weight);
     } else {
-      BinaryRule br = new BinaryRule(stateIndex.addToIndex(lt.label().value()),
-                         stateIndex.addToIndex(lt.children()[0].label().value()),
-                         stateIndex.addToIndex(lt.children()[1].label().value()));
-      symbolCounter.incrementCount(stateIndex.get(br.parent), weight);
-      binaryRuleCounter.incrementCount(br, weight);
-      binaryRules.add(br);
+      int parent = stateIndex.addToIndex(lt.label().value());
+      int left = stateIndex.addToIndex(lt.children()[0].label().value());
+      int right = stateIndex.addToIndex(lt.children()[1].label().value());
+      tallyBinary(parent, left, right, weight);
+    }
+  }
+
+  private void tallyUnary(int parent, int child, double weight) {
+    long key = unaryKey(parent, child);
+    if ( ! unaryRuleCounter.containsKey(key)) {
+      unaryRules.add(new UnaryRule(parent, child));
+    }
+    symbolCounter.incrementCount(parent, weight);
+    unaryRuleCounter.incrementCount(key, weight);
+  }
+
+  private void tallyBinary(int parent, int left, int right, double weight) {
+    long key = binaryKey(parent, left, right);
+    if ( ! binaryRuleCounter.containsKey(key)) {
+      binaryRules.add(new BinaryRule(parent, left, right));
+    }
+    symbolCounter.incrementCount(parent, weight);
+    binaryRuleCounter.incrementCount(key, weight);
+  }
+
+  private static long unaryKey(int parent, int child) {
+    return ((long) parent << 32) | child;
+  }
+
+  private static long binaryKey(int parent, int left, int right) {
+    if ((parent | left | right) >>> STATE_BITS != 0) {
+      throw new IllegalStateException("Too many states to pack a binary rule into a long: " + Math.max(parent, Math.max(left, right)));
+    }
+    return ((long) parent << (2 * STATE_BITS)) | ((long) left << STATE_BITS) | right;
+  }
+
+  /**
+   * Add the counts of an extractor with its own state index, made with
+   * {@code ordered} set.  Its states are interned into this index in the
+   * order it first saw them and its rules added in that order too, so that
+   * adding up the extractors of consecutive parts of a treebank, in order,
+   * gives the same indices and rule sets as tallying the whole treebank
+   * here.
+   */
+  void addAll(BinaryGrammarExtractor other) {
+    int[] states = new int[other.stateIndex.size()];
+    for (int state = 0; state < states.length; state++) {
+      states[state] = stateIndex.addToIndex(other.stateIndex.get(state));
+    }
+    for (UnaryRule ur : other.unaryRules) {
+      long key = unaryKey(states[ur.parent], states[ur.child]);
+      if ( ! unaryRuleCounter.containsKey(key)) {
+        unaryRules.add(new UnaryRule(states[ur.parent], states[ur.child]));
+      }
+      unaryRuleCounter.incrementCount(key, other.unaryRuleCounter.getCount(unaryKey(ur.parent, ur.child)));
+    }
+    for (BinaryRule br : other.binaryRules) {
+      long key = binaryKey(states[br.parent], states[br.leftChild], states[br.rightChild]);
+      if ( ! binaryRuleCounter.containsKey(key)) {
+        binaryRules.add(new BinaryRule(states[br.parent], states[br.leftChild], states[br.rightChild]));
+      }
+      binaryRuleCounter.incrementCount(key, other.binaryRuleCounter.getCount(binaryKey(br.parent, br.leftChild, br.rightChild)));
+    }
+    for (int i = 0; i < other.symbolCounter.size(); i++) {
+      symbolCounter.incrementCount(states[(int) other.symbolCounter.keyAt(i)], other.symbolCounter.countAt(i));
     }
   }
 
@@ -82,12 +156,12 @@ public class BinaryGrammarExtractor {
     UnaryGrammar ug = new UnaryGrammar(stateIndex);
     // add unaries
     for (UnaryRule ur : unaryRules) {
-      ur.score = (float) Math.log(unaryRuleCounter.getCount(ur) / symbolCounter.getCount(stateIndex.get(ur.parent)));
+      ur.score = (float) Math.log(unaryRuleCounter.getCount(unaryKey(ur.parent, ur.child)) / symbolCounter.getCount(ur.parent));
       ug.addRule(ur);
     }
     // add binaries
     for (BinaryRule br : binaryRules) {
-      br.score = (float) Math.log((binaryRuleCounter.getCount(br) - 0.0) / symbolCounter.getCount(stateIndex.get(br.parent)));
+      br.score = (float) Math.log((binaryRuleCounter.getCount(binaryKey(br.parent, br.leftChild, br.rightChild)) - 0.0) / symbolCounter.getCount(br.parent));
       bg.addRule(br);
     }
     return new Pair<>(ug, bg);
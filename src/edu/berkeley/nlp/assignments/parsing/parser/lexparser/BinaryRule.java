@@ -3,6 +3,7 @@ package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 import java.io.Serializable;
 
 import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.StringUtils;
 
 /**
  * Binary rules (ints for parent, left and right children)
@@ -48,6 +49,11 @@ public class BinaryRule implements Rule, Comparable<BinaryRule>, Serializable {
    * @param index Index used to convert String names to ints
    */
   public BinaryRule(String s, Index<String> index) {
+    String[] fields = StringUtils.splitOnCharWithQuoting(s, ' ', '\"', '\\');
+    this.parent = index.indexOf(fields[0]);
+    this.leftChild = index.indexOf(fields[2]);
+    this.rightChild = index.indexOf(fields[3]);
+    this.score = Float.parseFloat(fields[4]);
   }
 
   public float score() {
@@ -90,7 +96,9 @@ public class BinaryRule implements Rule, Comparable<BinaryRule>, Serializable {
   }
 
   public String toString(Index<String> index) {
-    return "";
+    return '\"' + StringUtils.escapeString(index.get(parent), charsToEscape, '\\') + "\" -> \"" +
+        StringUtils.escapeString(index.get(leftChild), charsToEscape, '\\') + "\" \"" +
+        StringUtils.escapeString(index.get(rightChild), charsToEscape, '\\') + "\" " + score;
   }
 
   private transient String cached; // = null;
@@ -0,0 +1,56 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import java.io.Serializable;
+
+/**
+ * An immutable, struct-of-arrays copy of groups of binary rules, for the
+ * parser's inner loops.  The rules of group g (normally a state) occupy
+ * positions offsets[g] up to offsets[g+1] of the parallel parent, left,
+ * right and score arrays, in the order of the rule arrays they were
+ * compiled from (compressed sparse row layout).
+ * <p>
+ * A table is a snapshot: if rule scores change, the grammar must compile
+ * its tables again.
+ *
+ * @see BinaryGrammar#splitRuleTableByLC()
+ * @see BinaryGrammar#splitRuleTableByRC()
+ */
+public final class BinaryRuleTable implements Serializable {
+
+  /** [group] -&gt; first rule of the group; offsets[numGroups] is the number of rules. */
+  public final int[] offsets;
+  public final int[] parent;
+  public final int[] left;
+  public final int[] right;
+  /** Log probabilities. */
+  public final float[] score;
+
+  public BinaryRuleTable(BinaryRule[][] groups) {
+    offsets = new int[groups.length + 1];
+    for (int g = 0; g < groups.length; g++) {
+      offsets[g + 1] = offsets[g] + groups[g].length;
+    }
+    int numRules = offsets[groups.length];
+    parent = new int[numRules];
+    left = new int[numRules];
+    right = new int[numRules];
+    score = new float[numRules];
+    int r = 0;
+    for (BinaryRule[] group : groups) {
+      for (BinaryRule rule : group) {
+        parent[r] = rule.parent;
+        left[r] = rule.leftChild;
+        right[r] = rule.rightChild;
+        score[r] = rule.score;
+        r++;
+      }
+    }
+  }
+
+  public int numRules() {
+    return parent.length;
+  }
+
+  private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,102 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+/**
+ * The Viterbi back-pointer of every (start, end, state) triple of a CKY
+ * chart, recorded by {@link ExhaustivePCFGParser} alongside its inside
+ * scores when {@link TestOptions#pcfgBackPointers} is set, so that the best
+ * parse is read off in time linear in its size.
+ * <p>
+ * A back-pointer is one int and one short, in two flat arrays with the
+ * span-major triangular layout of {@link ChartScores}:
+ * <ul>
+ * <li> r &gt;= 0: binary rule r of {@link BinaryGrammar#ruleTableByLC()},
+ *      with the split point in the short;
+ * <li> r &lt;= -2: closed unary rule -2 - r of
+ *      {@link UnaryGrammar#closedRuleTableByChild()}, over the same span;
+ * <li> -1: none; the state was put in the cell by initializeChart, as a
+ *      word's tag.
+ * </ul>
+ * Nothing is cleared between sentences: a pointer is only read for a
+ * state that has an inside score, and the parser writes one whenever it
+ * sets that score.  Different cells may be written from different threads
+ * at once, but one cell may not.
+ */
+public final class ChartBackPointers {
+
+  public static final int NONE = -1;
+
+  private final int numStates;
+  private final int capacity;
+  /** [start * stride + end] -&gt; offset of the cell's first state. */
+  private final int[] cellBase;
+  private final int stride;
+
+  private final int[] rules;
+  private final short[] splits;
+
+  /** Make back-pointers for sentences of up to capacity positions. */
+  public ChartBackPointers(int capacity, int numStates) {
+    if (capacity > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("Back-pointers only support sentences of up to " + Short.MAX_VALUE + " positions");
+    }
+    long size = ChartScores.numCells(capacity) * numStates;
+    if (size > Integer.MAX_VALUE) {
+      throw new OutOfMemoryError("Chart of " + size + " back-pointers exceeds a single array.");
+    }
+    this.capacity = capacity;
+    this.numStates = numStates;
+    stride = capacity + 1;
+    cellBase = new int[capacity * stride + stride];
+    rules = new int[(int) size];
+    splits = new short[(int) size];
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  /** Ready the back-pointers for a sentence of the given length. */
+  public void reset(int length) {
+    int cell = 0;
+    for (int diff = 1; diff <= length; diff++) {
+      for (int start = 0; start + diff <= length; start++) {
+        cellBase[start * stride + start + diff] = cell * numStates;
+        cell++;
+      }
+    }
+  }
+
+  /** The offset of the back-pointers of cell (start, end), to which a
+   *  state is added to address one with the methods below.
+   */
+  public int cell(int start, int end) {
+    return cellBase[start * stride + end];
+  }
+
+  public int rule(int index) {
+    return rules[index];
+  }
+
+  public int split(int index) {
+    return splits[index];
+  }
+
+  public void setNone(int index) {
+    rules[index] = NONE;
+  }
+
+  public void setBinary(int index, int rule, int split) {
+    rules[index] = rule;
+    splits[index] = (short) split;
+  }
+
+  public void setUnary(int index, int closedRule) {
+    rules[index] = -2 - closedRule;
+  }
+
+  /** The closed unary rule of a back-pointer r &lt;= -2. */
+  public static int unaryRule(int r) {
+    return -2 - r;
+  }
+
+}
@@ -0,0 +1,283 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores one float score for every (start, end, state) triple of a CKY
+ * chart, as used for the inside and outside scores of
+ * {@link ExhaustivePCFGParser}.  Only cells with start &lt; end are
+ * addressable.
+ * <p>
+ * Three storage layouts are provided, selected by
+ * {@link TestOptions#chartStorage}:
+ * <ul>
+ * <li> JAGGED: the classic <code>float[start][end][state]</code> array, which
+ *      allocates one array per cell and refills every cell of the sentence
+ *      on each {@link #reset}.
+ * <li> FLAT: a single <code>float[]</code>, triangularly indexed in
+ *      span-major order (all cells of width 1, then all of width 2, ...),
+ *      so that the cells read together by one CKY diagonal are contiguous.
+ *      Only the cells written since the last reset are refilled.
+ * <li> OFF_HEAP: the FLAT layout held in a direct <code>FloatBuffer</code>,
+ *      which keeps large charts out of the garbage collected heap.
+ * </ul>
+ * Within one parser only a single layout is used, so calls to
+ * {@link #get} and {@link #set} stay monomorphic and are inlined by the JIT.
+ * Different cells may be set from different threads at once, as when a
+ * chart diagonal is filled in parallel, but one cell may not.
+ */
+public abstract class ChartScores {
+
+  protected final int numStates;
+  protected final int capacity;
+  protected final float fill;
+
+  /** Number of positions (including the boundary) of the current sentence. */
+  protected int length;
+
+  protected ChartScores(int capacity, int numStates, float fill) {
+    this.capacity = capacity;
+    this.numStates = numStates;
+    this.fill = fill;
+  }
+
+  /** Make a chart able to hold sentences of up to capacity positions.
+   *
+   *  @param storage Which memory layout to use
+   *  @param capacity Largest sentence length (including boundary) supported
+   *  @param numStates Number of grammar states per cell
+   *  @param fill The value an untouched cell holds, normally -Inf
+   */
+  public static ChartScores create(TestOptions.ChartStorage storage, int capacity, int numStates, float fill) {
+    switch (storage) {
+      case FLAT:
+        return new FlatChartScores(capacity, numStates, fill);
+      case OFF_HEAP:
+        return new OffHeapChartScores(capacity, numStates, fill);
+      default:
+        return new JaggedChartScores(capacity, numStates, fill);
+    }
+  }
+
+  /** The number of (start, end) cells of a chart over length positions. */
+  public static long numCells(int length) {
+    return (long) length * (length + 1) / 2;
+  }
+
+  /** The number of cell (start, end) of a chart over length positions in
+   *  the span-major triangular order of the FLAT and OFF_HEAP layouts, for
+   *  per-cell data kept in flat arrays alongside the chart.
+   */
+  public static int cellNumber(int length, int start, int end) {
+    int diff = end - start;
+    return (diff - 1) * (length + 1) - (diff - 1) * diff / 2 + start;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int numStates() {
+    return numStates;
+  }
+
+  /** Ready the chart for a sentence of the given length.  Afterwards every
+   *  addressable cell holds the fill value.
+   */
+  public abstract void reset(int length);
+
+  public abstract float get(int start, int end, int state);
+
+  public abstract void set(int start, int end, int state, float score);
+
+  /** Copy the scores of one cell into dest, which must have numStates room. */
+  public void getCell(int start, int end, float[] dest) {
+    for (int s = 0; s < numStates; s++) {
+      dest[s] = get(start, end, s);
+    }
+  }
+
+
+  /** The classic layout: an array of scores per (start, end) cell. */
+  static final class JaggedChartScores extends ChartScores {
+
+    private final float[][][] scores;
+
+    JaggedChartScores(int capacity, int numStates, float fill) {
+      super(capacity, numStates, fill);
+      // allocate just the parts used (end > start)
+      scores = new float[capacity][capacity + 1][];
+      for (int start = 0; start < capacity; start++) {
+        for (int end = start + 1; end <= capacity; end++) {
+          scores[start][end] = new float[numStates];
+        }
+      }
+    }
+
+    @Override
+    public void reset(int length) {
+      this.length = length;
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
+          Arrays.fill(scores[start][end], fill);
+        }
+      }
+    }
+
+    @Override
+    public float get(int start, int end, int state) {
+      return scores[start][end][state];
+    }
+
+    @Override
+    public void set(int start, int end, int state, float score) {
+      scores[start][end][state] = score;
+    }
+
+    @Override
+    public void getCell(int start, int end, float[] dest) {
+      System.arraycopy(scores[start][end], 0, dest, 0, numStates);
+    }
+
+  } // end class JaggedChartScores
+
+
+  /** Span-major triangular indexing shared by the FLAT and OFF_HEAP layouts.
+   *  A cell (start, end) of width diff = end - start in a sentence of length
+   *  n is stored after all cells of smaller width, at cell number
+   *  sum_{d &lt; diff} (n - d + 1) + start.
+   */
+  abstract static class TriangularChartScores extends ChartScores {
+
+    /** [start * stride + end] -&gt; offset of the cell's first state. */
+    protected final int[] cellBase;
+    protected final int stride;
+
+    /** Cells written since the last reset, by (start * stride + end) key.
+     *  Only a cell's own writer sets its flag, so different cells may be
+     *  written from different threads.
+     */
+    private final boolean[] dirty;
+
+    TriangularChartScores(int capacity, int numStates, float fill) {
+      super(capacity, numStates, fill);
+      long size = numCells(capacity) * numStates;
+      if (size > Integer.MAX_VALUE) {
+        throw new OutOfMemoryError("Chart of " + size + " scores exceeds a single array.");
+      }
+      stride = capacity + 1;
+      cellBase = new int[capacity * stride + stride];
+      dirty = new boolean[cellBase.length];
+    }
+
+    @Override
+    public void reset(int length) {
+      // refill what the previous sentence wrote, using its layout
+      for (int start = 0; start < this.length; start++) {
+        for (int end = start + 1; end <= this.length; end++) {
+          int key = start * stride + end;
+          if (dirty[key]) {
+            fillCell(cellBase[key]);
+            dirty[key] = false;
+          }
+        }
+      }
+      this.length = length;
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
+          cellBase[start * stride + end] = cellNumber(length, start, end) * numStates;
+        }
+      }
+    }
+
+    /** Note that cell (start, end) will need refilling at the next reset,
+     *  and return its offset.
+     */
+    protected final int touch(int start, int end) {
+      int key = start * stride + end;
+      if ( ! dirty[key]) {
+        dirty[key] = true;
+      }
+      return cellBase[key];
+    }
+
+    /** Set the numStates scores starting at offset to the fill value. */
+    protected abstract void fillCell(int offset);
+
+  } // end class TriangularChartScores
+
+
+  /** The FLAT layout: one on-heap float array. */
+  static final class FlatChartScores extends TriangularChartScores {
+
+    private final float[] scores;
+
+    FlatChartScores(int capacity, int numStates, float fill) {
+      super(capacity, numStates, fill);
+      scores = new float[(int) (numCells(capacity) * numStates)];
+      Arrays.fill(scores, fill);
+    }
+
+    @Override
+    public float get(int start, int end, int state) {
+      return scores[cellBase[start * stride + end] + state];
+    }
+
+    @Override
+    public void set(int start, int end, int state, float score) {
+      scores[touch(start, end) + state] = score;
+    }
+
+    @Override
+    public void getCell(int start, int end, float[] dest) {
+      System.arraycopy(scores, cellBase[start * stride + end], dest, 0, numStates);
+    }
+
+    @Override
+    protected void fillCell(int offset) {
+      Arrays.fill(scores, offset, offset + numStates, fill);
+    }
+
+  } // end class FlatChartScores
+
+
+  /** The OFF_HEAP layout: the FLAT layout in native memory. */
+  static final class OffHeapChartScores extends TriangularChartScores {
+
+    private final FloatBuffer scores;
+
+    OffHeapChartScores(int capacity, int numStates, float fill) {
+      super(capacity, numStates, fill);
+      int size = (int) (numCells(capacity) * numStates);
+      if ((long) size * Float.BYTES > Integer.MAX_VALUE) {
+        throw new OutOfMemoryError("Chart of " + size + " scores exceeds a single direct buffer.");
+      }
+      scores = ByteBuffer.allocateDirect(size * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+      for (int i = 0; i < size; i++) {
+        scores.put(i, fill);
+      }
+    }
+
+    @Override
+    public float get(int start, int end, int state) {
+      return scores.get(cellBase[start * stride + end] + state);
+    }
+
+    @Override
+    public void set(int start, int end, int state, float score) {
+      scores.put(touch(start, end) + state, score);
+    }
+
+    @Override
+    protected void fillCell(int offset) {
+      for (int i = offset, max = offset + numStates; i < max; i++) {
+        scores.put(i, fill);
+      }
+    }
+
+  } // end class OffHeapChartScores
+
+} // end class ChartScores
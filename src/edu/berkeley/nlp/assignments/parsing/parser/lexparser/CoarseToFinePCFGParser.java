@@ -0,0 +1,490 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.parser.ViterbiParser;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Coarse-to-fine PCFG parsing.  Each sentence is first parsed with the
+ * X-bar grammar of an {@link XBarGrammarProjection}, computing the
+ * inside-outside posterior of every coarse state over every span.  The
+ * fine {@link ExhaustivePCFGParser} then only builds a state over a span
+ * when the posterior of its coarse projection is at least
+ * {@link TestOptions#coarsePosteriorThreshold}.  If the pruned fine chart
+ * has no parse, the sentence is reparsed without pruning.
+ * <p>
+ * The coarse pass sums in probability space rather than log space.  Each
+ * chart cell stores its scores scaled by a power of two, chosen so that
+ * the largest is in [1, 2), whose exponent is kept separately, as in the
+ * SCALED semiring of {@link InsideOutsidePCFGParser}, so long sentences
+ * do not underflow and the chart loops need no exp or log.  The loops go
+ * over the coarse rules by left child, for the left children with a
+ * score, and the charts are kept from sentence to sentence, growing to
+ * the longest sentence, as in ExhaustivePCFGParser.  On a small grammar
+ * the coarse pass costs about as much as exhaustive fine parsing, so
+ * pruning only pays off once the fine grammar is much bigger than its
+ * projection.
+ * <p>
+ * A parser instance holds per-sentence state and should be used by one
+ * thread at a time; the grammars and lexicons may be shared.
+ */
+public class CoarseToFinePCFGParser implements ViterbiParser {
+
+  private final ExhaustivePCFGParser fine;
+  private final XBarGrammarProjection projection;
+  private final Options op;
+
+  private final Lexicon coarseLex;
+  private final Index<String> coarseStateIndex;
+  private final Index<String> coarseTagIndex;
+  private final SentenceWordIndex sentenceWords;
+  private final int numCoarse;
+  private final int goal;
+
+  // the coarse binary rules by left child, and the closed coarse unary
+  // rules by child, with their probabilities
+  private final BinaryRuleTable rules;
+  private final double[] ruleProb;
+  private final UnaryRuleTable unaries;
+  private final double[] unaryProb;
+
+  private int length;
+  private int arraySize = 0;
+  // [start][end][state], scaled by 2^-exp[start][end]
+  private double[][][] iScoreB; // inside before unaries
+  private double[][][] iScoreU; // inside after unaries
+  private double[][][] oScoreB; // outside of the before-unaries scores
+  private double[][][] oScoreU; // outside of the after-unaries scores
+  private int[][] iExp;
+  private int[][] oExp;
+  /** [start][end] -&gt; the states with an inside (U) score, in the first
+   *  numLive[start][end] entries.
+   */
+  private int[][][] liveStates;
+  private int[][] numLive;
+  /** [start][end][state] -&gt; whether the fine states of a coarse state
+   *  are built over a span, for the fine parser.
+   */
+  private boolean[][][] mask;
+  private final float[] lexScores;
+
+  /** The number of coarse states kept and pruned over spans of two or
+   *  more words, for the last sentence.
+   */
+  private int numKept;
+  private int numPruned;
+
+  /** The exponent of a cell whose scores are all 0. */
+  private static final int NONE = Integer.MIN_VALUE / 4;
+  private static final double LN_2 = 0.6931471805599453;
+
+  public CoarseToFinePCFGParser(ExhaustivePCFGParser fine, XBarGrammarProjection projection,
+                                Index<String> wordIndex, Options op) {
+    this.fine = fine;
+    this.projection = projection;
+    this.op = op;
+    sentenceWords = new SentenceWordIndex(wordIndex);
+    coarseLex = projection.targetLexicon();
+    coarseStateIndex = projection.targetStateIndex();
+    coarseTagIndex = projection.targetTagIndex();
+    numCoarse = coarseStateIndex.size();
+    goal = coarseStateIndex.indexOf(op.langpack().startSymbol());
+
+    rules = projection.targetBG().ruleTableByLC();
+    ruleProb = exp(rules.score);
+    unaries = projection.targetUG().closedRuleTableByChild();
+    unaryProb = exp(unaries.score);
+    lexScores = new float[numCoarse];
+  }
+
+  private static double[] exp(float[] scores) {
+    double[] probs = new double[scores.length];
+    for (int i = 0; i < scores.length; i++) {
+      probs[i] = Math.exp(scores[i]);
+    }
+    return probs;
+  }
+
+  @Override
+  public boolean parse(List<? extends HasWord> sentence) {
+    boolean[][][] mask = coarsePass(sentence);
+    fine.setCoarseMask(projection.projection(), mask);
+    boolean succeeded = fine.parse(sentence);
+    if ( ! succeeded && mask != null) {
+      fine.setCoarseMask(null, null);
+      // a new list, so that the fine parser starts out without flooding tags
+      succeeded = fine.parse(new ArrayList<>(sentence));
+    }
+    fine.setCoarseMask(null, null);
+    return succeeded;
+  }
+
+  @Override
+  public Tree getBestParse() {
+    return fine.getBestParse();
+  }
+
+  /** The output tree of the best parse, as {@link ExhaustivePCFGParser#getBestParse(OutputTreeBuilder)} builds it. */
+  public edu.berkeley.nlp.ling.Tree<String> getBestParse(OutputTreeBuilder output) {
+    return fine.getBestParse(output);
+  }
+
+  public double getBestScore() {
+    return fine.getBestScore();
+  }
+
+  public boolean hasParse() {
+    return fine.hasParse();
+  }
+
+  /** The number of coarse (span, state) items kept by the last coarse pass. */
+  public int numKept() {
+    return numKept;
+  }
+
+  /** The number of coarse (span, state) items pruned by the last coarse pass. */
+  public int numPruned() {
+    return numPruned;
+  }
+
+  /** Run inside-outside with the coarse grammar and threshold the
+   *  posteriors.  Returns null if the coarse grammar has no parse.
+   */
+  private boolean[][][] coarsePass(List<? extends HasWord> sentence) {
+    numKept = 0;
+    numPruned = 0;
+    if (goal < 0) {
+      return null;
+    }
+    length = sentence.size();
+    if (length > arraySize) {
+      createArrays(length);
+    }
+    clearArrays();
+    initializeChart(sentence);
+    doInsideScores();
+    double inside = iScoreU[0][length][goal];
+    if ( ! (inside > 0.0)) {
+      return null;
+    }
+    double logZ = Math.log(inside) + iExp[0][length] * LN_2;
+    oScoreU[0][length][goal] = 1.0;
+    oExp[0][length] = 0;
+    doOutsideScores();
+
+    double threshold = op.testOptions.coarsePosteriorThreshold;
+    for (int diff = 2; diff <= length; diff++) {
+      for (int start = 0; start < ((diff == length) ? 1 : length - diff); start++) {
+        int end = start + diff;
+        boolean[] keep = mask[start][end];
+        Arrays.fill(keep, false);
+        if (oExp[start][end] == NONE) {
+          numPruned += numCoarse;
+          continue;
+        }
+        // the least posterior kept, in the cell's scale
+        double minPosterior = Math.exp(threshold + logZ - (iExp[start][end] + oExp[start][end]) * LN_2);
+        double[] iB = iScoreB[start][end];
+        double[] iU = iScoreU[start][end];
+        double[] oB = oScoreB[start][end];
+        double[] oU = oScoreU[start][end];
+        // a state with no inside (U) score has none before unaries either
+        int[] live = liveStates[start][end];
+        int kept = 0;
+        for (int i = 0, count = numLive[start][end]; i < count; i++) {
+          int state = live[i];
+          double posterior = Math.max(iB[state] * oB[state], iU[state] * oU[state]);
+          if (posterior > 0.0 && posterior >= minPosterior) {
+            keep[state] = true;
+            kept++;
+          }
+        }
+        numKept += kept;
+        numPruned += numCoarse - kept;
+      }
+    }
+    return mask;
+  }
+
+  private void createArrays(int length) {
+    iScoreB = new double[length][length + 1][];
+    iScoreU = new double[length][length + 1][];
+    oScoreB = new double[length][length + 1][];
+    oScoreU = new double[length][length + 1][];
+    iExp = new int[length][length + 1];
+    oExp = new int[length][length + 1];
+    mask = new boolean[length][length + 1][];
+    liveStates = new int[length][length + 1][];
+    numLive = new int[length][length + 1];
+    for (int start = 0; start < length; start++) {
+      for (int end = start + 1; end <= length; end++) {
+        iScoreB[start][end] = new double[numCoarse];
+        iScoreU[start][end] = new double[numCoarse];
+        oScoreB[start][end] = new double[numCoarse];
+        oScoreU[start][end] = new double[numCoarse];
+        mask[start][end] = new boolean[numCoarse];
+        liveStates[start][end] = new int[numCoarse];
+      }
+    }
+    arraySize = length;
+  }
+
+  /** Mark every cell of the chart empty.  The scores of a cell are only
+   *  read once its inside exponent is set, and are cleared then (see
+   *  {@link #clearCell}).
+   */
+  private void clearArrays() {
+    for (int start = 0; start < length; start++) {
+      Arrays.fill(iExp[start], NONE);
+      Arrays.fill(oExp[start], NONE);
+    }
+  }
+
+  /** Clear the scores that are summed into, of a cell about to get its
+   *  inside scores: the other two are copied into whole.
+   */
+  private void clearCell(int start, int end) {
+    Arrays.fill(iScoreB[start][end], 0.0);
+    Arrays.fill(oScoreU[start][end], 0.0);
+  }
+
+  private void initializeChart(List<? extends HasWord> sentence) {
+    sentenceWords.clear();
+    for (int start = 0; start < length; start++) {
+      int end = start + 1;
+      String wordStr = sentence.get(start).word();
+      int word = sentenceWords.indexOf(wordStr);
+      Arrays.fill(lexScores, Float.NEGATIVE_INFINITY);
+      float max = Float.NEGATIVE_INFINITY;
+      for (Iterator<IntTaggedWord> taggingI = coarseLex.ruleIteratorByWord(word, start, null); taggingI.hasNext(); ) {
+        IntTaggedWord tagging = taggingI.next();
+        int state = coarseStateIndex.indexOf(coarseTagIndex.get(tagging.tag));
+        if (state < 0) {
+          continue;
+        }
+        float lexScore = coarseLex.score(tagging, start, wordStr, null);
+        if (lexScore > lexScores[state]) {
+          lexScores[state] = lexScore;
+          if (lexScore > max) {
+            max = lexScore;
+          }
+        }
+      }
+      if (max == Float.NEGATIVE_INFINITY) {
+        continue;
+      }
+      clearCell(start, end);
+      int exp = (int) Math.floor(max / LN_2);
+      double[] iB = iScoreB[start][end];
+      for (int state = 0; state < numCoarse; state++) {
+        if (lexScores[state] > Float.NEGATIVE_INFINITY) {
+          iB[state] = Math.exp(lexScores[state] - exp * LN_2);
+        }
+      }
+      iExp[start][end] = exp;
+      doInsideUnaries(start, end);
+    }
+  }
+
+  private void doInsideScores() {
+    for (int diff = 2; diff <= length; diff++) {
+      // as in ExhaustivePCFGParser, only the whole sentence span includes the boundary
+      for (int start = 0; start < ((diff == length) ? 1 : length - diff); start++) {
+        int end = start + diff;
+        int ref = NONE;
+        for (int split = start + 1; split < end; split++) {
+          if (iExp[start][split] != NONE && iExp[split][end] != NONE) {
+            ref = Math.max(ref, iExp[start][split] + iExp[split][end]);
+          }
+        }
+        if (ref == NONE) {
+          continue;
+        }
+        clearCell(start, end);
+        final double[] iB = iScoreB[start][end];
+        final int[] offsets = rules.offsets;
+        final int[] parents = rules.parent;
+        final int[] rightChildren = rules.right;
+        final double[] probs = ruleProb;
+        for (int split = start + 1; split < end; split++) {
+          if (iExp[start][split] == NONE || iExp[split][end] == NONE) {
+            continue;
+          }
+          double factor = pow2(iExp[start][split] + iExp[split][end] - ref);
+          if (factor == 0.0) {
+            continue;
+          }
+          double[] left = iScoreU[start][split];
+          double[] right = iScoreU[split][end];
+          int[] leftStates = liveStates[start][split];
+          for (int i = 0, numLeft = numLive[start][split]; i < numLeft; i++) {
+            int leftState = leftStates[i];
+            double lS = factor * left[leftState];
+            for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+              // zero unless the right child has a score
+              iB[parents[r]] += probs[r] * lS * right[rightChildren[r]];
+            }
+          }
+        }
+        iExp[start][end] = ref;
+        doInsideUnaries(start, end);
+      }
+    }
+  }
+
+  /** Apply the closed unary rules in a cell and rescale it so that its
+   *  largest score is in [1, 2).
+   */
+  private void doInsideUnaries(int start, int end) {
+    double[] iB = iScoreB[start][end];
+    double[] iU = iScoreU[start][end];
+    System.arraycopy(iB, 0, iU, 0, numCoarse);
+    for (int child = 0; child < numCoarse; child++) {
+      double iS = iB[child];
+      if (iS == 0.0) {
+        continue;
+      }
+      for (int r = unaries.offsets[child], rMax = unaries.offsets[child + 1]; r < rMax; r++) {
+        iU[unaries.parent[r]] += iS * unaryProb[r];
+      }
+    }
+    double max = 0.0;
+    for (int state = 0; state < numCoarse; state++) {
+      if (iU[state] > max) {
+        max = iU[state];
+      }
+    }
+    if (max == 0.0) {
+      iExp[start][end] = NONE;
+      return;
+    }
+    int shift = Math.getExponent(max);
+    double factor = pow2(-shift);
+    int[] live = liveStates[start][end];
+    int count = 0;
+    for (int state = 0; state < numCoarse; state++) {
+      iB[state] *= factor;
+      iU[state] *= factor;
+      if (iU[state] != 0.0) {
+        live[count++] = state;
+      }
+    }
+    numLive[start][end] = count;
+    iExp[start][end] += shift;
+  }
+
+  private void doOutsideScores() {
+    for (int diff = length; diff >= 1; diff--) {
+      for (int start = 0; start < ((diff == length) ? 1 : length - diff); start++) {
+        int end = start + diff;
+        if (oExp[start][end] == NONE || iExp[start][end] == NONE) {
+          continue;
+        }
+        double[] oU = oScoreU[start][end];
+        double[] oB = oScoreB[start][end];
+        double max = 0.0;
+        for (int state = 0; state < numCoarse; state++) {
+          if (oU[state] > max) {
+            max = oU[state];
+          }
+        }
+        if (max == 0.0) {
+          oExp[start][end] = NONE;
+          continue;
+        }
+        int shift = Math.getExponent(max);
+        double factor = pow2(-shift);
+        for (int state = 0; state < numCoarse; state++) {
+          oU[state] *= factor;
+        }
+        oExp[start][end] += shift;
+        // unaries
+        System.arraycopy(oU, 0, oB, 0, numCoarse);
+        for (int child = 0; child < numCoarse; child++) {
+          double sum = 0.0;
+          for (int r = unaries.offsets[child], rMax = unaries.offsets[child + 1]; r < rMax; r++) {
+            sum += oU[unaries.parent[r]] * unaryProb[r];
+          }
+          oB[child] += sum;
+        }
+        if (diff == 1) {
+          continue;
+        }
+        // binaries, by the left children with an inside score; the states
+        // with none have no posterior, whatever their outside score
+        final int[] offsets = rules.offsets;
+        final int[] parents = rules.parent;
+        final int[] rightChildren = rules.right;
+        final double[] probs = ruleProb;
+        for (int split = start + 1; split < end; split++) {
+          int lExp = iExp[start][split];
+          int rExp = iExp[split][end];
+          if (lExp == NONE || rExp == NONE) {
+            continue;
+          }
+          double lFactor = rescaleOutside(start, split, oExp[start][end] + rExp);
+          double rFactor = rescaleOutside(split, end, oExp[start][end] + lExp);
+          double[] iLeft = iScoreU[start][split];
+          double[] iRight = iScoreU[split][end];
+          double[] oLeft = oScoreU[start][split];
+          double[] oRight = oScoreU[split][end];
+          int[] leftStates = liveStates[start][split];
+          for (int i = 0, numLeft = numLive[start][split]; i < numLeft; i++) {
+            int leftState = leftStates[i];
+            double lS = iLeft[leftState];
+            double lS2 = rFactor * lS;
+            double sum = 0.0;
+            for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+              double oS = oB[parents[r]];
+              if (oS == 0.0) {
+                continue;
+              }
+              int rightState = rightChildren[r];
+              double pS = oS * probs[r];
+              sum += pS * iRight[rightState];
+              oRight[rightState] += pS * lS2;
+            }
+            oLeft[leftState] += lFactor * sum;
+          }
+        }
+      }
+    }
+  }
+
+  /** Make the outside exponent of a cell at least exp, rescaling what the
+   *  cell already holds, and return the factor by which contributions of
+   *  that exponent must be multiplied.
+   */
+  private double rescaleOutside(int start, int end, int exp) {
+    int current = oExp[start][end];
+    if (exp > current) {
+      if (current != NONE) {
+        double factor = pow2(current - exp);
+        double[] oU = oScoreU[start][end];
+        for (int state = 0; state < numCoarse; state++) {
+          oU[state] *= factor;
+        }
+      }
+      oExp[start][end] = exp;
+      return 1.0;
+    }
+    return pow2(exp - current);
+  }
+
+  /** 2^e, as Math.scalb(1.0, e) gives it, by its bits where it is a
+   *  normal double.
+   */
+  private static double pow2(int e) {
+    if (e < Double.MIN_EXPONENT || e > Double.MAX_EXPONENT) {
+      return Math.scalb(1.0, e);
+    }
+    return Double.longBitsToDouble((long) (e + Double.MAX_EXPONENT) << 52);
+  }
+
+}
@@ -167,7 +167,7 @@ public class EnglishTreebankParserParams extends AbstractTreebankParserParams  {
   
   @Override
   public TreeReaderFactory treeReaderFactory() {
-    return null;
+    return new LabeledScoredTreeReaderFactory();
   }
 
 
@@ -226,6 +226,17 @@ public class EnglishTreebankParserParams extends AbstractTreebankParserParams  {
     return new EnglishSubcategoryStripper();
   }
 
+  /** Null if any of the options that make EnglishSubcategoryStripper
+   *  keep a function tag or look at a node's children is on. */
+  @Override
+  public String strippedCategory(String category) {
+    if (englishTest.retainADVSubcategories || englishTest.retainTMPSubcategories ||
+        englishTest.retainNPTMPSubcategories || englishTrain.splitBaseNP == 2 || englishTrain.splitPoss == 2) {
+      return null;
+    }
+    return tlp.basicCategory(category);
+  }
+
 
   public static class EnglishTest implements Serializable {
     /* THESE OPTIONS ARE ENGLISH-SPECIFIC AND AFFECT ONLY TEST TIME */
@@ -25,7 +25,7 @@
 
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
-import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
 
@@ -61,7 +61,7 @@ public class EnglishUnknownWordModel extends BaseUnknownWordModel  {
   public EnglishUnknownWordModel(Options op, Lexicon lex,
                                  Index<String> wordIndex,
                                  Index<String> tagIndex,
-                                 ClassicCounter<IntTaggedWord> unSeenCounter) {
+                                 PackedCounter<IntTaggedWord> unSeenCounter) {
     super(op, lex, wordIndex, tagIndex, unSeenCounter, null, null, null);
     if (unknownLevel < MIN_UNKNOWN || unknownLevel > MAX_UNKNOWN) {
       throw new IllegalArgumentException("Invalid value for useUnknownWordSignatures: " + unknownLevel);
@@ -80,7 +80,7 @@ public class EnglishUnknownWordModel extends BaseUnknownWordModel  {
   public EnglishUnknownWordModel(Options op, Lexicon lex,
                                  Index<String> wordIndex,
                                  Index<String> tagIndex) {
-    this(op, lex, wordIndex, tagIndex, new ClassicCounter<>());
+    this(op, lex, wordIndex, tagIndex, IntTaggedWord.newCounter());
   }
 
   @Override
@@ -107,13 +107,14 @@ public class EnglishUnknownWordModel extends BaseUnknownWordModel  {
     // unknown word model for P(T|S)
 
     int wordSig = getSignatureIndex(iTW.word, loc, word);
-    IntTaggedWord temp = new IntTaggedWord(wordSig, iTW.tag);
-    double c_TS = unSeenCounter.getCount(temp);
-    temp = new IntTaggedWord(wordSig, nullTag);
-    double c_S = unSeenCounter.getCount(temp);
-    double c_U = unSeenCounter.getCount(NULL_ITW);
-    temp = new IntTaggedWord(nullWord, iTW.tag);
-    double c_T = unSeenCounter.getCount(temp);
+    double c_TS = 0.0;
+    double c_S = 0.0;
+    if (wordSig >= 0) { // else a signature never seen in training
+      c_TS = unSeenCount(wordSig, iTW.tag);
+      c_S = unSeenCount(wordSig, nullTag);
+    }
+    double c_U = unSeenCount(nullWord, nullTag);
+    double c_T = unSeenCount(nullWord, iTW.tag);
 
     double p_T_U = c_T / c_U;
     if (unknownLevel == 0) {
@@ -127,6 +128,8 @@ public class EnglishUnknownWordModel extends BaseUnknownWordModel  {
   /**
    * Returns the index of the signature of the word numbered wordIndex, where
    * the signature is the String representation of unknown word features.
+   * A new signature is added to the word index, unless it is locked, when
+   * -1 is returned.
    */
   @Override
   public int getSignatureIndex(int index, int sentencePosition, String word) {
@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser; 
 import edu.berkeley.nlp.assignments.parsing.ling.TaggedWord;
-import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
 
@@ -11,9 +12,10 @@ public class EnglishUnknownWordModelTrainer
   private static final boolean DOCUMENT_UNKNOWNS = false;
 
   // Records the number of times word/tag pair was seen in training data.
-  ClassicCounter<IntTaggedWord> seenCounter;
+  // Keyed by IntTaggedWord.pack.
+  LongCounter seenCounter;
 
-  ClassicCounter<IntTaggedWord> unSeenCounter;
+  PackedCounter<IntTaggedWord> unSeenCounter;
 
   double indexToStartUnkCounting;
 
@@ -27,8 +29,8 @@ public class EnglishUnknownWordModelTrainer
 
     this.indexToStartUnkCounting = (totalTrees * op.trainOptions.fractionBeforeUnseenCounting);
 
-    seenCounter = new ClassicCounter<>();
-    unSeenCounter = new ClassicCounter<>();
+    seenCounter = new LongCounter();
+    unSeenCounter = IntTaggedWord.newCounter();
 
     model = new EnglishUnknownWordModel(op, lex, wordIndex, tagIndex,
                                         unSeenCounter);
@@ -40,24 +42,20 @@ public class EnglishUnknownWordModelTrainer
   public void train(TaggedWord tw, int loc, double weight) {
     IntTaggedWord iTW =
       new IntTaggedWord(tw.word(), tw.tag(), wordIndex, tagIndex);
-    IntTaggedWord iT = new IntTaggedWord(nullWord, iTW.tag);
-    IntTaggedWord iW = new IntTaggedWord(iTW.word, nullTag);
-    seenCounter.incrementCount(iW, weight);
-    IntTaggedWord i = NULL_ITW;
+    double wordCount = seenCounter.incrementCount(IntTaggedWord.pack(iTW.word, nullTag), weight);
 
     if (treesRead > indexToStartUnkCounting) {
       // start doing this once some way through trees;
       // treesRead is 1 based counting
-      if (seenCounter.getCount(iW) < 1.5) {
+      if (wordCount < 1.5) {
         // it's an entirely unknown word
         int s = model.getSignatureIndex(iTW.word, loc,
                                         wordIndex.get(iTW.word));
-        IntTaggedWord iTS = new IntTaggedWord(s, iTW.tag);
-        IntTaggedWord iS = new IntTaggedWord(s, nullTag);
-        unSeenCounter.incrementCount(iTS, weight);
-        unSeenCounter.incrementCount(iT, weight);
-        unSeenCounter.incrementCount(iS, weight);
-        unSeenCounter.incrementCount(i, weight);
+        LongCounter unSeen = unSeenCounter.counts();
+        unSeen.incrementCount(IntTaggedWord.pack(s, iTW.tag), weight);
+        unSeen.incrementCount(IntTaggedWord.pack(nullWord, iTW.tag), weight);
+        unSeen.incrementCount(IntTaggedWord.pack(s, nullTag), weight);
+        unSeen.incrementCount(IntTaggedWord.pack(nullWord, nullTag), weight);
         // rules.add(iTS);
         // sigs.add(iS);
       } // else {
@@ -63,7 +63,8 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
   private static final boolean DEBUG_MORE = false;
 
   private final Index<String> tagIndex;
-  private final Index<String> wordIndex;
+  /** Ids of the words of the sentence being parsed; see {@link SentenceWordIndex}. */
+  private final SentenceWordIndex sentenceWords;
 
   private TreeFactory tf;
 
@@ -74,6 +75,12 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
 
   private List sentence;
   private int[] words;
+  /**
+   * The ids the dependency grammar scores the words by: those of words,
+   * but with Lexicon.UNKNOWN_WORD for a word with a transient id, which no
+   * grammar knows, as BiLexPCFGParser does.
+   */
+  private int[] grammarWords;
 
   /**
    * Max log inner probability score.
@@ -101,8 +108,25 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
 
   private int[][] rawDistance;
   int[][] binDistance;       // reused in other class, so can't be private
-  float[][][][][] headScore;
+  /**
+   * Log probabilities of the dependencies of the sentence: a row per
+   * head word, head tag, argument word and argument tag, with a score per
+   * distance bin.  See {@link #headScoreRow}.
+   */
+  private float[] headScore = new float[0];
   float[][][] headStop; // headPos, headTag, split
+  /** Whether the rows of headScore are laid out by licensed tags and scored on first use. */
+  private boolean lazyHeadScores;
+  private int numDistBins;
+  /** [word][tag] -&gt; the tag's number among the tags the lexicon licenses for the word, or -1. */
+  private int[][] tagSlot;
+  /** [word] -&gt; the number of tags the lexicon licenses for it. */
+  private int[] numTagSlots;
+  /** [head][arg] -&gt; the offset in headScore of the rows of their licensed tags. */
+  private int[][] pairOffset;
+  /** The number of cells of headScore in use, and of dependencies scored, for the last sentence. */
+  private int headScoreCells;
+  private int dependenciesScored;
   private boolean[][][] oPossibleByL;
   private boolean[][][] oPossibleByR;
   private boolean[][][] iPossibleByL;
@@ -186,15 +210,18 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
 
     // map to words
     words = new int[length];
+    grammarWords = new int[length];
     int numTags = dg.numTagBins();//tagIndex.size();
     //System.out.println("\nNumTags: "+numTags);
     //System.out.println(tagIndex);
     boolean[][] hasTag = new boolean[length][numTags];
+    sentenceWords.clear();
     for (int i = 0; i < length; i++) {
       //if (wordIndex.contains(sentence.get(i).toString()))
-      words[i] = wordIndex.addToIndex(sentence.get(i).word());
+      words[i] = sentenceWords.indexOf(sentence.get(i).word());
       //else
       //words[i] = wordIndex.indexOf(Lexicon.UNKNOWN_WORD);
+      grammarWords[i] = sentenceWords.trainedId(words[i]);
     }
     for (int head = 0; head < length; head++) {
       for (int tag = 0; tag < numTags; tag++) {
@@ -237,6 +264,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
       }
 
       int word = words[start];
+      boolean assignedSomeTag = false;
       for (Iterator<IntTaggedWord> taggingI = lex.ruleIteratorByWord(word, start, wordContextStr); taggingI.hasNext();) {
         IntTaggedWord tagging = taggingI.next();
         if (trueTagStr != null) {
@@ -244,15 +272,24 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
             continue;
           }
         }
-        float score = lex.score(tagging, start, wordIndex.get(tagging.word), wordContextStr);
+        float score = lex.score(tagging, start, sentenceWords.get(tagging.word), wordContextStr);
         //iScoreH[start][tag][start] = (op.dcTags ? (float)op.testOptions.depWeight*score : 0.0f);
         if (score > Float.NEGATIVE_INFINITY) {
-          int tag = tagging.tag;
-          iScoreH[start][dg.tagBin(tag)][start] = 0.0f;
-          iScoreH[start][dg.tagBin(tag)][start + 1] = 0.0f;
-          if (doiScoreHSum) {
-            iScoreHSum[start][dg.tagBin(tag)][start] = 0.0f;
-            iScoreHSum[start][dg.tagBin(tag)][start+1] = 0.0f;
+          assignedSomeTag = true;
+          licenseTag(start, tagging.tag);
+        }
+      }
+      if ( ! assignedSomeTag) {
+        // As in ExhaustivePCFGParser, a word with no seen or specified
+        // tagging (an unknown word whose signature has no taggings, or a
+        // gold tag not seen with it) gets every tag the lexicon does not
+        // score -Inf, so the dependency parse covers it as the PCFG does
+        for (int tag = 0; tag < tagIndex.size(); tag++) {
+          if (trueTagStr != null && ! tlp.basicCategory(tagIndex.get(tag)).equals(trueTagStr)) {
+            continue;
+          }
+          if (lex.score(new IntTaggedWord(word, tag), start, sentenceWords.get(word), wordContextStr) > Float.NEGATIVE_INFINITY) {
+            licenseTag(start, tag);
           }
         }
       }
@@ -261,14 +298,39 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
       for (int hTag = 0; hTag < numTags; hTag++) {
         hasTag[hWord][hTag] = (iScoreH[hWord][hTag][hWord] + iScoreH[hWord][hTag][hWord + 1] > Float.NEGATIVE_INFINITY);
         Arrays.fill(headStop[hWord][hTag], Float.NEGATIVE_INFINITY);
+      }
+    }
+    lazyHeadScores = op.testOptions.lazyDependencyScores;
+    numDistBins = dg.numDistBins();
+    if (lazyHeadScores) {
+      // a row for each pair of licensed tags only, scored when first used
+      int size = 0;
+      for (int word = 0; word < length; word++) {
+        int slots = 0;
+        for (int tag = 0; tag < numTags; tag++) {
+          tagSlot[word][tag] = hasTag[word][tag] ? slots++ : -1;
+        }
+        numTagSlots[word] = slots;
+      }
+      for (int hWord = 0; hWord < length; hWord++) {
         for (int aWord = 0; aWord < length; aWord++) {
-          for (int dist = 0; dist < dg.numDistBins(); dist++) {
-            Arrays.fill(headScore[dist][hWord][hTag][aWord], Float.NEGATIVE_INFINITY);
+          pairOffset[hWord][aWord] = size;
+          if (aWord != hWord) {
+            size += numTagSlots[hWord] * numTagSlots[aWord] * numDistBins;
           }
         }
       }
+      ensureHeadScoreSize(size);
+      Arrays.fill(headScore, 0, size, Float.NaN);
+      headScoreCells = size;
+    } else {
+      int size = length * numTags * length * numTags * numDistBins;
+      ensureHeadScoreSize(size);
+      Arrays.fill(headScore, 0, size, Float.NEGATIVE_INFINITY);
+      headScoreCells = size;
     }
-    // score and cache all pairs -- headScores and stops
+    dependenciesScored = 0;
+    // score and cache all stops, and all pairs unless they are scored lazily
     //int hit = 0;
     for (int hWord = 0; hWord < length; hWord++) {
       for (int hTag = 0; hTag < numTags; hTag++) {
@@ -280,50 +342,27 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
         }
         for (int split = 0; split <= length; split++) {
           if (split <= hWord) {
-            headStop[hWord][hTag][split] = (float) dg.scoreTB(words[hWord], hTag, -2, -2, false, hWord - split);
+            headStop[hWord][hTag][split] = (float) dg.scoreTB(grammarWords[hWord], hTag, -2, -2, false, hWord - split);
             //System.out.println("headstopL " + hWord +" " + hTag + " " + split + " " + headStopL[hWord][hTag][split]); // debugging
           } else {
-            headStop[hWord][hTag][split] = (float) dg.scoreTB(words[hWord], hTag, -2, -2, true, split - hWord - 1);
+            headStop[hWord][hTag][split] = (float) dg.scoreTB(grammarWords[hWord], hTag, -2, -2, true, split - hWord - 1);
             //System.out.println("headstopR " + hWord +" " + hTag + " " + split + " " + headStopR[hWord][hTag][split]); // debugging
           }
           //hit++;
         }
         //Timing.tick("hWord: "+hWord+" hTag: "+hTag+" piddle count: "+hit);
+        if (lazyHeadScores) {
+          continue;
+        }
         for (int aWord = 0; aWord < length; aWord++) {
           if (aWord == hWord) {
             continue;  // can't be argument of yourself
           }
-          boolean leftHeaded = hWord < aWord;
-          int start;
-          int end;
-          if (leftHeaded) {
-            start = hWord + 1;
-            end = aWord + 1;
-          } else {
-            start = aWord + 1;
-            end = hWord + 1;
-          }
           for (int aTag = 0; aTag < numTags; aTag++) {
             if ( ! hasTag[aWord][aTag]) {
               continue;
             }
-            for (int split = start; split < end; split++) {
-              // Moved this stuff out two loops- GMA
-              //              for (int split = 0; split <= length; split++) {
-              // if leftHeaded, go from hWord+1 to aWord
-              // else go from aWord+1 to hWord
-              //              if ((leftHeaded && (split <= hWord || split > aWord)) ||
-              //                      ((!leftHeaded) && (split <= aWord || split > hWord)))
-              //                continue;
-              int headDistance = rawDistance[hWord][split];
-              int binDist = binDistance[hWord][split];
-              headScore[binDist][hWord][hTag][aWord][aTag] = (float) dg.scoreTB(words[hWord], hTag, words[aWord], aTag, leftHeaded, headDistance);
-              //hit++;
-              // skip other splits with same binDist
-              while (split + 1 < end && binDistance[hWord][split + 1] == binDist) {
-                split++;
-              }
-            } // end split
+            scoreHeadScoreRow(headScoreRow(hWord, hTag, aWord, aTag), hWord, hTag, aWord, aTag);
           } // end aTag
         } // end aWord
       } // end hTag
@@ -359,9 +398,10 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
               if (stopLeftScore == Float.NEGATIVE_INFINITY) {
                 continue;
               }
+              int row = headScoreRow(endHead, endTag, argHead, argTag);
               for (int split = argHead + 1; split < end; split++) {
                 // short circuit if dependency is impossible
-                float depScore = headScore[binDistance[endHead][split]][endHead][endTag][argHead][argTag];
+                float depScore = headScore[row + binDistance[endHead][split]];
                 if (depScore == Float.NEGATIVE_INFINITY) {
                   continue;
                 }
@@ -376,7 +416,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
                 for (int split = argHead + 1; split < end; split++) {
                   p += Math.exp(iScoreH[argHead][argTag][start] +
                                 iScoreH[argHead][argTag][split] +
-                                headScore[binDistance[endHead][split]][endHead][endTag][argHead][argTag] +
+                                headScore[row + binDistance[endHead][split]] +
                                 headStop[argHead][argTag][start] +
                                 headStop[argHead][argTag][split]);
                 }
@@ -410,9 +450,10 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
               if (stopRightScore == Float.NEGATIVE_INFINITY) {
                 continue;
               }
+              int row = headScoreRow(startHead, startTag, argHead, argTag);
               for (int split = start + 1; split <= argHead; split++) {
                 // short circuit if dependency is impossible
-                float depScore = headScore[binDistance[startHead][split]][startHead][startTag][argHead][argTag];
+                float depScore = headScore[row + binDistance[startHead][split]];
                 if (depScore == Float.NEGATIVE_INFINITY) {
                   continue;
                 }
@@ -429,7 +470,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
                   p += Math.exp(iScoreH[startHead][startTag][split] +
                       iScoreH[argHead][argTag][split] +
                       iScoreH[argHead][argTag][end] +
-                      headScore[binDistance[startHead][split]][startHead][startTag][argHead][argTag] +
+                      headScore[row + binDistance[startHead][split]] +
                       headStop[argHead][argTag][end] +
                       headStop[argHead][argTag][split]);
                 }
@@ -459,7 +500,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
         // left half
         int endHead = end - 1;
         for (int endTag = 0; endTag < numTags; endTag++) {
-          if (!hasTag[endHead][endTag]) {
+          if (!hasTag[endHead][endTag] || oScoreH[endHead][endTag][start] == Float.NEGATIVE_INFINITY) {
             continue;
           }
           for (int argHead = start; argHead < endHead; argHead++) {
@@ -467,8 +508,9 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
               if (!hasTag[argHead][argTag]) {
                 continue;
               }
+              int row = headScoreRow(endHead, endTag, argHead, argTag);
               for (int split = argHead; split <= endHead; split++) {
-                float subScore = (oScoreH[endHead][endTag][start] + headScore[binDistance[endHead][split]][endHead][endTag][argHead][argTag] + headStop[argHead][argTag][start] + headStop[argHead][argTag][split]);
+                float subScore = (oScoreH[endHead][endTag][start] + headScore[row + binDistance[endHead][split]] + headStop[argHead][argTag][start] + headStop[argHead][argTag][split]);
                 float scoreRight = (subScore + iScoreH[argHead][argTag][start] + iScoreH[argHead][argTag][split]);
                 float scoreMid = (subScore + iScoreH[argHead][argTag][start] + iScoreH[endHead][endTag][split]);
                 float scoreLeft = (subScore + iScoreH[argHead][argTag][split] + iScoreH[endHead][endTag][split]);
@@ -488,7 +530,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
         // right half
         int startHead = start;
         for (int startTag = 0; startTag < numTags; startTag++) {
-          if (!hasTag[startHead][startTag]) {
+          if (!hasTag[startHead][startTag] || oScoreH[startHead][startTag][end] == Float.NEGATIVE_INFINITY) {
             continue;
           }
           for (int argHead = startHead + 1; argHead < end; argHead++) {
@@ -496,8 +538,9 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
               if (!hasTag[argHead][argTag]) {
                 continue;
               }
+              int row = headScoreRow(startHead, startTag, argHead, argTag);
               for (int split = startHead + 1; split <= argHead; split++) {
-                float subScore = (oScoreH[startHead][startTag][end] + headScore[binDistance[startHead][split]][startHead][startTag][argHead][argTag] + headStop[argHead][argTag][split] + headStop[argHead][argTag][end]);
+                float subScore = (oScoreH[startHead][startTag][end] + headScore[row + binDistance[startHead][split]] + headStop[argHead][argTag][split] + headStop[argHead][argTag][end]);
                 float scoreLeft = (subScore + iScoreH[argHead][argTag][split] + iScoreH[argHead][argTag][end]);
                 float scoreMid = (subScore + iScoreH[startHead][startTag][split] + iScoreH[argHead][argTag][end]);
                 float scoreRight = (subScore + iScoreH[startHead][startTag][split] + iScoreH[argHead][argTag][split]);
@@ -547,6 +590,93 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
     return hasParse();
   }
 
+  /** Lets the word at start head and take dependents with the tag's bin. */
+  private void licenseTag(int start, int tag) {
+    int tagBin = dg.tagBin(tag);
+    iScoreH[start][tagBin][start] = 0.0f;
+    iScoreH[start][tagBin][start + 1] = 0.0f;
+    if (doiScoreHSum) {
+      iScoreHSum[start][tagBin][start] = 0.0f;
+      iScoreHSum[start][tagBin][start + 1] = 0.0f;
+    }
+  }
+
+  /**
+   * The offset in headScore of the row of scores of the dependency of
+   * aWord with aTag on hWord with hTag, by distance bin; the tags are tag
+   * bins.  If the scores are lazy, the row is scored if it has not been,
+   * and there is a row only if the lexicon licenses both tags, else -1.
+   */
+  private int headScoreRow(int hWord, int hTag, int aWord, int aTag) {
+    if ( ! lazyHeadScores) {
+      int numTags = dg.numTagBins();
+      return (((hWord * numTags + hTag) * words.length + aWord) * numTags + aTag) * numDistBins;
+    }
+    int hSlot = tagSlot[hWord][hTag];
+    int aSlot = tagSlot[aWord][aTag];
+    if (hSlot < 0 || aSlot < 0) {
+      return -1;
+    }
+    int row = pairOffset[hWord][aWord] + (hSlot * numTagSlots[aWord] + aSlot) * numDistBins;
+    if (Float.isNaN(headScore[row])) {
+      scoreHeadScoreRow(row, hWord, hTag, aWord, aTag);
+    }
+    return row;
+  }
+
+  /** The score of a dependency at a distance bin, negative infinity if it has no row. */
+  float headScore(int binDist, int hWord, int hTag, int aWord, int aTag) {
+    int row = headScoreRow(hWord, hTag, aWord, aTag);
+    return (row < 0) ? Float.NEGATIVE_INFINITY : headScore[row + binDist];
+  }
+
+  /**
+   * Score the row of a dependency: at each distance bin of the splits
+   * between the words, the score at the first of those splits, and at any
+   * other bin, negative infinity.
+   */
+  private void scoreHeadScoreRow(int row, int hWord, int hTag, int aWord, int aTag) {
+    Arrays.fill(headScore, row, row + numDistBins, Float.NEGATIVE_INFINITY);
+    boolean leftHeaded = hWord < aWord;
+    int start;
+    int end;
+    if (leftHeaded) {
+      start = hWord + 1;
+      end = aWord + 1;
+    } else {
+      start = aWord + 1;
+      end = hWord + 1;
+    }
+    for (int split = start; split < end; split++) {
+      // if leftHeaded, go from hWord+1 to aWord
+      // else go from aWord+1 to hWord
+      int headDistance = rawDistance[hWord][split];
+      int binDist = binDistance[hWord][split];
+      headScore[row + binDist] = (float) dg.scoreTB(grammarWords[hWord], hTag, grammarWords[aWord], aTag, leftHeaded, headDistance);
+      dependenciesScored++;
+      // skip other splits with same binDist
+      while (split + 1 < end && binDistance[hWord][split + 1] == binDist) {
+        split++;
+      }
+    }
+  }
+
+  /**
+   * The number of dependency scores there was room for, and the number
+   * of dependencies scored, for the last sentence parsed, so far.  For
+   * benchmarks.
+   */
+  public int[] dependencyScoreCounts() {
+    return new int[] {headScoreCells, dependenciesScored};
+  }
+
+  private void ensureHeadScoreSize(int size) {
+    if (headScore.length < size) {
+      headScore = null; // let the old array go before making the new one
+      headScore = new float[size];
+    }
+  }
+
   @Override
   public boolean hasParse() {
     return getBestScore() > Float.NEGATIVE_INFINITY;
@@ -576,7 +706,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
    *  @return The best parse tree within the parameter constraints
    */
   private Tree extractBestParse(int start, int end, int hWord, int hTag) {
-    String headWordStr = wordIndex.get(words[hWord]);
+    String headWordStr = sentenceWords.get(words[hWord]);
     String headTagStr = tagIndex.get(hTag);
     Label headLabel = new CategoryWordTag(headWordStr, headWordStr, headTagStr);
     int numTags = tagIndex.size();
@@ -594,7 +724,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
       if (hWord < split) {
         for (int aWord = split; aWord < end; aWord++) {
           for (int aTag = 0; aTag < numTags; aTag++) {
-            if (matches(iScore(start, split, hWord, hTag) + iScore(split, end, aWord, aTag) + headScore[binD][hWord][dg.tagBin(hTag)][aWord][dg.tagBin(aTag)] + headStop[aWord][dg.tagBin(aTag)][split] + headStop[aWord][dg.tagBin(aTag)][end], bestScore)) {
+            if (matches(iScore(start, split, hWord, hTag) + iScore(split, end, aWord, aTag) + headScore(binD, hWord, dg.tagBin(hTag), aWord, dg.tagBin(aTag)) + headStop[aWord][dg.tagBin(aTag)][split] + headStop[aWord][dg.tagBin(aTag)][end], bestScore)) {
               // build it
               children.add(extractBestParse(start, split, hWord, hTag));
               children.add(extractBestParse(split, end, aWord, aTag));
@@ -605,7 +735,7 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
       } else {
         for (int aWord = start; aWord < split; aWord++) {
           for (int aTag = 0; aTag < numTags; aTag++) {
-            if (matches(iScore(start, split, aWord, aTag) + iScore(split, end, hWord, hTag) + headScore[binD][hWord][dg.tagBin(hTag)][aWord][dg.tagBin(aTag)] + headStop[aWord][dg.tagBin(aTag)][start] + headStop[aWord][dg.tagBin(aTag)][split], bestScore)) {
+            if (matches(iScore(start, split, aWord, aTag) + iScore(split, end, hWord, hTag) + headScore(binD, hWord, dg.tagBin(hTag), aWord, dg.tagBin(aTag)) + headStop[aWord][dg.tagBin(aTag)][start] + headStop[aWord][dg.tagBin(aTag)][split], bestScore)) {
               children.add(extractBestParse(start, split, aWord, aTag));
               children.add(extractBestParse(split, end, hWord, hTag));
               // build it
@@ -661,15 +791,15 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
     this.lex = lex;
     this.op = op;
     this.tlp = op.langpack();
-    this.wordIndex = wordIndex;
     this.tagIndex = tagIndex;
+    sentenceWords = new SentenceWordIndex(wordIndex);
     tf = new LabeledScoredTreeFactory();
   }
 
   private void createArrays(int length) {
     iScoreH = oScoreH = headStop = iScoreHSum = null;
     iPossibleByL = iPossibleByR = oPossibleByL = oPossibleByR = null;
-    headScore = null;
+    tagSlot = pairOffset = null;
     rawDistance = binDistance = null;
 
     int tagNum = dg.numTagBins(); //tagIndex.size();
@@ -683,7 +813,9 @@ public class ExhaustiveDependencyParser implements Scorer, KBestViterbiParser  {
     iPossibleByR = new boolean[length + 1][length + 1][tagNum];
     oPossibleByL = new boolean[length + 1][length + 1][tagNum];
     oPossibleByR = new boolean[length + 1][length + 1][tagNum];
-    headScore = new float[dg.numDistBins()][length][tagNum][length][tagNum];
+    tagSlot = new int[length][tagNum];
+    numTagSlots = new int[length];
+    pairOffset = new int[length][length];
     headStop = new float[length + 1][tagNum][length + 1];
     rawDistance = new int[length + 1][length + 1];
     binDistance = new int[length + 1][length + 1];
@@ -30,14 +30,18 @@ import edu.berkeley.nlp.assignments.parsing.math.SloppyMath;
 import edu.berkeley.nlp.assignments.parsing.parser.KBestViterbiParser;
 import edu.berkeley.nlp.assignments.parsing.parser.common.ParserAnnotations;
 import edu.berkeley.nlp.assignments.parsing.parser.common.ParserConstraint;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
 import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
 import edu.berkeley.nlp.assignments.parsing.trees.Tree;
 import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
 import edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack;
-import edu.berkeley.nlp.assignments.parsing.util.PriorityQueue;
 import edu.berkeley.nlp.assignments.parsing.util.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 
 /** An exhaustive generalized CKY PCFG parser.
@@ -61,6 +65,8 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
   protected final Index<String> stateIndex;
   protected final Index<String> wordIndex;
   protected final Index<String> tagIndex;
+  /** Ids of the words of the sentence being parsed; see {@link SentenceWordIndex}. */
+  protected final SentenceWordIndex sentenceWords;
 
   protected final TreeFactory tf;
 
@@ -73,9 +79,9 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
   protected OutsideRuleFilter orf;
 
   // inside scores
-  protected float[][][] iScore;  // start idx, end idx, state -> logProb (ragged; null for end <= start)
+  protected ChartScores iScore;  // start idx, end idx, state -> logProb (only end > start addressable)
   // outside scores
-  protected float[][][] oScore;  // start idx, end idx, state -> logProb
+  protected ChartScores oScore;  // start idx, end idx, state -> logProb
   protected float bestScore;
 
   protected int[][][] wordsInSpan; // number of words in span with this state
@@ -115,6 +121,60 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
    */
   protected List<ParserConstraint> constraints = null;
 
+  /**
+   * Coarse-to-fine pruning: [start][end][coarse state] is true if the
+   * coarse pass kept that coarse state over the span.  Fine states are
+   * mapped to coarse ones by coarseProjection, where -1 means never prune.
+   * Only spans of two or more words are pruned.  Null when not pruning.
+   */
+  protected boolean[][][] coarseMask = null;
+  protected int[] coarseProjection = null;
+  /** The fine states the coarse mask allows in the cell being filled. */
+  private boolean[] cellAllowed = null;
+
+  /**
+   * The live states of each cell, those with a finite inside score, in
+   * flat arrays by cell number (see cellNumber): cell c has its states in
+   * the first numLive[c] of the numStates entries of liveStates from
+   * c * numStates, and as a bitset in the liveWords longs of liveBits from
+   * c * liveWords.  The binary, unary and outside passes iterate over
+   * these instead of over all states.
+   */
+  private int[] liveStates;
+  private int[] numLive;
+  private long[] liveBits;
+  private final int liveWords;
+  /** Whether the cells of the sentence being parsed are filled from the
+   *  live states; otherwise the extents guide a scan of all states.
+   */
+  private boolean sparseCells = false;
+  /** Whether the chart of the sentence being parsed is beam pruned
+   *  (TestOptions.pcfgBeamSize and pcfgBeamWidth).
+   */
+  private boolean pruning = false;
+  /** Set while reparsing a sentence whose pruned chart had no parse. */
+  private boolean beamFailed = false;
+  /** Scores of a cell being filled, before they go into the chart, for sequential filling. */
+  private float[] cellScratch = null;
+  /** [span length] -&gt; live states and cells, summed over the sentences parsed. */
+  private long[] liveStatesBySpan = new long[0];
+  private long[] cellsBySpan = new long[0];
+
+  /** The chart's back-pointers, made when first needed (TestOptions.pcfgBackPointers). */
+  private ChartBackPointers backPointers = null;
+  /** Whether back-pointers are recorded for the sentence being parsed.
+   *  A subclass that fills the chart by its own search must clear this.
+   */
+  protected boolean recordBackPointers = false;
+
+  /** Fill chart diagonals in parallel when TestOptions.chartThreads &gt; 1:
+   *  one pool per number of threads, shared by all parsers, so that the
+   *  parsers of a multi-threaded caller (one per thread) do not each start
+   *  one that is never shut down.  Their workers are daemon threads, which
+   *  exit when idle.
+   */
+  private static final ConcurrentMap<Integer, ForkJoinPool> chartPools = new ConcurrentHashMap<>();
+
   private CoreLabel getCoreLabel(int labelIndex) {
     if (originalCoreLabels[labelIndex] != null) {
       CoreLabel terminalLabel = originalCoreLabels[labelIndex];
@@ -124,7 +184,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
       return terminalLabel;
     }
 
-    String wordStr = wordIndex.get(words[labelIndex]);
+    String wordStr = sentenceWords.get(words[labelIndex]);
     CoreLabel terminalLabel = new CoreLabel();
     terminalLabel.setValue(wordStr);
     terminalLabel.setWord(wordStr);
@@ -138,9 +198,9 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
 
   @Override
   public double oScore(Edge edge) {
-    double oS = oScore[edge.start][edge.end][edge.state];
+    double oS = oScore.get(edge.start, edge.end, edge.state);
     if (op.testOptions.pcfgThreshold) {
-      double iS = iScore[edge.start][edge.end][edge.state];
+      double iS = iScore.get(edge.start, edge.end, edge.state);
       if (iS + oS - bestScore < op.testOptions.pcfgThresholdValue) {
         return Double.NEGATIVE_INFINITY;
       }
@@ -150,7 +210,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
 
   @Override
   public double iScore(Edge edge) {
-    return iScore[edge.start][edge.end][edge.state];
+    return iScore.get(edge.start, edge.end, edge.state);
   }
 
   @Override
@@ -206,7 +266,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
       int word = wordIndex.indexOf(wordStr);
       IntTaggedWord iTW = new IntTaggedWord(word, tag);
       float score = lex.score(iTW, start, wordStr, null);
-      float bound = iScore[start][start + 1][stateIndex.indexOf(tree.label().value())];
+      float bound = iScore.get(start, start + 1, stateIndex.indexOf(tree.label().value()));
       if (score > bound + epsilon) {
         System.out.println("Invalid tagging:");
         System.out.println("  Tag: " + tree.label().value());
@@ -221,7 +281,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     if (tree.numChildren() == 1) {
       UnaryRule ur = new UnaryRule(parent, firstChild);
       double score = SloppyMath.max(ug.scoreRule(ur), -10000.0) + validateBinarizedTree(tree.children()[0], start);
-      double bound = iScore[start][start + tree.yield().size()][parent];
+      double bound = iScore.get(start, start + tree.yield().size(), parent);
       if (score > bound + epsilon) {
         System.out.println("Invalid unary:");
         System.out.println("  Parent: " + tree.label().value());
@@ -236,7 +296,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     int secondChild = stateIndex.indexOf(tree.children()[1].label().value());
     BinaryRule br = new BinaryRule(parent, firstChild, secondChild);
     double score = SloppyMath.max(bg.scoreRule(br), -10000.0) + validateBinarizedTree(tree.children()[0], start) + validateBinarizedTree(tree.children()[1], start + tree.children()[0].yield().size());
-    double bound = iScore[start][start + tree.yield().size()][parent];
+    double bound = iScore.get(start, start + tree.yield().size(), parent);
     if (score > bound + epsilon) {
       System.out.println("Invalid binary:");
       System.out.println("  Parent: " + tree.label().value());
@@ -342,6 +402,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     int unk = 0;
     StringBuilder unkWords = new StringBuilder("[");
     // int unkIndex = wordIndex.size();
+    sentenceWords.clear();
 
     for (int i = 0; i < length; i++) {
       String s = sentence.get(i).word();
@@ -383,7 +444,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
       //if (words[i] == unkIndex) {
       //  ++unkIndex;
       //}
-      words[i] = wordIndex.addToIndex(s);
+      words[i] = sentenceWords.indexOf(s);
       //if (wordIndex.contains(s)) {
       //  words[i] = wordIndex.indexOf(s);
       //} else {
@@ -394,13 +455,22 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     if (Thread.interrupted()) {
       throw new RuntimeInterruptedException();
     }
-    for (int start = 0; start < length; start++) {
-      for (int end = start + 1; end <= length; end++) {
-        Arrays.fill(iScore[start][end], Float.NEGATIVE_INFINITY);
-        if (op.doDep && ! op.testOptions.useFastFactored) {
-          Arrays.fill(oScore[start][end], Float.NEGATIVE_INFINITY);
-        }
-        if (op.testOptions.lengthNormalization) {
+    iScore.reset(length);
+    if (op.doDep && ! op.testOptions.useFastFactored) {
+      oScore.reset(length);
+    }
+    pruning = false;
+    recordBackPointers = op.testOptions.pcfgBackPointers && getConstraints() == null
+        && ! op.testOptions.lengthNormalization && op.testOptions.maxSpanForTags <= 1;
+    if (recordBackPointers) {
+      if (backPointers == null || backPointers.capacity() < iScore.capacity()) {
+        backPointers = new ChartBackPointers(iScore.capacity(), numStates);
+      }
+      backPointers.reset(length);
+    }
+    if (op.testOptions.lengthNormalization) {
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
           Arrays.fill(wordsInSpan[start][end], 1);
         }
       }
@@ -421,8 +491,17 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     }
     initializeChart(sentence);
     doInsideScores();
-    bestScore = iScore[0][length][goal];
+    bestScore = iScore.get(0, length, goal);
     boolean succeeded = hasParse();
+    if ( ! succeeded && pruning) {
+      // the beam pruned away every parse; try again without it
+      beamFailed = true;
+      try {
+        return parse(sentence);
+      } finally {
+        beamFailed = false;
+      }
+    }
     if (op.testOptions.doRecovery && !succeeded && !floodTags) {
       floodTags = true; // sentence will try to reparse
       // ms: disabled message. this is annoying and it doesn't really provide much information
@@ -433,6 +512,12 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
       return succeeded;
     }
 
+    // the factored parser's A* search reads the outside scores and possibles
+    if (succeeded) {
+      oScore.set(0, length, goal, 0.0f);
+      doOutsideScores();
+      initializePossibles();
+    }
     return succeeded;
   }
 
@@ -450,12 +535,11 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
 
 
     int goal = stateIndex.indexOf(goalStr);
-    for (int start = 0; start < length; start++) {
-    	for (int end = start + 1; end <= length; end++) {
-    		Arrays.fill(iScore[start][end], Float.NEGATIVE_INFINITY);
-    		if (op.doDep) Arrays.fill(oScore[start][end], Float.NEGATIVE_INFINITY);
-    	}
-    }
+    sentenceWords.clear();
+    iScore.reset(length);
+    if (op.doDep) oScore.reset(length);
+    pruning = false;
+    recordBackPointers = false;
 
     for (int loc = 0; loc <= length; loc++) {
       Arrays.fill(narrowLExtent[loc], -1); // the rightmost left with state s ending at i that we can get is the beginning
@@ -469,7 +553,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     initializeChart(lr);
 
     doInsideScores();
-    bestScore = iScore[0][length][goal];
+    bestScore = iScore.get(0, length, goal);
 
     boolean succeeded = hasParse();
 
@@ -481,7 +565,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
       if(!succeeded) return false;
     }
 
-    oScore[0][length][goal] = 0.0f;
+    oScore.set(0, length, goal, 0.0f);
     doOutsideScores();
 
     if (op.doDep) {
@@ -506,7 +590,7 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
     for (int start = 0; start < length; start++) {
       for (int end = start + 1; end <= length; end++) {
         for (int state = 0; state < numStates; state++) {
-          if (iScore[start][end][state] > Float.NEGATIVE_INFINITY && oScore[start][end][state] > Float.NEGATIVE_INFINITY) {
+          if (iScore.get(start, end, state) > Float.NEGATIVE_INFINITY && oScore.get(start, end, state) > Float.NEGATIVE_INFINITY) {
             iPossibleByL[start][state] = true;
             iPossibleByR[end][state] = true;
             oPossibleByL[start][state] = true;
@@ -518,6 +602,8 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
   }
 
   private void doOutsideScores() {
+    final UnaryRuleTable unaries = ug.closedRuleTableByParent();
+    final BinaryRuleTable rules = bg.ruleTableByLC();
     for (int diff = length; diff >= 1; diff--) {
       if (Thread.interrupted()) {
         throw new RuntimeInterruptedException();
@@ -525,126 +611,57 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
 
       for (int start = 0; start + diff <= length; start++) {
         int end = start + diff;
-        // do unaries
-        for (int s = 0; s < numStates; s++) {
-          float oS = oScore[start][end][s];
+        // do unaries; a state can only have an outside score if it is live
+        int c = cellNumber(start, end);
+        for (int i = c * numStates, iMax = i + numLive[c]; i < iMax; i++) {
+          int s = liveStates[i];
+          float oS = oScore.get(start, end, s);
           if (oS == Float.NEGATIVE_INFINITY) {
             continue;
           }
-          UnaryRule[] rules = ug.closedRulesByParent(s);
-          for (UnaryRule ur : rules) {
-            float pS = ur.score;
+          for (int r = unaries.offsets[s], rMax = unaries.offsets[s + 1]; r < rMax; r++) {
+            int child = unaries.child[r];
+            float pS = unaries.score[r];
             float tot = oS + pS;
-            if (tot > oScore[start][end][ur.child] && iScore[start][end][ur.child] > Float.NEGATIVE_INFINITY) {
-              oScore[start][end][ur.child] = tot;
-            }
-          }
-        }
-        // do binaries
-        for (int s = 0; s < numStates; s++) {
-          int min1 = narrowRExtent[start][s];
-          if (end < min1) {
-            continue;
-          }
-          BinaryRule[] rules = bg.splitRulesWithLC(s);
-          for (BinaryRule br  : rules) {
-            float oS = oScore[start][end][br.parent];
-            if (oS == Float.NEGATIVE_INFINITY) {
-              continue;
-            }
-            int max1 = narrowLExtent[end][br.rightChild];
-            if (max1 < min1) {
-              continue;
-            }
-            int min = min1;
-            int max = max1;
-            if (max - min > 2) {
-              int min2 = wideLExtent[end][br.rightChild];
-              min = (min1 > min2 ? min1 : min2);
-              if (max1 < min) {
-                continue;
-              }
-              int max2 = wideRExtent[start][br.leftChild];
-              max = (max1 < max2 ? max1 : max2);
-              if (max < min) {
-                continue;
-              }
-            }
-            float pS = br.score;
-            for (int split = min; split <= max; split++) {
-              float lS = iScore[start][split][br.leftChild];
-              if (lS == Float.NEGATIVE_INFINITY) {
-                continue;
-              }
-              float rS = iScore[split][end][br.rightChild];
-              if (rS == Float.NEGATIVE_INFINITY) {
-                continue;
-              }
-              float totL = pS + rS + oS;
-              if (totL > oScore[start][split][br.leftChild]) {
-                oScore[start][split][br.leftChild] = totL;
-              }
-              float totR = pS + lS + oS;
-              if (totR > oScore[split][end][br.rightChild]) {
-                oScore[split][end][br.rightChild] = totR;
-              }
+            if (tot > oScore.get(start, end, child) && iScore.get(start, end, child) > Float.NEGATIVE_INFINITY) {
+              oScore.set(start, end, child, tot);
             }
           }
         }
-        for (int s = 0; s < numStates; s++) {
-          int max1 = narrowLExtent[end][s];
-          if (max1 < start) {
-            continue;
-          }
-          BinaryRule[] rules = bg.splitRulesWithRC(s);
-          for (BinaryRule br : rules) {
-            float oS = oScore[start][end][br.parent];
-            if (oS == Float.NEGATIVE_INFINITY) {
-              continue;
-            }
-            int min1 = narrowRExtent[start][br.leftChild];
-            if (max1 < min1) {
-              continue;
-            }
-            int min = min1;
-            int max = max1;
-            if (max - min > 2) {
-              int min2 = wideLExtent[end][br.rightChild];
-              min = (min1 > min2 ? min1 : min2);
-              if (max1 < min) {
+        // do binaries, over the live left children of each split and the
+        // rules they are the left child of
+        for (int split = start + 1; split < end; split++) {
+          int leftCell = cellNumber(start, split);
+          int rightBits = cellNumber(split, end) * liveWords;
+          for (int i = leftCell * numStates, iMax = i + numLive[leftCell]; i < iMax; i++) {
+            int leftChild = liveStates[i];
+            float lS = iScore.get(start, split, leftChild);
+            for (int r = rules.offsets[leftChild], rMax = rules.offsets[leftChild + 1]; r < rMax; r++) {
+              int rightChild = rules.right[r];
+              if ((liveBits[rightBits + (rightChild >>> 6)] & (1L << rightChild)) == 0) {
                 continue;
               }
-              int max2 = wideRExtent[start][br.leftChild];
-              max = (max1 < max2 ? max1 : max2);
-              if (max < min) {
-                continue;
-              }
-            }
-            float pS = br.score;
-            for (int split = min; split <= max; split++) {
-              float lS = iScore[start][split][br.leftChild];
-              if (lS == Float.NEGATIVE_INFINITY) {
-                continue;
-              }
-              float rS = iScore[split][end][br.rightChild];
-              if (rS == Float.NEGATIVE_INFINITY) {
+              float oS = oScore.get(start, end, rules.parent[r]);
+              if (oS == Float.NEGATIVE_INFINITY) {
                 continue;
               }
+              float pS = rules.score[r];
+              float rS = iScore.get(split, end, rightChild);
               float totL = pS + rS + oS;
-              if (totL > oScore[start][split][br.leftChild]) {
-                oScore[start][split][br.leftChild] = totL;
+              if (totL > oScore.get(start, split, leftChild)) {
+                oScore.set(start, split, leftChild, totL);
               }
               float totR = pS + lS + oS;
-              if (totR > oScore[split][end][br.rightChild]) {
-                oScore[split][end][br.rightChild] = totR;
+              if (totR > oScore.get(split, end, rightChild)) {
+                oScore.set(split, end, rightChild, totR);
               }
             }
           }
         }
         /*
           for (int s = 0; s < numStates; s++) {
-          float oS = oScore[start][end][s];
-          //if (iScore[start][end][s] == Float.NEGATIVE_INFINITY ||
+          float oS = oScore.get(start, end, s);
+          //if (iScore.get(start, end, s) == Float.NEGATIVE_INFINITY ||
           //             oS == Float.NEGATIVE_INFINITY)
           if (oS == Float.NEGATIVE_INFINITY)
           continue;
@@ -667,19 +684,19 @@ public class ExhaustivePCFGParser implements Scorer, KBestViterbiParser  {
               continue;
 float pS = (float) br.score;
 for (int split = min; split <= max; split++) {
-float lS = iScore[start][split][br.leftChild];
+float lS = iScore.get(start, split, br.leftChild);
 if (lS == Float.NEGATIVE_INFINITY)
           continue;
-float rS = iScore[split][end][br.rightChild];
+float rS = iScore.get(split, end, br.rightChild);
               if (rS == Float.NEGATIVE_INFINITY)
 continue;
 float totL = pS+rS+oS;
-if (totL > oScore[start][split][br.leftChild]) {
-oScore[start][split][br.leftChild] = totL;
+if (totL > oScore.get(start, split, br.leftChild)) {
+oScore.set(start, split, br.leftChild, totL);
 }
 float totR = pS+lS+oS;
-if (totR > oScore[split][end][br.rightChild]) {
-oScore[split][end][br.rightChild] = totR;
+if (totR > oScore.get(split, end, br.rightChild)) {
+oScore.set(split, end, br.rightChild, totR);
 }
 }
 }
@@ -693,6 +710,19 @@ oScore[split][end][br.rightChild] = totR;
    *  of length 2 or more.
    */
   void doInsideScores() {
+    sparseCells = getConstraints() == null && ! op.testOptions.lengthNormalization;
+    pruning = sparseCells && usePruning();
+    if (cellScratch == null) {
+      cellScratch = new float[numStates];
+    }
+    // the cells the loop below does not fill: the words', and those ending
+    // at the boundary, which only lattice edges reach
+    for (int start = 0; start < length; start++) {
+      initialCell(start, start + 1, cellScratch);
+    }
+    for (int start = 1; start < length - 1; start++) {
+      initialCell(start, length, cellScratch);
+    }
     for (int diff = 2; diff <= length; diff++) {
       if (Thread.interrupted()) {
         throw new RuntimeInterruptedException();
@@ -701,14 +731,75 @@ oScore[split][end][br.rightChild] = totR;
       // usually stop one short because boundary symbol only combines
       // with whole sentence span. So for 3 word sentence + boundary = 4,
       // length == 4, and do [0,2], [1,3]; [0,3]; [0,4]
-      for (int start = 0; start < ((diff == length) ? 1: length - diff); start++) {
-        doInsideChartCell(diff, start);
+      int numStarts = (diff == length) ? 1: length - diff;
+      if (numStarts > 1 && chartThreads() > 1) {
+        chartPool().invoke(new DiagonalFill(diff, 0, numStarts, Math.max(1, numStarts / chartThreads())));
+        continue;
+      }
+      for (int start = 0; start < numStarts; start++) {
+        doInsideChartCell(diff, start, cellAllowed, cellScratch);
       } // for start
     } // for diff (i.e., span)
+    countLiveStates();
   } // end doInsideScores()
 
+  /**
+   * Fills the cells [start, start + diff] of one diagonal in parallel.
+   * This needs no locking and gives the same chart as the sequential loop:
+   * a cell reads only cells of smaller diagonals, and besides its own
+   * scores and live states it writes only the left extents of its end
+   * position and the right extents of its start position, which no other
+   * cell of the diagonal reads or writes.  The fork/join gives the
+   * happens-before edges between diagonals.
+   */
+  private final class DiagonalFill extends RecursiveAction {
+
+    private final int diff;
+    private final int lo;
+    private final int hi;
+    private final int grain;
+
+    DiagonalFill(int diff, int lo, int hi, int grain) {
+      this.diff = diff;
+      this.lo = lo;
+      this.hi = hi;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (hi - lo <= grain) {
+        boolean[] allowed = (coarseMask == null) ? null : new boolean[numStates];
+        float[] cellScores = new float[numStates];
+        for (int start = lo; start < hi; start++) {
+          doInsideChartCell(diff, start, allowed, cellScores);
+        }
+      } else {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new DiagonalFill(diff, lo, mid, grain), new DiagonalFill(diff, mid, hi, grain));
+      }
+    }
+
+    private static final long serialVersionUID = 1L;
+
+  } // end class DiagonalFill
+
+  private int chartThreads() {
+    int threads = op.testOptions.chartThreads;
+    return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+  }
+
+  private ForkJoinPool chartPool() {
+    return chartPools.computeIfAbsent(chartThreads(), ForkJoinPool::new);
+  }
 
-  private void doInsideChartCell(final int diff, final int start) {
+
+  /** Fill one chart cell.  The scratch array, of numStates, receives the
+   *  fine states allowed by the coarse mask; it is unused if there is none.
+   *  The cellScores array, of numStates, is scratch space for the cell's
+   *  scores.
+   */
+  private void doInsideChartCell(final int diff, final int start, final boolean[] scratch, final float[] cellScores) {
     final boolean lengthNormalization = op.testOptions.lengthNormalization;
     int end = start + diff;
 
@@ -716,30 +807,62 @@ oScore[split][end][br.rightChild] = totR;
     if (constraints != null) {
       for (ParserConstraint c : constraints) {
         if ((start > c.start && start < c.end && end > c.end) || (end > c.start && end < c.end && start < c.start)) {
+          iScore.getCell(start, end, cellScores);
+          collectLiveStates(start, end, cellScores);
           return;
         }
       }
     }
 
+    boolean[] allowed = null;
+    if (coarseMask != null) {
+      allowed = scratch;
+      boolean[] coarseCell = coarseMask[start][end];
+      boolean anyAllowed = false;
+      for (int state = 0; state < numStates; state++) {
+        int coarse = coarseProjection[state];
+        allowed[state] = coarse < 0 || coarseCell[coarse];
+        anyAllowed |= allowed[state];
+      }
+      if ( ! anyAllowed) {
+        int c = cellNumber(start, end);
+        numLive[c] = 0;
+        Arrays.fill(liveBits, c * liveWords, (c + 1) * liveWords, 0L);
+        return;
+      }
+    }
+
+    if (sparseCells) {
+      doSparseInsideChartCell(start, end, allowed, cellScores);
+      return;
+    }
+
     // 2011-11-26 jdk1.6: caching/hoisting a bunch of variables gives you about 15% speed up!
+    // the rules are read from the struct-of-arrays tables, so the loops below touch no rule objects
+    final BinaryRuleTable leftRules = bg.splitRuleTableByLC();
+    final BinaryRuleTable rightRules = bg.splitRuleTableByRC();
     // caching this saves a bit of time in the inner loop, maybe 1.8%
     int[] narrowRExtent_start = narrowRExtent[start];
     // caching this saved 2% in the inner loop
     int[] wideRExtent_start = wideRExtent[start];
     int[] narrowLExtent_end = narrowLExtent[end];
     int[] wideLExtent_end = wideLExtent[end];
-    float[][] iScore_start = iScore[start];
-    float[] iScore_start_end = iScore_start[end];
 
+    final int[] leftOffsets = leftRules.offsets;
+    final int[] leftParents = leftRules.parent;
+    final int[] leftRightChildren = leftRules.right;
+    final float[] leftScores = leftRules.score;
     for (int leftState = 0; leftState < numStates; leftState++) {
       int narrowR = narrowRExtent_start[leftState];
       if (narrowR >= end) {  // can this left constituent leave space for a right constituent?
         continue;
       }
-      BinaryRule[] leftRules = bg.splitRulesWithLC(leftState);
-      //      if (spillGuts) System.out.println("Found " + leftRules.length + " left rules for state " + stateIndex.get(leftState));
-      for (BinaryRule rule : leftRules) {
-        int rightChild = rule.rightChild;
+      for (int r = leftOffsets[leftState], rMax = leftOffsets[leftState + 1]; r < rMax; r++) {
+        int parentState = leftParents[r];
+        if (allowed != null && ! allowed[parentState]) {
+          continue;
+        }
+        int rightChild = leftRightChildren[r];
         int narrowL = narrowLExtent_end[rightChild];
         if (narrowL < narrowR) { // can this right constituent fit next to the left constituent?
           continue;
@@ -755,9 +878,8 @@ oScore[split][end][br.rightChild] = totR;
         if (min > max) { // can this left constituent stretch far enough to reach the right constituent?
           continue;
         }
-        float pS = rule.score;
-        int parentState = rule.parent;
-        float oldIScore = iScore_start_end[parentState];
+        float pS = leftScores[r];
+        float oldIScore = iScore.get(start, end, parentState);
         float bestIScore = oldIScore;
         boolean foundBetter;  // always set below for this rule
         //System.out.println("Min "+min+" max "+max+" start "+start+" end "+end);
@@ -795,11 +917,11 @@ oScore[split][end][br.rightChild] = totR;
               }
             }
 
-            float lS = iScore_start[split][leftState];
+            float lS = iScore.get(start, split, leftState);
             if (lS == Float.NEGATIVE_INFINITY) {
               continue;
             }
-            float rS = iScore[split][end][rightChild];
+            float rS = iScore.get(split, end, rightChild);
             if (rS == Float.NEGATIVE_INFINITY) {
               continue;
             }
@@ -816,11 +938,11 @@ oScore[split][end][br.rightChild] = totR;
           float bestNormIScore = oldNormIScore;
 
           for (int split = min; split <= max; split++) {
-            float lS = iScore_start[split][leftState];
+            float lS = iScore.get(start, split, leftState);
             if (lS == Float.NEGATIVE_INFINITY) {
               continue;
             }
-            float rS = iScore[split][end][rightChild];
+            float rS = iScore.get(split, end, rightChild);
             if (rS == Float.NEGATIVE_INFINITY) {
               continue;
             }
@@ -839,7 +961,7 @@ oScore[split][end][br.rightChild] = totR;
           }
         } // fi op.testOptions.lengthNormalization
         if (foundBetter) { // this way of making "parentState" is better than previous
-          iScore_start_end[parentState] = bestIScore;
+          iScore.set(start, end, parentState, bestIScore);
 
           if (oldIScore == Float.NEGATIVE_INFINITY) {
             if (start > narrowLExtent_end[parentState]) {
@@ -857,17 +979,21 @@ oScore[split][end][br.rightChild] = totR;
       } // end for leftRules
     } // end for leftState
     // do right restricted rules
+    final int[] rightOffsets = rightRules.offsets;
+    final int[] rightParents = rightRules.parent;
+    final int[] rightLeftChildren = rightRules.left;
+    final float[] rightScores = rightRules.score;
     for (int rightState = 0; rightState < numStates; rightState++) {
       int narrowL = narrowLExtent_end[rightState];
       if (narrowL <= start) {
         continue;
       }
-      BinaryRule[] rightRules = bg.splitRulesWithRC(rightState);
-      //      if (spillGuts) System.out.println("Found " + rightRules.length + " right rules for state " + stateIndex.get(rightState));
-      for (BinaryRule rule : rightRules) {
-        //      if (spillGuts) System.out.println("Considering rule for " + start + " to " + end + ": " + rightRules[i]);
-
-        int leftChild = rule.leftChild;
+      for (int r = rightOffsets[rightState], rMax = rightOffsets[rightState + 1]; r < rMax; r++) {
+        int parentState = rightParents[r];
+        if (allowed != null && ! allowed[parentState]) {
+          continue;
+        }
+        int leftChild = rightLeftChildren[r];
         int narrowR = narrowRExtent_start[leftChild];
         if (narrowR > narrowL) {
           continue;
@@ -883,9 +1009,8 @@ oScore[split][end][br.rightChild] = totR;
         if (min > max) {
           continue;
         }
-        float pS = rule.score;
-        int parentState = rule.parent;
-        float oldIScore = iScore_start_end[parentState];
+        float pS = rightScores[r];
+        float oldIScore = iScore.get(start, end, parentState);
         float bestIScore = oldIScore;
         boolean foundBetter; // always initialized below
         //System.out.println("Start "+start+" end "+end+" min "+min+" max "+max);
@@ -924,13 +1049,13 @@ oScore[split][end][br.rightChild] = totR;
               }
             }
 
-            float lS = iScore_start[split][leftChild];
+            float lS = iScore.get(start, split, leftChild);
             // cdm [2012]: Test whether removing these 2 tests might speed things up because less branching?
             // jab [2014]: oddly enough, removing these tests helps the chinese parser but not the english parser.
             if (lS == Float.NEGATIVE_INFINITY) {
               continue;
             }
-            float rS = iScore[split][end][rightState];
+            float rS = iScore.get(split, end, rightState);
             if (rS == Float.NEGATIVE_INFINITY) {
               continue;
             }
@@ -946,11 +1071,11 @@ oScore[split][end][br.rightChild] = totR;
           float oldNormIScore = oldIScore / bestWordsInSpan;
           float bestNormIScore = oldNormIScore;
           for (int split = min; split <= max; split++) {
-            float lS = iScore_start[split][leftChild];
+            float lS = iScore.get(start, split, leftChild);
             if (lS == Float.NEGATIVE_INFINITY) {
               continue;
             }
-            float rS = iScore[split][end][rightState];
+            float rS = iScore.get(split, end, rightState);
             if (rS == Float.NEGATIVE_INFINITY) {
               continue;
             }
@@ -969,7 +1094,7 @@ oScore[split][end][br.rightChild] = totR;
           }
         } // end if lengthNormalization
         if (foundBetter) { // this way of making "parentState" is better than previous
-          iScore_start_end[parentState] = bestIScore;
+          iScore.set(start, end, parentState, bestIScore);
           if (oldIScore == Float.NEGATIVE_INFINITY) {
             if (start > narrowLExtent_end[parentState]) {
               narrowLExtent_end[parentState] = wideLExtent_end[parentState] = start;
@@ -986,20 +1111,27 @@ oScore[split][end][br.rightChild] = totR;
       } // for rightRules
     } // for rightState
     // do unary rules -- one could promote this loop and put start inside
+    final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+    final int[] unaryOffsets = unaries.offsets;
+    final int[] unaryParents = unaries.parent;
+    final float[] unaryScores = unaries.score;
     for (int state = 0; state < numStates; state++) {
-      float iS = iScore_start_end[state];
+      float iS = iScore.get(start, end, state);
       if (iS == Float.NEGATIVE_INFINITY) {
         continue;
       }
 
-      UnaryRule[] unaries = ug.closedRulesByChild(state);
-      for (UnaryRule ur : unaries) {
+      for (int r = unaryOffsets[state], rMax = unaryOffsets[state + 1]; r < rMax; r++) {
+        int parentState = unaryParents[r];
+        if (allowed != null && ! allowed[parentState]) {
+          continue;
+        }
 
         if (constraints != null) {
           boolean skip = false;
           for (ParserConstraint c : constraints) {
             if ((start == c.start && end == c.end)) {
-              String tag = stateIndex.get(ur.parent);
+              String tag = stateIndex.get(parentState);
               Matcher m = c.state.matcher(tag);
               if (!m.matches()) {
                 //if (!tag.startsWith(c.state+"^")) {
@@ -1013,10 +1145,9 @@ oScore[split][end][br.rightChild] = totR;
           }
         }
 
-        int parentState = ur.parent;
-        float pS = ur.score;
+        float pS = unaryScores[r];
         float tot = iS + pS;
-        float cur = iScore_start_end[parentState];
+        float cur = iScore.get(start, end, parentState);
         boolean foundBetter;  // always set below
         if (lengthNormalization) {
           int totWordsInSpan = wordsInSpan[start][end][state];
@@ -1031,7 +1162,7 @@ oScore[split][end][br.rightChild] = totR;
           foundBetter = (tot > cur);
         }
         if (foundBetter) {
-          iScore_start_end[parentState] = tot;
+          iScore.set(start, end, parentState, tot);
           if (cur == Float.NEGATIVE_INFINITY) {
             if (start > narrowLExtent_end[parentState]) {
               narrowLExtent_end[parentState] = wideLExtent_end[parentState] = start;
@@ -1047,8 +1178,280 @@ oScore[split][end][br.rightChild] = totR;
         } // end if foundBetter
       } // for UnaryRule r
     } // for unary rules
+    iScore.getCell(start, end, cellScores);
+    collectLiveStates(start, end, cellScores);
+  }
+
+  /** Whether the chart of the sentence being parsed is to be beam pruned. */
+  private boolean usePruning() {
+    TestOptions testOptions = op.testOptions;
+    return (testOptions.pcfgBeamSize > 0 || testOptions.pcfgBeamWidth < Double.POSITIVE_INFINITY)
+        && ! beamFailed && lr == null && testOptions.maxSpanForTags <= 1;
+  }
+
+  /**
+   * Fill one chart cell from the live states of smaller cells.  For each
+   * split, the rules of each live state of the left cell are looked up
+   * directly, and the right child is checked against the right cell's
+   * bitset.  Then the live states are unary closed, the beam is selected if
+   * pruning, and the kept states are written to the chart.  The whole
+   * sentence span is not pruned, as nothing is built on it.
+   */
+  private void doSparseInsideChartCell(int start, int end, boolean[] allowed, float[] cell) {
+    // usually empty, but lattice edges and multi-word tags are put in by initializeChart
+    iScore.getCell(start, end, cell);
+    int numInitial = collectLiveStates(start, end, cell);
+    final int[] live = liveStates;
+    final int c = cellNumber(start, end);
+    final int first = c * numStates;
+    int count = first + numInitial;
+    final boolean record = recordBackPointers;
+    final int back = record ? backPointers.cell(start, end) : 0;
+    if (record) {
+      for (int i = first; i < count; i++) {
+        backPointers.setNone(back + live[i]);
+      }
+    }
+
+    final BinaryRuleTable rules = bg.ruleTableByLC();
+    final int[] offsets = rules.offsets;
+    final int[] parents = rules.parent;
+    final int[] rightChildren = rules.right;
+    final float[] scores = rules.score;
+    final long[] bits = liveBits;
+    for (int split = start + 1; split < end; split++) {
+      int leftCell = cellNumber(start, split);
+      int rightBits = cellNumber(split, end) * liveWords;
+      for (int i = leftCell * numStates, iMax = i + numLive[leftCell]; i < iMax; i++) {
+        int leftState = live[i];
+        float lS = iScore.get(start, split, leftState);
+        for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+          int rightChild = rightChildren[r];
+          if ((bits[rightBits + (rightChild >>> 6)] & (1L << rightChild)) == 0) {
+            continue;
+          }
+          int parentState = parents[r];
+          if (allowed != null && ! allowed[parentState]) {
+            continue;
+          }
+          float tot = scores[r] + lS + iScore.get(split, end, rightChild);
+          float cur = cell[parentState];
+          if (tot > cur) {
+            if (cur == Float.NEGATIVE_INFINITY) {
+              live[count++] = parentState;
+            }
+            cell[parentState] = tot;
+            if (record) {
+              backPointers.setBinary(back + parentState, r, split);
+            }
+          }
+        }
+      }
+    }
+
+    // the closed rules already give the best unary chains, so only the
+    // states built by binary rules need extending
+    final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+    for (int i = first, numBinary = count; i < numBinary; i++) {
+      int state = live[i];
+      float iS = cell[state];
+      for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+        int parentState = unaries.parent[r];
+        if (allowed != null && ! allowed[parentState]) {
+          continue;
+        }
+        float tot = iS + unaries.score[r];
+        float cur = cell[parentState];
+        if (tot > cur) {
+          if (cur == Float.NEGATIVE_INFINITY) {
+            live[count++] = parentState;
+          }
+          cell[parentState] = tot;
+          if (record) {
+            backPointers.setUnary(back + parentState, r);
+          }
+        }
+      }
+    }
+    numLive[c] = count - first;
+
+    boolean prune = pruning && ! (start == 0 && end == length);
+    int kept = first + (prune ? selectBeam(start, end, cell) : count - first);
+    if (prune && numInitial > 0) {
+      // take pruned initial scores back out of the chart
+      for (int state = 0; state < numStates; state++) {
+        if (cell[state] == Float.NEGATIVE_INFINITY && iScore.get(start, end, state) != Float.NEGATIVE_INFINITY) {
+          iScore.set(start, end, state, Float.NEGATIVE_INFINITY);
+        }
+      }
+    }
+    int cellBits = c * liveWords;
+    Arrays.fill(bits, cellBits, cellBits + liveWords, 0L);
+    int[] narrowRExtent_start = narrowRExtent[start];
+    int[] wideRExtent_start = wideRExtent[start];
+    int[] narrowLExtent_end = narrowLExtent[end];
+    int[] wideLExtent_end = wideLExtent[end];
+    for (int i = first; i < kept; i++) {
+      int state = live[i];
+      bits[cellBits + (state >>> 6)] |= 1L << state;
+      iScore.set(start, end, state, cell[state]);
+      // the extents are kept up to date for the parts of the parser that use them
+      if (start > narrowLExtent_end[state]) {
+        narrowLExtent_end[state] = wideLExtent_end[state] = start;
+      } else if (start < wideLExtent_end[state]) {
+        wideLExtent_end[state] = start;
+      }
+      if (end < narrowRExtent_start[state]) {
+        narrowRExtent_start[state] = wideRExtent_start[state] = end;
+      } else if (end > wideRExtent_start[state]) {
+        wideRExtent_start[state] = end;
+      }
+    }
   }
 
+  /**
+   * Record the live states of a cell that doInsideScores does not fill,
+   * pruning it if a word's cell.  Pruned states are taken back out of the
+   * chart; their extents are left as set by initializeChart, which is safe
+   * as extents only need to be bounds.
+   */
+  private void initialCell(int start, int end, float[] cell) {
+    iScore.getCell(start, end, cell);
+    collectLiveStates(start, end, cell);
+    if (pruning && end == start + 1) {
+      selectBeam(start, end, cell);
+      for (int state = 0; state < numStates; state++) {
+        if (cell[state] == Float.NEGATIVE_INFINITY && iScore.get(start, end, state) != Float.NEGATIVE_INFINITY) {
+          iScore.set(start, end, state, Float.NEGATIVE_INFINITY);
+        }
+      }
+      setLiveBits(start, end);
+    }
+  }
+
+  /**
+   * Make the states with a finite score in cell, which holds the scores of
+   * [start, end], its live states.
+   *
+   * @return The number of live states
+   */
+  private int collectLiveStates(int start, int end, float[] cell) {
+    int c = cellNumber(start, end);
+    int first = c * numStates;
+    int count = 0;
+    for (int state = 0; state < numStates; state++) {
+      if (cell[state] != Float.NEGATIVE_INFINITY) {
+        liveStates[first + count++] = state;
+      }
+    }
+    numLive[c] = count;
+    setLiveBits(start, end);
+    return count;
+  }
+
+  private void setLiveBits(int start, int end) {
+    int c = cellNumber(start, end);
+    int cellBits = c * liveWords;
+    Arrays.fill(liveBits, cellBits, cellBits + liveWords, 0L);
+    for (int i = c * numStates, iMax = i + numLive[c]; i < iMax; i++) {
+      int state = liveStates[i];
+      liveBits[cellBits + (state >>> 6)] |= 1L << state;
+    }
+  }
+
+  /** The number of cell (start, end) of the sentence being parsed, which
+   *  indexes its live states.
+   */
+  private int cellNumber(int start, int end) {
+    return ChartScores.cellNumber(length, start, end);
+  }
+
+  /**
+   * Keep only the beam among the live states of [start, end]: the
+   * pcfgBeamSize best, and those within pcfgBeamWidth of the best.  The
+   * scores of the other states are set to -Inf in cell, which holds the
+   * cell's scores.  The bitset is left for the caller to update.
+   *
+   * @return The number of states kept
+   */
+  private int selectBeam(int start, int end, float[] cell) {
+    int c = cellNumber(start, end);
+    int first = c * numStates;
+    int count = numLive[c];
+    if (count == 0) {
+      return 0;
+    }
+    int[] live = liveStates;
+    float best = Float.NEGATIVE_INFINITY;
+    for (int i = first; i < first + count; i++) {
+      if (cell[live[i]] > best) {
+        best = cell[live[i]];
+      }
+    }
+    float threshold = (float) (best - op.testOptions.pcfgBeamWidth);
+    int beamSize = op.testOptions.pcfgBeamSize;
+    if (beamSize > 0 && count > beamSize) {
+      float[] sorted = new float[count];
+      for (int i = 0; i < count; i++) {
+        sorted[i] = cell[live[first + i]];
+      }
+      Arrays.sort(sorted);
+      threshold = Math.max(threshold, sorted[count - beamSize]);
+    }
+    int kept = 0;
+    for (int i = first; i < first + count; i++) {
+      int state = live[i];
+      if (cell[state] >= threshold) {
+        live[first + kept++] = state;
+      } else {
+        cell[state] = Float.NEGATIVE_INFINITY;
+      }
+    }
+    numLive[c] = kept;
+    return kept;
+  }
+
+  /** Add the live states of the cells built for the last sentence to the
+   *  density counts.
+   */
+  private void countLiveStates() {
+    if (liveStatesBySpan.length <= length) {
+      liveStatesBySpan = Arrays.copyOf(liveStatesBySpan, length + 1);
+      cellsBySpan = Arrays.copyOf(cellsBySpan, length + 1);
+    }
+    for (int diff = 1; diff <= length; diff++) {
+      // as in doInsideScores, the boundary is only in the whole sentence span (and its own)
+      int numStarts = (diff == length) ? 1 : (diff == 1) ? length : length - diff;
+      for (int start = 0; start < numStarts; start++) {
+        liveStatesBySpan[diff] += numLive[cellNumber(start, start + diff)];
+      }
+      cellsBySpan[diff] += numStarts;
+    }
+  }
+
+  /**
+   * The mean fraction of the grammar's states that were live (had a finite
+   * inside score) in the chart cells of each span length, over the
+   * sentences parsed since the last {@link #resetLiveStateDensity()}; 0
+   * for span lengths with no cells.  Sentences parsed by a subclass's own
+   * search are not counted.
+   *
+   * @return [span length] -&gt; density
+   */
+  public double[] liveStateDensity() {
+    double[] density = new double[liveStatesBySpan.length];
+    for (int diff = 1; diff < density.length; diff++) {
+      if (cellsBySpan[diff] > 0) {
+        density[diff] = liveStatesBySpan[diff] / ((double) cellsBySpan[diff] * numStates);
+      }
+    }
+    return density;
+  }
+
+  public void resetLiveStateDensity() {
+    liveStatesBySpan = new long[0];
+    cellsBySpan = new long[0];
+  }
 
   private void initializeChart(Lattice lr) {
     for (LatticeEdge edge : lr) {
@@ -1059,11 +1462,11 @@ oScore[split][end][br.rightChild] = totR;
       // Add pre-terminals, augmented with edge weights
       for (int state = 0; state < numStates; state++) {
         if (isTag[state]) {
-          IntTaggedWord itw = new IntTaggedWord(word, stateIndex.get(state), wordIndex, tagIndex);
+          IntTaggedWord itw = new IntTaggedWord(sentenceWords.indexOf(word), tagIndex.indexOf(stateIndex.get(state)));
 
           float newScore = lex.score(itw, start, word, null) + (float) edge.weight;
-          if (newScore > iScore[start][end][state]) {
-            iScore[start][end][state] = newScore;
+          if (newScore > iScore.get(start, end, state)) {
+            iScore.set(start, end, state, newScore);
             narrowRExtent[start][state] = Math.min(end, narrowRExtent[start][state]);
             narrowLExtent[end][state] = Math.max(start, narrowLExtent[end][state]);
             wideRExtent[start][state] = Math.max(end, wideRExtent[start][state]);
@@ -1075,9 +1478,9 @@ oScore[split][end][br.rightChild] = totR;
       // Give scores to all tags if the parse fails (more flexible tagging)
       if (floodTags && (!op.testOptions.noRecoveryTagging)) {
         for (int state = 0; state < numStates; state++) {
-          float iS = iScore[start][end][state];
+          float iS = iScore.get(start, end, state);
           if (isTag[state] && iS == Float.NEGATIVE_INFINITY) {
-            iScore[start][end][state] = -1000.0f + (float) edge.weight;
+            iScore.set(start, end, state, -1000.0f + (float) edge.weight);
             narrowRExtent[start][state] = end;
             narrowLExtent[end][state] = start;
             wideRExtent[start][state] = end;
@@ -1088,7 +1491,7 @@ oScore[split][end][br.rightChild] = totR;
 
       // Add unary rules (possibly chains) that terminate in POS tags
       for (int state = 0; state < numStates; state++) {
-        float iS = iScore[start][end][state];
+        float iS = iScore.get(start, end, state);
         if (iS == Float.NEGATIVE_INFINITY) {
           continue;
         }
@@ -1097,8 +1500,8 @@ oScore[split][end][br.rightChild] = totR;
           int parentState = ur.parent;
           float pS = ur.score;
           float tot = iS + pS;
-          if (tot > iScore[start][end][parentState]) {
-            iScore[start][end][parentState] = tot;
+          if (tot > iScore.get(start, end, parentState)) {
+            iScore.set(start, end, parentState, tot);
             narrowRExtent[start][parentState] = Math.min(end, narrowRExtent[start][parentState]);
             narrowLExtent[end][parentState] = Math.max(start, narrowLExtent[end][parentState]);
             wideRExtent[start][parentState] = Math.max(end, wideRExtent[start][parentState]);
@@ -1133,11 +1536,11 @@ oScore[split][end][br.rightChild] = totR;
             }
           }
           for (int state = 0; state < numStates; state++) {
-            float iS = iScore[start][end][state];
+            float iS = iScore.get(start, end, state);
             if (iS == Float.NEGATIVE_INFINITY && isTag[state]) {
-              IntTaggedWord itw = new IntTaggedWord(word.toString(), stateIndex.get(state), wordIndex, tagIndex);
-              iScore[start][end][state] = lex.score(itw, start, word.toString(), null);
-              if (iScore[start][end][state] > Float.NEGATIVE_INFINITY) {
+              IntTaggedWord itw = new IntTaggedWord(sentenceWords.indexOf(word.toString()), tagIndex.indexOf(stateIndex.get(state)));
+              iScore.set(start, end, state, lex.score(itw, start, word.toString(), null));
+              if (iScore.get(start, end, state) > Float.NEGATIVE_INFINITY) {
                 narrowRExtent[start][state] = start + 1;
                 narrowLExtent[end][state] = end - 1;
                 wideRExtent[start][state] = start + 1;
@@ -1153,7 +1556,6 @@ oScore[split][end][br.rightChild] = totR;
         int end = start + 1;
         Arrays.fill(tags[start], false);
 
-        float[] iScore_start_end = iScore[start][end];
         int[] narrowRExtent_start = narrowRExtent[start];
         int[] narrowLExtent_end = narrowLExtent[end];
         int[] wideRExtent_start = wideRExtent[start];
@@ -1210,10 +1612,10 @@ oScore[split][end][br.rightChild] = totR;
               }
             }
             // try {
-            float lexScore = lex.score(tagging, start, wordIndex.get(tagging.word), wordContextStr); // score the cell according to P(word|tag) in the lexicon
+            float lexScore = lex.score(tagging, start, sentenceWords.get(tagging.word), wordContextStr); // score the cell according to P(word|tag) in the lexicon
             if (lexScore > Float.NEGATIVE_INFINITY) {
               assignedSomeTag = true;
-              iScore_start_end[state] = lexScore;
+              iScore.set(start, end, state, lexScore);
               narrowRExtent_start[state] = end;
               narrowLExtent_end[state] = start;
               wideRExtent_start[state] = end;
@@ -1238,7 +1640,7 @@ oScore[split][end][br.rightChild] = totR;
           // which the lexicon score is not -Inf, not just seen or
           // specified taggings
           for (int state = 0; state < numStates; state++) {
-            if (isTag[state] && iScore_start_end[state] == Float.NEGATIVE_INFINITY) {
+            if (isTag[state] && iScore.get(start, end, state) == Float.NEGATIVE_INFINITY) {
               if (trueTagStr != null) {
                 String tagString = stateIndex.get(state);
                 if ( ! tlp.basicCategory(tagString).equals(trueTagStr)) {
@@ -1246,7 +1648,7 @@ oScore[split][end][br.rightChild] = totR;
                 }
               }
 
-              float lexScore = lex.score(new IntTaggedWord(word, tagIndex.indexOf(stateIndex.get(state))), start, wordIndex.get(word), wordContextStr);
+              float lexScore = lex.score(new IntTaggedWord(word, tagIndex.indexOf(stateIndex.get(state))), start, sentenceWords.get(word), wordContextStr);
               if (candidateTagRegex != null) {
                 String tagString = stateIndex.get(state);
                 if (!tlp.basicCategory(tagString).matches(candidateTagRegex)) {
@@ -1255,7 +1657,7 @@ oScore[split][end][br.rightChild] = totR;
               }
 
               if (lexScore > Float.NEGATIVE_INFINITY) {
-                iScore_start_end[state] = lexScore;
+                iScore.set(start, end, state, lexScore);
                 narrowRExtent_start[state] = end;
                 narrowLExtent_end[state] = start;
                 wideRExtent_start[state] = end;
@@ -1269,7 +1671,7 @@ oScore[split][end][br.rightChild] = totR;
         if (op.dcTags) {
           for (int state = 0; state < numStates; state++) {
             if (isTag[state]) {
-              iScore_start_end[state] *= (1.0 + op.testOptions.depWeight);
+              iScore.set(start, end, state, (float) (iScore.get(start, end, state) * (1.0 + op.testOptions.depWeight)));
             }
           }
         }
@@ -1280,8 +1682,8 @@ oScore[split][end][br.rightChild] = totR;
           // parse(ls) inside parse(ls) *after* floodTags has been turned on.
           // Search above for "floodTags = true".
           for (int state = 0; state < numStates; state++) {
-            if (isTag[state] && iScore_start_end[state] == Float.NEGATIVE_INFINITY) {
-              iScore_start_end[state] = -1000.0f;
+            if (isTag[state] && iScore.get(start, end, state) == Float.NEGATIVE_INFINITY) {
+              iScore.set(start, end, state, -1000.0f);
               narrowRExtent_start[state] = end;
               narrowLExtent_end[state] = start;
               wideRExtent_start[state] = end;
@@ -1291,18 +1693,28 @@ oScore[split][end][br.rightChild] = totR;
         }
 
         // Apply unary rules in diagonal cells of chart
+        UnaryRuleTable unaries = ug.closedRuleTableByChild();
+        int back = 0;
+        if (recordBackPointers) {
+          back = backPointers.cell(start, end);
+          for (int state = 0; state < numStates; state++) {
+            backPointers.setNone(back + state);
+          }
+        }
         for (int state = 0; state < numStates; state++) {
-          float iS = iScore_start_end[state];
+          float iS = iScore.get(start, end, state);
           if (iS == Float.NEGATIVE_INFINITY) {
             continue;
           }
-          UnaryRule[] unaries = ug.closedRulesByChild(state);
-          for (UnaryRule ur : unaries) {
-            int parentState = ur.parent;
-            float pS = ur.score;
+          for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+            int parentState = unaries.parent[r];
+            float pS = unaries.score[r];
             float tot = iS + pS;
-            if (tot > iScore_start_end[parentState]) {
-              iScore_start_end[parentState] = tot;
+            if (tot > iScore.get(start, end, parentState)) {
+              iScore.set(start, end, parentState, tot);
+              if (recordBackPointers) {
+                backPointers.setUnary(back + parentState, r);
+              }
               narrowRExtent_start[parentState] = end;
               narrowLExtent_end[parentState] = start;
               wideRExtent_start[parentState] = end;
@@ -1320,6 +1732,23 @@ oScore[split][end][br.rightChild] = totR;
     return getBestScore() > Double.NEGATIVE_INFINITY;
   }
 
+  /** The number of (span, state) edges with an inside score in the chart of
+   *  the last sentence; for exhaustive parsing, the number of edges built.
+   */
+  public int numChartEdges() {
+    int edges = 0;
+    for (int start = 0; start < length; start++) {
+      for (int end = start + 1; end <= length; end++) {
+        for (int state = 0; state < numStates; state++) {
+          if (iScore.get(start, end, state) > Float.NEGATIVE_INFINITY) {
+            edges++;
+          }
+        }
+      }
+    }
+    return edges;
+  }
+
 
   private static final double TOL = 1e-5;
 
@@ -1341,10 +1770,10 @@ oScore[split][end][br.rightChild] = totR;
       return Double.NEGATIVE_INFINITY;
     }
     int goal = stateIndex.indexOf(stateName);
-    if (iScore == null || iScore.length == 0 || iScore[0].length <= length || iScore[0][length].length <= goal) {
+    if (iScore == null || iScore.capacity() < length || iScore.numStates() <= goal) {
       return Double.NEGATIVE_INFINITY;
     }
-    return iScore[0][length][goal];
+    return iScore.get(0, length, goal);
   }
 
 
@@ -1363,9 +1792,170 @@ oScore[split][end][br.rightChild] = totR;
   }
 
   private Tree extractBestParse(int goal, int start, int end) {
+    if (recordBackPointers) {
+      return followBackPointers(goal, start, end, iScore.get(start, end, goal));
+    }
+    return matchBestParse(goal, start, end);
+  }
+
+  /**
+   * Build the best parse of a state over a span from the chart's
+   * back-pointers, in time linear in the size of the tree.
+   *
+   * @param score The inside score of the state over the span
+   */
+  private Tree followBackPointers(int state, int start, int end, double score) {
+    if (score == Double.NEGATIVE_INFINITY) {
+      return null;
+    }
+    int back = backPointers.cell(start, end) + state;
+    int rule = backPointers.rule(back);
+    if (rule >= 0) {
+      BinaryRuleTable rules = bg.ruleTableByLC();
+      int split = backPointers.split(back);
+      int leftState = rules.left[rule];
+      int rightState = rules.right[rule];
+      List<Tree> children = new ArrayList<>(2);
+      children.add(followBackPointers(leftState, start, split, iScore.get(start, split, leftState)));
+      children.add(followBackPointers(rightState, split, end, iScore.get(split, end, rightState)));
+      Tree result = tf.newTreeNode(stateIndex.get(state), children);
+      result.setScore(score);
+      return result;
+    }
+    if (rule != ChartBackPointers.NONE) {
+      UnaryRuleTable closed = ug.closedRuleTableByChild();
+      int r = ChartBackPointers.unaryRule(rule);
+      int child = closed.child[r];
+      double childScore = iScore.get(start, end, child);
+      Tree childTree = followBackPointers(child, start, end, childScore);
+      return unaryChain(r, childTree, childScore, 0);
+    }
+    if (end == start + 1 && isTag[state]) {
+      return tagTree(stateIndex.get(state), start, score);
+    }
+    return matchBestParse(state, start, end);
+  }
+
+  /**
+   * Expand closed unary rule r of ug.closedRuleTableByChild() into the chain
+   * of core rules it stands for, as matchBestParse would, over the tree of
+   * its child.
+   */
+  private Tree unaryChain(int r, Tree childTree, double childScore, int depth) {
+    UnaryRuleTable closed = ug.closedRuleTableByChild();
+    int tail = ug.closedRuleTailsByChild()[r];
+    Tree below = (tail >= 0 && depth < numStates) ? unaryChain(tail, childTree, childScore, depth + 1) : childTree;
+    Tree result = tf.newTreeNode(stateIndex.get(closed.parent[r]), Collections.singletonList(below));
+    result.setScore(childScore + closed.score[r]);
+    return result;
+  }
+
+  /**
+   * The output tree of the best parse of the last sentence parsed, or null
+   * if it has none.  With back-pointers recorded, the tree is built
+   * straight from them, one output node per chart item kept; otherwise it
+   * is built from the parse {@link #getBestParse()} extracts.
+   */
+  @SuppressWarnings("unchecked")
+  public edu.berkeley.nlp.ling.Tree<String> getBestParse(OutputTreeBuilder output) {
+    List<? extends HasWord> words = (List<? extends HasWord>) sentence;
+    if ( ! recordBackPointers) {
+      Tree tree = getBestParse();
+      return (tree == null) ? null : output.build(tree, words);
+    }
+    int goal = stateIndex.indexOf(goalStr);
+    if (iScore.get(0, length, goal) == Double.NEGATIVE_INFINITY) {
+      return null;
+    }
+    List<edu.berkeley.nlp.ling.Tree<String>> children = outputChildren(goal, 0, length, output, words);
+    if (children == null) {
+      return output.build(matchBestParse(goal, 0, length), words);
+    }
+    return output.root(goal, children);
+  }
+
+  /** Add the output of the best parse of a state over a span to siblings, as followBackPointers reads it. */
+  private void outputBackPointers(int state, int start, int end, OutputTreeBuilder output,
+                                  List<? extends HasWord> words, List<edu.berkeley.nlp.ling.Tree<String>> siblings) {
+    List<edu.berkeley.nlp.ling.Tree<String>> children = outputChildren(state, start, end, output, words);
+    if (children != null) {
+      output.add(state, children, siblings);
+    } else if (end == start + 1 && isTag[state]) {
+      children = new ArrayList<>(1);
+      children.add(OutputTreeBuilder.leaf(words, start));
+      String tag = getCoreLabel(start).tag();
+      if (tag != null) {
+        output.add(tag, children, siblings);
+      } else {
+        output.add(state, children, siblings);
+      }
+    } else {
+      output.add(matchBestParse(state, start, end), words, start, siblings);
+    }
+  }
+
+  /**
+   * The output children of the best parse of a state over a span, or null
+   * if no rule was recorded for it.
+   */
+  private List<edu.berkeley.nlp.ling.Tree<String>> outputChildren(int state, int start, int end, OutputTreeBuilder output,
+                                                                  List<? extends HasWord> words) {
+    int back = backPointers.cell(start, end) + state;
+    int rule = backPointers.rule(back);
+    if (rule == ChartBackPointers.NONE) {
+      return null;
+    }
+    List<edu.berkeley.nlp.ling.Tree<String>> children = new ArrayList<>(2);
+    if (rule >= 0) {
+      BinaryRuleTable rules = bg.ruleTableByLC();
+      int split = backPointers.split(back);
+      outputBackPointers(rules.left[rule], start, split, output, words, children);
+      outputBackPointers(rules.right[rule], split, end, output, words, children);
+    } else {
+      outputUnaryChain(ChartBackPointers.unaryRule(rule), start, end, output, words, children, 0);
+    }
+    return children;
+  }
+
+  /**
+   * Add the output of what is below the parent of closed unary rule r of
+   * ug.closedRuleTableByChild() to siblings, as unaryChain expands it.
+   */
+  private void outputUnaryChain(int r, int start, int end, OutputTreeBuilder output, List<? extends HasWord> words,
+                                List<edu.berkeley.nlp.ling.Tree<String>> siblings, int depth) {
+    int tail = ug.closedRuleTailsByChild()[r];
+    if (tail >= 0 && depth < numStates) {
+      List<edu.berkeley.nlp.ling.Tree<String>> children = new ArrayList<>(1);
+      outputUnaryChain(tail, start, end, output, words, children, depth + 1);
+      output.add(ug.closedRuleTableByChild().parent[tail], children, siblings);
+    } else {
+      outputBackPointers(ug.closedRuleTableByChild().child[r], start, end, output, words, siblings);
+    }
+  }
+
+  /** The pre-terminal tree of a tag over the word at position start. */
+  private Tree tagTree(String tag, int start, double score) {
+    CoreLabel terminalLabel = getCoreLabel(start);
+
+    Tree wordNode = tf.newLeaf(terminalLabel);
+    Tree tagNode = tf.newTreeNode(tag, Collections.singletonList(wordNode));
+    tagNode.setScore(score);
+    if (terminalLabel.tag() != null) {
+      tagNode.label().setValue(terminalLabel.tag());
+    }
+    if (tagNode.label() instanceof HasTag) {
+      ((HasTag) tagNode.label()).setTag(tagNode.label().value());
+    }
+    return tagNode;
+  }
+
+  /** Find the best parse of a state over a span by searching the chart
+   *  for the rules whose scores add up to its inside score.
+   */
+  private Tree matchBestParse(int goal, int start, int end) {
     // find source of inside score
     // no backtraces so we can speed up the parsing for its primary use
-    double bestScore = iScore[start][end][goal];
+    double bestScore = iScore.get(start, end, goal);
     double normBestScore = op.testOptions.lengthNormalization ? (bestScore / wordsInSpan[start][end][goal]) : bestScore;
     String goalStr = stateIndex.get(goal);
 
@@ -1388,7 +1978,7 @@ oScore[split][end][br.rightChild] = totR;
         } else if (lr != null) {
           List<LatticeEdge> latticeEdges = lr.getEdgesOverSpan(start, end);
           for (LatticeEdge edge : latticeEdges) {
-            IntTaggedWord itw = new IntTaggedWord(edge.word, stateIndex.get(goal), wordIndex, tagIndex);
+            IntTaggedWord itw = new IntTaggedWord(sentenceWords.indexOf(edge.word), tagIndex.indexOf(stateIndex.get(goal)));
 
             float tagScore = (floodTags) ? -1000.0f : lex.score(itw, start, edge.word, null);
             if (matches(bestScore, tagScore + (float) edge.weight)) {
@@ -1417,21 +2007,10 @@ oScore[split][end][br.rightChild] = totR;
       } else {  // normal lexicon is single words case
         IntTaggedWord tagging = new IntTaggedWord(words[start], tagIndex.indexOf(goalStr));
         String contextStr = getCoreLabel(start).originalText();
-        float tagScore = lex.score(tagging, start, wordIndex.get(words[start]), contextStr);
+        float tagScore = lex.score(tagging, start, sentenceWords.get(words[start]), contextStr);
         if (tagScore > Float.NEGATIVE_INFINITY || floodTags) {
           // return a pre-terminal tree
-          CoreLabel terminalLabel = getCoreLabel(start);
-
-          Tree wordNode = tf.newLeaf(terminalLabel);
-          Tree tagNode = tf.newTreeNode(goalStr, Collections.singletonList(wordNode));
-          tagNode.setScore(bestScore);
-          if (terminalLabel.tag() != null) {
-            tagNode.label().setValue(terminalLabel.tag());
-          }
-          if (tagNode.label() instanceof HasTag) {
-            ((HasTag) tagNode.label()).setTag(tagNode.label().value());
-          }
-          return tagNode;
+          return tagTree(goalStr, start, bestScore);
         }
       }
     }
@@ -1439,7 +2018,7 @@ oScore[split][end][br.rightChild] = totR;
     for (int split = start + 1; split < end; split++) {
       for (Iterator<BinaryRule> binaryI = bg.ruleIteratorByParent(goal); binaryI.hasNext(); ) {
         BinaryRule br = binaryI.next();
-        double score = br.score + iScore[start][split][br.leftChild] + iScore[split][end][br.rightChild];
+        double score = br.score + iScore.get(start, split, br.leftChild) + iScore.get(split, end, br.rightChild);
         boolean matches;
         if (op.testOptions.lengthNormalization) {
           double normScore = score / (wordsInSpan[start][split][br.leftChild] + wordsInSpan[split][end][br.rightChild]);
@@ -1449,8 +2028,8 @@ oScore[split][end][br.rightChild] = totR;
         }
         if (matches) {
           // build binary split
-          Tree leftChildTree = extractBestParse(br.leftChild, start, split);
-          Tree rightChildTree = extractBestParse(br.rightChild, split, end);
+          Tree leftChildTree = matchBestParse(br.leftChild, start, split);
+          Tree rightChildTree = matchBestParse(br.rightChild, split, end);
           List<Tree> children = new ArrayList<>();
           children.add(leftChildTree);
           children.add(rightChildTree);
@@ -1469,8 +2048,8 @@ oScore[split][end][br.rightChild] = totR;
     // for (Iterator<UnaryRule> unaryI = ug.closedRuleIteratorByParent(goal); unaryI.hasNext(); ) {
     for (Iterator<UnaryRule> unaryI = ug.ruleIteratorByParent(goal); unaryI.hasNext(); ) {
       UnaryRule ur = unaryI.next();
-      // log.info("  Trying " + ur + " dtr score: " + iScore[start][end][ur.child]);
-      double score = ur.score + iScore[start][end][ur.child];
+      // log.info("  Trying " + ur + " dtr score: " + iScore.get(start, end, ur.child));
+      double score = ur.score + iScore.get(start, end, ur.child);
       boolean matches;
       if (op.testOptions.lengthNormalization) {
         double normScore = score / wordsInSpan[start][end][ur.child];
@@ -1480,7 +2059,7 @@ oScore[split][end][br.rightChild] = totR;
       }
       if (ur.child != ur.parent && matches) {
         // build unary
-        Tree childTree = extractBestParse(ur.child, start, end);
+        Tree childTree = matchBestParse(ur.child, start, end);
         Tree result = tf.newTreeNode(goalStr, Collections.singletonList(childTree));
         // log.info("    Matched!  Unary node: "+result);
         result.setScore(score);
@@ -1528,17 +2107,17 @@ oScore[split][end][br.rightChild] = totR;
   protected List<Tree> extractBestParses(int goal, int start, int end) {
     // find sources of inside score
     // no backtraces so we can speed up the parsing for its primary use
-    double bestScore = iScore[start][end][goal];
+    double bestScore = iScore.get(start, end, goal);
     String goalStr = stateIndex.get(goal);
     //System.out.println("Searching for "+goalStr+" from "+start+" to "+end+" scored "+bestScore);
     // check tags
     if (end - start == 1 && tagIndex.contains(goalStr)) {
       IntTaggedWord tagging = new IntTaggedWord(words[start], tagIndex.indexOf(goalStr));
       String contextStr = getCoreLabel(start).originalText();
-      float tagScore = lex.score(tagging, start, wordIndex.get(words[start]), contextStr);
+      float tagScore = lex.score(tagging, start, sentenceWords.get(words[start]), contextStr);
       if (tagScore > Float.NEGATIVE_INFINITY || floodTags) {
         // return a pre-terminal tree
-        String wordStr = wordIndex.get(words[start]);
+        String wordStr = sentenceWords.get(words[start]);
         Tree wordNode = tf.newLeaf(wordStr);
         Tree tagNode = tf.newTreeNode(goalStr, Collections.singletonList(wordNode));
         if (originalTags[start] != null) {
@@ -1553,7 +2132,7 @@ oScore[split][end][br.rightChild] = totR;
     for (int split = start + 1; split < end; split++) {
       for (Iterator<BinaryRule> binaryI = bg.ruleIteratorByParent(goal); binaryI.hasNext(); ) {
         BinaryRule br = binaryI.next();
-        double score = br.score + iScore[start][split][br.leftChild] + iScore[split][end][br.rightChild];
+        double score = br.score + iScore.get(start, split, br.leftChild) + iScore.get(split, end, br.rightChild);
         if (matches(score, bestScore)) {
           // build binary split
           List<Tree> leftChildTrees = extractBestParses(br.leftChild, start, split);
@@ -1578,7 +2157,7 @@ oScore[split][end][br.rightChild] = totR;
     // check unaries
     for (Iterator<UnaryRule> unaryI = ug.ruleIteratorByParent(goal); unaryI.hasNext(); ) {
       UnaryRule ur = unaryI.next();
-      double score = ur.score + iScore[start][end][ur.child];
+      double score = ur.score + iScore.get(start, end, ur.child);
       if (ur.child != ur.parent && matches(score, bestScore)) {
         // build unary
         List<Tree> childTrees = extractBestParses(ur.child, start, end);
@@ -1621,8 +2200,7 @@ oScore[split][end][br.rightChild] = totR;
 
   //
   // BEGIN K-BEST STUFF
-  // taken straight out of "Better k-best Parsing" by Liang Huang and David
-  // Chiang
+  // Algorithm 3 of "Better k-best Parsing" by Liang Huang and David Chiang
   //
 
   /** Get the exact k best parses for the sentence.
@@ -1634,250 +2212,413 @@ oScore[split][end][br.rightChild] = totR;
    */
   @Override
   public List<ScoredObject<Tree>> getKBestParses(int k) {
-
-    cand = Generics.newHashMap();
-    dHat = Generics.newHashMap();
-
-    int start = 0;
-    int end = length;
-    int goal = stateIndex.indexOf(goalStr);
-
-    Vertex v = new Vertex(goal, start, end);
     List<ScoredObject<Tree>> kBestTrees = new ArrayList<>();
-    for (int i = 1; i <= k; i++) {
-      Tree internalTree = getTree(v, i, k);
-      if (internalTree == null) { break; }
-      // restoreUnaries(internalTree);
-      kBestTrees.add(new ScoredObject<>(internalTree, dHat.get(v).get(i - 1).score));
+    for (Iterator<ScoredObject<Tree>> it = kBestParseIterator(); kBestTrees.size() < k && it.hasNext(); ) {
+      kBestTrees.add(it.next());
     }
     return kBestTrees;
   }
 
-  /** Get the kth best, when calculating kPrime best (e.g. 2nd best of 5). */
-  private Tree getTree(Vertex v, int k, int kPrime) {
-    lazyKthBest(v, k, kPrime);
-    String goalStr = stateIndex.get(v.goal);
-    int start = v.start;
-    // int end = v.end;
-
-    List<Derivation> dHatV = dHat.get(v);
-
-    if (isTag[v.goal] && v.start + 1 == v.end) {
-      IntTaggedWord tagging = new IntTaggedWord(words[start], tagIndex.indexOf(goalStr));
-      String contextStr = getCoreLabel(start).originalText();
-      float tagScore = lex.score(tagging, start, wordIndex.get(words[start]), contextStr);
-      if (tagScore > Float.NEGATIVE_INFINITY || floodTags) {
-        // return a pre-terminal tree
-        CoreLabel terminalLabel = getCoreLabel(start);
+  /**
+   * The parses of the last sentence parsed, best first, each found only
+   * when asked for, so that the caller need not fix k in advance.  The
+   * iterator reads the chart, so it must not be used once the parser has
+   * started on another sentence.  The first parse scores the chart's
+   * best score; the scores of the others are added up in double from the
+   * chart's float scores, so parses within the chart's rounding of each
+   * other may come out of order.
+   *
+   * @return The parses with their scores, in order of non-increasing score
+   */
+  public Iterator<ScoredObject<Tree>> kBestParseIterator() {
+    KBestDerivations derivations = new KBestDerivations();
+    int goal = derivations.vertex(stateIndex.indexOf(goalStr), 0, length, KBestDerivations.UNARY);
+    return new Iterator<ScoredObject<Tree>>() {
+      private int next; // = 0;
+
+      @Override
+      public boolean hasNext() {
+        return goal != KBestDerivations.NO_VERTEX && derivations.kthBest(goal, next) >= 0;
+      }
 
-        Tree wordNode = tf.newLeaf(terminalLabel);
-        Tree tagNode = tf.newTreeNode(goalStr, Collections.singletonList(wordNode));
-        if (originalTags[start] != null) {
-          tagNode.label().setValue(originalTags[start].tag());
-        }
-        if (tagNode.label() instanceof HasTag) {
-          ((HasTag) tagNode.label()).setTag(tagNode.label().value());
+      @Override
+      public ScoredObject<Tree> next() {
+        if ( ! hasNext()) {
+          throw new NoSuchElementException();
         }
-        return tagNode;
-      } else {
-        assert false;
+        int d = derivations.kthBest(goal, next++);
+        return new ScoredObject<>(derivations.tree(goal, d), derivations.score(d));
       }
-    }
-
-    if (k-1 >= dHatV.size()) {
-      return null;
-    }
-
-    Derivation d = dHatV.get(k-1);
-
-    List<Tree> children = new ArrayList<>();
-    for (int i = 0; i < d.arc.size(); i++) {
-      Vertex child = d.arc.tails.get(i);
-      Tree t = getTree(child, d.j.get(i), kPrime);
-      assert (t != null);
-      children.add(t);
-    }
-
-    return tf.newTreeNode(goalStr,children);
+    };
   }
 
-  private static class Vertex {
-    public final int goal;
-    public final int start;
-    public final int end;
-
-    public Vertex(int goal, int start, int end) {
-      this.goal = goal;
-      this.start = start;
-      this.end = end;
-    }
-
-    public boolean equals(Object o) {
-      if (!(o instanceof Vertex)) { return false; }
-      Vertex v = (Vertex)o;
-      return (v.goal == goal && v.start == start && v.end == end);
-    }
-
-    private int hc = -1;
-
-    public int hashCode() {
-      if (hc == -1) {
-        hc = goal + (17 * (start + (17 * end)));
+  /**
+   * The derivations of the chart's hypergraph, found lazily best first.
+   * <p>
+   * Each state over a span of the chart is two vertices: one for the state
+   * as built by a binary rule (or as a tag over its word), and one for it
+   * after the chart's unary closure, whose arcs are the closed unary rules
+   * from the first kind, and the empty chain.  So the hypergraph has no
+   * unary cycles, and the best derivation of the goal is the chart's
+   * Viterbi parse.  Vertices are numbered densely as they are reached, by
+   * a {@link LongCounter} from their packed (state, start, end, layer) key
+   * whose count is the vertex's best score.  The backward star of a vertex
+   * is made once, keeping only the arcs whose tails are in the chart, and
+   * the arcs, the derivations, the candidate heaps and the lists of best
+   * derivations are held in int and double arrays.
+   * <p>
+   * A derivation is an arc with the rank of the derivation used for each
+   * tail.  Rather than checking each new candidate against those in the
+   * heap, as in the paper, (l, r) generates (l, r + 1) and, only if r is 0,
+   * (l + 1, r), so that each candidate has one predecessor, no better than
+   * it, and none is pushed twice.
+   */
+  private final class KBestDerivations {
+
+    static final int BINARY = 0;
+    static final int UNARY = 1;
+    static final int NO_VERTEX = -1;
+    /** The rule of a pre-terminal arc, or of the empty unary chain. */
+    private static final int NO_RULE = -1;
+
+    private final BinaryRuleTable binaryRules = bg.ruleTableByParent();
+    private final UnaryRuleTable closedRules = ug.closedRuleTableByParent();
+    private final int spans = length + 1;
+
+    private final LongCounter vertices = new LongCounter();
+    /** [vertex] -&gt; its first arc, or -1 before its backward star is made. */
+    private int[] firstArc = new int[64];
+    private int[] numArcs = new int[64];
+    /** [vertex] -&gt; its best derivations so far, in order. */
+    private int[][] kBest = new int[64][];
+    private int[] numBest = new int[64];
+    /** [vertex] -&gt; how many of its best derivations have had their successors made. */
+    private int[] numExpanded = new int[64];
+    /** [vertex] -&gt; its candidates, a binary heap by score. */
+    private int[][] heap = new int[64][];
+    private int[] heapSize = new int[64];
+
+    /** [arc] -&gt; its rule in binaryRules or closedRules, or NO_RULE. */
+    private int[] arcRule = new int[256];
+    private int[] arcLeft = new int[256];
+    private int[] arcRight = new int[256];
+    private float[] arcScore = new float[256];
+    private int numArcsTotal; // = 0;
+
+    private int[] derivationArc = new int[256];
+    private int[] leftRank = new int[256];
+    private int[] rightRank = new int[256];
+    private double[] derivationScore = new double[256];
+    private int numDerivations; // = 0;
+
+    /**
+     * The id of a vertex, numbering it if it is new, or NO_VERTEX if the
+     * state has no inside score over the span.
+     */
+    int vertex(int state, int start, int end, int layer) {
+      if (state < 0 || iScore.get(start, end, state) == Float.NEGATIVE_INFINITY) {
+        return NO_VERTEX;
       }
-      return hc;
+      long key = ((((long) state * spans + start) * spans + end) << 1) | layer;
+      int v = vertices.indexOf(key);
+      if (v >= 0) {
+        return v;
+      }
+      v = vertices.size();
+      if (v == firstArc.length) {
+        int n = 2 * v;
+        firstArc = Arrays.copyOf(firstArc, n);
+        numArcs = Arrays.copyOf(numArcs, n);
+        kBest = Arrays.copyOf(kBest, n);
+        numBest = Arrays.copyOf(numBest, n);
+        numExpanded = Arrays.copyOf(numExpanded, n);
+        heap = Arrays.copyOf(heap, n);
+        heapSize = Arrays.copyOf(heapSize, n);
+      }
+      firstArc[v] = -1;
+      kBest[v] = new int[2];
+      if (layer == UNARY) {
+        // by the chart's unary closure, its best score is its inside score
+        vertices.setCount(key, iScore.get(start, end, state));
+      } else {
+        // its best score is only known from its arcs
+        vertices.setCount(key, Double.NEGATIVE_INFINITY);
+        backwardStar(v);
+      }
+      return v;
     }
 
-    public String toString() {
-      return goal+"["+start+","+end+"]";
+    private int state(int v) {
+      return (int) ((vertices.keyAt(v) >>> 1) / spans / spans);
     }
-  }
-
-  private static class Arc {
-    public final List<Vertex> tails;
-    public final Vertex head;
-    public final double ruleScore; // for convenience
 
-    public Arc(List<Vertex> tails, Vertex head, double ruleScore) {
-      this.tails = Collections.unmodifiableList(tails);
-      this.head = head;
-      this.ruleScore = ruleScore;
-      // TODO: add check that rule is compatible with head and tails!
+    private int start(int v) {
+      return (int) ((vertices.keyAt(v) >>> 1) / spans % spans);
     }
 
-    public boolean equals(Object o) {
-      if (!(o instanceof Arc)) { return false; }
-      Arc a = (Arc) o;
-      return a.head.equals(head) && a.tails.equals(tails);
+    private int end(int v) {
+      return (int) ((vertices.keyAt(v) >>> 1) % spans);
     }
 
-    private int hc = -1;
-
-    public int hashCode() {
-      if (hc == -1) {
-        hc = head.hashCode() + (17 * tails.hashCode());
-      }
-      return hc;
+    private int layer(int v) {
+      return (int) (vertices.keyAt(v) & 1);
     }
 
-    public int size() { return tails.size(); }
-  }
-
-  private static class Derivation {
-    public final Arc arc;
-    public final List<Integer> j;
-    public final double score;  // score does not affect equality (?)
-    public final List<Double> childrenScores;
-
-    public Derivation(Arc arc, List<Integer> j, double score, List<Double> childrenScores) {
-      this.arc = arc;
-      this.j = Collections.unmodifiableList(j);
-      this.score = score;
-      this.childrenScores = Collections.unmodifiableList(childrenScores);
+    double score(int d) {
+      return derivationScore[d];
     }
 
-    public boolean equals(Object o) {
-      if (!(o instanceof Derivation)) { return false; }
-      Derivation d = (Derivation)o;
-      if (arc == null && d.arc != null || arc != null && d.arc == null) { return false; }
-      return ((arc == null && d.arc == null || d.arc.equals(arc)) && d.j.equals(j));
+    /**
+     * Make the arcs into a vertex, and a candidate for each from the best
+     * derivations of its tails.  A vertex of the binary layer gets its best
+     * score, the best of the candidates.
+     */
+    private void backwardStar(int v) {
+      int state = state(v);
+      int start = start(v);
+      int end = end(v);
+      if (layer(v) == UNARY) {
+        // number the children first, as making their own arcs would split this star
+        int first = closedRules.offsets[state];
+        int[] children = new int[closedRules.offsets[state + 1] - first];
+        for (int i = 0; i < children.length; i++) {
+          int child = closedRules.child[first + i];
+          children[i] = (child == state) ? NO_VERTEX : vertex(child, start, end, BINARY);
+        }
+        int self = vertex(state, start, end, BINARY);
+        firstArc[v] = numArcsTotal;
+        if (self != NO_VERTEX) {
+          addArc(NO_RULE, self, NO_VERTEX, 0.0f);
+        }
+        for (int i = 0; i < children.length; i++) {
+          if (children[i] != NO_VERTEX) {
+            addArc(first + i, children[i], NO_VERTEX, closedRules.score[first + i]);
+          }
+        }
+      } else {
+        firstArc[v] = numArcsTotal;
+        if (isTag[state] && end == start + 1) {
+          addArc(NO_RULE, NO_VERTEX, NO_VERTEX, iScore.get(start, end, state));
+        }
+        for (int split = start + 1; split < end; split++) {
+          for (int r = binaryRules.offsets[state], rMax = binaryRules.offsets[state + 1]; r < rMax; r++) {
+            int left = vertex(binaryRules.left[r], start, split, UNARY);
+            int right = (left == NO_VERTEX) ? NO_VERTEX : vertex(binaryRules.right[r], split, end, UNARY);
+            if (right != NO_VERTEX) {
+              addArc(r, left, right, binaryRules.score[r]);
+            }
+          }
+        }
+      }
+      numArcs[v] = numArcsTotal - firstArc[v];
+      heap[v] = new int[Math.max(numArcs[v], 2)];
+      double best = Double.NEGATIVE_INFINITY;
+      for (int a = firstArc[v], aMax = a + numArcs[v]; a < aMax; a++) {
+        double s = arcScore[a];
+        if (arcLeft[a] != NO_VERTEX) {
+          s += vertices.countAt(arcLeft[a]);
+        }
+        if (arcRight[a] != NO_VERTEX) {
+          s += vertices.countAt(arcRight[a]);
+        }
+        if (s > Double.NEGATIVE_INFINITY) {
+          push(v, newDerivation(a, 0, 0, s));
+          best = Math.max(best, s);
+        }
+      }
+      if (layer(v) == BINARY) {
+        vertices.setCount(vertices.keyAt(v), best);
+      }
     }
 
-    private int hc = -1;
-
-    public int hashCode() {
-      if (hc == -1) {
-        hc = (arc == null ? 0 : arc.hashCode()) + (17 * j.hashCode());
+    private void addArc(int rule, int left, int right, float ruleScore) {
+      int a = numArcsTotal++;
+      if (a == arcRule.length) {
+        int n = 2 * a;
+        arcRule = Arrays.copyOf(arcRule, n);
+        arcLeft = Arrays.copyOf(arcLeft, n);
+        arcRight = Arrays.copyOf(arcRight, n);
+        arcScore = Arrays.copyOf(arcScore, n);
+      }
+      arcRule[a] = rule;
+      arcLeft[a] = left;
+      arcRight[a] = right;
+      arcScore[a] = ruleScore;
+    }
+
+    private int newDerivation(int arc, int left, int right, double score) {
+      int d = numDerivations++;
+      if (d == derivationArc.length) {
+        int n = 2 * d;
+        derivationArc = Arrays.copyOf(derivationArc, n);
+        leftRank = Arrays.copyOf(leftRank, n);
+        rightRank = Arrays.copyOf(rightRank, n);
+        derivationScore = Arrays.copyOf(derivationScore, n);
+      }
+      derivationArc[d] = arc;
+      leftRank[d] = left;
+      rightRank[d] = right;
+      derivationScore[d] = score;
+      return d;
+    }
+
+    /**
+     * The k-th best derivation of a vertex, counting from 0, or -1 if it
+     * has fewer than k + 1.
+     */
+    int kthBest(int v, int k) {
+      if (firstArc[v] < 0) {
+        backwardStar(v);
+      }
+      while (numBest[v] <= k) {
+        if (numExpanded[v] < numBest[v]) {
+          pushSuccessors(v, kBest[v][numBest[v] - 1]);
+          numExpanded[v] = numBest[v];
+        }
+        int d = popValid(v);
+        if (d < 0) {
+          return -1;
+        }
+        if (numBest[v] == 0 && layer(v) == UNARY) {
+          // the same sum as the chart's, whose rounding the parents' candidates assume
+          derivationScore[d] = vertices.countAt(v);
+        }
+        if (numBest[v] == kBest[v].length) {
+          kBest[v] = Arrays.copyOf(kBest[v], 2 * numBest[v]);
+        }
+        kBest[v][numBest[v]++] = d;
       }
-      return hc;
+      return kBest[v][k];
+    }
+
+    /**
+     * Take the best candidate of a vertex whose tails have the derivations
+     * it uses, or -1 if there is none.  A tail can fall short only of its
+     * best derivation, whose score came from the chart.
+     */
+    private int popValid(int v) {
+      while (heapSize[v] > 0) {
+        int d = pop(v);
+        int a = derivationArc[d];
+        if ((arcLeft[a] == NO_VERTEX || kthBest(arcLeft[a], leftRank[d]) >= 0)
+            && (arcRight[a] == NO_VERTEX || kthBest(arcRight[a], rightRank[d]) >= 0)) {
+          return d;
+        }
+      }
+      return -1;
     }
-  }
 
-  private List<Arc> getBackwardsStar(Vertex v) {
-
-    List<Arc> bs = new ArrayList<>();
-
-    // pre-terminal??
-    if (isTag[v.goal] && v.start + 1 == v.end) {
-      List<Vertex> tails = new ArrayList<>();
-      double score = iScore[v.start][v.end][v.goal];
-      Arc arc = new Arc(tails, v, score);
-      bs.add(arc);
+    private void pushSuccessors(int v, int d) {
+      int a = derivationArc[d];
+      int left = arcLeft[a];
+      int right = arcRight[a];
+      if (right != NO_VERTEX) {
+        pushCandidate(v, a, leftRank[d], rightRank[d] + 1);
+        if (rightRank[d] == 0) {
+          pushCandidate(v, a, leftRank[d] + 1, 0);
+        }
+      } else if (left != NO_VERTEX) {
+        pushCandidate(v, a, leftRank[d] + 1, 0);
+      }
     }
 
-    // check binaries
-    for (int split = v.start + 1; split < v.end; split++) {
-      for (BinaryRule br : bg.ruleListByParent(v.goal)) {
-        Vertex lChild = new Vertex(br.leftChild, v.start, split);
-        Vertex rChild = new Vertex(br.rightChild, split, v.end);
-        List<Vertex> tails = new ArrayList<>();
-        tails.add(lChild);
-        tails.add(rChild);
-        Arc arc = new Arc(tails, v, br.score);
-        bs.add(arc);
+    private void pushCandidate(int v, int a, int l, int r) {
+      int left = kthBest(arcLeft[a], l);
+      if (left < 0) {
+        return;
+      }
+      double s = arcScore[a] + derivationScore[left];
+      if (arcRight[a] != NO_VERTEX) {
+        int right = kthBest(arcRight[a], r);
+        if (right < 0) {
+          return;
+        }
+        s += derivationScore[right];
+      }
+      if (s > Double.NEGATIVE_INFINITY) {
+        push(v, newDerivation(a, l, r, s));
       }
     }
 
-    // check unaries
-    for (UnaryRule ur : ug.rulesByParent(v.goal)) {
-      Vertex child = new Vertex(ur.child, v.start, v.end);
-      List<Vertex> tails = new ArrayList<>();
-      tails.add(child);
-      Arc arc = new Arc(tails, v, ur.score);
-      bs.add(arc);
+    /** Whether derivation d goes before e: the better score, then the one made first. */
+    private boolean before(int d, int e) {
+      return derivationScore[d] > derivationScore[e] || (derivationScore[d] == derivationScore[e] && d < e);
     }
 
-    return bs;
-  }
-
-  private Map<Vertex,PriorityQueue<Derivation>> cand = Generics.newHashMap();
-  private Map<Vertex,LinkedList<Derivation>> dHat = Generics.newHashMap();
-
-  private PriorityQueue<Derivation> getCandidates(Vertex v, int k) {
-    return null;
-  }
-
-  // note: kPrime is the original k
-  private void lazyKthBest(Vertex v, int k, int kPrime) {
-    PriorityQueue<Derivation> candV = getCandidates(v, kPrime);
-
-    LinkedList<Derivation> dHatV = dHat.get(v);
-    if (dHatV == null) {
-      dHatV = new LinkedList<>();
-      dHat.put(v,dHatV);
-    }
-    while (dHatV.size() < k) {
-      if (!dHatV.isEmpty()) {
-        Derivation derivation = dHatV.getLast();
-        lazyNext(candV, derivation, kPrime);
+    private void push(int v, int d) {
+      int[] h = heap[v];
+      int i = heapSize[v]++;
+      if (i == h.length) {
+        h = heap[v] = Arrays.copyOf(h, 2 * i);
       }
-      if (!candV.isEmpty()) {
-        Derivation d = candV.removeFirst();
-        dHatV.add(d);
-      } else {
-        break;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if ( ! before(d, h[parent])) {
+          break;
+        }
+        h[i] = h[parent];
+        i = parent;
+      }
+      h[i] = d;
+    }
+
+    private int pop(int v) {
+      int[] h = heap[v];
+      int top = h[0];
+      int size = --heapSize[v];
+      int d = h[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && before(h[child + 1], h[child])) {
+          child++;
+        }
+        if ( ! before(h[child], d)) {
+          break;
+        }
+        h[i] = h[child];
+        i = child;
       }
+      if (size > 0) {
+        h[i] = d;
+      }
+      return top;
     }
-  }
 
-  private void lazyNext(PriorityQueue<Derivation> candV, Derivation derivation, int kPrime) {
-    List<Vertex> tails = derivation.arc.tails;
-    for  (int i = 0, sz = derivation.arc.size(); i < sz; i++) {
-      List<Integer> j = new ArrayList<>(derivation.j);
-      j.set(i, j.get(i)+1);
-      Vertex Ti = tails.get(i);
-      lazyKthBest(Ti, j.get(i), kPrime);
-      LinkedList<Derivation> dHatTi = dHat.get(Ti);
-      // compute score for this derivation
-      if (j.get(i)-1 >= dHatTi.size()) { continue; }
-      Derivation d = dHatTi.get(j.get(i)-1);
-      double newScore = derivation.score - derivation.childrenScores.get(i) + d.score;
-      List<Double> childrenScores = new ArrayList<>(derivation.childrenScores);
-      childrenScores.set(i, d.score);
-      Derivation newDerivation = new Derivation(derivation.arc, j, newScore, childrenScores);
-      if (!candV.contains(newDerivation) && newScore > Double.NEGATIVE_INFINITY) {
-        candV.add(newDerivation, newScore);
+    /** The tree of derivation d of vertex v, whose tails' derivations have all been found. */
+    Tree tree(int v, int d) {
+      int a = derivationArc[d];
+      int state = state(v);
+      int start = start(v);
+      if (arcLeft[a] == NO_VERTEX) {
+        return tagTree(stateIndex.get(state), start, derivationScore[d]);
+      }
+      int leftD = kBest[arcLeft[a]][leftRank[d]];
+      Tree leftTree = tree(arcLeft[a], leftD);
+      if (arcRight[a] != NO_VERTEX) {
+        List<Tree> children = new ArrayList<>(2);
+        children.add(leftTree);
+        children.add(tree(arcRight[a], kBest[arcRight[a]][rightRank[d]]));
+        Tree result = tf.newTreeNode(stateIndex.get(state), children);
+        result.setScore(derivationScore[d]);
+        return result;
+      }
+      if (arcRule[a] == NO_RULE) {
+        return leftTree;
+      }
+      // unaryChain expands rules of the table by child
+      UnaryRuleTable byChild = ug.closedRuleTableByChild();
+      int child = closedRules.child[arcRule[a]];
+      int r = byChild.offsets[child];
+      while (byChild.parent[r] != state) {
+        r++;
       }
+      return unaryChain(r, leftTree, derivationScore[leftD], 0);
     }
+
   }
 
   //
@@ -1896,7 +2637,7 @@ oScore[split][end][br.rightChild] = totR;
     int start = 0;
     int end = length;
     int goal = stateIndex.indexOf(goalStr);
-    double bestScore = iScore[start][end][goal];
+    double bestScore = iScore.get(start, end, goal);
     List<Tree> internalTrees = extractBestParses(goal, start, end);
     //System.out.println("Got internal best parse...");
     // for (Tree internalTree : internalTrees) {
@@ -1924,6 +2665,17 @@ oScore[split][end][br.rightChild] = totR;
     }
   }
 
+  /** Restrict the next parse to the states allowed by a coarse pass, or
+   *  stop pruning if mask is null.  See {@link CoarseToFinePCFGParser}.
+   */
+  void setCoarseMask(int[] projection, boolean[][][] mask) {
+    this.coarseProjection = projection;
+    this.coarseMask = mask;
+    if (mask != null && cellAllowed == null) {
+      cellAllowed = new boolean[numStates];
+    }
+  }
+
   public ExhaustivePCFGParser(BinaryGrammar bg, UnaryGrammar ug, Lexicon lex, Options op, Index<String> stateIndex, Index<String> wordIndex, Index<String> tagIndex) {
     //    System.out.println("ExhaustivePCFGParser constructor called.");
     this.bg = bg;
@@ -1935,9 +2687,11 @@ oScore[split][end][br.rightChild] = totR;
     this.stateIndex = stateIndex;
     this.wordIndex = wordIndex;
     this.tagIndex = tagIndex;
+    sentenceWords = new SentenceWordIndex(wordIndex);
     tf = new LabeledScoredTreeFactory();
 
     numStates = stateIndex.size();
+    liveWords = (numStates + 63) >>> 6;
     isTag = new boolean[numStates];
     // tag index is smaller, so we fill by iterating over the tag index
     // rather than over the state index
@@ -1990,21 +2744,11 @@ oScore[split][end][br.rightChild] = totR;
     // allocate just the parts of iScore and oScore used (end > start, etc.)
     // todo: with some modifications to doInsideScores, we wouldn't need to allocate iScore[i,length] for i != 0 and i != length
     //    System.out.println("initializing iScore arrays with length " + length + " and numStates " + numStates);
-    iScore = new float[length][length + 1][];
-    for (int start = 0; start < length; start++) {
-      for (int end = start + 1; end <= length; end++) {
-        iScore[start][end] = new float[numStates];
-      }
-    }
+    iScore = ChartScores.create(op.testOptions.chartStorage, length, numStates, Float.NEGATIVE_INFINITY);
     //    System.out.println("finished initializing iScore arrays");
     if (op.doDep && !op.testOptions.useFastFactored) {
       //      System.out.println("initializing oScore arrays with length " + length + " and numStates " + numStates);
-      oScore = new float[length][length + 1][];
-      for (int start = 0; start < length; start++) {
-        for (int end = start + 1; end <= length; end++) {
-          oScore[start][end] = new float[numStates];
-        }
-      }
+      oScore = ChartScores.create(op.testOptions.chartStorage, length, numStates, Float.NEGATIVE_INFINITY);
       // System.out.println("finished initializing oScore arrays");
     }
     narrowRExtent = new int[length][numStates];
@@ -2018,6 +2762,13 @@ oScore[split][end][br.rightChild] = totR;
       oPossibleByR = new boolean[length + 1][numStates];
     }
     tags = new boolean[length][numTags];
+    long cells = ChartScores.numCells(length);
+    if (cells * numStates > Integer.MAX_VALUE) {
+      throw new OutOfMemoryError("Chart of " + (cells * numStates) + " live states exceeds a single array.");
+    }
+    liveStates = new int[(int) cells * numStates];
+    numLive = new int[(int) cells];
+    liveBits = new long[(int) cells * liveWords];
 
     if (op.testOptions.lengthNormalization) {
       wordsInSpan = new int[length][length + 1][];
@@ -2036,6 +2787,10 @@ oScore[split][end][br.rightChild] = totR;
     oFilteredEnd = oFilteredStart = null;
     tags = null;
     narrowRExtent = wideRExtent = narrowLExtent = wideLExtent = null;
+    liveStates = null;
+    numLive = null;
+    liveBits = null;
+    backPointers = null;
   }
 
 } // end class ExhaustivePCFGParser
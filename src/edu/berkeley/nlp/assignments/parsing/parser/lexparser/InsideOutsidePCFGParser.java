@@ -0,0 +1,1348 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.HasTag;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.parser.ViterbiParser;
+import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A PCFG parser that computes inside and outside scores in a choice of
+ * semiring ({@link TestOptions#insideOutsideSemiring}), and from them the
+ * posterior probabilities of spans and anchored rules.  Instead of the
+ * Viterbi parse it returns, as {@link TestOptions#pcfgDecoder} says, the
+ * max-rule-product parse (the tree whose product of anchored rule
+ * posteriors is largest) or the max-constituent parse (the binary
+ * bracketing whose sum of labeled span posteriors is largest).
+ * <p>
+ * Each chart cell has a score before its unary rules (B) and after (U),
+ * the closed unary rules being applied once, as in
+ * {@link CoarseToFinePCFGParser}.  With the LOG_SUM semiring the scores
+ * are log inside and outside probabilities, summed over the binary
+ * structure of the derivations.  The unary closure is under max, though,
+ * so between two states over a span only the best chain of unary rules
+ * is counted, not the sum over all chains: the scores and posteriors are
+ * those of the grammar whose unary rules are the best closed chains.
+ * With VITERBI they are the max over derivations, as in
+ * {@link ExhaustivePCFGParser}, and the posteriors are max-marginals.
+ * <p>
+ * Each semiring has its own copy of the chart loops, so the inner loops
+ * call nothing but the chart.  LOG_SUM sums in probability space within a
+ * cell: the scores of a finished cell are also kept as probabilities
+ * relative to the cell's largest score, so combining two cells costs one
+ * exp per split and a multiply-add per rule, and each score of the new
+ * cell one log.  SCALED computes the same sums without exp or log in the
+ * chart loops: it keeps each cell's probabilities scaled by a power of
+ * two, and takes one log per item to fill in the log-score charts.
+ * <p>
+ * A parser instance holds per-sentence state and should be used by one
+ * thread at a time; the grammars and lexicon may be shared.
+ */
+public class InsideOutsidePCFGParser implements ViterbiParser {
+
+  private final BinaryGrammar bg;
+  private final UnaryGrammar ug;
+  private final Lexicon lex;
+  private final Options op;
+  private final TreebankLanguagePack tlp;
+  private final Index<String> stateIndex;
+  private final Index<String> tagIndex;
+  private final SentenceWordIndex sentenceWords;
+  private final TreeFactory tf = new LabeledScoredTreeFactory();
+
+  private final int numStates;
+  private final int goal;
+  private final boolean[] isTag;
+
+  // rule probabilities, parallel to the rule tables, for LOG_SUM
+  private final double[] probByLC;
+  private final double[] probByRC;
+  private final double[] unaryProb;
+
+  private final Semiring viterbi = new ViterbiSemiring();
+  private final Semiring logSum = new LogSumSemiring();
+  private final Semiring scaled;
+  /** The semiring of the sentence being parsed. */
+  private Semiring semiring;
+
+  private List<? extends HasWord> sentence;
+  private int length;
+  private boolean floodTags = false;
+  private int arraySize = 0;
+
+  private ChartScores iScoreB;
+  private ChartScores iScoreU;
+  private ChartScores oScoreB;
+  private ChartScores oScoreU;
+  /** The inside score of the goal over the sentence. */
+  private double logZ;
+
+  /** The states with an inside score of each cell, in flat arrays by
+   *  cell number (see cellNumber): cell c has them in liveStates from
+   *  liveFirst to liveEnd, within its numStates entries from c * numStates,
+   *  and as a bitset in the liveWords longs of liveBits from c * liveWords.
+   */
+  private int[] liveStates;
+  private int[] numLive;
+  private long[] liveBits;
+  private final int liveWords;
+
+  // LOG_SUM: [start][end] -> the largest inside (U) and outside (B) score
+  // of a cell, and each state's score as a probability relative to it
+  private double[][] iMax;
+  private double[][] oMax;
+  private double[][][] scaledIU;
+  private double[][][] scaledOB;
+  // SCALED: [start][end] -> the base-2 exponent of a cell's inside (U) and
+  // outside (B) probabilities in scaledIU and scaledOB
+  private int[][] iExp;
+  private int[][] oExp;
+
+  private float[] cellB;
+  private float[] cellU;
+  private double[] sums;
+
+  // the max-rule-product chart
+  private ChartScores bestB;
+  private ChartScores bestU;
+  private ChartBackPointers binaryBack;
+  private ChartBackPointers unaryBack;
+
+  public InsideOutsidePCFGParser(BinaryGrammar bg, UnaryGrammar ug, Lexicon lex, Options op,
+                                 Index<String> stateIndex, Index<String> wordIndex, Index<String> tagIndex) {
+    this.bg = bg;
+    this.ug = ug;
+    this.lex = lex;
+    this.op = op;
+    this.tlp = op.langpack();
+    this.stateIndex = stateIndex;
+    this.tagIndex = tagIndex;
+    sentenceWords = new SentenceWordIndex(wordIndex);
+    numStates = stateIndex.size();
+    liveWords = (numStates + 63) >>> 6;
+    goal = stateIndex.indexOf(tlp.startSymbol());
+    isTag = new boolean[numStates];
+    for (String tag : tagIndex.objectsList()) {
+      int state = stateIndex.indexOf(tag);
+      if (state >= 0) {
+        isTag[state] = true;
+      }
+    }
+    probByLC = exp(bg.ruleTableByLC().score);
+    probByRC = exp(bg.ruleTableByRC().score);
+    unaryProb = exp(ug.closedRuleTableByChild().score);
+    cellB = new float[numStates];
+    cellU = new float[numStates];
+    sums = new double[numStates];
+    scaled = new ScaledSemiring();
+  }
+
+  private static double[] exp(float[] scores) {
+    double[] probs = new double[scores.length];
+    for (int i = 0; i < scores.length; i++) {
+      probs[i] = Math.exp(scores[i]);
+    }
+    return probs;
+  }
+
+  @Override
+  public boolean parse(List<? extends HasWord> sentence) {
+    if (sentence != this.sentence) {
+      this.sentence = sentence;
+      floodTags = false;
+    }
+    length = sentence.size();
+    if (length > arraySize) {
+      createArrays(length);
+    }
+    switch (op.testOptions.insideOutsideSemiring) {
+      case LOG_SUM:
+        semiring = logSum;
+        break;
+      case SCALED:
+        semiring = scaled;
+        break;
+      default:
+        semiring = viterbi;
+    }
+    iScoreB.reset(length);
+    iScoreU.reset(length);
+    oScoreB.reset(length);
+    oScoreU.reset(length);
+    int cells = (int) ChartScores.numCells(length);
+    Arrays.fill(numLive, 0, cells, 0);
+    Arrays.fill(liveBits, 0, cells * liveWords, 0L);
+    for (int start = 0; start < length; start++) {
+      Arrays.fill(iMax[start], Double.NEGATIVE_INFINITY);
+      Arrays.fill(oMax[start], Double.NEGATIVE_INFINITY);
+      Arrays.fill(iExp[start], ScaledSemiring.NONE);
+      Arrays.fill(oExp[start], ScaledSemiring.NONE);
+    }
+    initializeChart();
+    doInsideScores();
+    logZ = (goal < 0) ? Double.NEGATIVE_INFINITY : iScoreU.get(0, length, goal);
+    if ( ! hasParse()) {
+      if (op.testOptions.doRecovery && ! floodTags) {
+        floodTags = true;
+        return parse(sentence);
+      }
+      return false;
+    }
+    doOutsideScores();
+    return true;
+  }
+
+  public boolean hasParse() {
+    return logZ > Double.NEGATIVE_INFINITY;
+  }
+
+  /** The inside score of the goal over the whole sentence: the log
+   *  probability of the sentence with LOG_SUM (unary chains counted by
+   *  their best closed chain), and that of its best parse with VITERBI.
+   */
+  public double getBestScore() {
+    return logZ;
+  }
+
+  @Override
+  public Tree getBestParse() {
+    if (op.testOptions.pcfgDecoder == TestOptions.Decoder.MAX_CONSTITUENT) {
+      return getMaxConstituentParse();
+    }
+    return getMaxRuleProductParse();
+  }
+
+  /** Whether (start, end) is a cell of the chart: the cells containing the
+   *  boundary, which ends the sentence, are just its own and the whole
+   *  sentence's.
+   */
+  private boolean inChart(int start, int end) {
+    return end < length || end == start + 1 || start == 0;
+  }
+
+  /** The number of cell (start, end) of the sentence being parsed, which
+   *  indexes its live states.
+   */
+  private int cellNumber(int start, int end) {
+    return ChartScores.cellNumber(length, start, end);
+  }
+
+  /** The index in liveStates of the first live state of (start, end). */
+  private int liveFirst(int start, int end) {
+    return cellNumber(start, end) * numStates;
+  }
+
+  /** The index in liveStates just after the live states of (start, end). */
+  private int liveEnd(int start, int end) {
+    int c = cellNumber(start, end);
+    return c * numStates + numLive[c];
+  }
+
+  private void createArrays(int length) {
+    TestOptions.ChartStorage storage = op.testOptions.chartStorage;
+    float fill = Float.NEGATIVE_INFINITY;
+    iScoreB = ChartScores.create(storage, length, numStates, fill);
+    iScoreU = ChartScores.create(storage, length, numStates, fill);
+    oScoreB = ChartScores.create(storage, length, numStates, fill);
+    oScoreU = ChartScores.create(storage, length, numStates, fill);
+    bestB = ChartScores.create(storage, length, numStates, fill);
+    bestU = ChartScores.create(storage, length, numStates, fill);
+    binaryBack = new ChartBackPointers(length, numStates);
+    unaryBack = new ChartBackPointers(length, numStates);
+    long cells = ChartScores.numCells(length);
+    if (cells * numStates > Integer.MAX_VALUE) {
+      throw new OutOfMemoryError("Live states of " + cells + " cells exceed a single array.");
+    }
+    liveStates = new int[(int) cells * numStates];
+    numLive = new int[(int) cells];
+    liveBits = new long[(int) cells * liveWords];
+    iMax = new double[length][length + 1];
+    oMax = new double[length][length + 1];
+    iExp = new int[length][length + 1];
+    oExp = new int[length][length + 1];
+    scaledIU = new double[length][length + 1][];
+    scaledOB = new double[length][length + 1][];
+    arraySize = length;
+  }
+
+  /** Put the taggings of each word in the B scores of its cell. */
+  private void initializeChart() {
+    sentenceWords.clear();
+    for (int start = 0; start < length; start++) {
+      HasWord hasWord = sentence.get(start);
+      String wordStr = hasWord.word();
+      int word = sentenceWords.indexOf(wordStr);
+      String trueTagStr = (hasWord instanceof HasTag) ? ((HasTag) hasWord).tag() : null;
+      if ("".equals(trueTagStr)) {
+        trueTagStr = null;
+      }
+      Arrays.fill(cellB, Float.NEGATIVE_INFINITY);
+      for (Iterator<IntTaggedWord> taggingI = lex.ruleIteratorByWord(word, start, null); taggingI.hasNext(); ) {
+        IntTaggedWord tagging = taggingI.next();
+        int state = stateIndex.indexOf(tagIndex.get(tagging.tag));
+        if (state < 0) {
+          continue;
+        }
+        if (trueTagStr != null && ! tlp.basicCategory(tagging.tagString(tagIndex)).equals(trueTagStr)) {
+          continue;
+        }
+        float lexScore = lex.score(tagging, start, wordStr, null);
+        if (lexScore > cellB[state]) {
+          cellB[state] = lexScore;
+        }
+      }
+      if (floodTags && ! Lexicon.BOUNDARY.equals(wordStr)) {
+        // as in ExhaustivePCFGParser's recovery parse
+        for (int state = 0; state < numStates; state++) {
+          if (isTag[state] && cellB[state] == Float.NEGATIVE_INFINITY) {
+            cellB[state] = -1000.0f;
+          }
+        }
+      }
+      if (op.dcTags) {
+        // tag multi-counting, as in ExhaustivePCFGParser, so that the
+        // VITERBI semiring gives its scores
+        for (int state = 0; state < numStates; state++) {
+          if (isTag[state]) {
+            cellB[state] = (float) (cellB[state] * (1.0 + op.testOptions.depWeight));
+          }
+        }
+      }
+      semiring.insideTags();
+      closeCell(start, start + 1);
+    }
+  }
+
+  private void doInsideScores() {
+    for (int diff = 2; diff <= length; diff++) {
+      for (int start = 0; start + diff <= length; start++) {
+        int end = start + diff;
+        if ( ! inChart(start, end)) {
+          continue;
+        }
+        Arrays.fill(cellB, Float.NEGATIVE_INFINITY);
+        semiring.insideBinaries(start, end);
+        closeCell(start, end);
+      }
+    }
+  }
+
+  /** Apply the unary rules to the B scores of a cell, in cellB, and store
+   *  the cell's scores and live states.
+   */
+  private void closeCell(int start, int end) {
+    final int[] live = liveStates;
+    final int c = cellNumber(start, end);
+    final int first = c * numStates;
+    int count = first;
+    for (int state = 0; state < numStates; state++) {
+      if (cellB[state] != Float.NEGATIVE_INFINITY) {
+        live[count++] = state;
+      }
+    }
+    semiring.insideUnaries(first, count);
+    count = first;
+    final long[] bits = liveBits;
+    final int cellBits = c * liveWords;
+    Arrays.fill(bits, cellBits, cellBits + liveWords, 0L);
+    for (int state = 0; state < numStates; state++) {
+      if (cellU[state] != Float.NEGATIVE_INFINITY) {
+        live[count++] = state;
+        bits[cellBits + (state >>> 6)] |= 1L << state;
+        iScoreB.set(start, end, state, cellB[state]);
+        iScoreU.set(start, end, state, cellU[state]);
+      }
+    }
+    numLive[c] = count - first;
+    semiring.finishInside(start, end);
+  }
+
+  private void doOutsideScores() {
+    for (int diff = length; diff >= 1; diff--) {
+      for (int start = 0; start + diff <= length; start++) {
+        int end = start + diff;
+        if ( ! inChart(start, end) || numLive[cellNumber(start, end)] == 0) {
+          continue;
+        }
+        Arrays.fill(cellU, Float.NEGATIVE_INFINITY);
+        if (diff == length) {
+          semiring.outsideGoal();
+        } else {
+          semiring.outsideBinaries(start, end);
+        }
+        int from = liveFirst(start, end);
+        int to = liveEnd(start, end);
+        semiring.outsideUnaries(from, to);
+        for (int i = from; i < to; i++) {
+          int state = liveStates[i];
+          oScoreU.set(start, end, state, cellU[state]);
+          oScoreB.set(start, end, state, cellB[state]);
+        }
+        semiring.finishOutside(start, end);
+      }
+    }
+  }
+
+
+  /**
+   * The chart loops of one semiring.  All scores are log scores; the
+   * semirings differ in how they add up the scores of alternatives.
+   */
+  private abstract class Semiring {
+
+    /** Called when cellB holds the taggings of a word, before its unary
+     *  rules are applied.
+     */
+    void insideTags() {
+    }
+
+    /** Combine the cells below (start, end) into cellB, which is -Inf. */
+    abstract void insideBinaries(int start, int end);
+
+    /** Set cellU to cellB plus the unary rules over the live states of
+     *  cellB, in liveStates from from to to.
+     */
+    abstract void insideUnaries(int from, int to);
+
+    /** Called when cell (start, end) has its inside scores. */
+    void finishInside(int start, int end) {
+    }
+
+    /** Set cellU, which is -Inf, to the outside scores of the U states of
+     *  (start, end) from the cells it is a left or right child in.
+     */
+    abstract void outsideBinaries(int start, int end);
+
+    /** Set cellU, which is -Inf, to the outside scores of the U states of
+     *  the whole sentence: 0 for the goal.
+     */
+    void outsideGoal() {
+      cellU[goal] = 0.0f;
+    }
+
+    /** Set cellB to the outside scores of the B states from cellU, over
+     *  the live states of the cell, in liveStates from from to to.
+     */
+    abstract void outsideUnaries(int from, int to);
+
+    /** Called when cell (start, end) has its outside scores. */
+    void finishOutside(int start, int end) {
+    }
+
+  } // end class Semiring
+
+
+  /** The (max, +) semiring. */
+  private final class ViterbiSemiring extends Semiring {
+
+    @Override
+    void insideBinaries(int start, int end) {
+      final float[] cell = cellB;
+      final BinaryRuleTable rules = bg.ruleTableByLC();
+      final int[] offsets = rules.offsets;
+      final int[] parents = rules.parent;
+      final int[] rightChildren = rules.right;
+      final float[] scores = rules.score;
+      for (int split = start + 1; split < end; split++) {
+        int rightBits = cellNumber(split, end) * liveWords;
+        for (int i = liveFirst(start, split), iEnd = liveEnd(start, split); i < iEnd; i++) {
+          int leftState = liveStates[i];
+          float lS = iScoreU.get(start, split, leftState);
+          for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+            int rightChild = rightChildren[r];
+            if ((liveBits[rightBits + (rightChild >>> 6)] & (1L << rightChild)) == 0) {
+              continue;
+            }
+            float tot = scores[r] + lS + iScoreU.get(split, end, rightChild);
+            if (tot > cell[parents[r]]) {
+              cell[parents[r]] = tot;
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    void insideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      System.arraycopy(cellB, 0, cellU, 0, numStates);
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        float iS = cellB[state];
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          float tot = iS + unaries.score[r];
+          if (tot > cellU[unaries.parent[r]]) {
+            cellU[unaries.parent[r]] = tot;
+          }
+        }
+      }
+    }
+
+    @Override
+    void outsideBinaries(int start, int end) {
+      final float[] cell = cellU;
+      final int[] live = liveStates;
+      final int from = liveFirst(start, end);
+      final int to = liveEnd(start, end);
+      // as a left child of (start, parentEnd)
+      final BinaryRuleTable byLeft = bg.ruleTableByLC();
+      for (int parentEnd = end + 1; parentEnd <= length; parentEnd++) {
+        if ( ! inChart(start, parentEnd) || numLive[cellNumber(start, parentEnd)] == 0) {
+          continue;
+        }
+        int rightBits = cellNumber(end, parentEnd) * liveWords;
+        for (int i = from; i < to; i++) {
+          int leftState = live[i];
+          for (int r = byLeft.offsets[leftState], rMax = byLeft.offsets[leftState + 1]; r < rMax; r++) {
+            int rightChild = byLeft.right[r];
+            if ((liveBits[rightBits + (rightChild >>> 6)] & (1L << rightChild)) == 0) {
+              continue;
+            }
+            float oS = oScoreB.get(start, parentEnd, byLeft.parent[r]);
+            if (oS == Float.NEGATIVE_INFINITY) {
+              continue;
+            }
+            float tot = oS + byLeft.score[r] + iScoreU.get(end, parentEnd, rightChild);
+            if (tot > cell[leftState]) {
+              cell[leftState] = tot;
+            }
+          }
+        }
+      }
+      // as a right child of (parentStart, end)
+      final BinaryRuleTable byRight = bg.ruleTableByRC();
+      for (int parentStart = start - 1; parentStart >= 0; parentStart--) {
+        if (numLive[cellNumber(parentStart, end)] == 0) {
+          continue;
+        }
+        int leftBits = cellNumber(parentStart, start) * liveWords;
+        for (int i = from; i < to; i++) {
+          int rightState = live[i];
+          for (int r = byRight.offsets[rightState], rMax = byRight.offsets[rightState + 1]; r < rMax; r++) {
+            int leftChild = byRight.left[r];
+            if ((liveBits[leftBits + (leftChild >>> 6)] & (1L << leftChild)) == 0) {
+              continue;
+            }
+            float oS = oScoreB.get(parentStart, end, byRight.parent[r]);
+            if (oS == Float.NEGATIVE_INFINITY) {
+              continue;
+            }
+            float tot = oS + byRight.score[r] + iScoreU.get(parentStart, start, leftChild);
+            if (tot > cell[rightState]) {
+              cell[rightState] = tot;
+            }
+          }
+        }
+      }
+    }
+
+    @Override
+    void outsideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        float oS = cellU[state];
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          float tot = cellU[unaries.parent[r]] + unaries.score[r];
+          if (tot > oS) {
+            oS = tot;
+          }
+        }
+        cellB[state] = oS;
+      }
+    }
+
+  } // end class ViterbiSemiring
+
+
+  /** The (log-sum-exp, +) semiring, summed in probability space. */
+  private final class LogSumSemiring extends Semiring {
+
+    @Override
+    void insideBinaries(int start, int end) {
+      double ref = Double.NEGATIVE_INFINITY;
+      for (int split = start + 1; split < end; split++) {
+        ref = Math.max(ref, iMax[start][split] + iMax[split][end]);
+      }
+      if (ref == Double.NEGATIVE_INFINITY) {
+        return;
+      }
+      final double[] sum = sums;
+      Arrays.fill(sum, 0.0);
+      final BinaryRuleTable rules = bg.ruleTableByLC();
+      final int[] offsets = rules.offsets;
+      final int[] parents = rules.parent;
+      final int[] rightChildren = rules.right;
+      final double[] probs = probByLC;
+      for (int split = start + 1; split < end; split++) {
+        double scale = iMax[start][split] + iMax[split][end];
+        if (scale == Double.NEGATIVE_INFINITY) {
+          continue;
+        }
+        double factor = Math.exp(scale - ref);
+        double[] left = scaledIU[start][split];
+        double[] right = scaledIU[split][end];
+        for (int i = liveFirst(start, split), iEnd = liveEnd(start, split); i < iEnd; i++) {
+          int leftState = liveStates[i];
+          double lS = factor * left[leftState];
+          for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+            // zero unless the right child is live
+            sum[parents[r]] += probs[r] * lS * right[rightChildren[r]];
+          }
+        }
+      }
+      toLog(sum, ref, cellB);
+    }
+
+    @Override
+    void insideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      if (from == to) {
+        Arrays.fill(cellU, Float.NEGATIVE_INFINITY);
+        return;
+      }
+      float max = Float.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        max = Math.max(max, cellB[live[i]]);
+      }
+      final double[] sum = sums;
+      Arrays.fill(sum, 0.0);
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        double iS = Math.exp(cellB[state] - max);
+        sum[state] += iS;
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          sum[unaries.parent[r]] += iS * unaryProb[r];
+        }
+      }
+      toLog(sum, max, cellU);
+    }
+
+    @Override
+    void finishInside(int start, int end) {
+      iMax[start][end] = maxAndScale(liveFirst(start, end), liveEnd(start, end), cellU,
+          scaledIU, start, end);
+    }
+
+    @Override
+    void outsideBinaries(int start, int end) {
+      // the largest product of the outside score of a parent cell and the
+      // inside score of the sibling cell
+      double ref = Double.NEGATIVE_INFINITY;
+      for (int parentEnd = end + 1; parentEnd <= length; parentEnd++) {
+        if (inChart(start, parentEnd) && numLive[cellNumber(start, parentEnd)] > 0) {
+          ref = Math.max(ref, oMax[start][parentEnd] + iMax[end][parentEnd]);
+        }
+      }
+      for (int parentStart = start - 1; parentStart >= 0; parentStart--) {
+        if (numLive[cellNumber(parentStart, end)] > 0) {
+          ref = Math.max(ref, oMax[parentStart][end] + iMax[parentStart][start]);
+        }
+      }
+      if (ref == Double.NEGATIVE_INFINITY) {
+        return;
+      }
+      final double[] sum = sums;
+      Arrays.fill(sum, 0.0);
+      final int[] live = liveStates;
+      final int from = liveFirst(start, end);
+      final int to = liveEnd(start, end);
+      final BinaryRuleTable byLeft = bg.ruleTableByLC();
+      for (int parentEnd = end + 1; parentEnd <= length; parentEnd++) {
+        if ( ! inChart(start, parentEnd) || numLive[cellNumber(start, parentEnd)] == 0) {
+          continue;
+        }
+        double scale = oMax[start][parentEnd] + iMax[end][parentEnd];
+        if (scale == Double.NEGATIVE_INFINITY) {
+          continue;
+        }
+        double factor = Math.exp(scale - ref);
+        double[] parentOut = scaledOB[start][parentEnd];
+        double[] right = scaledIU[end][parentEnd];
+        for (int i = from; i < to; i++) {
+          int leftState = live[i];
+          double s = 0.0;
+          for (int r = byLeft.offsets[leftState], rMax = byLeft.offsets[leftState + 1]; r < rMax; r++) {
+            s += probByLC[r] * parentOut[byLeft.parent[r]] * right[byLeft.right[r]];
+          }
+          sum[leftState] += factor * s;
+        }
+      }
+      final BinaryRuleTable byRight = bg.ruleTableByRC();
+      for (int parentStart = start - 1; parentStart >= 0; parentStart--) {
+        if (numLive[cellNumber(parentStart, end)] == 0) {
+          continue;
+        }
+        double scale = oMax[parentStart][end] + iMax[parentStart][start];
+        if (scale == Double.NEGATIVE_INFINITY) {
+          continue;
+        }
+        double factor = Math.exp(scale - ref);
+        double[] parentOut = scaledOB[parentStart][end];
+        double[] left = scaledIU[parentStart][start];
+        for (int i = from; i < to; i++) {
+          int rightState = live[i];
+          double s = 0.0;
+          for (int r = byRight.offsets[rightState], rMax = byRight.offsets[rightState + 1]; r < rMax; r++) {
+            s += probByRC[r] * parentOut[byRight.parent[r]] * left[byRight.left[r]];
+          }
+          sum[rightState] += factor * s;
+        }
+      }
+      toLog(sum, ref, cellU);
+    }
+
+    @Override
+    void outsideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      float max = Float.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        max = Math.max(max, cellU[live[i]]);
+      }
+      if (max == Float.NEGATIVE_INFINITY) {
+        Arrays.fill(cellB, Float.NEGATIVE_INFINITY);
+        return;
+      }
+      final double[] sum = sums;
+      for (int i = from; i < to; i++) {
+        sum[live[i]] = Math.exp(cellU[live[i]] - max);
+      }
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      Arrays.fill(cellB, Float.NEGATIVE_INFINITY);
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        double oS = sum[state];
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          oS += unaryProb[r] * sum[unaries.parent[r]];
+        }
+        cellB[state] = (oS > 0.0) ? (float) (max + Math.log(oS)) : Float.NEGATIVE_INFINITY;
+      }
+    }
+
+    @Override
+    void finishOutside(int start, int end) {
+      oMax[start][end] = maxAndScale(liveFirst(start, end), liveEnd(start, end), cellB,
+          scaledOB, start, end);
+    }
+
+    /** Set dest to ref plus the logs of sum, where positive. */
+    private void toLog(double[] sum, double ref, float[] dest) {
+      for (int state = 0; state < numStates; state++) {
+        dest[state] = (sum[state] > 0.0) ? (float) (ref + Math.log(sum[state])) : Float.NEGATIVE_INFINITY;
+      }
+    }
+
+    /** Store the live scores of a cell as probabilities relative to the
+     *  largest, which is returned; dead states get 0.
+     */
+    private double maxAndScale(int from, int to, float[] cell, double[][][] scaled, int start, int end) {
+      final int[] live = liveStates;
+      double[] dest = scaled[start][end];
+      if (dest == null) {
+        dest = scaled[start][end] = new double[numStates];
+      } else {
+        Arrays.fill(dest, 0.0);
+      }
+      float max = Float.NEGATIVE_INFINITY;
+      for (int i = from; i < to; i++) {
+        max = Math.max(max, cell[live[i]]);
+      }
+      if (max == Float.NEGATIVE_INFINITY) {
+        return Double.NEGATIVE_INFINITY;
+      }
+      for (int i = from; i < to; i++) {
+        dest[live[i]] = Math.exp(cell[live[i]] - max);
+      }
+      return max;
+    }
+
+  } // end class LogSumSemiring
+
+
+  /**
+   * The (+, x) semiring in probability space, as in the Berkeley parser.
+   * The inside (U) and outside (B) probabilities of a cell are stored
+   * scaled by 2^-exponent, with one integer exponent per cell and layer
+   * chosen so that the largest is in [1, 2).  The product of two cells
+   * has the sum of their exponents, and the sum over splits is brought to
+   * the largest of them by a power of two made from its exponent bits, so
+   * the chart loops take no exp or log.  Each item's log score is taken
+   * once, when its cell is finished and rescaled, for the charts the
+   * posteriors and decoders read.  As those logs are also taken by
+   * LOG_SUM, this semiring saves only LOG_SUM's exps, and is about as fast.
+   */
+  private final class ScaledSemiring extends Semiring {
+
+    /** The exponent of a cell whose probabilities are all 0. */
+    static final int NONE = Integer.MIN_VALUE / 4;
+
+    private static final double LN_2 = 0.6931471805599453;
+
+    // the cell being computed: its B and U probabilities, scaled by
+    // 2^-expB and 2^-expU; a finished cell keeps its array, and the array
+    // it replaces is reused
+    private double[] probB = new double[numStates];
+    private double[] probU = new double[numStates];
+    private int expB;
+    private int expU;
+
+    @Override
+    void insideTags() {
+      float max = Float.NEGATIVE_INFINITY;
+      for (int state = 0; state < numStates; state++) {
+        if (cellB[state] > max) {
+          max = cellB[state];
+        }
+      }
+      Arrays.fill(probB, 0.0);
+      if (max == Float.NEGATIVE_INFINITY) {
+        expB = NONE;
+        return;
+      }
+      expB = (int) Math.floor(max / LN_2);
+      for (int state = 0; state < numStates; state++) {
+        if (cellB[state] != Float.NEGATIVE_INFINITY) {
+          probB[state] = Math.exp(cellB[state] - expB * LN_2);
+        }
+      }
+    }
+
+    @Override
+    void insideBinaries(int start, int end) {
+      Arrays.fill(probB, 0.0);
+      int ref = NONE;
+      for (int split = start + 1; split < end; split++) {
+        if (numLive[cellNumber(start, split)] > 0 && numLive[cellNumber(split, end)] > 0) {
+          ref = Math.max(ref, iExp[start][split] + iExp[split][end]);
+        }
+      }
+      expB = ref;
+      if (ref == NONE) {
+        return;
+      }
+      final double[] sum = probB;
+      final BinaryRuleTable rules = bg.ruleTableByLC();
+      final int[] offsets = rules.offsets;
+      final int[] parents = rules.parent;
+      final int[] rightChildren = rules.right;
+      final double[] probs = probByLC;
+      for (int split = start + 1; split < end; split++) {
+        if (numLive[cellNumber(start, split)] == 0 || numLive[cellNumber(split, end)] == 0) {
+          continue;
+        }
+        double factor = pow2(iExp[start][split] + iExp[split][end] - ref);
+        if (factor == 0.0) {
+          continue;
+        }
+        double[] left = scaledIU[start][split];
+        double[] right = scaledIU[split][end];
+        for (int i = liveFirst(start, split), iEnd = liveEnd(start, split); i < iEnd; i++) {
+          int leftState = liveStates[i];
+          double lS = factor * left[leftState];
+          for (int r = offsets[leftState], rMax = offsets[leftState + 1]; r < rMax; r++) {
+            // zero unless the right child is live
+            sum[parents[r]] += probs[r] * lS * right[rightChildren[r]];
+          }
+        }
+      }
+      toLog(probB, expB, cellB);
+    }
+
+    @Override
+    void insideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      System.arraycopy(probB, 0, probU, 0, numStates);
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        double iS = probB[state];
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          probU[unaries.parent[r]] += iS * unaryProb[r];
+        }
+      }
+      expU = toLogAndRescale(probU, expB, cellU);
+    }
+
+    @Override
+    void finishInside(int start, int end) {
+      iExp[start][end] = expU;
+      double[] old = scaledIU[start][end];
+      scaledIU[start][end] = probU;
+      probU = (old != null) ? old : new double[numStates];
+    }
+
+    @Override
+    void outsideGoal() {
+      super.outsideGoal();
+      Arrays.fill(probU, 0.0);
+      probU[goal] = 1.0;
+      expU = 0;
+    }
+
+    @Override
+    void outsideBinaries(int start, int end) {
+      Arrays.fill(probU, 0.0);
+      // the largest product of the outside scale of a parent cell and the
+      // inside scale of the sibling cell
+      int ref = NONE;
+      for (int parentEnd = end + 1; parentEnd <= length; parentEnd++) {
+        if (inChart(start, parentEnd) && oExp[start][parentEnd] != NONE && numLive[cellNumber(end, parentEnd)] > 0) {
+          ref = Math.max(ref, oExp[start][parentEnd] + iExp[end][parentEnd]);
+        }
+      }
+      for (int parentStart = start - 1; parentStart >= 0; parentStart--) {
+        if (oExp[parentStart][end] != NONE && numLive[cellNumber(parentStart, start)] > 0) {
+          ref = Math.max(ref, oExp[parentStart][end] + iExp[parentStart][start]);
+        }
+      }
+      expU = ref;
+      if (ref == NONE) {
+        return;
+      }
+      final double[] sum = probU;
+      final int[] live = liveStates;
+      final int from = liveFirst(start, end);
+      final int to = liveEnd(start, end);
+      final BinaryRuleTable byLeft = bg.ruleTableByLC();
+      for (int parentEnd = end + 1; parentEnd <= length; parentEnd++) {
+        if ( ! inChart(start, parentEnd) || oExp[start][parentEnd] == NONE || numLive[cellNumber(end, parentEnd)] == 0) {
+          continue;
+        }
+        double factor = pow2(oExp[start][parentEnd] + iExp[end][parentEnd] - ref);
+        if (factor == 0.0) {
+          continue;
+        }
+        double[] parentOut = scaledOB[start][parentEnd];
+        double[] right = scaledIU[end][parentEnd];
+        for (int i = from; i < to; i++) {
+          int leftState = live[i];
+          double s = 0.0;
+          for (int r = byLeft.offsets[leftState], rMax = byLeft.offsets[leftState + 1]; r < rMax; r++) {
+            s += probByLC[r] * parentOut[byLeft.parent[r]] * right[byLeft.right[r]];
+          }
+          sum[leftState] += factor * s;
+        }
+      }
+      final BinaryRuleTable byRight = bg.ruleTableByRC();
+      for (int parentStart = start - 1; parentStart >= 0; parentStart--) {
+        if (oExp[parentStart][end] == NONE || numLive[cellNumber(parentStart, start)] == 0) {
+          continue;
+        }
+        double factor = pow2(oExp[parentStart][end] + iExp[parentStart][start] - ref);
+        if (factor == 0.0) {
+          continue;
+        }
+        double[] parentOut = scaledOB[parentStart][end];
+        double[] left = scaledIU[parentStart][start];
+        for (int i = from; i < to; i++) {
+          int rightState = live[i];
+          double s = 0.0;
+          for (int r = byRight.offsets[rightState], rMax = byRight.offsets[rightState + 1]; r < rMax; r++) {
+            s += probByRC[r] * parentOut[byRight.parent[r]] * left[byRight.left[r]];
+          }
+          sum[rightState] += factor * s;
+        }
+      }
+      toLog(probU, expU, cellU);
+    }
+
+    @Override
+    void outsideUnaries(int from, int to) {
+      final int[] live = liveStates;
+      Arrays.fill(probB, 0.0);
+      final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+      for (int i = from; i < to; i++) {
+        int state = live[i];
+        double oS = probU[state];
+        for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+          oS += unaryProb[r] * probU[unaries.parent[r]];
+        }
+        probB[state] = oS;
+      }
+      expB = toLogAndRescale(probB, expU, cellB);
+    }
+
+    @Override
+    void finishOutside(int start, int end) {
+      oExp[start][end] = expB;
+      double[] old = scaledOB[start][end];
+      scaledOB[start][end] = probB;
+      probB = (old != null) ? old : new double[numStates];
+    }
+
+    /** Set dest to the log scores of prob, of exponent exp, and scale prob
+     *  so that its largest value is in [1, 2); its new exponent, or NONE
+     *  if it is all 0.
+     */
+    private int toLogAndRescale(double[] prob, int exp, float[] dest) {
+      double max = 0.0;
+      for (int state = 0; state < numStates; state++) {
+        if (prob[state] > max) {
+          max = prob[state];
+        }
+      }
+      if (max == 0.0) {
+        Arrays.fill(dest, Float.NEGATIVE_INFINITY);
+        return NONE;
+      }
+      int shift = Math.getExponent(max);
+      double factor = pow2(-shift);
+      double offset = exp * LN_2;
+      for (int state = 0; state < numStates; state++) {
+        double p = prob[state];
+        if (p > 0.0) {
+          dest[state] = (float) (Math.log(p) + offset);
+          prob[state] = p * factor;
+        } else {
+          dest[state] = Float.NEGATIVE_INFINITY;
+        }
+      }
+      return exp + shift;
+    }
+
+    /** 2^e, as Math.scalb(1.0, e) gives it, by its bits where it is a
+     *  normal double.
+     */
+    private double pow2(int e) {
+      if (e < Double.MIN_EXPONENT || e > Double.MAX_EXPONENT) {
+        return Math.scalb(1.0, e);
+      }
+      return Double.longBitsToDouble((long) (e + Double.MAX_EXPONENT) << 52);
+    }
+
+    /** Set dest to the log scores of prob, of exponent exp. */
+    private void toLog(double[] prob, int exp, float[] dest) {
+      for (int state = 0; state < numStates; state++) {
+        dest[state] = (prob[state] > 0.0) ? (float) (Math.log(prob[state]) + exp * LN_2) : Float.NEGATIVE_INFINITY;
+      }
+    }
+
+  } // end class ScaledSemiring
+
+
+  /**
+   * The posterior of state over [start, end): the larger of the posteriors
+   * of its B and U items, as a node of the state over the span is one of
+   * them or both.  0 if there is no parse.
+   */
+  public double spanPosterior(int start, int end, int state) {
+    if ( ! hasParse() || ! inChart(start, end)) {
+      return 0.0;
+    }
+    double b = iScoreB.get(start, end, state) + oScoreB.get(start, end, state);
+    double u = iScoreU.get(start, end, state) + oScoreU.get(start, end, state);
+    return Math.exp(Math.max(b, u) - logZ);
+  }
+
+  /** The posterior of binary rule r of bg.ruleTableByLC() over [start,
+   *  end) split at split.
+   */
+  public double binaryRulePosterior(int start, int split, int end, int r) {
+    if ( ! hasParse() || ! inChart(start, end)) {
+      return 0.0;
+    }
+    return Math.exp(logBinaryPosterior(start, split, end, r));
+  }
+
+  /** The posterior of closed unary rule r of ug.closedRuleTableByChild()
+   *  over [start, end).
+   */
+  public double unaryRulePosterior(int start, int end, int r) {
+    if ( ! hasParse() || ! inChart(start, end)) {
+      return 0.0;
+    }
+    return Math.exp(logUnaryPosterior(start, end, r));
+  }
+
+  private double logBinaryPosterior(int start, int split, int end, int r) {
+    BinaryRuleTable rules = bg.ruleTableByLC();
+    return oScoreB.get(start, end, rules.parent[r]) + rules.score[r]
+        + iScoreU.get(start, split, rules.left[r]) + iScoreU.get(split, end, rules.right[r]) - logZ;
+  }
+
+  private double logUnaryPosterior(int start, int end, int r) {
+    UnaryRuleTable unaries = ug.closedRuleTableByChild();
+    return oScoreU.get(start, end, unaries.parent[r]) + unaries.score[r]
+        + iScoreB.get(start, end, unaries.child[r]) - logZ;
+  }
+
+
+  /**
+   * The tree, licensed by the grammar, with the largest product of the
+   * posteriors of its anchored rules and tags; null if there is no parse.
+   */
+  public Tree getMaxRuleProductParse() {
+    if ( ! hasParse()) {
+      return null;
+    }
+    bestB.reset(length);
+    bestU.reset(length);
+    binaryBack.reset(length);
+    unaryBack.reset(length);
+    for (int diff = 1; diff <= length; diff++) {
+      for (int start = 0; start + diff <= length; start++) {
+        int end = start + diff;
+        if ( ! inChart(start, end) || numLive[cellNumber(start, end)] == 0) {
+          continue;
+        }
+        if (diff == 1) {
+          decodeTags(start, end);
+        } else {
+          decodeBinaries(start, end);
+        }
+        decodeUnaries(start, end);
+      }
+    }
+    if (bestU.get(0, length, goal) == Float.NEGATIVE_INFINITY) {
+      return null;
+    }
+    return maxRuleProductTree(goal, 0, length);
+  }
+
+  private void decodeTags(int start, int end) {
+    int back = binaryBack.cell(start, end);
+    int[] live = liveStates;
+    for (int i = liveFirst(start, end), iEnd = liveEnd(start, end); i < iEnd; i++) {
+      int state = live[i];
+      binaryBack.setNone(back + state);
+      if (isTag[state]) {
+        float post = (float) (iScoreB.get(start, end, state) + oScoreB.get(start, end, state) - logZ);
+        if (post > Float.NEGATIVE_INFINITY) {
+          bestB.set(start, end, state, post);
+        }
+      }
+    }
+  }
+
+  private void decodeBinaries(int start, int end) {
+    final float[] cell = cellB;
+    Arrays.fill(cell, Float.NEGATIVE_INFINITY);
+    final int back = binaryBack.cell(start, end);
+    final BinaryRuleTable rules = bg.ruleTableByLC();
+    final float z = (float) logZ;
+    for (int split = start + 1; split < end; split++) {
+      int rightBits = cellNumber(split, end) * liveWords;
+      for (int i = liveFirst(start, split), iEnd = liveEnd(start, split); i < iEnd; i++) {
+        int leftState = liveStates[i];
+        float lBest = bestU.get(start, split, leftState);
+        if (lBest == Float.NEGATIVE_INFINITY) {
+          continue;
+        }
+        float lS = iScoreU.get(start, split, leftState) - z + lBest;
+        for (int r = rules.offsets[leftState], rMax = rules.offsets[leftState + 1]; r < rMax; r++) {
+          int rightChild = rules.right[r];
+          if ((liveBits[rightBits + (rightChild >>> 6)] & (1L << rightChild)) == 0) {
+            continue;
+          }
+          float rBest = bestU.get(split, end, rightChild);
+          float oS = oScoreB.get(start, end, rules.parent[r]);
+          if (rBest == Float.NEGATIVE_INFINITY || oS == Float.NEGATIVE_INFINITY) {
+            continue;
+          }
+          float tot = oS + rules.score[r] + lS + iScoreU.get(split, end, rightChild) + rBest;
+          if (tot > cell[rules.parent[r]]) {
+            cell[rules.parent[r]] = tot;
+            binaryBack.setBinary(back + rules.parent[r], r, split);
+          }
+        }
+      }
+    }
+    int[] live = liveStates;
+    for (int i = liveFirst(start, end), iEnd = liveEnd(start, end); i < iEnd; i++) {
+      int state = live[i];
+      if (cell[state] > Float.NEGATIVE_INFINITY) {
+        bestB.set(start, end, state, cell[state]);
+      } else {
+        binaryBack.setNone(back + state);
+      }
+    }
+  }
+
+  private void decodeUnaries(int start, int end) {
+    final int back = unaryBack.cell(start, end);
+    final UnaryRuleTable unaries = ug.closedRuleTableByChild();
+    final int[] live = liveStates;
+    final int from = liveFirst(start, end);
+    final int to = liveEnd(start, end);
+    for (int i = from; i < to; i++) {
+      int state = live[i];
+      cellU[state] = bestB.get(start, end, state);
+      unaryBack.setNone(back + state);
+    }
+    for (int i = from; i < to; i++) {
+      int state = live[i];
+      float cBest = bestB.get(start, end, state);
+      if (cBest == Float.NEGATIVE_INFINITY) {
+        continue;
+      }
+      float cS = iScoreB.get(start, end, state) - (float) logZ + cBest;
+      for (int r = unaries.offsets[state], rMax = unaries.offsets[state + 1]; r < rMax; r++) {
+        int parentState = unaries.parent[r];
+        float tot = oScoreU.get(start, end, parentState) + unaries.score[r] + cS;
+        if (tot > cellU[parentState]) {
+          cellU[parentState] = tot;
+          unaryBack.setUnary(back + parentState, r);
+        }
+      }
+    }
+    for (int i = from; i < to; i++) {
+      int state = live[i];
+      if (cellU[state] > Float.NEGATIVE_INFINITY) {
+        bestU.set(start, end, state, cellU[state]);
+      }
+    }
+  }
+
+  /** The max-rule-product tree of the U item of state over [start, end). */
+  private Tree maxRuleProductTree(int state, int start, int end) {
+    int rule = unaryBack.rule(unaryBack.cell(start, end) + state);
+    if (rule == ChartBackPointers.NONE) {
+      return maxRuleProductTreeB(state, start, end);
+    }
+    int r = ChartBackPointers.unaryRule(rule);
+    int child = ug.closedRuleTableByChild().child[r];
+    Tree childTree = maxRuleProductTreeB(child, start, end);
+    return unaryChain(r, childTree, 0);
+  }
+
+  /** The max-rule-product tree of the B item of state over [start, end). */
+  private Tree maxRuleProductTreeB(int state, int start, int end) {
+    int back = binaryBack.cell(start, end) + state;
+    int rule = binaryBack.rule(back);
+    if (rule == ChartBackPointers.NONE) {
+      return tagTree(state, start, bestB.get(start, end, state));
+    }
+    BinaryRuleTable rules = bg.ruleTableByLC();
+    int split = binaryBack.split(back);
+    List<Tree> children = new ArrayList<>(2);
+    children.add(maxRuleProductTree(rules.left[rule], start, split));
+    children.add(maxRuleProductTree(rules.right[rule], split, end));
+    Tree result = tf.newTreeNode(stateIndex.get(state), children);
+    result.setScore(bestB.get(start, end, state));
+    return result;
+  }
+
+  /** Expand closed unary rule r into its chain of core rules over childTree. */
+  private Tree unaryChain(int r, Tree childTree, int depth) {
+    int tail = ug.closedRuleTailsByChild()[r];
+    Tree below = (tail >= 0 && depth < numStates) ? unaryChain(tail, childTree, depth + 1) : childTree;
+    return tf.newTreeNode(stateIndex.get(ug.closedRuleTableByChild().parent[r]), Collections.singletonList(below));
+  }
+
+  private Tree tagTree(int tag, int start, double score) {
+    Tree wordNode = tf.newLeaf(sentence.get(start).word());
+    Tree tagNode = tf.newTreeNode(stateIndex.get(tag), Collections.singletonList(wordNode));
+    tagNode.setScore(score);
+    if (tagNode.label() instanceof HasTag) {
+      ((HasTag) tagNode.label()).setTag(tagNode.label().value());
+    }
+    return tagNode;
+  }
+
+
+  /**
+   * The binary tree whose labeled spans have the largest sum of posteriors
+   * (Goodman's labeled recall algorithm).  Each span of two or more words
+   * gets its most probable non-tag state, and each word its most probable
+   * tag, under a unary node of the most probable non-tag state over the
+   * word if that has a posterior over one half.  The whole sentence is
+   * labeled with the goal.  The tree need not be licensed by the grammar.
+   * Null if there is no parse.
+   */
+  public Tree getMaxConstituentParse() {
+    if ( ! hasParse()) {
+      return null;
+    }
+    double[][] best = new double[length][length + 1];
+    int[][] label = new int[length][length + 1];
+    int[][] bestSplit = new int[length][length + 1];
+    for (int diff = 1; diff <= length; diff++) {
+      for (int start = 0; start + diff <= length; start++) {
+        int end = start + diff;
+        best[start][end] = Double.NEGATIVE_INFINITY;
+        if ( ! inChart(start, end) || numLive[cellNumber(start, end)] == 0) {
+          continue;
+        }
+        double labelScore = Double.NEGATIVE_INFINITY;
+        if (diff == length) {
+          label[start][end] = goal;
+          labelScore = spanPosterior(start, end, goal);
+        } else {
+          int[] live = liveStates;
+          for (int i = liveFirst(start, end), iEnd = liveEnd(start, end); i < iEnd; i++) {
+            int state = live[i];
+            if (isTag[state] == (diff == 1)) {
+              double post = spanPosterior(start, end, state);
+              if (post > labelScore) {
+                labelScore = post;
+                label[start][end] = state;
+              }
+            }
+          }
+        }
+        if (diff == 1) {
+          best[start][end] = labelScore;
+          continue;
+        }
+        double bestSplitScore = Double.NEGATIVE_INFINITY;
+        for (int split = start + 1; split < end; split++) {
+          double score = best[start][split] + best[split][end];
+          if (score > bestSplitScore) {
+            bestSplitScore = score;
+            bestSplit[start][end] = split;
+          }
+        }
+        best[start][end] = labelScore + bestSplitScore;
+      }
+    }
+    if (best[0][length] == Double.NEGATIVE_INFINITY) {
+      return null;
+    }
+    return maxConstituentTree(label, bestSplit, 0, length);
+  }
+
+  private Tree maxConstituentTree(int[][] label, int[][] bestSplit, int start, int end) {
+    int state = label[start][end];
+    if (end == start + 1) {
+      Tree tagNode = tagTree(state, start, spanPosterior(start, end, state));
+      double unaryPost = 0.5;
+      int unaryState = -1;
+      int[] live = liveStates;
+      for (int i = liveFirst(start, end), iEnd = liveEnd(start, end); i < iEnd; i++) {
+        if ( ! isTag[live[i]]) {
+          double post = spanPosterior(start, end, live[i]);
+          if (post > unaryPost) {
+            unaryPost = post;
+            unaryState = live[i];
+          }
+        }
+      }
+      if (unaryState < 0) {
+        return tagNode;
+      }
+      Tree result = tf.newTreeNode(stateIndex.get(unaryState), Collections.singletonList(tagNode));
+      result.setScore(unaryPost);
+      return result;
+    }
+    int split = bestSplit[start][end];
+    List<Tree> children = new ArrayList<>(2);
+    children.add(maxConstituentTree(label, bestSplit, start, split));
+    children.add(maxConstituentTree(label, bestSplit, split, end));
+    Tree result = tf.newTreeNode(stateIndex.get(state), children);
+    result.setScore(spanPosterior(start, end, state));
+    return result;
+  }
+
+}
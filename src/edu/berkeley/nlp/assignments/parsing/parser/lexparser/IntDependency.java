@@ -1,5 +1,6 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
 import java.io.Serializable;
@@ -63,6 +64,76 @@ public class IntDependency implements Serializable {
     this.leftHeaded = leftHeaded;
   }
 
+  private static final int WORD_BITS = 20;
+  private static final int TAG_BITS = 10;
+  private static final int DISTANCE_BITS = 3;
+
+  /**
+   * A dependency packed into a long, as the key of a {@link PackedCounter}:
+   * from the high bits, the head and argument words, the head and argument
+   * tags, the direction and the distance, each offset so that the
+   * wildcard and stop ids (and ANY_DISTANCE_INT) are not negative.  So a
+   * word must be less than 2<sup>20</sup> - 2, a tag less than
+   * 2<sup>10</sup> - 2 and a distance at most 6, which a binned one is.
+   *
+   * @throws IllegalArgumentException If a field does not fit
+   */
+  public static long pack(int headWord, int headTag, int argWord, int argTag, boolean leftHeaded, int distance) {
+    long hW = headWord + 2L;
+    long aW = argWord + 2L;
+    long hT = headTag + 2L;
+    long aT = argTag + 2L;
+    long d = distance + 1L;
+    if (((hW | aW) >>> WORD_BITS) != 0 || ((hT | aT) >>> TAG_BITS) != 0 || (d >>> DISTANCE_BITS) != 0) {
+      throw new IllegalArgumentException("Dependency does not pack: " + headWord + '/' + headTag + " -> " +
+          argWord + '/' + argTag + ", distance " + distance);
+    }
+    return (((((((hW << WORD_BITS | aW) << TAG_BITS | hT) << TAG_BITS | aT) << 1) | (leftHeaded ? 1 : 0))
+        << DISTANCE_BITS) | d);
+  }
+
+  public long pack() {
+    return pack(head.word, head.tag, arg.word, arg.tag, leftHeaded, distance);
+  }
+
+  private static IntDependency unpack(long key) {
+    int distance = (int) (key & ((1 << DISTANCE_BITS) - 1)) - 1;
+    key >>>= DISTANCE_BITS;
+    boolean leftHeaded = (key & 1) != 0;
+    key >>>= 1;
+    int argTag = (int) (key & ((1 << TAG_BITS) - 1)) - 2;
+    key >>>= TAG_BITS;
+    int headTag = (int) (key & ((1 << TAG_BITS) - 1)) - 2;
+    key >>>= TAG_BITS;
+    int argWord = (int) (key & ((1 << WORD_BITS) - 1)) - 2;
+    int headWord = (int) (key >>> WORD_BITS) - 2;
+    return new IntDependency(headWord, headTag, argWord, argTag, leftHeaded, distance);
+  }
+
+  private static final PackedCounter.Packing<IntDependency> PACKING = new PackedCounter.Packing<IntDependency>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Class<IntDependency> keyType() {
+      return IntDependency.class;
+    }
+
+    @Override
+    public long pack(IntDependency key) {
+      return key.pack();
+    }
+
+    @Override
+    public IntDependency unpack(long key) {
+      return IntDependency.unpack(key);
+    }
+  };
+
+  /** An empty counter of IntDependencies, stored by their packed longs. */
+  public static PackedCounter<IntDependency> newCounter() {
+    return new PackedCounter<>(PACKING);
+  }
+
   private static final long serialVersionUID = 1L;
 
 } // end class IntDependency
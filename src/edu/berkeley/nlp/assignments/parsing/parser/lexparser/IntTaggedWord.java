@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
 import edu.berkeley.nlp.assignments.parsing.ling.TaggedWord;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
 import java.io.Serializable;
@@ -87,6 +88,39 @@ public class IntTaggedWord implements Serializable, Comparable<IntTaggedWord> {
     }
   }
 
+  /** A word and tag packed into a long, as the key of a {@link PackedCounter}. */
+  public static long pack(int word, int tag) {
+    return ((long) word << 32) | (tag & 0xFFFFFFFFL);
+  }
+
+  public long pack() {
+    return pack(word, tag);
+  }
+
+  private static final PackedCounter.Packing<IntTaggedWord> PACKING = new PackedCounter.Packing<IntTaggedWord>() {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Class<IntTaggedWord> keyType() {
+      return IntTaggedWord.class;
+    }
+
+    @Override
+    public long pack(IntTaggedWord key) {
+      return key.pack();
+    }
+
+    @Override
+    public IntTaggedWord unpack(long key) {
+      return new IntTaggedWord((int) (key >> 32), (int) key);
+    }
+  };
+
+  /** An empty counter of IntTaggedWords, stored by their packed longs. */
+  public static PackedCounter<IntTaggedWord> newCounter() {
+    return new PackedCounter<>(PACKING);
+  }
+
   private static final char[] charsToEscape = { '\"' };
 
 
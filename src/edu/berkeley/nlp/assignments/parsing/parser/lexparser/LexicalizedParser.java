@@ -108,12 +108,26 @@ public class LexicalizedParser extends ParserGrammar implements Serializable  {
 
   @Override
   public ParserQuery parserQuery() {
-    return null;
+    return lexicalizedParserQuery();
   }
 
+  /**
+   * A new query for parsing sentences with this parser's grammars, one at
+   * a time: factored if there is a dependency grammar and
+   * <code>op.doDep</code> is on, else with the PCFG alone.
+   */
+  public LexicalizedParserQuery lexicalizedParserQuery() {
+    return new LexicalizedParserQuery(this);
+  }
+
+  /**
+   * Parse a sentence with a new query, returning its best parse,
+   * debinarized and without the boundary, or null if it has none.
+   */
   @Override
   public Tree parse(List<? extends HasWord> words) {
-    return null;
+    LexicalizedParserQuery pq = lexicalizedParserQuery();
+    return pq.parse(words) ? pq.getBestParse() : null;
   }
 
   /**
@@ -0,0 +1,557 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.CoreLabel;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.ling.Label;
+import edu.berkeley.nlp.assignments.parsing.parser.KBestViterbiParser;
+import edu.berkeley.nlp.assignments.parsing.parser.common.ParserConstraint;
+import edu.berkeley.nlp.assignments.parsing.parser.common.ParserQuery;
+import edu.berkeley.nlp.assignments.parsing.trees.HeadFinder;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeTransformer;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredComparator;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredObject;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * Parses one sentence at a time with a {@link LexicalizedParser}'s
+ * grammars.  A query is not thread-safe; make one per thread.
+ * <p>
+ * Without a dependency grammar (or with <code>op.doDep</code> off), a
+ * sentence is parsed by the exhaustive PCFG parser alone.  With one, it
+ * is parsed in three stages: the PCFG parser finds the inside and outside
+ * scores of its chart, the dependency parser those of its chart, and then
+ * the {@link BiLexPCFGParser} searches the product of the two models by
+ * A*, with the sum of the two outside scores as its heuristic.  If the
+ * dependency parser finds no parse (as when the lexicon licenses no tag
+ * for an unknown word, which the PCFG parser then gives every tag), or the
+ * search runs out of items or is cut off at
+ * <code>TestOptions.MAX_ITEMS</code>, the best PCFG parse is returned
+ * instead.  With <code>TestOptions.useFastFactored</code>, the last two
+ * stages are replaced by rescoring the PCFG's k best parses with the
+ * dependency grammar (see {@link #getKBestParses(int)}).
+ * <p>
+ * The time spent in each stage and the outcomes of the searches are kept
+ * in the query's {@link Stats}.
+ */
+public class LexicalizedParserQuery implements ParserQuery {
+
+  private final Options op;
+  private final DependencyGrammar dg;
+  private final Index<String> wordIndex;
+  private final Index<String> tagIndex;
+
+  private final LexicalizedParser parser;
+  /** The parsers, made for the value of useFastFactored in fastFactored, which the PCFG parser's charts depend on. */
+  private boolean fastFactored;
+  private ExhaustivePCFGParser pparser;
+  /** The dependency and factored parsers, or null if the parse is not factored. */
+  private ExhaustiveDependencyParser dparser;
+  private BiLexPCFGParser bparser;
+  private List<ParserConstraint> constraints; // = null
+
+  private final TreeTransformer debinarizer;
+  private final TreeTransformer boundaryRemover = new BoundaryRemover();
+  private final HeadFinder binHeadFinder;
+
+  private final Stats stats = new Stats();
+
+  private List<? extends HasWord> originalSentence;
+  /** The words of the sentence being parsed, in the word index, with unknown words as Lexicon.UNKNOWN_WORD. */
+  private int[] wordIds;
+  /** The PCFG's best parses by their factored score, best first, when useFastFactored. */
+  private List<ScoredObject<Tree>> rescoredParses = Collections.emptyList();
+
+  private boolean parseSucceeded;
+  private boolean parseSkipped;
+  private boolean parseFallback;
+  private boolean parseNoMemory;
+  private boolean parseUnparsable;
+
+  LexicalizedParserQuery(LexicalizedParser parser) {
+    this.parser = parser;
+    this.op = parser.getOp();
+    this.dg = parser.dg;
+    this.wordIndex = parser.wordIndex;
+    this.tagIndex = parser.tagIndex;
+    makeParsers();
+    debinarizer = new Debinarizer(op.forceCNF);
+    binHeadFinder = new BinaryHeadFinder(op.tlpParams.headFinder());
+  }
+
+  private void makeParsers() {
+    fastFactored = op.testOptions.useFastFactored;
+    pparser = new ExhaustivePCFGParser(parser.bg, parser.ug, parser.lex, op, parser.stateIndex, wordIndex, tagIndex);
+    if (constraints != null) {
+      pparser.setConstraints(constraints);
+    }
+    if (dg != null && op.doDep && ! fastFactored) {
+      dparser = new ExhaustiveDependencyParser(dg, parser.lex, op, wordIndex, tagIndex);
+      Scorer scorer = new TwinScorer(pparser, dparser);
+      if (op.testOptions.useN5) {
+        bparser = new BiLexPCFGParser.N5BiLexPCFGParser(scorer, pparser, dparser, parser.bg, parser.ug, dg, parser.lex,
+            op, parser.stateIndex, wordIndex, tagIndex);
+      } else {
+        bparser = new BiLexPCFGParser(scorer, pparser, dparser, parser.bg, parser.ug, dg, parser.lex, op,
+            parser.stateIndex, wordIndex, tagIndex);
+      }
+    } else {
+      dparser = null;
+      bparser = null;
+    }
+  }
+
+  /** Whether sentences are rescored with the dependency grammar rather than parsed with the PCFG alone. */
+  private boolean rescoring() {
+    return dg != null && op.doDep && op.testOptions.useFastFactored;
+  }
+
+  /**
+   * Parse a sentence.  The sentence may end with the boundary word
+   * (Lexicon.BOUNDARY), as the parsers need it to; if it does not, it is
+   * added.
+   *
+   * @return Whether the sentence could be parsed
+   */
+  @Override
+  public boolean parse(List<? extends HasWord> sentence) {
+    originalSentence = sentence;
+    parseSucceeded = false;
+    parseSkipped = false;
+    parseFallback = false;
+    parseNoMemory = false;
+    parseUnparsable = false;
+    rescoredParses = Collections.emptyList();
+    if (sentence.isEmpty()) {
+      parseSkipped = true;
+      return false;
+    }
+    if (op.testOptions.useFastFactored != fastFactored) {
+      makeParsers();
+    }
+    List<? extends HasWord> sentenceB = withBoundary(sentence);
+    stats.sentences++;
+
+    long start = System.nanoTime();
+    boolean parsed;
+    try {
+      parsed = pparser.parse(sentenceB);
+    } catch (OutOfMemoryError e) {
+      parseNoMemory = true;
+      return false;
+    } finally {
+      stats.pcfgNanos += System.nanoTime() - start;
+    }
+    if ( ! parsed) {
+      parseUnparsable = true;
+      stats.unparsable++;
+      return false;
+    }
+    parseSucceeded = true;
+
+    if (rescoring()) {
+      start = System.nanoTime();
+      wordIds = new int[sentenceB.size()];
+      for (int i = 0; i < wordIds.length; i++) {
+        String word = sentenceB.get(i).word();
+        wordIds[i] = wordIndex.indexOf(wordIndex.contains(word) ? word : Lexicon.UNKNOWN_WORD);
+      }
+      rescoredParses = rescore(1);
+      stats.factoredNanos += System.nanoTime() - start;
+      return true;
+    }
+    if (bparser == null) {
+      return true;
+    }
+
+    start = System.nanoTime();
+    try {
+      parsed = dparser.parse(sentenceB);
+    } finally {
+      stats.dependencyNanos += System.nanoTime() - start;
+    }
+    if (parsed) {
+      start = System.nanoTime();
+      try {
+        parsed = bparser.parse(sentenceB);
+      } finally {
+        stats.factoredNanos += System.nanoTime() - start;
+      }
+      stats.itemsBuilt += bparser.itemsBuilt();
+      if (bparser.hitMaxItems()) {
+        stats.maxItemsHit++;
+      } else if ( ! parsed) {
+        stats.agendaEmptied++;
+      }
+      if ( ! parsed) {
+        stats.fallbacks++;
+      }
+    } else {
+      stats.dependencyFailures++;
+    }
+    parseFallback = ! parsed;
+    return true;
+  }
+
+  /** The sentence, with the boundary word added if it does not end with it. */
+  private static List<? extends HasWord> withBoundary(List<? extends HasWord> sentence) {
+    if (Lexicon.BOUNDARY.equals(sentence.get(sentence.size() - 1).word())) {
+      return sentence;
+    }
+    List<HasWord> sentenceB = new ArrayList<>(sentence);
+    CoreLabel boundary = new CoreLabel();
+    boundary.setWord(Lexicon.BOUNDARY);
+    boundary.setValue(Lexicon.BOUNDARY);
+    boundary.setTag(Lexicon.BOUNDARY_TAG);
+    boundary.setIndex(sentence.size() + 1); // 1-based indexing used in the parser
+    sentenceB.add(boundary);
+    return sentenceB;
+  }
+
+  /**
+   * The PCFG's best parses, by the sum of their PCFG and dependency scores,
+   * best first.  For the k best, fastFactoredCandidateMultiplier * k +
+   * fastFactoredCandidateAddend PCFG parses are rescored: the true k best
+   * factored parses are among them unless they are far down the PCFG's
+   * list.
+   */
+  private List<ScoredObject<Tree>> rescore(int k) {
+    int candidates = op.testOptions.fastFactoredCandidateMultiplier * k + op.testOptions.fastFactoredCandidateAddend;
+    List<ScoredObject<Tree>> rescored = new ArrayList<>(candidates);
+    for (Iterator<ScoredObject<Tree>> it = pparser.kBestParseIterator(); rescored.size() < candidates && it.hasNext(); ) {
+      ScoredObject<Tree> parse = it.next();
+      double depScore = depScoreTree(parse.object());
+      rescored.add(new ScoredObject<>(parse.object(), parse.score() + depScore));
+    }
+    // a stable sort, so that ties keep the PCFG's order
+    rescored.sort(ScoredComparator.DESCENDING_COMPARATOR);
+    return rescored;
+  }
+
+  /**
+   * The dependency grammar's score of the dependencies of a binarized
+   * parse: those MLEDependencyGrammar.treeToDependencyList finds in it once
+   * its heads are percolated, but found and scored in one walk over the
+   * parse, without copying it or making the dependencies.
+   */
+  private double depScoreTree(Tree binaryTree) {
+    depScore = 0.0;
+    depScore(binaryTree, 0);
+    return depScore;
+  }
+
+  /** The total score and the end of the last subtree, as depScore goes. */
+  private double depScore;
+  private int depEnd;
+  /** The head tag of the last subtree, in the tag index. */
+  private int depHeadTag;
+
+  /** Add the dependencies of a subtree starting at loc to depScore; its head. */
+  private int depScore(Tree tree, int loc) {
+    if (tree.isLeaf() || tree.isPreTerminal()) {
+      depEnd = loc + 1;
+      depHeadTag = tree.isLeaf() ? -1 : tagIndex.indexOf(tree.value());
+      return loc;
+    }
+    Tree[] kids = tree.children();
+    if (kids.length == 1) {
+      return depScore(kids[0], loc);
+    }
+    int lHead = depScore(kids[0], loc);
+    int lTag = depHeadTag;
+    int split = depEnd;
+    int rHead = depScore(kids[1], split);
+    int rTag = depHeadTag;
+    int end = depEnd;
+    boolean leftHeaded = binHeadFinder.determineHead(tree) == kids[0];
+    int head = leftHeaded ? lHead : rHead;
+    int arg = leftHeaded ? rHead : lHead;
+    int hT = dg.tagBin(leftHeaded ? lTag : rTag);
+    int aT = dg.tagBin(leftHeaded ? rTag : lTag);
+    int aW = wordIds[arg];
+    addDepScore(dg.scoreTB(wordIds[head], hT, aW, aT, leftHeaded, leftHeaded ? split - head - 1 : head - split));
+    addDepScore(dg.scoreTB(aW, aT, IntTaggedWord.STOP_WORD_INT, IntTaggedWord.STOP_TAG_INT, false,
+        leftHeaded ? arg - split : arg - loc));
+    addDepScore(dg.scoreTB(aW, aT, IntTaggedWord.STOP_WORD_INT, IntTaggedWord.STOP_TAG_INT, true,
+        leftHeaded ? end - arg - 1 : split - arg - 1));
+    depEnd = end;
+    depHeadTag = leftHeaded ? lTag : rTag;
+    return head;
+  }
+
+  /** As MLEDependencyGrammar.scoreAll, leaving out the impossible dependencies. */
+  private void addDepScore(double score) {
+    if (score > Double.NEGATIVE_INFINITY) {
+      depScore += score;
+    }
+  }
+
+  @Override
+  public boolean parseAndReport(List<? extends HasWord> sentence, PrintWriter pwErr) {
+    boolean result = parse(sentence);
+    if ( ! result && pwErr != null) {
+      pwErr.println("Sentence couldn't be parsed by grammar: " + sentence);
+    } else if (parseFallback && pwErr != null) {
+      pwErr.println("Factored parse failed; falling back to the PCFG parse: " + sentence);
+    }
+    return result;
+  }
+
+  /**
+   * The best parse of the last sentence as the parsers build it: binarized,
+   * annotated, and with the boundary, or null if there is none.  This is
+   * the factored parse if there is one, else the best rescored parse with
+   * useFastFactored, else the best PCFG parse.
+   */
+  public Tree getBestBinarizedParse() {
+    if ( ! parseSucceeded) {
+      return null;
+    } else if (hasFactoredParse()) {
+      return bparser.getBestParse();
+    } else if ( ! rescoredParses.isEmpty()) {
+      return rescoredParses.get(0).object();
+    }
+    return pparser.getBestParse();
+  }
+
+  /** The best parse of the last sentence, debinarized and without the boundary, or null if there is none. */
+  @Override
+  public Tree getBestParse() {
+    Tree binaryTree = getBestBinarizedParse();
+    return (binaryTree == null) ? null : debinarize(binaryTree);
+  }
+
+  private Tree debinarize(Tree binaryTree) {
+    Tree tree = boundaryRemover.transformTree(debinarizer.transformTree(binaryTree));
+    restoreOriginalWords(tree);
+    return tree;
+  }
+
+  @Override
+  public double getBestScore() {
+    if (hasFactoredParse()) {
+      return bparser.getBestScore();
+    } else if ( ! rescoredParses.isEmpty()) {
+      return rescoredParses.get(0).score();
+    }
+    return getPCFGScore();
+  }
+
+  @Override
+  public double getPCFGScore() {
+    return pparser.getBestScore();
+  }
+
+  /**
+   * The k best parses of the last sentence, debinarized: the k best
+   * rescored PCFG parses with useFastFactored, else the PCFG's k best.
+   */
+  @Override
+  public List<ScoredObject<Tree>> getKBestParses(int k) {
+    if ( ! parseSucceeded) {
+      return Collections.emptyList();
+    }
+    List<ScoredObject<Tree>> binaryTrees;
+    if (rescoring()) {
+      binaryTrees = (k == 1) ? rescoredParses : rescore(k);
+      binaryTrees = binaryTrees.subList(0, Math.min(k, binaryTrees.size()));
+    } else {
+      binaryTrees = pparser.getKBestParses(k);
+    }
+    return debinarizeAll(binaryTrees);
+  }
+
+  private List<ScoredObject<Tree>> debinarizeAll(List<ScoredObject<Tree>> binaryTrees) {
+    List<ScoredObject<Tree>> trees = new ArrayList<>(binaryTrees.size());
+    for (ScoredObject<Tree> parse : binaryTrees) {
+      trees.add(new ScoredObject<>(debinarize(parse.object()), parse.score()));
+    }
+    return trees;
+  }
+
+  @Override
+  public Tree getBestPCFGParse() {
+    return parseSucceeded ? debinarize(pparser.getBestParse()) : null;
+  }
+
+  @Override
+  public Tree getBestDependencyParse(boolean debinarize) {
+    if (dparser == null || ! dparser.hasParse()) {
+      return null;
+    }
+    Tree tree = dparser.getBestParse();
+    return debinarize ? debinarize(tree) : tree;
+  }
+
+  @Override
+  public Tree getBestFactoredParse() {
+    return hasFactoredParse() ? bparser.getBestParse() : null;
+  }
+
+  @Override
+  public List<ScoredObject<Tree>> getBestPCFGParses() {
+    return pparser.getBestParses();
+  }
+
+  /** Put the words of the last sentence, as labels, at the leaves of a parse of it. */
+  @Override
+  public void restoreOriginalWords(Tree tree) {
+    if (originalSentence == null || tree == null) {
+      return;
+    }
+    List<Tree> leaves = tree.getLeaves();
+    int n = Math.min(leaves.size(), originalSentence.size());
+    for (int i = 0; i < n; i++) {
+      HasWord word = originalSentence.get(i);
+      if (word instanceof Label) {
+        leaves.get(i).setLabel((Label) word);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasFactoredParse() {
+    return bparser != null && parseSucceeded && ! parseFallback && bparser.hasParse();
+  }
+
+  @Override
+  public List<ScoredObject<Tree>> getKBestPCFGParses(int kbestPCFG) {
+    return pparser.getKBestParses(kbestPCFG);
+  }
+
+  @Override
+  public List<ScoredObject<Tree>> getKGoodFactoredParses(int kbest) {
+    if ( ! hasFactoredParse()) {
+      return Collections.emptyList();
+    }
+    return bparser.getKGoodParses(kbest);
+  }
+
+  @Override
+  public KBestViterbiParser getPCFGParser() {
+    return pparser;
+  }
+
+  @Override
+  public KBestViterbiParser getFactoredParser() {
+    return bparser;
+  }
+
+  @Override
+  public KBestViterbiParser getDependencyParser() {
+    return dparser;
+  }
+
+  @Override
+  public void setConstraints(List<ParserConstraint> constraints) {
+    this.constraints = constraints;
+    pparser.setConstraints(constraints);
+  }
+
+  @Override
+  public boolean saidMemMessage() {
+    return false;
+  }
+
+  @Override
+  public boolean parseSucceeded() {
+    return parseSucceeded && ! parseFallback;
+  }
+
+  @Override
+  public boolean parseSkipped() {
+    return parseSkipped;
+  }
+
+  @Override
+  public boolean parseFallback() {
+    return parseFallback;
+  }
+
+  @Override
+  public boolean parseNoMemory() {
+    return parseNoMemory;
+  }
+
+  @Override
+  public boolean parseUnparsable() {
+    return parseUnparsable;
+  }
+
+  @Override
+  public List<? extends HasWord> originalSentence() {
+    return originalSentence;
+  }
+
+  /** The totals of this query's parses since it was made or its stats were last cleared. */
+  public Stats stats() {
+    return stats;
+  }
+
+
+  /**
+   * Totals over the sentences parsed: the time in each stage, and how
+   * the factored parser's A* searches ended.
+   */
+  public static class Stats {
+
+    /** Sentences parsed (not counting empty ones). */
+    public long sentences;
+    /** Time in the PCFG parser, inside and (when factored) outside scores. */
+    public long pcfgNanos;
+    /** Time in the dependency parser. */
+    public long dependencyNanos;
+    /** Time in the factored A* search, or in rescoring the PCFG's k best with useFastFactored. */
+    public long factoredNanos;
+    /** Edges and hooks built by the A* searches. */
+    public long itemsBuilt;
+    /** A* searches cut off at TestOptions.MAX_ITEMS items. */
+    public long maxItemsHit;
+    /** A* searches that ran out of items without reaching the goal. */
+    public long agendaEmptied;
+    /** Sentences given their PCFG parse because the dependency parser found no parse, so there was no A* search. */
+    public long dependencyFailures;
+    /** Sentences given their PCFG parse because the A* search found no factored parse. */
+    public long fallbacks;
+    /** Sentences the PCFG could not parse. */
+    public long unparsable;
+
+    /** Add another's totals to these. */
+    public void add(Stats other) {
+      sentences += other.sentences;
+      pcfgNanos += other.pcfgNanos;
+      dependencyNanos += other.dependencyNanos;
+      factoredNanos += other.factoredNanos;
+      itemsBuilt += other.itemsBuilt;
+      maxItemsHit += other.maxItemsHit;
+      agendaEmptied += other.agendaEmptied;
+      dependencyFailures += other.dependencyFailures;
+      fallbacks += other.fallbacks;
+      unparsable += other.unparsable;
+    }
+
+    public void clear() {
+      sentences = pcfgNanos = dependencyNanos = factoredNanos = itemsBuilt = 0;
+      maxItemsHit = agendaEmptied = dependencyFailures = fallbacks = unparsable = 0;
+    }
+
+    @Override
+    public String toString() {
+      double n = Math.max(sentences, 1);
+      return String.format("%d sentences: pcfg %.2f ms, dependency %.2f ms, factored %.2f ms per sentence; "
+              + "%.0f items per sentence; %d hit MAX_ITEMS, %d emptied the agenda, %d fell back to the PCFG, "
+              + "%d had no dependency parse, %d unparsable",
+          sentences, pcfgNanos / 1.0e6 / n, dependencyNanos / 1.0e6 / n, factoredNanos / 1.0e6 / n,
+          itemsBuilt / n, maxItemsHit, agendaEmptied, fallbacks, dependencyFailures, unparsable);
+    }
+
+  }
+
+} // end class LexicalizedParserQuery
@@ -0,0 +1,133 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memoized P(word|tag) scores for a trained {@link BaseLexicon}.
+ * <p>
+ * Known words get a dense <code>float[word][tag]</code> table, filled when
+ * the cache is made.  An unseen word is scored only through its unknown
+ * word signature, its tag and whether it is sentence initial, so unknown
+ * words get a row of scores per (signature, position class), filled as
+ * tags are asked for and kept in a bounded least recently used map.  The
+ * row of the last unknown word scored is remembered per thread, so that
+ * scoring all the taggings of a word computes its signature once.
+ * <p>
+ * A cache is only valid for the counts and smoothing it was made with;
+ * BaseLexicon drops it in <code>finishTraining</code> and
+ * <code>tune</code>.  It may be used by several parsing threads at once.
+ */
+class LexiconScoreCache {
+
+  private final BaseLexicon lex;
+  private final int numTags;
+
+  /** [word][tag] for known words, with null rows for other words; null if
+   *  the scores of known words depend on their position.
+   */
+  private final float[][] known;
+
+  /** (position class + signature) -&gt; [tag], NaN where not yet scored. */
+  private final Map<String, float[]> unknown;
+
+  private final ThreadLocal<LastWord> lastWord = ThreadLocal.withInitial(LastWord::new);
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  private static class LastWord {
+    String word;
+    int loc = -1;
+    float[] row;
+  }
+
+  /**
+   * @param lex The lexicon, which must have finished training
+   * @param maxSignatures The number of unknown word rows to keep
+   * @param hits Incremented for each score served from the cache
+   * @param misses Incremented for each score that had to be computed
+   */
+  LexiconScoreCache(BaseLexicon lex, int maxSignatures, LongAdder hits, LongAdder misses) {
+    this.lex = lex;
+    this.numTags = lex.tagIndex.size();
+    this.hits = hits;
+    this.misses = misses;
+
+    if (lex.useSignatureForKnownSmoothing) {
+      known = null;
+    } else {
+      known = new float[lex.rulesWithWord.length][];
+      for (int word = 0; word < known.length; word++) {
+        if ( ! lex.isKnown(word)) {
+          continue;
+        }
+        String wordStr = lex.wordIndex.get(word);
+        float[] row = new float[numTags];
+        for (int tag = 0; tag < numTags; tag++) {
+          row[tag] = lex.computeScore(new IntTaggedWord(word, tag), 0, wordStr, null);
+        }
+        known[word] = row;
+      }
+    }
+
+    unknown = new LinkedHashMap<String, float[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, float[]> eldest) {
+        return size() > maxSignatures;
+      }
+    };
+  }
+
+  float score(IntTaggedWord iTW, int loc, String word, String featureSpec) {
+    int tag = iTW.tag;
+    float[] row = null;
+    if (tag >= 0 && tag < numTags) {
+      if (lex.isKnown(iTW.word)) {
+        row = (known == null) ? null : known[iTW.word];
+      } else if (loc >= 0 && word != null) {
+        // negative positions average over two signatures; not cached
+        row = unknownRow(word, loc);
+      }
+    }
+    if (row == null) {
+      misses.increment();
+      return lex.computeScore(iTW, loc, word, featureSpec);
+    }
+    float score = row[tag];
+    if (Float.isNaN(score)) {
+      misses.increment();
+      score = lex.computeScore(iTW, loc, word, featureSpec);
+      row[tag] = score;
+    } else {
+      hits.increment();
+    }
+    return score;
+  }
+
+  private float[] unknownRow(String word, int loc) {
+    LastWord last = lastWord.get();
+    if (loc == last.loc && word.equals(last.word)) {
+      return last.row;
+    }
+    String key = (loc == 0 ? "0" : "1") + lex.getUnknownWordModel().getSignature(word, loc);
+    float[] row;
+    synchronized (unknown) {
+      row = unknown.get(key);
+      if (row == null) {
+        row = new float[numTags];
+        Arrays.fill(row, Float.NaN);
+        unknown.put(key, row);
+      }
+    }
+    last.word = word;
+    last.loc = loc;
+    last.row = row;
+    return row;
+  }
+
+}
@@ -1,7 +1,8 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser; 
 import edu.berkeley.nlp.assignments.parsing.ling.HasTag;
 import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
-import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
 import edu.berkeley.nlp.assignments.parsing.trees.Tree;
 import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
@@ -9,6 +10,7 @@ import edu.berkeley.nlp.assignments.parsing.util.Index;
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -26,10 +28,12 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
   protected int numWordTokens;
 
   /** Stores all the counts for dependencies (with and without the word
-   *  being a wildcard) in the reduced tag space.
+   *  being a wildcard) in the reduced tag space.  The dependencies are
+   *  stored by {@link IntDependency#pack}, and looked up that way by
+   *  probTB and getStopProb, which so allocate nothing.
    */
-  protected ClassicCounter<IntDependency> argCounter;
-  protected ClassicCounter<IntDependency> stopCounter;  // reduced tag space
+  protected PackedCounter<IntDependency> argCounter;
+  protected PackedCounter<IntDependency> stopCounter;  // reduced tag space
 
   /** Bayesian m-estimate prior for aT given hTWd against base distribution
    *  of aT given hTd.
@@ -64,8 +68,8 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     super(tlpParams.treebankLanguagePack(), tagProjection, directional, useDistance, useCoarseDistance, op, wordIndex, tagIndex);
     useSmoothTagProjection = op.useSmoothTagProjection;
     useUnigramWordSmoothing = op.useUnigramWordSmoothing;
-    argCounter = new ClassicCounter<>();
-    stopCounter = new ClassicCounter<>();
+    argCounter = IntDependency.newCounter();
+    stopCounter = IntDependency.newCounter();
     double[] smoothParams = tlpParams.MLEDependencyGrammarSmoothingParams();
     smooth_aT_hTWd = smoothParams[0];
     smooth_aTW_hTWd = smoothParams[1];
@@ -165,6 +169,16 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
   }
 
 
+  /** The counts of arguments by dependency, backed-off ones included, in the reduced tag space. */
+  public PackedCounter<IntDependency> argCounter() {
+    return argCounter;
+  }
+
+  /** The counts of stops by dependency, backed-off ones included, in the reduced tag space. */
+  public PackedCounter<IntDependency> stopCounter() {
+    return stopCounter;
+  }
+
   public void dumpSizes() {
 //    System.out.println("core dep " + coreDependencies.size());
     System.out.println("arg counter " + argCounter.size());
@@ -340,34 +354,6 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     // log.info("argCounter: " + argCounter);
   }
 
-  /** The indices of this list are in the tag binned space. */
-  protected transient List<IntTaggedWord> tagITWList = null; //new ArrayList();
-
-
-  /** This maps from a tag to a cached IntTagWord that represents the
-   *  tag by having the wildcard word ANY_WORD_INT and  the tag in the
-   *  reduced tag space.
-   *  The argument is in terms of the full tag space; internally this
-   *  function maps to the reduced space.
-   *  @param tag short representation of tag in full tag space
-   *  @return an IntTaggedWord in the reduced tag space
-   */
-  private IntTaggedWord getCachedITW(short tag) {
-    // The +2 below is because -1 and -2 are used with special meanings (see IntTaggedWord).
-    if (tagITWList == null) {
-      tagITWList = new ArrayList<>(numTagBins + 2);
-      for (int i=0; i<numTagBins + 2; i++) {
-        tagITWList.add(i, null);
-      }
-    }
-    IntTaggedWord headT = tagITWList.get(tagBin(tag) + 2);
-    if (headT == null) {
-      headT = new IntTaggedWord(ANY_WORD_INT, tagBin(tag));
-      tagITWList.set(tagBin(tag) + 2, headT);
-    }
-    return headT;
-  }
-
   /** The dependency arg is still in the full tag space.
    *
    *  @param dependency An opbserved dependency
@@ -388,19 +374,29 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
 
   private TagProjection smoothTP;
   private Index<String> smoothTPIndex;
+  /** [tag] -&gt; tagProject(tag), or -1 if not yet projected. */
+  private transient short[] projectedTags;
   private static final String TP_PREFIX = ".*TP*.";
 
-  private short tagProject(short tag) {
+  private short tagProject(int tag) {
     if (smoothTPIndex == null) {
       smoothTPIndex = new HashIndex<>(tagIndex);
     }
     if (tag < 0) {
-      return tag;
-    } else {
+      return (short) tag;
+    }
+    if (projectedTags == null || tag >= projectedTags.length) {
+      int length = (projectedTags == null) ? 0 : projectedTags.length;
+      projectedTags = Arrays.copyOf((projectedTags == null) ? new short[0] : projectedTags,
+          Math.max(tag + 1, 2 * length));
+      Arrays.fill(projectedTags, length, projectedTags.length, (short) -1);
+    }
+    if (projectedTags[tag] < 0) {
       String tagStr = smoothTPIndex.get(tag);
       String binStr = TP_PREFIX + smoothTP.project(tagStr);
-      return (short) smoothTPIndex.addToIndex(binStr);
+      projectedTags[tag] = (short) smoothTPIndex.addToIndex(binStr);
     }
+    return projectedTags[tag];
   }
 
 
@@ -412,69 +408,67 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
    *  @param count The weight with which to add this dependency
    */
   private void expandArg(IntDependency dependency, short valBinDist, double count) {
-    IntTaggedWord headT = getCachedITW(dependency.head.tag);
-    IntTaggedWord argT = getCachedITW(dependency.arg.tag);
-    IntTaggedWord head = new IntTaggedWord(dependency.head.word, tagBin(dependency.head.tag)); //dependency.head;
-    IntTaggedWord arg = new IntTaggedWord(dependency.arg.word, tagBin(dependency.arg.tag)); //dependency.arg;
+    LongCounter args = argCounter.counts();
+    int hW = dependency.head.word;
+    int aW = dependency.arg.word;
+    int hT = tagBin(dependency.head.tag);
+    int aT = tagBin(dependency.arg.tag);
     boolean leftHeaded = dependency.leftHeaded;
 
     // argCounter stores stuff in both the original and the reduced tag space???
-    argCounter.incrementCount(intern(head, arg, leftHeaded, valBinDist), count);
-    argCounter.incrementCount(intern(headT, arg, leftHeaded, valBinDist), count);
-    argCounter.incrementCount(intern(head, argT, leftHeaded, valBinDist), count);
-    argCounter.incrementCount(intern(headT, argT, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(hW, hT, aW, aT, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(ANY_WORD_INT, hT, aW, aT, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(hW, hT, ANY_WORD_INT, aT, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, aT, leftHeaded, valBinDist), count);
 
-    argCounter.incrementCount(intern(head, wildTW, leftHeaded, valBinDist), count);
-    argCounter.incrementCount(intern(headT, wildTW, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, valBinDist), count);
+    args.incrementCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, valBinDist), count);
 
     // the WILD head stats are always directionless and not useDistance!
-    argCounter.incrementCount(intern(wildTW, arg, false, (short) -1), count);
-    argCounter.incrementCount(intern(wildTW, argT, false, (short) -1), count);
+    args.incrementCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, aT, false, ANY_DISTANCE_INT), count);
+    args.incrementCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, ANY_WORD_INT, aT, false, ANY_DISTANCE_INT), count);
 
     if (useSmoothTagProjection) {
       // added stuff to do more smoothing.  CDM Jan 2007
-      IntTaggedWord headP = new IntTaggedWord(dependency.head.word, tagProject(dependency.head.tag));
-      IntTaggedWord headTP = new IntTaggedWord(ANY_WORD_INT, tagProject(dependency.head.tag));
-      IntTaggedWord argP = new IntTaggedWord(dependency.arg.word, tagProject(dependency.arg.tag));
-      IntTaggedWord argTP = new IntTaggedWord(ANY_WORD_INT, tagProject(dependency.arg.tag));
+      short hPT = tagProject(dependency.head.tag);
+      short aPT = tagProject(dependency.arg.tag);
 
-      argCounter.incrementCount(intern(headP, argP, leftHeaded, valBinDist), count);
-      argCounter.incrementCount(intern(headTP, argP, leftHeaded, valBinDist), count);
-      argCounter.incrementCount(intern(headP, argTP, leftHeaded, valBinDist), count);
-      argCounter.incrementCount(intern(headTP, argTP, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(hW, hPT, aW, aPT, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, hPT, aW, aPT, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(hW, hPT, ANY_WORD_INT, aPT, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, hPT, ANY_WORD_INT, aPT, leftHeaded, valBinDist), count);
 
-      argCounter.incrementCount(intern(headP, wildTW, leftHeaded, valBinDist), count);
-      argCounter.incrementCount(intern(headTP, wildTW, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(hW, hPT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, valBinDist), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, hPT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, valBinDist), count);
 
       // the WILD head stats are always directionless and not useDistance!
-      argCounter.incrementCount(intern(wildTW, argP, false, (short) -1), count);
-      argCounter.incrementCount(intern(wildTW, argTP, false, (short) -1), count);
-      argCounter.incrementCount(intern(wildTW, new IntTaggedWord(dependency.head.word, ANY_TAG_INT), false, (short) -1), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, aPT, false, ANY_DISTANCE_INT), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, ANY_WORD_INT, aPT, false, ANY_DISTANCE_INT), count);
+      args.incrementCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, hW, ANY_TAG_INT, false, ANY_DISTANCE_INT), count);
     }
     numWordTokens++;
   }
 
   private void expandStop(IntDependency dependency, short distBinDist, double count, boolean wildForStop) {
-    IntTaggedWord headT = getCachedITW(dependency.head.tag);
-    IntTaggedWord head = new IntTaggedWord(dependency.head.word, tagBin(dependency.head.tag)); //dependency.head;
-    IntTaggedWord arg = new IntTaggedWord(dependency.arg.word, tagBin(dependency.arg.tag));//dependency.arg;
-
+    LongCounter stops = stopCounter.counts();
+    int hW = dependency.head.word;
+    int aW = dependency.arg.word;
+    int hT = tagBin(dependency.head.tag);
+    int aT = tagBin(dependency.arg.tag);
     boolean leftHeaded = dependency.leftHeaded;
 
-    if (arg.word == STOP_WORD_INT) {
-      stopCounter.incrementCount(intern(head, arg, leftHeaded, distBinDist), count);
-      stopCounter.incrementCount(intern(headT, arg, leftHeaded, distBinDist), count);
+    if (aW == STOP_WORD_INT) {
+      stops.incrementCount(IntDependency.pack(hW, hT, aW, aT, leftHeaded, distBinDist), count);
+      stops.incrementCount(IntDependency.pack(ANY_WORD_INT, hT, aW, aT, leftHeaded, distBinDist), count);
     }
-    if (wildForStop || arg.word != STOP_WORD_INT) {
-      stopCounter.incrementCount(intern(head, wildTW, leftHeaded, distBinDist), count);
-      stopCounter.incrementCount(intern(headT, wildTW, leftHeaded, distBinDist), count);
+    if (wildForStop || aW != STOP_WORD_INT) {
+      stops.incrementCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distBinDist), count);
+      stops.incrementCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, distBinDist), count);
     }
   }
 
   public double countHistory(IntDependency dependency) {
-    IntDependency temp = new IntDependency(dependency.head.word, tagBin(dependency.head.tag), wildTW.word, wildTW.tag, dependency.leftHeaded, valenceBin(dependency.distance));
-
-    return argCounter.getCount(temp);
+    return argCounter.counts().getCount(IntDependency.pack(dependency.head.word, tagBin(dependency.head.tag), wildTW.word, wildTW.tag, dependency.leftHeaded, valenceBin(dependency.distance)));
   }
 
   /** Score a tag binned dependency. */
@@ -482,6 +476,12 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     return op.testOptions.depWeight * Math.log(probTB(dependency));
   }
 
+  /** Score a tag binned dependency, without making one. */
+  @Override
+  public double scoreTB(int headWord, int headTag, int argWord, int argTag, boolean leftHeaded, int dist) {
+    return op.testOptions.depWeight * Math.log(probTB(headWord, headTag, argWord, argTag, leftHeaded, dist));
+  }
+
   private static final boolean verbose = false;
 
   protected static final double MIN_PROBABILITY = 1e-40;
@@ -494,26 +494,23 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
    *  @return The probability of the dependency
    */
   protected double probTB(IntDependency dependency) {
+    return probTB(dependency.head.word, dependency.head.tag, dependency.arg.word, dependency.arg.tag, dependency.leftHeaded, dependency.distance);
+  }
 
-    boolean leftHeaded = dependency.leftHeaded && directional;
+  /** As {@link #probTB(IntDependency)}, for the dependency with the given fields. */
+  protected double probTB(int hW, int hT, int aW, int aT, boolean dependencyLeftHeaded, int distance) {
 
-    int hW = dependency.head.word;
-    int aW = dependency.arg.word;
-    short hT = dependency.head.tag;
-    short aT = dependency.arg.tag;
-
-    IntTaggedWord aTW = dependency.arg;
-    IntTaggedWord hTW = dependency.head;
+    boolean leftHeaded = dependencyLeftHeaded && directional;
 
-    boolean isRoot = rootTW(dependency.head);
+    boolean isRoot = hT == tagIndex.indexOf(Lexicon.BOUNDARY_TAG); // rootTW(head)
     double pb_stop_hTWds;
     if (isRoot) {
       pb_stop_hTWds = 0.0;
     } else {
-      pb_stop_hTWds = getStopProb(dependency);
+      pb_stop_hTWds = getStopProb(hW, hT, dependencyLeftHeaded, distance);
     }
 
-    if (dependency.arg.word == STOP_WORD_INT) {
+    if (aW == STOP_WORD_INT) {
       // did we generate stop?
       return pb_stop_hTWds;
     }
@@ -522,7 +519,7 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
 
     // generate the argument
 
-    short binDistance = valenceBin(dependency.distance);
+    short binDistance = valenceBin(distance);
 
     // KEY:
     // c_     count of (read as joint count of first and second)
@@ -536,23 +533,14 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     // d      direction
     // ds     distance (implicit: there when direction is mentioned!)
 
-    IntTaggedWord anyHead = new IntTaggedWord(ANY_WORD_INT, dependency.head.tag);
-    IntTaggedWord anyArg = new IntTaggedWord(ANY_WORD_INT, dependency.arg.tag);
-    IntTaggedWord anyTagArg = new IntTaggedWord(dependency.arg.word, ANY_TAG_INT);
+    LongCounter args = argCounter.counts();
+    double c_aTW_hTWd = args.getCount(IntDependency.pack(hW, hT, aW, aT, leftHeaded, binDistance));
+    double c_aT_hTWd = args.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, aT, leftHeaded, binDistance));
+    double c_hTWd = args.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, binDistance));
 
-    IntDependency temp = new IntDependency(dependency.head, dependency.arg, leftHeaded, binDistance);
-    double c_aTW_hTWd = argCounter.getCount(temp);
-    temp = new IntDependency(dependency.head, anyArg, leftHeaded, binDistance);
-    double c_aT_hTWd = argCounter.getCount(temp);
-    temp = new IntDependency(dependency.head, wildTW, leftHeaded, binDistance);
-    double c_hTWd = argCounter.getCount(temp);
-
-    temp = new IntDependency(anyHead, dependency.arg, leftHeaded, binDistance);
-    double c_aTW_hTd = argCounter.getCount(temp);
-    temp = new IntDependency(anyHead, anyArg, leftHeaded, binDistance);
-    double c_aT_hTd = argCounter.getCount(temp);
-    temp = new IntDependency(anyHead, wildTW, leftHeaded, binDistance);
-    double c_hTd = argCounter.getCount(temp);
+    double c_aTW_hTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hT, aW, aT, leftHeaded, binDistance));
+    double c_aT_hTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, aT, leftHeaded, binDistance));
+    double c_hTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, binDistance));
 
     // for smooth tag projection
     short aPT = Short.MIN_VALUE;
@@ -563,33 +551,21 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     double c_aPT = Double.NaN;
 
     if (useSmoothTagProjection) {
-      aPT = tagProject(dependency.arg.tag);
-      short hPT = tagProject(dependency.head.tag);
+      aPT = tagProject(aT);
+      short hPT = tagProject(hT);
 
-      IntTaggedWord projectedArg = new IntTaggedWord(dependency.arg.word, aPT);
-      IntTaggedWord projectedAnyHead = new IntTaggedWord(ANY_WORD_INT, hPT);
-      IntTaggedWord projectedAnyArg = new IntTaggedWord(ANY_WORD_INT, aPT);
+      c_aPTW_hPTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hPT, aW, aPT, leftHeaded, binDistance));
+      c_aPT_hPTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hPT, ANY_WORD_INT, aPT, leftHeaded, binDistance));
+      c_hPTd = args.getCount(IntDependency.pack(ANY_WORD_INT, hPT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, binDistance));
 
-      temp = new IntDependency(projectedAnyHead, projectedArg, leftHeaded, binDistance);
-      c_aPTW_hPTd = argCounter.getCount(temp);
-      temp = new IntDependency(projectedAnyHead, projectedAnyArg, leftHeaded, binDistance);
-      c_aPT_hPTd = argCounter.getCount(temp);
-      temp = new IntDependency(projectedAnyHead, wildTW, leftHeaded, binDistance);
-      c_hPTd = argCounter.getCount(temp);
-
-      temp = new IntDependency(wildTW, projectedArg, false, ANY_DISTANCE_INT);
-      c_aPTW_aPT = argCounter.getCount(temp);
-      temp = new IntDependency(wildTW, projectedAnyArg, false, ANY_DISTANCE_INT);
-      c_aPT = argCounter.getCount(temp);
+      c_aPTW_aPT = args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, aPT, false, ANY_DISTANCE_INT));
+      c_aPT = args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, ANY_WORD_INT, aPT, false, ANY_DISTANCE_INT));
     }
 
     // wild head is always directionless and no use distance
-    temp = new IntDependency(wildTW, dependency.arg, false, ANY_DISTANCE_INT);
-    double c_aTW = argCounter.getCount(temp);
-    temp = new IntDependency(wildTW, anyArg, false, ANY_DISTANCE_INT);
-    double c_aT = argCounter.getCount(temp);
-    temp = new IntDependency(wildTW, anyTagArg, false, ANY_DISTANCE_INT);
-    double c_aW = argCounter.getCount(temp);
+    double c_aTW = args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, aT, false, ANY_DISTANCE_INT));
+    double c_aT = args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, ANY_WORD_INT, aT, false, ANY_DISTANCE_INT));
+    double c_aW = args.getCount(IntDependency.pack(ANY_WORD_INT, ANY_TAG_INT, aW, ANY_TAG_INT, false, ANY_DISTANCE_INT));
 
     // do the Bayesian magic
     // MLE probs
@@ -620,7 +596,8 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
       // here word generation isn't smoothed - can't get previously unseen word with tag.  Ugh.
       if (op.testOptions.useLexiconToScoreDependencyPwGt) {
         // We don't know the position.  Now -1 means average over 0 and 1.
-        p_aTW_aT = dependency.leftHeaded ? Math.exp(lex.score(dependency.arg, 1, wordIndex.get(dependency.arg.word), null)): Math.exp(lex.score(dependency.arg, -1, wordIndex.get(dependency.arg.word), null));
+        IntTaggedWord aTW = new IntTaggedWord(aW, aT);
+        p_aTW_aT = dependencyLeftHeaded ? Math.exp(lex.score(aTW, 1, wordIndex.get(aW), null)): Math.exp(lex.score(aTW, -1, wordIndex.get(aW), null));
         // double oldScore = c_aTW > 0.0 ? (c_aTW / c_aT) : 1.0;
         // if (oldScore == 1.0) {
         //  log.info("#### arg=" + dependency.arg + " score=" + p_aTW_aT +
@@ -638,7 +615,7 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
 
     double score = (interp * pb_aTW_hTWd + (1.0 - interp) * p_aTW_aT * pb_aT_hTWd) * pb_go_hTWds;
 
-    if (op.testOptions.prunePunc && pruneTW(aTW)) {
+    if (op.testOptions.prunePunc && pruneTW(new IntTaggedWord(aW, aT))) {
       return 1.0;
     }
 
@@ -664,18 +641,18 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
    *  @return The probability of generating this stop probability
    */
   protected double getStopProb(IntDependency dependency) {
-    short binDistance = distanceBin(dependency.distance);
-    IntTaggedWord unknownHead = new IntTaggedWord(-1, dependency.head.tag);
-    IntTaggedWord anyHead = new IntTaggedWord(ANY_WORD_INT, dependency.head.tag);
-
-    IntDependency temp = new IntDependency(dependency.head, stopTW, dependency.leftHeaded, binDistance);
-    double c_stop_hTWds = stopCounter.getCount(temp);
-    temp = new IntDependency(unknownHead, stopTW, dependency.leftHeaded, binDistance);
-    double c_stop_hTds = stopCounter.getCount(temp);
-    temp = new IntDependency(dependency.head, wildTW, dependency.leftHeaded, binDistance);
-    double c_hTWds = stopCounter.getCount(temp);
-    temp = new IntDependency(anyHead, wildTW, dependency.leftHeaded, binDistance);
-    double c_hTds = stopCounter.getCount(temp);
+    return getStopProb(dependency.head.word, dependency.head.tag, dependency.leftHeaded, dependency.distance);
+  }
+
+  /** As {@link #getStopProb(IntDependency)}, for a head and distance. */
+  protected double getStopProb(int hW, int hT, boolean leftHeaded, int distance) {
+    short binDistance = distanceBin(distance);
+    LongCounter stops = stopCounter.counts();
+
+    double c_stop_hTWds = stops.getCount(IntDependency.pack(hW, hT, STOP_WORD_INT, STOP_TAG_INT, leftHeaded, binDistance));
+    double c_stop_hTds = stops.getCount(IntDependency.pack(ANY_WORD_INT, hT, STOP_WORD_INT, STOP_TAG_INT, leftHeaded, binDistance));
+    double c_hTWds = stops.getCount(IntDependency.pack(hW, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, binDistance));
+    double c_hTds = stops.getCount(IntDependency.pack(ANY_WORD_INT, hT, ANY_WORD_INT, ANY_TAG_INT, leftHeaded, binDistance));
 
     double p_stop_hTds = (c_hTds > 0.0 ? c_stop_hTds / c_hTds : 1.0);
 
@@ -694,10 +671,10 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
 //    log.info("arg size: " + argCounter.size() + "  total: " + argCounter.totalCount());
 //    log.info("stop size: " + stopCounter.size() + "  total: " + stopCounter.totalCount());
 
-    ClassicCounter<IntDependency> compressedArgC = argCounter;
-    argCounter = new ClassicCounter<>();
-    ClassicCounter<IntDependency> compressedStopC = stopCounter;
-    stopCounter = new ClassicCounter<>();
+    PackedCounter<IntDependency> compressedArgC = argCounter;
+    argCounter = IntDependency.newCounter();
+    PackedCounter<IntDependency> compressedStopC = stopCounter;
+    stopCounter = IntDependency.newCounter();
     for (IntDependency d : compressedArgC.keySet()) {
       double count = compressedArgC.getCount(d);
       expandArg(d, d.distance, count);
@@ -720,17 +697,17 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
 //    log.info("arg size: " + argCounter.size() + "  total: " + argCounter.totalCount());
 //    log.info("stop size: " + stopCounter.size() + "  total: " + stopCounter.totalCount());
 
-    ClassicCounter<IntDependency> fullArgCounter = argCounter;
-    argCounter = new ClassicCounter<>();
+    PackedCounter<IntDependency> fullArgCounter = argCounter;
+    argCounter = IntDependency.newCounter();
     for (IntDependency dependency : fullArgCounter.keySet()) {
-      if (dependency.head != wildTW && dependency.arg != wildTW &&
-              dependency.head.word != -1 && dependency.arg.word != -1) {
+      // (the wild head and argument have word -1 too)
+      if (dependency.head.word != -1 && dependency.arg.word != -1) {
         argCounter.incrementCount(dependency, fullArgCounter.getCount(dependency));
       }
     }
 
-    ClassicCounter<IntDependency> fullStopCounter = stopCounter;
-    stopCounter = new ClassicCounter<>();
+    PackedCounter<IntDependency> fullStopCounter = stopCounter;
+    stopCounter = IntDependency.newCounter();
     for (IntDependency dependency : fullStopCounter.keySet()) {
       if (dependency.head.word != -1) {
         stopCounter.incrementCount(dependency, fullStopCounter.getCount(dependency));
@@ -797,8 +774,8 @@ public class MLEDependencyGrammar extends AbstractDependencyGrammar  {
     // all lines have one rule per line
 
     for (IntDependency dependency : argCounter.keySet()) {
-      if (dependency.head != wildTW && dependency.arg != wildTW &&
-              dependency.head.word != -1 && dependency.arg.word != -1) {
+      // (the wild head and argument have word -1 too)
+      if (dependency.head.word != -1 && dependency.arg.word != -1) {
         double count = argCounter.getCount(dependency);
         out.println(dependency.toString(wordIndex, tagIndex) + " " + count);
       }
@@ -0,0 +1,168 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.ling.Label;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.ling.Tree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the output tree of a parse in one pass over it: the tree
+ * {@link Debinarizer}, the subcategory stripper and
+ * TreeAnnotations.unAnnotateTree would make of it in turn, with the words
+ * of the sentence as its leaves, but without the copies of the whole tree
+ * that each of them makes.
+ * <p>
+ * What those do to a node depends only on its state, so the output label
+ * of every state is worked out once, when the builder is made: null for
+ * the states inserted by binarization, which are spliced out, and
+ * otherwise the stripped and unannotated category, interned, which all
+ * output trees share.  A parse is then read off either a parser's tree or,
+ * by {@link ExhaustivePCFGParser}, straight off its chart back-pointers,
+ * node by node through {@link #add}.  A builder is only read once made,
+ * so the parsing threads can share one.
+ */
+public class OutputTreeBuilder {
+
+  /** The delimiters after which TreeAnnotations.unAnnotateTree cuts a label. */
+  private static final String[] ANNOTATION_DELIMITERS = {"=", "<", ">", "^", "_", "->"};
+
+  private final Index<String> stateIndex;
+  private final TreebankLangParserParams tlpParams;
+  /** [state] -&gt; its output label, or null if it is spliced out. */
+  private final String[] labels;
+
+  private OutputTreeBuilder(Index<String> stateIndex, TreebankLangParserParams tlpParams, String[] labels) {
+    this.stateIndex = stateIndex;
+    this.tlpParams = tlpParams;
+    this.labels = labels;
+  }
+
+  /**
+   * A builder for the states of the given index, or null if the treebank
+   * parameters' subcategory stripping depends on more than the category of
+   * a node, so that the trees must go through the stripper itself.  The
+   * index must not grow after.
+   */
+  public static OutputTreeBuilder forStates(Index<String> stateIndex, TreebankLangParserParams tlpParams) {
+    String[] labels = new String[stateIndex.size()];
+    for (int state = 0; state < labels.length; state++) {
+      String category = stateIndex.get(state);
+      if (category.indexOf('@') >= 0) {
+        continue;
+      }
+      String stripped = tlpParams.strippedCategory(category);
+      if (stripped == null) {
+        return null;
+      }
+      labels[state] = unAnnotate(stripped).intern();
+    }
+    return new OutputTreeBuilder(stateIndex, tlpParams, labels);
+  }
+
+  /** The output label of a node of the given category, or null if it is spliced out. */
+  private String label(String category) {
+    int state = stateIndex.indexOf(category);
+    if (state >= 0 && state < labels.length) {
+      return labels[state];
+    }
+    // not a state of the grammar, which parsers do not make, but which is no reason to fail
+    return (category.indexOf('@') >= 0) ? null : unAnnotate(tlpParams.strippedCategory(category));
+  }
+
+  /** The label as TreeAnnotations.unAnnotateTree leaves it. */
+  private static String unAnnotate(String label) {
+    int index = -1;
+    for (String delimiter : ANNOTATION_DELIMITERS) {
+      int i = label.indexOf(delimiter);
+      if (i >= 0 && (index < 0 || i < index)) {
+        index = i;
+      }
+    }
+    return (index < 0) ? label : label.substring(0, index);
+  }
+
+  /**
+   * Add the output of a node of the given state with the given output
+   * children to siblings: a new node, or the children themselves if the
+   * state is spliced out.
+   */
+  void add(int state, List<Tree<String>> children, List<Tree<String>> siblings) {
+    addNode(labels[state], children, siblings);
+  }
+
+  /** As {@link #add(int, List, List)}, for a node labeled with a category. */
+  void add(String category, List<Tree<String>> children, List<Tree<String>> siblings) {
+    addNode(label(category), children, siblings);
+  }
+
+  private static void addNode(String label, List<Tree<String>> children, List<Tree<String>> siblings) {
+    if (label == null) {
+      siblings.addAll(children);
+    } else {
+      siblings.add(new Tree<>(label, children));
+    }
+  }
+
+  /**
+   * The output tree of a root of the given state over the given output
+   * children, less the boundary symbol the parsers end each sentence with.
+   */
+  Tree<String> root(int state, List<Tree<String>> children) {
+    return root(labels[state], children);
+  }
+
+  private static Tree<String> root(String label, List<Tree<String>> children) {
+    if ( ! children.isEmpty()) {
+      String last = children.get(children.size() - 1).getLabel();
+      if (last.equals(Lexicon.BOUNDARY_TAG) || last.equals(Lexicon.BOUNDARY)) {
+        children.remove(children.size() - 1);
+      }
+    }
+    return new Tree<>(label, children);
+  }
+
+  /** The output leaf of the word at the given position of the sentence. */
+  static Tree<String> leaf(List<? extends HasWord> sentence, int position) {
+    HasWord word = sentence.get(position);
+    return new Tree<>((word instanceof Label) ? ((Label) word).value() : word.word());
+  }
+
+  /**
+   * The output tree of a parse of the sentence, as made by a parser over
+   * states of this builder's index.  The leaves of the parse are replaced
+   * by the words of the sentence, which is the parser's input and ends
+   * with the boundary symbol.
+   */
+  public Tree<String> build(edu.berkeley.nlp.assignments.parsing.trees.Tree parse, List<? extends HasWord> sentence) {
+    List<Tree<String>> children = new ArrayList<>(parse.numChildren());
+    int position = 0;
+    for (edu.berkeley.nlp.assignments.parsing.trees.Tree child : parse.children()) {
+      position = add(child, sentence, position, children);
+    }
+    return root(label(parse.value()), children);
+  }
+
+  /**
+   * Add the output of a subtree of a parse whose leaves start at the given
+   * position of the sentence to siblings.
+   *
+   * @return The position after its last leaf
+   */
+  int add(edu.berkeley.nlp.assignments.parsing.trees.Tree parse, List<? extends HasWord> sentence, int position,
+          List<Tree<String>> siblings) {
+    if (parse.isLeaf()) {
+      siblings.add(leaf(sentence, position));
+      return position + 1;
+    }
+    List<Tree<String>> children = new ArrayList<>(parse.numChildren());
+    for (edu.berkeley.nlp.assignments.parsing.trees.Tree child : parse.children()) {
+      position = add(child, sentence, position, children);
+    }
+    add(parse.value(), children, siblings);
+    return position;
+  }
+
+}
@@ -0,0 +1,190 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.TaggedWord;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reads grammars and lexicons from a treebank in one streaming pass, with
+ * the trees annotated and binarized on {@code op.trainOptions.trainingThreads}
+ * threads.
+ * <p>
+ * The source trees are taken from an iterator in batches.  A worker
+ * transforms each tree of a batch and tallies its rules into a
+ * {@link BinaryGrammarExtractor} of the batch's own, with a private state
+ * index, keeping only the tagged yield of the tree for the lexicon.  The
+ * batches are then added up in treebank order, and the lexicon trained on
+ * their yields in that order, so the states, words and tags get the same
+ * ids, and the unknown word model (which counts the words it sees for the
+ * first time late in the treebank) the same counts, as in a sequential
+ * pass.  Only the batches in flight are held, never the whole transformed
+ * treebank.
+ */
+public class ParallelTreebankExtractor {
+
+  private static final int BATCH_SIZE = 256;
+
+  /**
+   * A grammar and lexicon to read from a view of each transformed tree:
+   * the tree itself, or, say, a relabeled copy of it.
+   */
+  public static class Target {
+
+    private final Function<Tree, Tree> view;
+    private final Index<String> stateIndex;
+    private final BinaryGrammarExtractor extractor;
+    private final Lexicon lexicon;
+    private Pair<UnaryGrammar, BinaryGrammar> grammar;
+
+    /**
+     * @param view Gives the tree to read from a transformed tree
+     * @param stateIndex The index the grammar's states go into
+     * @param lexicon An untrained lexicon, which is trained on the views
+     */
+    public Target(Function<Tree, Tree> view, Index<String> stateIndex, Lexicon lexicon) {
+      this.view = view;
+      this.stateIndex = stateIndex;
+      this.extractor = new BinaryGrammarExtractor(stateIndex);
+      this.lexicon = lexicon;
+    }
+
+    /** The unary and binary grammars, once extracted. */
+    public Pair<UnaryGrammar, BinaryGrammar> grammar() {
+      return grammar;
+    }
+
+    public Lexicon lexicon() {
+      return lexicon;
+    }
+
+    public Index<String> stateIndex() {
+      return stateIndex;
+    }
+
+  }
+
+  /** The counts of one batch of trees for each target. */
+  private static class Batch {
+    final BinaryGrammarExtractor[] extractors;
+    final List<List<List<TaggedWord>>> yields;
+
+    Batch(int targets) {
+      extractors = new BinaryGrammarExtractor[targets];
+      yields = new ArrayList<>(targets);
+      for (int i = 0; i < targets; i++) {
+        extractors[i] = new BinaryGrammarExtractor(new HashIndex<>(), true);
+        yields.add(new ArrayList<>(BATCH_SIZE));
+      }
+    }
+  }
+
+  private final Options op;
+
+  public ParallelTreebankExtractor(Options op) {
+    this.op = op;
+  }
+
+  /**
+   * Train every target on the given trees.
+   *
+   * @param trees The source trees
+   * @param numTrees How many trees there are, which the lexicon needs to
+   *     know before it starts
+   * @param transforms Makes the transformation of a source tree into an
+   *     annotated, binarized tree; each thread gets its own
+   * @param targets What to read from the transformed trees
+   */
+  public <T> void extract(Iterator<? extends T> trees, double numTrees,
+                          Supplier<? extends Function<? super T, Tree>> transforms, Target... targets) {
+    for (Target target : targets) {
+      target.lexicon.initializeTraining(numTrees);
+    }
+    int threads = op.trainOptions.trainingThreads;
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    if (threads == 1) {
+      Function<? super T, Tree> transform = transforms.get();
+      while (trees.hasNext()) {
+        add(tally(nextBatch(trees), transform, targets), targets);
+      }
+    } else {
+      ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+        Thread t = new Thread(r, "ParallelTreebankExtractor-worker");
+        t.setDaemon(true);
+        return t;
+      });
+      ThreadLocal<Function<? super T, Tree>> transform = ThreadLocal.withInitial(transforms);
+      int window = 2 * threads;
+      ArrayDeque<Future<Batch>> pending = new ArrayDeque<>();
+      try {
+        while (true) {
+          while (pending.size() < window && trees.hasNext()) {
+            List<T> batch = nextBatch(trees);
+            pending.add(pool.submit(() -> tally(batch, transform.get(), targets)));
+          }
+          if (pending.isEmpty()) {
+            break;
+          }
+          add(pending.poll().get(), targets);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      } catch (ExecutionException e) {
+        throw new RuntimeException(e.getCause());
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+    for (Target target : targets) {
+      target.grammar = target.extractor.formResult();
+      target.lexicon.finishTraining();
+    }
+  }
+
+  private static <T> List<T> nextBatch(Iterator<? extends T> trees) {
+    List<T> batch = new ArrayList<>(BATCH_SIZE);
+    while (batch.size() < BATCH_SIZE && trees.hasNext()) {
+      batch.add(trees.next());
+    }
+    return batch;
+  }
+
+  private static <T> Batch tally(List<T> trees, Function<? super T, Tree> transform, Target[] targets) {
+    Batch batch = new Batch(targets.length);
+    for (T source : trees) {
+      Tree tree = transform.apply(source);
+      for (int i = 0; i < targets.length; i++) {
+        Tree view = targets[i].view.apply(tree);
+        batch.extractors[i].tallyTree(view, 1.0);
+        batch.yields.get(i).add(view.taggedYield());
+      }
+    }
+    return batch;
+  }
+
+  /** Add a batch's counts; the batches must come in treebank order. */
+  private static void add(Batch batch, Target[] targets) {
+    for (int i = 0; i < targets.length; i++) {
+      targets[i].extractor.addAll(batch.extractors[i]);
+      for (List<TaggedWord> sentence : batch.yields.get(i)) {
+        targets[i].lexicon.train(sentence, 1.0);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,326 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.stats.ClassicCounter;
+import edu.berkeley.nlp.assignments.parsing.stats.Counter;
+import edu.berkeley.nlp.assignments.parsing.stats.PackedCounter;
+import edu.berkeley.nlp.assignments.parsing.util.Generics;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary file holding a trained PCFG: the state, word and tag
+ * indices, the binary rules, the unary rules and their closure, and the
+ * count tables of a {@link BaseLexicon} with an
+ * {@link EnglishUnknownWordModel}.  Loading it restores the grammars and
+ * lexicon exactly as they were after training, without retraining or
+ * recomputing the unary closure.
+ * <p>
+ * The file is a magic number and a format version followed by big-endian
+ * sections, each a count and then whole arrays of ints, floats or doubles,
+ * so it is read through a memory map with one bulk copy per array.
+ * Strings are stored as a table of end offsets into a block of UTF-8.
+ * Options are not stored; a model must be loaded with options equal to
+ * those it was trained with.
+ */
+public class ParserModelFile {
+
+  /** "PCFG" */
+  private static final int MAGIC = 0x50434647;
+  private static final int VERSION = 1;
+
+  private ParserModelFile() {}
+
+  /**
+   * Write a trained model.
+   *
+   * @param path The file to write, which is replaced if it exists
+   * @param bg The binary grammar
+   * @param ug The unary grammar, after {@link UnaryGrammar#purgeRules()}
+   * @param lex The lexicon, after {@link Lexicon#finishTraining()}; it must
+   *     be a BaseLexicon with an EnglishUnknownWordModel
+   * @throws IllegalArgumentException If the lexicon or its unknown word
+   *     model is of another class
+   */
+  public static void write(Path path, BinaryGrammar bg, UnaryGrammar ug, Lexicon lex,
+                           Index<String> stateIndex, Index<String> wordIndex,
+                           Index<String> tagIndex) throws IOException {
+    if (lex.getClass() != BaseLexicon.class
+        || lex.getUnknownWordModel().getClass() != EnglishUnknownWordModel.class) {
+      throw new IllegalArgumentException("Only a BaseLexicon with an EnglishUnknownWordModel can be written, not "
+          + lex.getClass().getName());
+    }
+    BaseLexicon baseLex = (BaseLexicon) lex;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      writeStrings(out, stateIndex.objectsList());
+      writeStrings(out, wordIndex.objectsList());
+      writeStrings(out, tagIndex.objectsList());
+
+      List<BinaryRule> binaries = bg.rules();
+      out.writeInt(binaries.size());
+      for (BinaryRule br : binaries) {
+        out.writeInt(br.parent);
+      }
+      for (BinaryRule br : binaries) {
+        out.writeInt(br.leftChild);
+      }
+      for (BinaryRule br : binaries) {
+        out.writeInt(br.rightChild);
+      }
+      for (BinaryRule br : binaries) {
+        out.writeFloat(br.score);
+      }
+
+      int numStates = stateIndex.size();
+      List<UnaryRule> rules = new ArrayList<>();
+      List<UnaryRule> rulesByChild = new ArrayList<>();
+      List<UnaryRule> closedRules = new ArrayList<>();
+      List<UnaryRule> closedRulesByChild = new ArrayList<>();
+      for (int state = 0; state < numStates; state++) {
+        rules.addAll(ug.rulesByParent(state));
+        rulesByChild.addAll(ug.rulesByChild(state));
+        closedRules.addAll(Arrays.asList(ug.closedRulesByParent(state)));
+        closedRulesByChild.addAll(Arrays.asList(ug.closedRulesByChild(state)));
+      }
+      writeUnaries(out, rules, rulesByChild);
+      writeUnaries(out, closedRules, closedRulesByChild);
+
+      writeCounter(out, baseLex.seenCounter);
+      writeDoubles(out, baseLex.smooth);
+      writeCounter(out, baseLex.getUnknownWordModel().unSeenCounter());
+      Map<String, Counter<String>> baseTagCounts = baseLex.baseTagCounts();
+      List<String> baseTags = new ArrayList<>(baseTagCounts.keySet());
+      writeStrings(out, baseTags);
+      for (String baseTag : baseTags) {
+        Counter<String> counts = baseTagCounts.get(baseTag);
+        List<String> tags = new ArrayList<>(counts.keySet());
+        writeStrings(out, tags);
+        double[] values = new double[tags.size()];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = counts.getCount(tags.get(i));
+        }
+        writeDoubles(out, values);
+      }
+    }
+  }
+
+  /**
+   * Read a model written by {@link #write} into empty indices, returning
+   * the grammars and lexicon over them.  The binary grammar is split and
+   * the unary grammar purged, ready for parsing.
+   *
+   * @param path The model file
+   * @param op Options equal to those the model was trained with
+   * @throws IOException If the file cannot be read, or is not a model file
+   *     of this version
+   */
+  public static Model read(Path path, Options op, Index<String> stateIndex,
+                           Index<String> wordIndex, Index<String> tagIndex) throws IOException {
+    if (stateIndex.size() != 0 || wordIndex.size() != 0 || tagIndex.size() != 0) {
+      throw new IllegalArgumentException("The indices of a model must be read into empty indices");
+    }
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Model file too large: " + path);
+      }
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try {
+        if (in.remaining() < 8 || in.getInt() != MAGIC) {
+          throw new IOException("Not a parser model file: " + path);
+        }
+        int version = in.getInt();
+        if (version != VERSION) {
+          throw new IOException("Unsupported model file version " + version + ": " + path);
+        }
+        stateIndex.addAll(Arrays.asList(readStrings(in)));
+        wordIndex.addAll(Arrays.asList(readStrings(in)));
+        tagIndex.addAll(Arrays.asList(readStrings(in)));
+
+        BinaryGrammar bg = new BinaryGrammar(stateIndex);
+        int numBinaries = in.getInt();
+        int[] parent = readInts(in, numBinaries);
+        int[] left = readInts(in, numBinaries);
+        int[] right = readInts(in, numBinaries);
+        float[] score = readFloats(in, numBinaries);
+        for (int i = 0; i < numBinaries; i++) {
+          bg.addRule(new BinaryRule(parent[i], left[i], right[i], score[i]));
+        }
+        bg.splitRules();
+
+        UnaryRule[] rules = readUnaries(in);
+        int[] rulesByChild = readInts(in, rules.length);
+        UnaryRule[] closedRules = readUnaries(in);
+        int[] closedRulesByChild = readInts(in, closedRules.length);
+        UnaryGrammar ug = new UnaryGrammar(stateIndex, rules, rulesByChild, closedRules, closedRulesByChild);
+
+        BaseLexicon lex = new BaseLexicon(op, wordIndex, tagIndex);
+        PackedCounter<IntTaggedWord> seenCounter = readCounter(in);
+        double[] smooth = readDoubles(in, in.getInt());
+        PackedCounter<IntTaggedWord> unSeenCounter = readCounter(in);
+        Map<String, Counter<String>> baseTagCounts = Generics.newHashMap();
+        for (String baseTag : readStrings(in)) {
+          String[] tags = readStrings(in);
+          double[] counts = readDoubles(in, in.getInt());
+          Counter<String> counter = new ClassicCounter<>();
+          for (int i = 0; i < tags.length; i++) {
+            counter.setCount(tags[i], counts[i]);
+          }
+          baseTagCounts.put(baseTag, counter);
+        }
+        lex.restore(seenCounter, smooth, baseTagCounts,
+                    new EnglishUnknownWordModel(op, lex, wordIndex, tagIndex, unSeenCounter));
+
+        if (in.hasRemaining()) {
+          throw new IOException("Trailing data in model file: " + path);
+        }
+        return new Model(bg, ug, lex);
+      } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+        throw new IOException("Truncated or corrupt model file: " + path, e);
+      }
+    }
+  }
+
+  /** The grammars and lexicon read from a model file. */
+  public static class Model {
+    public final BinaryGrammar bg;
+    public final UnaryGrammar ug;
+    public final Lexicon lex;
+
+    Model(BinaryGrammar bg, UnaryGrammar ug, Lexicon lex) {
+      this.bg = bg;
+      this.ug = ug;
+      this.lex = lex;
+    }
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    byte[][] bytes = new byte[strings.size()][];
+    out.writeInt(bytes.length);
+    int end = 0;
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+      end += bytes[i].length;
+      out.writeInt(end);
+    }
+    for (byte[] b : bytes) {
+      out.write(b);
+    }
+  }
+
+  private static String[] readStrings(ByteBuffer in) {
+    int n = in.getInt();
+    int[] ends = readInts(in, n);
+    byte[] bytes = new byte[n == 0 ? 0 : ends[n - 1]];
+    in.get(bytes);
+    String[] strings = new String[n];
+    for (int i = 0, start = 0; i < n; start = ends[i], i++) {
+      strings[i] = new String(bytes, start, ends[i] - start, StandardCharsets.UTF_8);
+    }
+    return strings;
+  }
+
+  /** Write rules in by-parent order, then the by-child order as positions in it. */
+  private static void writeUnaries(DataOutputStream out, List<UnaryRule> rules, List<UnaryRule> rulesByChild)
+      throws IOException {
+    out.writeInt(rules.size());
+    for (UnaryRule ur : rules) {
+      out.writeInt(ur.parent);
+    }
+    for (UnaryRule ur : rules) {
+      out.writeInt(ur.child);
+    }
+    for (UnaryRule ur : rules) {
+      out.writeFloat(ur.score);
+    }
+    Map<UnaryRule, Integer> position = Generics.newHashMap(rules.size());
+    for (int i = 0; i < rules.size(); i++) {
+      position.put(rules.get(i), i);
+    }
+    for (UnaryRule ur : rulesByChild) {
+      out.writeInt(position.get(ur));
+    }
+  }
+
+  private static UnaryRule[] readUnaries(ByteBuffer in) {
+    int n = in.getInt();
+    int[] parent = readInts(in, n);
+    int[] child = readInts(in, n);
+    float[] score = readFloats(in, n);
+    UnaryRule[] rules = new UnaryRule[n];
+    for (int i = 0; i < n; i++) {
+      rules[i] = new UnaryRule(parent[i], child[i], score[i]);
+    }
+    return rules;
+  }
+
+  /** Entries are written in the counter's iteration order, and read back in it. */
+  private static void writeCounter(DataOutputStream out, Counter<IntTaggedWord> counter) throws IOException {
+    List<IntTaggedWord> keys = new ArrayList<>(counter.keySet());
+    out.writeInt(keys.size());
+    for (IntTaggedWord itw : keys) {
+      out.writeInt(itw.word());
+    }
+    for (IntTaggedWord itw : keys) {
+      out.writeInt(itw.tag());
+    }
+    for (IntTaggedWord itw : keys) {
+      out.writeDouble(counter.getCount(itw));
+    }
+  }
+
+  private static PackedCounter<IntTaggedWord> readCounter(ByteBuffer in) {
+    int n = in.getInt();
+    int[] word = readInts(in, n);
+    int[] tag = readInts(in, n);
+    double[] count = readDoubles(in, n);
+    PackedCounter<IntTaggedWord> counter = IntTaggedWord.newCounter();
+    for (int i = 0; i < n; i++) {
+      counter.counts().setCount(IntTaggedWord.pack(word[i], tag[i]), count[i]);
+    }
+    return counter;
+  }
+
+  private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double v : values) {
+      out.writeDouble(v);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer in, int n) {
+    int[] values = new int[n];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * n);
+    return values;
+  }
+
+  private static float[] readFloats(ByteBuffer in, int n) {
+    float[] values = new float[n];
+    in.asFloatBuffer().get(values);
+    in.position(in.position() + 4 * n);
+    return values;
+  }
+
+  private static double[] readDoubles(ByteBuffer in, int n) {
+    double[] values = new double[n];
+    in.asDoubleBuffer().get(values);
+    in.position(in.position() + 8 * n);
+    return values;
+  }
+
+}
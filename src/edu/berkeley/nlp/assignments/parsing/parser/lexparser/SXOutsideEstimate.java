@@ -0,0 +1,182 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.Arrays;
+
+/**
+ * The SX context summary outside estimate of Klein and Manning (2003), "A*
+ * Parsing: Fast Exact Viterbi Parse Selection", for {@link AStarPCFGParser}.
+ * For every state and every number of words to the left and right of a
+ * span, it holds the best log probability of the grammar rules of any
+ * outside context, counting the words' own P(word|tag) as 0.  It depends
+ * only on the grammar, so it is computed once and shared by all parsers.
+ * <p>
+ * The parser adds to it, for each word outside the span, the best tag
+ * score of that word in the sentence being parsed.  Since the lexicon and
+ * rule parts of any outside context are each no better than their bound,
+ * the sum never underestimates the true outside score, so A* search with
+ * it finds the Viterbi parse.
+ */
+public class SXOutsideEstimate {
+
+  private final int maxLength;
+  private final int numStates;
+
+  /** [left words][right words][state], for left + right &lt; maxLength. */
+  private final float[][][] outside;
+
+  /**
+   * Build the table.  This takes time cubic in maxLength.
+   *
+   * @param bg The binary grammar, after {@link BinaryGrammar#splitRules()}
+   * @param ug The unary grammar, after {@link UnaryGrammar#purgeRules()}
+   * @param stateIndex The grammar's states
+   * @param tagIndex The tags, which are the states a word can rewrite as
+   * @param goalStr The state that spans whole sentences
+   * @param maxLength The longest sentence, including the boundary symbol,
+   *     to hold estimates for
+   */
+  public SXOutsideEstimate(BinaryGrammar bg, UnaryGrammar ug, Index<String> stateIndex,
+                           Index<String> tagIndex, String goalStr, int maxLength) {
+    this.maxLength = maxLength;
+    this.numStates = stateIndex.size();
+
+    BinaryRuleTable byParent = bg.ruleTableByParent();
+    UnaryRuleTable closedByChild = ug.closedRuleTableByChild();
+    UnaryRuleTable closedByParent = ug.closedRuleTableByParent();
+
+    // best rule score of any subtree of a state over n words: [n][state]
+    float[][] inside = new float[maxLength + 1][];
+    inside[1] = newCell();
+    for (String tag : tagIndex.objectsList()) {
+      int state = stateIndex.indexOf(tag);
+      if (state >= 0) {
+        inside[1][state] = 0.0f;
+      }
+    }
+    closeUpward(inside[1], closedByChild);
+    for (int width = 2; width <= maxLength; width++) {
+      float[] cell = newCell();
+      for (int split = 1; split < width; split++) {
+        float[] left = inside[split];
+        float[] right = inside[width - split];
+        for (int r = 0, rMax = byParent.numRules(); r < rMax; r++) {
+          float tot = byParent.score[r] + left[byParent.left[r]] + right[byParent.right[r]];
+          if (tot > cell[byParent.parent[r]]) {
+            cell[byParent.parent[r]] = tot;
+          }
+        }
+      }
+      closeUpward(cell, closedByChild);
+      inside[width] = cell;
+    }
+
+    int goal = stateIndex.indexOf(goalStr);
+    outside = new float[maxLength][][];
+    for (int left = 0; left < maxLength; left++) {
+      outside[left] = new float[maxLength - left][];
+    }
+    for (int words = 0; words < maxLength; words++) {
+      for (int left = 0; left <= words; left++) {
+        int right = words - left;
+        float[] cell = newCell();
+        if (words == 0) {
+          if (goal >= 0) {
+            cell[goal] = 0.0f;
+          }
+        }
+        // the parent covers k more words, taken by the state's sibling
+        for (int k = 1; k <= right; k++) {
+          float[] parents = outside[left][right - k];
+          float[] sibling = inside[k];
+          for (int parent = 0; parent < numStates; parent++) {
+            float oS = parents[parent];
+            if (oS == Float.NEGATIVE_INFINITY) {
+              continue;
+            }
+            for (int r = byParent.offsets[parent], rMax = byParent.offsets[parent + 1]; r < rMax; r++) {
+              float tot = oS + byParent.score[r] + sibling[byParent.right[r]];
+              if (tot > cell[byParent.left[r]]) {
+                cell[byParent.left[r]] = tot;
+              }
+            }
+          }
+        }
+        for (int k = 1; k <= left; k++) {
+          float[] parents = outside[left - k][right];
+          float[] sibling = inside[k];
+          for (int parent = 0; parent < numStates; parent++) {
+            float oS = parents[parent];
+            if (oS == Float.NEGATIVE_INFINITY) {
+              continue;
+            }
+            for (int r = byParent.offsets[parent], rMax = byParent.offsets[parent + 1]; r < rMax; r++) {
+              float tot = oS + byParent.score[r] + sibling[byParent.left[r]];
+              if (tot > cell[byParent.right[r]]) {
+                cell[byParent.right[r]] = tot;
+              }
+            }
+          }
+        }
+        closeDownward(cell, closedByParent);
+        outside[left][right] = cell;
+      }
+    }
+  }
+
+  private float[] newCell() {
+    float[] cell = new float[numStates];
+    Arrays.fill(cell, Float.NEGATIVE_INFINITY);
+    return cell;
+  }
+
+  /** Apply the closed unary rules child to parent.  One pass suffices, as
+   *  closed rules already are the best unary chains.
+   */
+  private void closeUpward(float[] cell, UnaryRuleTable closedByChild) {
+    for (int child = 0; child < numStates; child++) {
+      float iS = cell[child];
+      if (iS == Float.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int r = closedByChild.offsets[child], rMax = closedByChild.offsets[child + 1]; r < rMax; r++) {
+        float tot = iS + closedByChild.score[r];
+        if (tot > cell[closedByChild.parent[r]]) {
+          cell[closedByChild.parent[r]] = tot;
+        }
+      }
+    }
+  }
+
+  /** Apply the closed unary rules parent to child, for outside scores. */
+  private void closeDownward(float[] cell, UnaryRuleTable closedByParent) {
+    for (int parent = 0; parent < numStates; parent++) {
+      float oS = cell[parent];
+      if (oS == Float.NEGATIVE_INFINITY) {
+        continue;
+      }
+      for (int r = closedByParent.offsets[parent], rMax = closedByParent.offsets[parent + 1]; r < rMax; r++) {
+        float tot = oS + closedByParent.score[r];
+        if (tot > cell[closedByParent.child[r]]) {
+          cell[closedByParent.child[r]] = tot;
+        }
+      }
+    }
+  }
+
+  /** The longest sentence, counting the boundary symbol, with estimates. */
+  public int maxLength() {
+    return maxLength;
+  }
+
+  /**
+   * An upper bound on the rule part of the outside score of state over a
+   * span with the given numbers of words left and right of it, or -Inf if
+   * no sentence can have the state there.
+   */
+  public float outside(int leftWords, int rightWords, int state) {
+    return outside[leftWords][rightWords][state];
+  }
+
+}
@@ -0,0 +1,79 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.util.Generics;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The word ids of the sentence a parser is parsing.  Each parser has its
+ * own.
+ * <p>
+ * A word in the trained word index has its trained id.  Once training is
+ * over and the trained index is locked, it is only read: any other word
+ * gets a transient id, counting up from the size of the index, which is
+ * valid until {@link #clear()} and which no lexicon or grammar knows, so
+ * the word is scored as unknown from its string.  Parsing thus neither
+ * grows the trained index nor writes to an index that other parsing
+ * threads are reading.  While the index is unlocked, new words are added
+ * to it as before.
+ */
+class SentenceWordIndex {
+
+  private final Index<String> wordIndex;
+
+  /** The transient id of the first word not in the trained index. */
+  private int base;
+  private final List<String> transientWords = new ArrayList<>();
+  private final Map<String, Integer> transientIds = Generics.newHashMap();
+
+  SentenceWordIndex(Index<String> wordIndex) {
+    this.wordIndex = wordIndex;
+    clear();
+  }
+
+  /** Forget the transient ids of the last sentence. */
+  void clear() {
+    transientWords.clear();
+    transientIds.clear();
+    base = wordIndex.size();
+  }
+
+  /** The trained id of a word, or else its transient id in this sentence. */
+  int indexOf(String word) {
+    int id = wordIndex.indexOf(word);
+    if (id >= 0) {
+      return id;
+    }
+    if ( ! wordIndex.isLocked()) {
+      return wordIndex.addToIndex(word);
+    }
+    Integer transientId = transientIds.get(word);
+    if (transientId == null) {
+      transientId = base + transientWords.size();
+      transientWords.add(word);
+      transientIds.put(word, transientId);
+    }
+    return transientId;
+  }
+
+  /**
+   * The id of a word in the trained index: its own, or for a word with a
+   * transient id, that of Lexicon.UNKNOWN_WORD, for a grammar that looks
+   * its word ids up in the index.
+   */
+  int trainedId(int id) {
+    return (id < base) ? id : wordIndex.indexOf(Lexicon.UNKNOWN_WORD);
+  }
+
+  /** The word with a trained or transient id. */
+  String get(int id) {
+    if (id >= base && id - base < transientWords.size()) {
+      return transientWords.get(id - base);
+    }
+    return wordIndex.get(id);
+  }
+
+}
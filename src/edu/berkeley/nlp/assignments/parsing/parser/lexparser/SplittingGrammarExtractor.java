@@ -0,0 +1,1051 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.ling.TaggedWord;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.util.Generics;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Learns latent subcategories of the states of a binarized treebank by
+ * split-merge EM, after Petrov, Barrett, Thibaux and Klein (2006), and
+ * extracts the grammars and lexicon of the refined states.
+ * <p>
+ * Each of {@link TrainOptions#splitCount} cycles has three stages, each
+ * followed by {@link TrainOptions#splitEMIterations} EM iterations: split
+ * every state in two (but for the goal and the boundary tag); merge back
+ * the {@link TrainOptions#splitRecombineRate} of the new splits whose
+ * merging loses the least likelihood; and smooth each substate's rule and
+ * word probabilities toward the average over its state's substates
+ * ({@link TrainOptions#splitSmoothing}), in every M-step of the stage.
+ * <p>
+ * The E-step is inside-outside over each training tree, whose bracketing
+ * and base states are fixed.  It runs on {@link TrainOptions#trainingThreads}
+ * threads, each over a slice of the trees with its own expected counts,
+ * which are added up at the end of the pass.  Inside and outside vectors
+ * are scaled to a maximum of 1 at each node, with the log of the scale
+ * kept beside them.
+ * <p>
+ * Substate i of state X is named X^i, which
+ * {@link edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack#basicCategory}
+ * strips.
+ */
+public class SplittingGrammarExtractor {
+
+  /** The relative noise added to probabilities when splitting, to break symmetry. */
+  private static final double SPLIT_NOISE = 0.01;
+
+  /** Rules less probable than this are left out of the extracted grammars. */
+  private static final double MIN_RULE_PROB = 1e-30;
+
+  private final Options op;
+  private final Index<String> stateIndex;
+  private final Index<String> wordIndex;
+  private final Index<String> tagIndex;
+  private final Random random = new Random(1);
+
+  /** The states of the binarized treebank, unsplit. */
+  private final Index<String> baseStates = new HashIndex<>();
+  private final Index<String> words = new HashIndex<>();
+  private boolean[] splittable;
+  private int[] numSubstates;
+  /** The states that the last split split, until it has been merged. */
+  private boolean[] justSplit;
+
+  // binary rules over base states, and their probabilities over substates,
+  // indexed [(parentSub * numLeft + leftSub) * numRight + rightSub]
+  private int[] binaryParent;
+  private int[] binaryLeft;
+  private int[] binaryRight;
+  private double[][] binaryProbs;
+
+  // unary rules, indexed [parentSub * numChild + childSub]
+  private int[] unaryParent;
+  private int[] unaryChild;
+  private double[][] unaryProbs;
+
+  // (tag, word) pairs, and P(word | tag substate), indexed [tagSub]
+  private int[] lexTag;
+  private int[] lexWord;
+  private double[][] lexProbs;
+
+  private List<TrainingTree> trees;
+  /** [state][sub] -&gt; the expected number of nodes of the substate, from the last E-step. */
+  private double[][] substateCounts;
+
+  private Lexicon lex;
+
+  public SplittingGrammarExtractor(Options op, Index<String> stateIndex, Index<String> wordIndex, Index<String> tagIndex) {
+    this.op = op;
+    this.stateIndex = stateIndex;
+    this.wordIndex = wordIndex;
+    this.tagIndex = tagIndex;
+  }
+
+  /**
+   * Train on the binarized trees, as the stages above, and return the
+   * grammars of the refined states.  The lexicon is then {@link #lexicon()}.
+   */
+  public Pair<UnaryGrammar,BinaryGrammar> extract(Collection<Tree> treeList) {
+    initialize(treeList);
+    int iterations = op.trainOptions.splitEMIterations;
+    for (int cycle = 0; cycle < op.trainOptions.splitCount; cycle++) {
+      split();
+      double logLikelihood = 0.0;
+      for (int i = 0; i < iterations; i++) {
+        logLikelihood = emIteration(false);
+      }
+      if (op.testOptions.verbose) {
+        System.err.println("Split " + (cycle + 1) + ": " + numSubstates() + " substates, log likelihood " + logLikelihood);
+      }
+      if (merge()) {
+        for (int i = 0; i < iterations; i++) {
+          logLikelihood = emIteration(false);
+        }
+        if (op.testOptions.verbose) {
+          System.err.println("Merge " + (cycle + 1) + ": " + numSubstates() + " substates, log likelihood " + logLikelihood);
+        }
+      }
+      for (int i = 0; i < iterations; i++) {
+        logLikelihood = emIteration(true);
+      }
+      if (op.testOptions.verbose) {
+        System.err.println("Smooth " + (cycle + 1) + ": log likelihood " + logLikelihood);
+      }
+    }
+    lex = formLexicon();
+    return formResult();
+  }
+
+  /** The lexicon of the refined tags, once {@link #extract} has run. */
+  public Lexicon lexicon() {
+    return lex;
+  }
+
+  /** The number of substates over all states. */
+  public int numSubstates() {
+    int total = 0;
+    for (int n : numSubstates) {
+      total += n;
+    }
+    return total;
+  }
+
+  /**
+   * Read the binarized trees, with one substate per state, and set the
+   * probabilities to their relative frequencies.
+   */
+  public void initialize(Collection<Tree> treeList) {
+    Map<BinaryRule,Integer> binaryIds = Generics.newHashMap();
+    Map<UnaryRule,Integer> unaryIds = Generics.newHashMap();
+    Map<IntTaggedWord,Integer> lexIds = Generics.newHashMap();
+    trees = new ArrayList<>(treeList.size());
+    for (Tree tree : treeList) {
+      trees.add(new TrainingTree(tree, binaryIds, unaryIds, lexIds));
+    }
+
+    int numStates = baseStates.size();
+    splittable = new boolean[numStates];
+    justSplit = new boolean[numStates];
+    numSubstates = new int[numStates];
+    Arrays.fill(numSubstates, 1);
+    String goal = op.langpack().startSymbol();
+    for (int state = 0; state < numStates; state++) {
+      String name = baseStates.get(state);
+      splittable[state] = ! name.equals(goal) && ! name.equals(Lexicon.BOUNDARY_TAG);
+    }
+
+    binaryParent = new int[binaryIds.size()];
+    binaryLeft = new int[binaryIds.size()];
+    binaryRight = new int[binaryIds.size()];
+    for (Map.Entry<BinaryRule,Integer> entry : binaryIds.entrySet()) {
+      binaryParent[entry.getValue()] = entry.getKey().parent;
+      binaryLeft[entry.getValue()] = entry.getKey().leftChild;
+      binaryRight[entry.getValue()] = entry.getKey().rightChild;
+    }
+    unaryParent = new int[unaryIds.size()];
+    unaryChild = new int[unaryIds.size()];
+    for (Map.Entry<UnaryRule,Integer> entry : unaryIds.entrySet()) {
+      unaryParent[entry.getValue()] = entry.getKey().parent;
+      unaryChild[entry.getValue()] = entry.getKey().child;
+    }
+    lexTag = new int[lexIds.size()];
+    lexWord = new int[lexIds.size()];
+    for (Map.Entry<IntTaggedWord,Integer> entry : lexIds.entrySet()) {
+      lexTag[entry.getValue()] = entry.getKey().tag;
+      lexWord[entry.getValue()] = entry.getKey().word;
+    }
+    // any positive probabilities do, as each tree has one derivation
+    binaryProbs = filled(binaryIds.size(), 1.0);
+    unaryProbs = filled(unaryIds.size(), 1.0);
+    lexProbs = filled(lexIds.size(), 1.0);
+    emIteration(false);
+  }
+
+  private static double[][] filled(int rows, double value) {
+    double[][] array = new double[rows][1];
+    for (double[] row : array) {
+      row[0] = value;
+    }
+    return array;
+  }
+
+  /**
+   * Split each substate of each state but the goal and the boundary tag in
+   * two, sharing its probabilities, with a little noise, between them.
+   */
+  public void split() {
+    int[] old = numSubstates.clone();
+    for (int state = 0; state < numSubstates.length; state++) {
+      justSplit[state] = splittable[state];
+      if (splittable[state]) {
+        numSubstates[state] *= 2;
+      }
+    }
+    for (int r = 0; r < binaryProbs.length; r++) {
+      int p = binaryParent[r];
+      int l = binaryLeft[r];
+      int rc = binaryRight[r];
+      int fp = numSubstates[p] / old[p];
+      int fl = numSubstates[l] / old[l];
+      int fr = numSubstates[rc] / old[rc];
+      int nl = numSubstates[l];
+      int nr = numSubstates[rc];
+      double[] oldProbs = binaryProbs[r];
+      double[] probs = new double[numSubstates[p] * nl * nr];
+      for (int a = 0; a < numSubstates[p]; a++) {
+        for (int b = 0; b < nl; b++) {
+          for (int c = 0; c < nr; c++) {
+            double prob = oldProbs[((a / fp) * old[l] + b / fl) * old[rc] + c / fr];
+            probs[(a * nl + b) * nr + c] = prob / (fl * fr) * noise();
+          }
+        }
+      }
+      binaryProbs[r] = probs;
+    }
+    for (int r = 0; r < unaryProbs.length; r++) {
+      int p = unaryParent[r];
+      int c = unaryChild[r];
+      int fp = numSubstates[p] / old[p];
+      int fc = numSubstates[c] / old[c];
+      int nc = numSubstates[c];
+      double[] oldProbs = unaryProbs[r];
+      double[] probs = new double[numSubstates[p] * nc];
+      for (int a = 0; a < numSubstates[p]; a++) {
+        for (int b = 0; b < nc; b++) {
+          probs[a * nc + b] = oldProbs[(a / fp) * old[c] + b / fc] / fc * noise();
+        }
+      }
+      unaryProbs[r] = probs;
+    }
+    for (int i = 0; i < lexProbs.length; i++) {
+      int t = lexTag[i];
+      int ft = numSubstates[t] / old[t];
+      double[] oldProbs = lexProbs[i];
+      double[] probs = new double[numSubstates[t]];
+      for (int a = 0; a < probs.length; a++) {
+        probs[a] = oldProbs[a / ft] * noise();
+      }
+      lexProbs[i] = probs;
+    }
+    for (int state = 0; state < substateCounts.length; state++) {
+      int f = numSubstates[state] / old[state];
+      double[] counts = new double[numSubstates[state]];
+      for (int a = 0; a < counts.length; a++) {
+        counts[a] = substateCounts[state][a / f] / f;
+      }
+      substateCounts[state] = counts;
+    }
+  }
+
+  private double noise() {
+    return 1.0 + SPLIT_NOISE * (random.nextDouble() - 0.5);
+  }
+
+  /**
+   * Run an E-step over all the trees and re-estimate the probabilities from
+   * its expected counts, smoothing them if asked.  Returns the log
+   * likelihood of the trees before re-estimation.
+   */
+  public double emIteration(boolean smooth) {
+    ExpectedCounts counts = pass(ExpectedCounts::new, (worker, tree, acc) -> worker.tally(tree, acc),
+        ExpectedCounts::add);
+    maximize(counts);
+    if (smooth) {
+      smooth();
+    }
+    substateCounts = counts.substates;
+    return counts.logLikelihood;
+  }
+
+  /** Set the probabilities to the relative frequencies of the counts. */
+  private void maximize(ExpectedCounts counts) {
+    // the expected count of each substate as a parent, and as a tag
+    double[][] totals = new double[numSubstates.length][];
+    double[][] tagTotals = new double[numSubstates.length][];
+    for (int state = 0; state < totals.length; state++) {
+      totals[state] = new double[numSubstates[state]];
+      tagTotals[state] = new double[numSubstates[state]];
+    }
+    for (int r = 0; r < binaryProbs.length; r++) {
+      addRows(counts.binary[r], totals[binaryParent[r]]);
+    }
+    for (int r = 0; r < unaryProbs.length; r++) {
+      addRows(counts.unary[r], totals[unaryParent[r]]);
+    }
+    for (int i = 0; i < lexProbs.length; i++) {
+      addRows(counts.lexical[i], tagTotals[lexTag[i]]);
+    }
+    for (int r = 0; r < binaryProbs.length; r++) {
+      normalize(counts.binary[r], totals[binaryParent[r]], binaryProbs[r]);
+    }
+    for (int r = 0; r < unaryProbs.length; r++) {
+      normalize(counts.unary[r], totals[unaryParent[r]], unaryProbs[r]);
+    }
+    for (int i = 0; i < lexProbs.length; i++) {
+      normalize(counts.lexical[i], tagTotals[lexTag[i]], lexProbs[i]);
+    }
+  }
+
+  /** Add the sum of each of the totals.length rows of counts to totals. */
+  private static void addRows(double[] counts, double[] totals) {
+    int width = counts.length / totals.length;
+    for (int a = 0, i = 0; a < totals.length; a++) {
+      double sum = 0.0;
+      for (int end = i + width; i < end; i++) {
+        sum += counts[i];
+      }
+      totals[a] += sum;
+    }
+  }
+
+  private static void normalize(double[] counts, double[] totals, double[] probs) {
+    int width = counts.length / totals.length;
+    for (int a = 0, i = 0; a < totals.length; a++) {
+      double total = totals[a];
+      for (int end = i + width; i < end; i++) {
+        probs[i] = (total > 0.0) ? counts[i] / total : 0.0;
+      }
+    }
+  }
+
+  /**
+   * Pull each substate's probabilities toward the average over the
+   * substates of its state, by {@link TrainOptions#splitSmoothing}.  As
+   * this mixes distributions, they stay normalized.
+   */
+  public void smooth() {
+    double alpha = op.trainOptions.splitSmoothing;
+    for (int r = 0; r < binaryProbs.length; r++) {
+      smooth(binaryProbs[r], numSubstates[binaryParent[r]], alpha);
+    }
+    for (int r = 0; r < unaryProbs.length; r++) {
+      smooth(unaryProbs[r], numSubstates[unaryParent[r]], alpha);
+    }
+    for (int i = 0; i < lexProbs.length; i++) {
+      smooth(lexProbs[i], numSubstates[lexTag[i]], alpha);
+    }
+  }
+
+  private static void smooth(double[] probs, int numParents, double alpha) {
+    if (numParents == 1) {
+      return;
+    }
+    int width = probs.length / numParents;
+    for (int i = 0; i < width; i++) {
+      double mean = 0.0;
+      for (int a = 0; a < numParents; a++) {
+        mean += probs[a * width + i];
+      }
+      mean /= numParents;
+      for (int a = 0; a < numParents; a++) {
+        probs[a * width + i] = (1.0 - alpha) * probs[a * width + i] + alpha * mean;
+      }
+    }
+  }
+
+  /**
+   * Merge back the {@link TrainOptions#splitRecombineRate} of the substate
+   * pairs made by the last split whose merging loses the least likelihood,
+   * estimated node by node as in Petrov et al.  Returns whether any were
+   * merged.
+   */
+  public boolean merge() {
+    double rate = op.trainOptions.splitRecombineRate;
+    if (rate <= 0.0) {
+      Arrays.fill(justSplit, false);
+      return false;
+    }
+    double[][] loss = pass(() -> {
+      double[][] acc = new double[numSubstates.length][];
+      for (int state = 0; state < acc.length; state++) {
+        acc[state] = new double[justSplit[state] ? numSubstates[state] / 2 : 0];
+      }
+      return acc;
+    }, (worker, tree, acc) -> worker.tallyMergeLoss(tree, acc), (total, acc) -> {
+      for (int state = 0; state < total.length; state++) {
+        for (int i = 0; i < total[state].length; i++) {
+          total[state][i] += acc[state][i];
+        }
+      }
+    });
+    List<int[]> pairs = new ArrayList<>();
+    for (int state = 0; state < loss.length; state++) {
+      for (int i = 0; i < loss[state].length; i++) {
+        pairs.add(new int[] { state, i });
+      }
+    }
+    // the smallest loss of likelihood first
+    pairs.sort((x, y) -> Double.compare(loss[y[0]][y[1]], loss[x[0]][x[1]]));
+    int numMerges = (int) Math.round(rate * pairs.size());
+    boolean[][] merged = new boolean[numSubstates.length][];
+    for (int state = 0; state < merged.length; state++) {
+      merged[state] = new boolean[loss[state].length];
+    }
+    for (int[] pair : pairs.subList(0, numMerges)) {
+      merged[pair[0]][pair[1]] = true;
+    }
+    Arrays.fill(justSplit, false);
+    if (numMerges == 0) {
+      return false;
+    }
+    mergeSubstates(merged);
+    return true;
+  }
+
+  /**
+   * Merge substates 2i and 2i+1 of each state where merged[state][i]:
+   * probabilities of the merged substate as a parent are the average of the
+   * two, weighted by their expected counts, and as a child the sum.
+   */
+  private void mergeSubstates(boolean[][] merged) {
+    int numStates = numSubstates.length;
+    // old substate -> new substate, and the weight of each old substate
+    // within its new one
+    int[][] map = new int[numStates][];
+    double[][] weight = new double[numStates][];
+    int[] newCount = new int[numStates];
+    for (int state = 0; state < numStates; state++) {
+      int n = numSubstates[state];
+      map[state] = new int[n];
+      weight[state] = new double[n];
+      int next = 0;
+      for (int a = 0; a < n; a++) {
+        boolean mergeWithPrevious = (a % 2 == 1) && a / 2 < merged[state].length && merged[state][a / 2];
+        map[state][a] = mergeWithPrevious ? next - 1 : next++;
+      }
+      newCount[state] = next;
+      double[] totals = new double[next];
+      for (int a = 0; a < n; a++) {
+        totals[map[state][a]] += substateCounts[state][a];
+      }
+      int[] size = new int[next];
+      for (int a = 0; a < n; a++) {
+        size[map[state][a]]++;
+      }
+      for (int a = 0; a < n; a++) {
+        int m = map[state][a];
+        weight[state][a] = (totals[m] > 0.0) ? substateCounts[state][a] / totals[m] : 1.0 / size[m];
+      }
+    }
+    for (int r = 0; r < binaryProbs.length; r++) {
+      int p = binaryParent[r];
+      int l = binaryLeft[r];
+      int rc = binaryRight[r];
+      int nl = numSubstates[l];
+      int nr = numSubstates[rc];
+      int newL = newCount[l];
+      int newR = newCount[rc];
+      double[] oldProbs = binaryProbs[r];
+      double[] probs = new double[newCount[p] * newL * newR];
+      for (int a = 0; a < numSubstates[p]; a++) {
+        double w = weight[p][a];
+        int na = map[p][a];
+        for (int b = 0; b < nl; b++) {
+          int nb = map[l][b];
+          for (int c = 0; c < nr; c++) {
+            probs[(na * newL + nb) * newR + map[rc][c]] += w * oldProbs[(a * nl + b) * nr + c];
+          }
+        }
+      }
+      binaryProbs[r] = probs;
+    }
+    for (int r = 0; r < unaryProbs.length; r++) {
+      int p = unaryParent[r];
+      int c = unaryChild[r];
+      int nc = numSubstates[c];
+      int newC = newCount[c];
+      double[] oldProbs = unaryProbs[r];
+      double[] probs = new double[newCount[p] * newC];
+      for (int a = 0; a < numSubstates[p]; a++) {
+        for (int b = 0; b < nc; b++) {
+          probs[map[p][a] * newC + map[c][b]] += weight[p][a] * oldProbs[a * nc + b];
+        }
+      }
+      unaryProbs[r] = probs;
+    }
+    for (int i = 0; i < lexProbs.length; i++) {
+      int t = lexTag[i];
+      double[] oldProbs = lexProbs[i];
+      double[] probs = new double[newCount[t]];
+      for (int a = 0; a < oldProbs.length; a++) {
+        probs[map[t][a]] += weight[t][a] * oldProbs[a];
+      }
+      lexProbs[i] = probs;
+    }
+    for (int state = 0; state < numStates; state++) {
+      double[] counts = new double[newCount[state]];
+      for (int a = 0; a < numSubstates[state]; a++) {
+        counts[map[state][a]] += substateCounts[state][a];
+      }
+      substateCounts[state] = counts;
+    }
+    System.arraycopy(newCount, 0, numSubstates, 0, numStates);
+  }
+
+  /** The name of substate sub of state. */
+  private String state(int state, int sub) {
+    String name = baseStates.get(state);
+    return splittable[state] ? name + '^' + sub : name;
+  }
+
+  /** The grammars of the substates, with their current probabilities. */
+  public Pair<UnaryGrammar,BinaryGrammar> formResult() {
+    int[][] ids = new int[numSubstates.length][];
+    for (int state = 0; state < ids.length; state++) {
+      ids[state] = new int[numSubstates[state]];
+      for (int a = 0; a < ids[state].length; a++) {
+        ids[state][a] = stateIndex.addToIndex(state(state, a));
+      }
+    }
+    stateIndex.addToIndex(Lexicon.BOUNDARY_TAG);
+    BinaryGrammar bg = new BinaryGrammar(stateIndex);
+    UnaryGrammar ug = new UnaryGrammar(stateIndex);
+    for (int r = 0; r < unaryProbs.length; r++) {
+      int[] parents = ids[unaryParent[r]];
+      int[] children = ids[unaryChild[r]];
+      double[] probs = unaryProbs[r];
+      for (int a = 0; a < parents.length; a++) {
+        for (int b = 0; b < children.length; b++) {
+          double prob = probs[a * children.length + b];
+          if (prob > MIN_RULE_PROB) {
+            ug.addRule(new UnaryRule(parents[a], children[b], Math.log(prob)));
+          }
+        }
+      }
+    }
+    for (int r = 0; r < binaryProbs.length; r++) {
+      int[] parents = ids[binaryParent[r]];
+      int[] lefts = ids[binaryLeft[r]];
+      int[] rights = ids[binaryRight[r]];
+      double[] probs = binaryProbs[r];
+      for (int a = 0; a < parents.length; a++) {
+        for (int b = 0; b < lefts.length; b++) {
+          for (int c = 0; c < rights.length; c++) {
+            double prob = probs[(a * lefts.length + b) * rights.length + c];
+            if (prob > MIN_RULE_PROB) {
+              bg.addRule(new BinaryRule(parents[a], lefts[b], rights[c], Math.log(prob)));
+            }
+          }
+        }
+      }
+    }
+    return new Pair<>(ug, bg);
+  }
+
+  /**
+   * Train a lexicon on the words of the trees, each tagged with every
+   * substate of its tag, weighted by the substate's posterior.
+   */
+  private Lexicon formLexicon() {
+    Lexicon lexicon = op.tlpParams.lex(op, wordIndex, tagIndex);
+    lexicon.initializeTraining(trees.size());
+    Worker worker = new Worker();
+    for (TrainingTree tree : trees) {
+      lexicon.incrementTreesRead(1.0);
+      worker.insideOutside(tree);
+      if (worker.logZ == Double.NEGATIVE_INFINITY) {
+        continue;
+      }
+      int loc = 0;
+      // preterminals come in sentence order in post-order
+      for (int n = 0; n < tree.size(); n++) {
+        if (tree.left[n] >= 0) {
+          continue;
+        }
+        int tag = tree.state[n];
+        String word = words.get(lexWord[tree.rule[n]]);
+        double[] posteriors = worker.posteriors(tree, n);
+        for (int a = 0; a < posteriors.length; a++) {
+          if (posteriors[a] > 0.0) {
+            lexicon.train(new TaggedWord(word, state(tag, a)), loc, posteriors[a]);
+          }
+        }
+        loc++;
+      }
+    }
+    lexicon.finishTraining();
+    return lexicon;
+  }
+
+
+  private interface Tally<A> {
+    void tally(Worker worker, TrainingTree tree, A accumulator);
+  }
+
+  /**
+   * Tally every tree, after its inside-outside pass, into an accumulator
+   * per thread, and return their combination.
+   */
+  private <A> A pass(Supplier<A> newAccumulator, Tally<A> tally, BiConsumer<A, A> combine) {
+    int threads = op.trainOptions.trainingThreads;
+    if (threads <= 0) {
+      threads = Runtime.getRuntime().availableProcessors();
+    }
+    threads = Math.max(1, Math.min(threads, trees.size()));
+    if (threads == 1) {
+      return passOver(trees, newAccumulator, tally);
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "SplittingGrammarExtractor-worker");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      List<Future<A>> futures = new ArrayList<>(threads);
+      for (int i = 0; i < threads; i++) {
+        List<TrainingTree> slice = trees.subList(i * trees.size() / threads, (i + 1) * trees.size() / threads);
+        futures.add(pool.submit(() -> passOver(slice, newAccumulator, tally)));
+      }
+      A total = futures.get(0).get();
+      for (Future<A> future : futures.subList(1, futures.size())) {
+        combine.accept(total, future.get());
+      }
+      return total;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private <A> A passOver(List<TrainingTree> slice, Supplier<A> newAccumulator, Tally<A> tally) {
+    A accumulator = newAccumulator.get();
+    Worker worker = new Worker();
+    for (TrainingTree tree : slice) {
+      worker.insideOutside(tree);
+      if (worker.logZ > Double.NEGATIVE_INFINITY) {
+        tally.tally(worker, tree, accumulator);
+      }
+    }
+    return accumulator;
+  }
+
+
+  /** The expected counts of one E-step, shaped as the probabilities. */
+  private final class ExpectedCounts {
+
+    final double[][] binary = zerosLike(binaryProbs);
+    final double[][] unary = zerosLike(unaryProbs);
+    final double[][] lexical = zerosLike(lexProbs);
+    final double[][] substates = new double[numSubstates.length][];
+    double logLikelihood;
+
+    ExpectedCounts() {
+      for (int state = 0; state < substates.length; state++) {
+        substates[state] = new double[numSubstates[state]];
+      }
+    }
+
+    void add(ExpectedCounts other) {
+      add(binary, other.binary);
+      add(unary, other.unary);
+      add(lexical, other.lexical);
+      add(substates, other.substates);
+      logLikelihood += other.logLikelihood;
+    }
+
+    private void add(double[][] to, double[][] from) {
+      for (int i = 0; i < to.length; i++) {
+        for (int j = 0; j < to[i].length; j++) {
+          to[i][j] += from[i][j];
+        }
+      }
+    }
+
+  } // end class ExpectedCounts
+
+  private static double[][] zerosLike(double[][] array) {
+    double[][] zeros = new double[array.length][];
+    for (int i = 0; i < array.length; i++) {
+      zeros[i] = new double[array[i].length];
+    }
+    return zeros;
+  }
+
+
+  /**
+   * A binarized training tree as parallel arrays over its non-leaf nodes,
+   * in post-order, so children come before their parents and the root is
+   * last.  A node is binary if right &gt;= 0, unary if left &gt;= 0, and
+   * otherwise a preterminal; rule is its binary rule, unary rule or (tag,
+   * word) pair.
+   */
+  private final class TrainingTree {
+
+    final int[] state;
+    final int[] left;
+    final int[] right;
+    final int[] rule;
+    private int next = 0;
+
+    TrainingTree(Tree tree, Map<BinaryRule,Integer> binaryIds, Map<UnaryRule,Integer> unaryIds,
+                 Map<IntTaggedWord,Integer> lexIds) {
+      int size = 0;
+      for (Tree node : tree.subTreeList()) {
+        if ( ! node.isLeaf()) {
+          size++;
+        }
+      }
+      state = new int[size];
+      left = new int[size];
+      right = new int[size];
+      rule = new int[size];
+      add(tree, binaryIds, unaryIds, lexIds);
+    }
+
+    int size() {
+      return state.length;
+    }
+
+    private int add(Tree node, Map<BinaryRule,Integer> binaryIds, Map<UnaryRule,Integer> unaryIds,
+                    Map<IntTaggedWord,Integer> lexIds) {
+      int label = baseStates.addToIndex(node.label().value());
+      Tree[] kids = node.children();
+      int l = -1;
+      int r = -1;
+      int id;
+      if (node.isPreTerminal()) {
+        IntTaggedWord key = new IntTaggedWord(words.addToIndex(kids[0].label().value()), label);
+        id = lexIds.computeIfAbsent(key, k -> lexIds.size());
+      } else if (kids.length == 1) {
+        l = add(kids[0], binaryIds, unaryIds, lexIds);
+        UnaryRule key = new UnaryRule(label, state[l]);
+        id = unaryIds.computeIfAbsent(key, k -> unaryIds.size());
+      } else if (kids.length == 2) {
+        l = add(kids[0], binaryIds, unaryIds, lexIds);
+        r = add(kids[1], binaryIds, unaryIds, lexIds);
+        BinaryRule key = new BinaryRule(label, state[l], state[r]);
+        id = binaryIds.computeIfAbsent(key, k -> binaryIds.size());
+      } else {
+        throw new IllegalArgumentException("Training tree is not binarized: " + node);
+      }
+      int n = next++;
+      state[n] = label;
+      left[n] = l;
+      right[n] = r;
+      rule[n] = id;
+      return n;
+    }
+
+  } // end class TrainingTree
+
+
+  /**
+   * The inside and outside vectors of one tree's nodes at a time, as one
+   * thread's scratch space.  Each vector is scaled to a maximum of 1, and
+   * its true value is exp(scale) times it.
+   */
+  private final class Worker {
+
+    private int[] offset = new int[0];
+    private double[] inside = new double[0];
+    private double[] outside = new double[0];
+    private double[] iScale = new double[0];
+    private double[] oScale = new double[0];
+    /** The log probability of the last tree; -Inf if it has none. */
+    double logZ;
+
+    void insideOutside(TrainingTree tree) {
+      int size = tree.size();
+      if (offset.length < size) {
+        offset = new int[size];
+        iScale = new double[size];
+        oScale = new double[size];
+      }
+      int total = 0;
+      for (int n = 0; n < size; n++) {
+        offset[n] = total;
+        total += numSubstates[tree.state[n]];
+      }
+      if (inside.length < total) {
+        inside = new double[total];
+        outside = new double[total];
+      }
+      logZ = inside(tree);
+      if (logZ > Double.NEGATIVE_INFINITY) {
+        outside(tree);
+      }
+    }
+
+    private double inside(TrainingTree tree) {
+      final double[] in = inside;
+      for (int n = 0; n < tree.size(); n++) {
+        int o = offset[n];
+        int na = numSubstates[tree.state[n]];
+        double scale;
+        if (tree.right[n] >= 0) {
+          int l = tree.left[n];
+          int r = tree.right[n];
+          int ol = offset[l];
+          int or = offset[r];
+          int nl = numSubstates[tree.state[l]];
+          int nr = numSubstates[tree.state[r]];
+          double[] probs = binaryProbs[tree.rule[n]];
+          for (int a = 0; a < na; a++) {
+            double sum = 0.0;
+            for (int b = 0; b < nl; b++) {
+              double lS = in[ol + b];
+              if (lS == 0.0) {
+                continue;
+              }
+              int base = (a * nl + b) * nr;
+              double s = 0.0;
+              for (int c = 0; c < nr; c++) {
+                s += probs[base + c] * in[or + c];
+              }
+              sum += lS * s;
+            }
+            in[o + a] = sum;
+          }
+          scale = iScale[l] + iScale[r];
+        } else if (tree.left[n] >= 0) {
+          int c = tree.left[n];
+          int oc = offset[c];
+          int nc = numSubstates[tree.state[c]];
+          double[] probs = unaryProbs[tree.rule[n]];
+          for (int a = 0; a < na; a++) {
+            double sum = 0.0;
+            for (int b = 0; b < nc; b++) {
+              sum += probs[a * nc + b] * in[oc + b];
+            }
+            in[o + a] = sum;
+          }
+          scale = iScale[c];
+        } else {
+          System.arraycopy(lexProbs[tree.rule[n]], 0, in, o, na);
+          scale = 0.0;
+        }
+        double max = rescale(in, o, na);
+        if (max == 0.0) {
+          return Double.NEGATIVE_INFINITY;
+        }
+        iScale[n] = scale + Math.log(max);
+      }
+      int root = tree.size() - 1;
+      double sum = 0.0;
+      for (int a = 0, na = numSubstates[tree.state[root]]; a < na; a++) {
+        sum += in[offset[root] + a];
+      }
+      return Math.log(sum) + iScale[root];
+    }
+
+    private void outside(TrainingTree tree) {
+      final double[] in = inside;
+      final double[] out = outside;
+      int root = tree.size() - 1;
+      Arrays.fill(out, offset[root], offset[root] + numSubstates[tree.state[root]], 1.0);
+      oScale[root] = 0.0;
+      for (int n = root; n >= 0; n--) {
+        if (tree.left[n] < 0) {
+          continue;
+        }
+        int o = offset[n];
+        int na = numSubstates[tree.state[n]];
+        if (tree.right[n] >= 0) {
+          int l = tree.left[n];
+          int r = tree.right[n];
+          int ol = offset[l];
+          int or = offset[r];
+          int nl = numSubstates[tree.state[l]];
+          int nr = numSubstates[tree.state[r]];
+          double[] probs = binaryProbs[tree.rule[n]];
+          Arrays.fill(out, ol, ol + nl, 0.0);
+          Arrays.fill(out, or, or + nr, 0.0);
+          for (int a = 0; a < na; a++) {
+            double oS = out[o + a];
+            if (oS == 0.0) {
+              continue;
+            }
+            for (int b = 0; b < nl; b++) {
+              int base = (a * nl + b) * nr;
+              double toLeft = 0.0;
+              for (int c = 0; c < nr; c++) {
+                double p = oS * probs[base + c];
+                toLeft += p * in[or + c];
+                out[or + c] += p * in[ol + b];
+              }
+              out[ol + b] += toLeft;
+            }
+          }
+          oScale[l] = oScale[n] + iScale[r] + Math.log(Math.max(rescale(out, ol, nl), Double.MIN_VALUE));
+          oScale[r] = oScale[n] + iScale[l] + Math.log(Math.max(rescale(out, or, nr), Double.MIN_VALUE));
+        } else {
+          int c = tree.left[n];
+          int oc = offset[c];
+          int nc = numSubstates[tree.state[c]];
+          double[] probs = unaryProbs[tree.rule[n]];
+          Arrays.fill(out, oc, oc + nc, 0.0);
+          for (int a = 0; a < na; a++) {
+            double oS = out[o + a];
+            for (int b = 0; b < nc; b++) {
+              out[oc + b] += oS * probs[a * nc + b];
+            }
+          }
+          oScale[c] = oScale[n] + Math.log(Math.max(rescale(out, oc, nc), Double.MIN_VALUE));
+        }
+      }
+    }
+
+    /** Divide v[from, from + length) by its maximum, and return that. */
+    private double rescale(double[] v, int from, int length) {
+      double max = 0.0;
+      for (int i = from; i < from + length; i++) {
+        max = Math.max(max, v[i]);
+      }
+      if (max > 0.0 && max != 1.0) {
+        double factor = 1.0 / max;
+        for (int i = from; i < from + length; i++) {
+          v[i] *= factor;
+        }
+      }
+      return max;
+    }
+
+    /** The posterior of each substate of node n. */
+    double[] posteriors(TrainingTree tree, int n) {
+      int o = offset[n];
+      double[] posteriors = new double[numSubstates[tree.state[n]]];
+      double f = Math.exp(oScale[n] + iScale[n] - logZ);
+      for (int a = 0; a < posteriors.length; a++) {
+        posteriors[a] = f * outside[o + a] * inside[o + a];
+      }
+      return posteriors;
+    }
+
+    void tally(TrainingTree tree, ExpectedCounts counts) {
+      counts.logLikelihood += logZ;
+      final double[] in = inside;
+      final double[] out = outside;
+      for (int n = 0; n < tree.size(); n++) {
+        int o = offset[n];
+        int x = tree.state[n];
+        int na = numSubstates[x];
+        double f = Math.exp(oScale[n] + iScale[n] - logZ);
+        double[] substates = counts.substates[x];
+        for (int a = 0; a < na; a++) {
+          substates[a] += f * out[o + a] * in[o + a];
+        }
+        if (tree.right[n] >= 0) {
+          int l = tree.left[n];
+          int r = tree.right[n];
+          int ol = offset[l];
+          int or = offset[r];
+          int nl = numSubstates[tree.state[l]];
+          int nr = numSubstates[tree.state[r]];
+          double[] probs = binaryProbs[tree.rule[n]];
+          double[] c = counts.binary[tree.rule[n]];
+          double g = Math.exp(oScale[n] + iScale[l] + iScale[r] - logZ);
+          for (int a = 0; a < na; a++) {
+            double oS = g * out[o + a];
+            if (oS == 0.0) {
+              continue;
+            }
+            for (int b = 0; b < nl; b++) {
+              double lS = oS * in[ol + b];
+              int base = (a * nl + b) * nr;
+              for (int k = 0; k < nr; k++) {
+                c[base + k] += lS * probs[base + k] * in[or + k];
+              }
+            }
+          }
+        } else if (tree.left[n] >= 0) {
+          int ch = tree.left[n];
+          int oc = offset[ch];
+          int nc = numSubstates[tree.state[ch]];
+          double[] probs = unaryProbs[tree.rule[n]];
+          double[] c = counts.unary[tree.rule[n]];
+          double g = Math.exp(oScale[n] + iScale[ch] - logZ);
+          for (int a = 0; a < na; a++) {
+            double oS = g * out[o + a];
+            for (int b = 0; b < nc; b++) {
+              c[a * nc + b] += oS * probs[a * nc + b] * in[oc + b];
+            }
+          }
+        } else {
+          double[] c = counts.lexical[tree.rule[n]];
+          for (int a = 0; a < na; a++) {
+            c[a] += f * out[o + a] * in[o + a];
+          }
+        }
+      }
+    }
+
+    /**
+     * Add, for each pair of substates 2i and 2i+1 of a state just split,
+     * the log of the ratio of the tree's likelihood with them merged to
+     * that without, estimated at each node of the state.
+     */
+    void tallyMergeLoss(TrainingTree tree, double[][] loss) {
+      for (int n = 0; n < tree.size(); n++) {
+        int x = tree.state[n];
+        if (loss[x].length == 0) {
+          continue;
+        }
+        int o = offset[n];
+        int na = numSubstates[x];
+        double total = 0.0;
+        for (int a = 0; a < na; a++) {
+          total += inside[o + a] * outside[o + a];
+        }
+        if (total == 0.0) {
+          continue;
+        }
+        double[] weights = substateCounts[x];
+        for (int i = 0; i < loss[x].length; i++) {
+          int a1 = 2 * i;
+          int a2 = a1 + 1;
+          double w = weights[a1] + weights[a2];
+          double p1 = (w > 0.0) ? weights[a1] / w : 0.5;
+          double in1 = inside[o + a1];
+          double in2 = inside[o + a2];
+          double out1 = outside[o + a1];
+          double out2 = outside[o + a2];
+          double merged = total - in1 * out1 - in2 * out2 + (p1 * in1 + (1.0 - p1) * in2) * (out1 + out2);
+          if (merged > 0.0) {
+            loss[x][i] += Math.log(merged / total);
+          }
+        }
+      }
+    }
+
+  } // end class Worker
+
+}
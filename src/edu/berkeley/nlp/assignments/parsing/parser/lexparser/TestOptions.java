@@ -64,6 +64,119 @@ public class TestOptions implements Serializable  {
   /** If true, use faster iterative deepening CKY algorithm. */
   public boolean iterativeCKY = false;
 
+  public enum ChartStorage {
+    JAGGED, FLAT, OFF_HEAP
+  }
+
+  /**
+   * How the PCFG parser stores its inside and outside chart scores.
+   * JAGGED is one array per (start, end) cell.  FLAT is a single
+   * span-major float array whose reset cost is proportional to the cells
+   * touched by the previous sentence.  OFF_HEAP is the FLAT layout in a
+   * direct buffer.  See {@link ChartScores}.
+   */
+  public ChartStorage chartStorage = ChartStorage.JAGGED;
+
+  /**
+   * Number of threads the PCFG parser uses to fill the cells of one chart
+   * diagonal in parallel.  The results are identical to sequential
+   * parsing.  This lowers the latency of a single long sentence; when many
+   * sentences are parsed at once (testingThreads), leave it at 1.  A value
+   * of 0 or less means one thread per available processor.
+   */
+  public int chartThreads = 1;
+
+  /**
+   * Used by the coarse-to-fine parser: a fine chart state is only built
+   * over a span if the log posterior of its coarse (X-bar) projection over
+   * that span, from coarse inside-outside, is at least this value.
+   */
+  public double coarsePosteriorThreshold = Math.log(1.0e-4);
+
+  /**
+   * Beam pruning of the PCFG chart.  When a cell has been filled, only its
+   * pcfgBeamSize best states are kept (all those tied with the last one),
+   * and of those only the ones within pcfgBeamWidth, a log probability
+   * margin, of the best state in the cell.  Later cells combine only the
+   * kept states.  A size of 0 and a width of +Infinity turn the respective
+   * limit off; with both off, the default, parsing is exhaustive.  If the
+   * beam loses every parse of a sentence, it is parsed again without it.
+   * Not used with parse constraints, length normalization or
+   * maxSpanForTags &gt; 1.
+   */
+  public int pcfgBeamSize = 0;
+  public double pcfgBeamWidth = Double.POSITIVE_INFINITY;
+
+  /**
+   * If true, the PCFG parser records the rule and split that built each
+   * chart entry as it fills the chart (see {@link ChartBackPointers}), and
+   * reads the best parse off those instead of searching each cell for the
+   * rule whose score matches.  This takes six bytes per chart entry.  Not
+   * used with parse constraints, length normalization, lattices,
+   * maxSpanForTags &gt; 1, or sentences the A* parser searches; the
+   * score-matching extraction is used for those.
+   */
+  public boolean pcfgBackPointers = false;
+
+  public enum Semiring {
+    VITERBI, LOG_SUM, SCALED
+  }
+
+  /**
+   * How {@link InsideOutsidePCFGParser} adds up the scores of the
+   * derivations of a chart item: LOG_SUM gives inside and outside
+   * probabilities, VITERBI the scores of the best derivations.  SCALED
+   * gives the same probabilities as LOG_SUM, computed in probability space
+   * with a power-of-two scale per cell, so that no exp or log is taken in
+   * the chart loops; it is about as fast as LOG_SUM.
+   */
+  public Semiring insideOutsideSemiring = Semiring.LOG_SUM;
+
+  public enum Decoder {
+    VITERBI, MAX_RULE_PRODUCT, MAX_CONSTITUENT
+  }
+
+  /**
+   * Which parse of a sentence GenerativeParser returns: the most probable
+   * one, or, from the posteriors of an {@link InsideOutsidePCFGParser},
+   * the max-rule-product or max-constituent parse.
+   */
+  public Decoder pcfgDecoder = Decoder.VITERBI;
+
+  /**
+   * If true, GenerativeParser builds the output tree of a parse in one
+   * pass with an {@link OutputTreeBuilder}, from the chart back-pointers
+   * when there are any, rather than debinarizing, stripping and
+   * unannotating copies of the parse in turn.  The passes are still made
+   * when the treebank parameters cannot give the stripped category of a
+   * state from the state alone.
+   */
+  public boolean fusedOutputTrees = true;
+
+  /**
+   * If true, the {@link ExhaustiveDependencyParser} scores a dependency
+   * only when the parse first needs it, and keeps the scores only of the
+   * pairs of tags the lexicon licenses for the two words.  If false, it
+   * scores every dependency of every licensed pair before parsing, into a
+   * table over all pairs of words and tags, as it used to.
+   */
+  public boolean lazyDependencyScores = true;
+
+  /**
+   * The A* PCFG parser's outside estimates are precomputed for sentences
+   * of up to this many words, in time cubic in it; longer sentences are
+   * parsed exhaustively.  Must be set before the parser is trained.
+   */
+  public int aStarMaxSentenceLength = 40;
+
+  /**
+   * BaseLexicon tabulates the scores of known words and remembers the
+   * scores of this many unknown word signatures (sentence initial and
+   * non-initial uses counted separately), dropping the least recently
+   * used.  0 turns the lexicon score cache off.
+   */
+  public int lexiconScoreCacheSize = 10000;
+
   /**
    * The maximum sentence length (including punctuation, etc.) to parse.
    */
@@ -271,6 +384,7 @@ public class TestOptions implements Serializable  {
    * Number of threads to use at test time.  For example,
    * -testTreebank can use this to go X times faster, with the
    * negative consequence that output is not quite as nicely ordered.
+   * A value of 0 or less means one thread per available processor.
    */
   public int testingThreads = 1;
 
@@ -271,6 +271,19 @@ public class TrainOptions implements Serializable  {
    */
   public double splitRecombineRate = 0.0;
 
+  /**
+   * If we are predicting splits, we run this many EM iterations after each
+   * split, merge and smoothing stage
+   */
+  public int splitEMIterations = 10;
+
+  /**
+   * If we are predicting splits, the smoothing stage pulls each substate's
+   * rule and word probabilities this far toward the average over the
+   * substates of its state
+   */
+  public double splitSmoothing = 0.01;
+
   /**
    * When binarizing trees, don't annotate the labels with anything
    */
@@ -284,7 +297,7 @@ public class TrainOptions implements Serializable  {
 
   /**
    * If the training algorithm allows for parallelization, how many
-   * threads to use
+   * threads to use; 0 means one per processor
    */
   public int trainingThreads = 1;
 
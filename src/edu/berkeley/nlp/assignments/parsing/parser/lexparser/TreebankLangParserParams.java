@@ -141,6 +141,13 @@ public interface TreebankLangParserParams extends TreebankFactory, Serializable
    */
   TreeTransformer subcategoryStripper();
 
+  /**
+   * Returns the category that subcategoryStripper() gives a node with the
+   * given category, or null if that depends on more than the category,
+   * such as on the node's children.
+   */
+  String strippedCategory(String category);
+
   /**
    * This method does language-specific tree transformations such
    * as annotating particular nodes with language-relevant features.
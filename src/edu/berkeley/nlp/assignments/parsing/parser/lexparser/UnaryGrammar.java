@@ -1,10 +1,12 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
+import edu.berkeley.nlp.assignments.parsing.stats.LongCounter;
 import edu.berkeley.nlp.assignments.parsing.util.Generics;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 
 import java.io.*;
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * Maintains efficient indexing of unary grammar rules.
@@ -14,26 +16,47 @@ import java.util.*;
  */
 public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
 
+  /** The fewest rows to recompute before it is worth doing them on several threads. */
+  private static final int PARALLEL_ROWS = 256;
+
   private final Index<String> index;
 
   private transient List<UnaryRule>[] rulesWithParent; // = null;
   private transient List<UnaryRule>[] rulesWithChild; // = null;
 
-  private transient List<UnaryRule>[] closedRulesWithParent; // = null;
-  private transient List<UnaryRule>[] closedRulesWithChild; // = null;
-
+  /**
+   * The closure of the core rules under max, by parent: row p holds the
+   * best score of every state reachable from p by a chain of core rules,
+   * with p itself at score 0 until {@link #purgeRules()}.  Null until
+   * first needed.
+   */
   private transient UnaryRule[][] closedRulesWithP; // = null;
+  /** [state] -&gt; whether its row of the closure must be recomputed; null if none must. */
+  private transient boolean[] staleRows; // = null;
+  /** Whether A -&gt; A rules are left out of the closure. */
+  private transient boolean purged; // = false;
+  /**
+   * Whether the closure and the tables made from it are up to date.  It is
+   * written last when they are made, so a thread that reads it true sees
+   * them complete, and the check needs no lock.
+   */
+  private transient volatile boolean closed; // = false;
+
+  // made from closedRulesWithP by index(), whenever it changes
   private transient UnaryRule[][] closedRulesWithC; // = null;
+  private transient UnaryRuleTable closedRuleTableByP; // = null;
+  private transient UnaryRuleTable closedRuleTableByC; // = null;
+  private transient UnaryRuleTable ruleTableByC; // = null;
+  private transient int[] closedRuleTailsByC; // = null;
+  /** [parent &lt;&lt; 32 | child] -&gt; the closed rule's score. */
+  private transient LongCounter closedScores; // = null;
 
   /** The basic list of UnaryRules.  Really this is treated as a set */
   private Map<UnaryRule,UnaryRule> coreRules; // = null;
-  /** The closure of the basic list of UnaryRules.  Treated as a set */
-  private transient Map<UnaryRule,UnaryRule> bestRulesUnderMax; // = null;
-
-  // private transient Map<UnaryRule,Integer> backTrace = null;
 
   public int numClosedRules() {
-    return bestRulesUnderMax.keySet().size();
+    close();
+    return closedRuleTableByP.numRules();
   }
 
   public UnaryRule getRule(UnaryRule ur) {
@@ -41,7 +64,12 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
   }
 
   public Iterator<UnaryRule> closedRuleIterator() {
-    return bestRulesUnderMax.keySet().iterator();
+    close();
+    List<UnaryRule> closedRules = new ArrayList<>(closedRuleTableByP.numRules());
+    for (UnaryRule[] row : closedRulesWithP) {
+      closedRules.addAll(Arrays.asList(row));
+    }
+    return closedRules.iterator();
   }
 
   public int numRules() {
@@ -60,124 +88,321 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
     return new ArrayList<>(coreRules.keySet());
   }
 
-  /** Remove A -&gt; A UnaryRules from bestRulesUnderMax. */
-  public final void purgeRules() {
-    Map<UnaryRule,UnaryRule> bR = Generics.newHashMap();
-    for (UnaryRule ur : bestRulesUnderMax.keySet()) {
-      if (ur.parent != ur.child) {
-        bR.put(ur, ur);
-      } else {
-        closedRulesWithParent[ur.parent].remove(ur);
-        closedRulesWithChild[ur.child].remove(ur);
+  /** Remove A -&gt; A UnaryRules from the closure. */
+  public final synchronized void purgeRules() {
+    close();
+    closed = false;
+    purged = true;
+    for (int state = 0; state < closedRulesWithP.length; state++) {
+      UnaryRule[] row = closedRulesWithP[state];
+      int self = 0;
+      while (self < row.length && row[self].child != state) {
+        self++;
+      }
+      if (self < row.length) {
+        UnaryRule[] purgedRow = Arrays.copyOf(row, row.length - 1);
+        System.arraycopy(row, self + 1, purgedRow, self, row.length - self - 1);
+        closedRulesWithP[state] = purgedRow;
       }
     }
-    bestRulesUnderMax = bR;
-    makeCRArrays();
+    index();
+    closed = true;
   }
 
-  /* -----------------
-  // Not needed any more as we reconstruct unaries in extractBestParse
-  public List<Integer> getBestPath(int parent, int child) {
-    List<Integer> path = new ArrayList<Integer>();
-    UnaryRule tempR = new UnaryRule();
-    tempR.parent = parent;
-    tempR.child = child;
-    //System.out.println("Building path...");
-    int loc = parent;
-    while (loc != child) {
-      path.add(new Integer(loc));
-      //System.out.println("Path is "+path);
-      tempR.parent = loc;
-      Integer nextInt = backTrace.get(tempR);
-      if (nextInt == null) {
-        loc = child;
-      } else {
-        loc = nextInt.intValue();
-      }
-      //System.out.println(Numberer.getGlobalNumberer(stateSpace).object(parent)+"->"+Numberer.getGlobalNumberer(stateSpace).object(child)+" went via "+Numberer.getGlobalNumberer(stateSpace).object(loc));
-      if (path.size() > 10) {
-        throw new RuntimeException("UnaryGrammar path > 10");
+  private static long key(int parent, int child) {
+    return ((long) parent << 32) | (child & 0xFFFFFFFFL);
+  }
+
+  public double scoreRule(UnaryRule ur) {
+    close();
+    return closedScores.getCount(key(ur.parent, ur.child));
+  }
+
+  public final void addRule(UnaryRule ur) {
+    coreRules.put(ur, ur);
+    rulesWithParent[ur.parent].add(ur);
+    rulesWithChild[ur.child].add(ur);
+    // only the rows that reach the new rule's parent can change
+    if (closedRulesWithP != null) {
+      if (staleRows == null) {
+        staleRows = new boolean[closedRulesWithP.length];
       }
-    }
-    path.add(new Integer(child));
-    return path;
-  }
-  --------------------------- */
-
-  private void closeRulesUnderMax(UnaryRule ur) {
-    for (int i = 0, isz = closedRulesWithChild[ur.parent].size(); i < isz; i++) {
-      UnaryRule pr = closedRulesWithChild[ur.parent].get(i);
-      for (int j = 0, jsz = closedRulesWithParent[ur.child].size(); j < jsz; j++) {
-        UnaryRule cr = closedRulesWithParent[ur.child].get(j);
-        UnaryRule resultR = new UnaryRule(pr.parent, cr.child,
-                                          pr.score + cr.score + ur.score);
-        relaxRule(resultR);
-        /* ----- No longer need to maintain unary rule backpointers
-        if (relaxRule(resultR)) {
-          if (resultR.parent != ur.parent) {
-            backTrace.put(resultR, new Integer(ur.parent));
-          } else {
-            backTrace.put(resultR, new Integer(ur.child));
-          }
+      staleRows[ur.parent] = true;
+      for (int state = 0; state < closedRulesWithP.length; state++) {
+        if ( ! staleRows[state] && closedScores.containsKey(key(state, ur.parent))) {
+          staleRows[state] = true;
         }
-        -------- */
       }
+      closed = false;
     }
   }
 
-  /** Possibly update the best way to make this UnaryRule in the
-   *  bestRulesUnderMax hash and closedRulesWithX lists.
-   *
-   *  @param ur A UnaryRule with a score
-   *  @return true if ur is the new best scoring case of that unary rule.
+  /**
+   * Bring the closure up to date with the core rules, recomputing the
+   * rows that are missing or stale.  Each row is a single-source best path
+   * search over the core rules from its parent; the scores are log
+   * probabilities, so no chain gets better by going round a cycle, and it
+   * is Dijkstra's algorithm.  The rows are independent, so many of them
+   * are done in parallel.  Parsers share a grammar across threads: the
+   * first that needs the closure makes it under the lock while the others
+   * wait, and it is published by {@link #closed}.  Rules must not be added
+   * while parsers use the grammar.
    */
-  private boolean relaxRule(UnaryRule ur) {
-    UnaryRule bestR = bestRulesUnderMax.get(ur);
-    if (bestR == null) {
-      bestRulesUnderMax.put(ur, ur);
-      closedRulesWithParent[ur.parent].add(ur);
-      closedRulesWithChild[ur.child].add(ur);
-      return true;
-    } else {
-      if (bestR.score < ur.score) {
-        bestR.score = ur.score;
-        return true;
-      }
-      return false;
+  private void close() {
+    if ( ! closed) {
+      closeRows();
     }
   }
 
-  public double scoreRule(UnaryRule ur) {
-    UnaryRule bestR = bestRulesUnderMax.get(ur);
-    return (bestR != null ? bestR.score : Double.NEGATIVE_INFINITY);
+  private synchronized void closeRows() {
+    if (closed) {
+      return;
+    }
+    int numStates = index.size();
+    if (closedRulesWithP == null) {
+      closedRulesWithP = new UnaryRule[numStates][];
+      staleRows = new boolean[numStates];
+      Arrays.fill(staleRows, true);
+    }
+    int[] offsets = new int[numStates + 1];
+    for (int state = 0; state < numStates; state++) {
+      offsets[state + 1] = offsets[state] + rulesWithParent[state].size();
+    }
+    int[] children = new int[offsets[numStates]];
+    double[] scores = new double[offsets[numStates]];
+    for (int state = 0, i = 0; state < numStates; state++) {
+      for (UnaryRule ur : rulesWithParent[state]) {
+        children[i] = ur.child;
+        scores[i] = ur.score;
+        i++;
+      }
+    }
+    int[] rows = IntStream.range(0, numStates).filter(state -> staleRows[state]).toArray();
+    IntStream stream = IntStream.of(rows);
+    if (rows.length >= PARALLEL_ROWS) {
+      stream = stream.parallel();
+    }
+    ThreadLocal<RowSearch> searches = ThreadLocal.withInitial(() -> new RowSearch(numStates));
+    stream.forEach(state -> closedRulesWithP[state] = searches.get().row(state, offsets, children, scores, purged));
+    staleRows = null;
+    index();
+    closed = true;
   }
 
-  public final void addRule(UnaryRule ur) {
-    // add rules' closure
-    closeRulesUnderMax(ur);
-    coreRules.put(ur, ur);
-    rulesWithParent[ur.parent].add(ur);
-    rulesWithChild[ur.child].add(ur);
-  }
+  /** The scratch space of the best path search for one row of the closure. */
+  private static final class RowSearch {
+    private final double[] best;
+    private final int[] reached;
+    private int numReached;
+    private int[] heapStates = new int[16];
+    private double[] heapScores = new double[16];
+    private int heapSize;
+
+    RowSearch(int numStates) {
+      best = new double[numStates];
+      Arrays.fill(best, Double.NEGATIVE_INFINITY);
+      reached = new int[numStates];
+    }
 
-  //public Iterator closedRuleIterator() {
-  //  return bestRulesUnderMax.keySet().iterator();
-  //}
+    /** The closed rules from a parent, by child. */
+    UnaryRule[] row(int parent, int[] offsets, int[] children, double[] scores, boolean purged) {
+      best[parent] = 0.0;
+      reached[numReached++] = parent;
+      push(parent, 0.0);
+      while (heapSize > 0) {
+        double score = heapScores[0];
+        int state = pop();
+        if (score < best[state]) {
+          continue; // improved since it was pushed
+        }
+        for (int r = offsets[state], rMax = offsets[state + 1]; r < rMax; r++) {
+          int child = children[r];
+          double s = score + scores[r];
+          if (s > best[child]) {
+            if (best[child] == Double.NEGATIVE_INFINITY) {
+              reached[numReached++] = child;
+            }
+            best[child] = s;
+            push(child, s);
+          }
+        }
+      }
+      Arrays.sort(reached, 0, numReached);
+      UnaryRule[] row = new UnaryRule[purged ? numReached - 1 : numReached];
+      int i = 0;
+      for (int j = 0; j < numReached; j++) {
+        int child = reached[j];
+        if (child != parent || ! purged) {
+          row[i++] = new UnaryRule(parent, child, best[child]);
+        }
+        best[child] = Double.NEGATIVE_INFINITY;
+      }
+      numReached = 0;
+      return row;
+    }
+
+    private void push(int state, double score) {
+      if (heapSize == heapStates.length) {
+        heapStates = Arrays.copyOf(heapStates, 2 * heapSize);
+        heapScores = Arrays.copyOf(heapScores, 2 * heapSize);
+      }
+      int i = heapSize++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (heapScores[parent] >= score) {
+          break;
+        }
+        heapStates[i] = heapStates[parent];
+        heapScores[i] = heapScores[parent];
+        i = parent;
+      }
+      heapStates[i] = state;
+      heapScores[i] = score;
+    }
+
+    private int pop() {
+      int top = heapStates[0];
+      int size = --heapSize;
+      int state = heapStates[size];
+      double score = heapScores[size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && heapScores[child + 1] > heapScores[child]) {
+          child++;
+        }
+        if (heapScores[child] <= score) {
+          break;
+        }
+        heapStates[i] = heapStates[child];
+        heapScores[i] = heapScores[child];
+        i = child;
+      }
+      heapStates[i] = state;
+      heapScores[i] = score;
+      return top;
+    }
+  }
 
   private static final UnaryRule[] EMPTY_UNARY_RULE_ARRAY = new UnaryRule[0];
 
-  void makeCRArrays() {
+  /** Make the by-child arrays, the rule tables, the tails and the score
+   *  lookup of the closure from its rows. */
+  private void index() {
     int numStates = index.size();
-    closedRulesWithP = new UnaryRule[numStates][];
+    int[] numWithC = new int[numStates];
+    for (UnaryRule[] row : closedRulesWithP) {
+      for (UnaryRule ur : row) {
+        numWithC[ur.child]++;
+      }
+    }
     closedRulesWithC = new UnaryRule[numStates][];
     for (int i = 0; i < numStates; i++) {
-      // cdm [2012]: Would it be faster to use same EMPTY_UNARY_RULE_ARRAY when of size zero?  It must be!
-      closedRulesWithP[i] = closedRulesWithParent[i].toArray(new UnaryRule[closedRulesWithParent[i].size()]);
-      closedRulesWithC[i] = closedRulesWithChild[i].toArray(new UnaryRule[closedRulesWithChild[i].size()]);
+      closedRulesWithC[i] = (numWithC[i] == 0) ? EMPTY_UNARY_RULE_ARRAY : new UnaryRule[numWithC[i]];
+      numWithC[i] = 0;
+    }
+    for (UnaryRule[] row : closedRulesWithP) {
+      for (UnaryRule ur : row) {
+        closedRulesWithC[ur.child][numWithC[ur.child]++] = ur;
+      }
+    }
+    indexScores();
+    makeCRArrays();
+  }
+
+  private void indexScores() {
+    closedScores = new LongCounter(closedRulesWithP.length);
+    closedScores.setDefaultReturnValue(Double.NEGATIVE_INFINITY);
+    for (UnaryRule[] row : closedRulesWithP) {
+      for (UnaryRule ur : row) {
+        closedScores.setCount(key(ur.parent, ur.child), ur.score);
+      }
+    }
+  }
+
+  void makeCRArrays() {
+    int numStates = index.size();
+    closedRuleTableByP = new UnaryRuleTable(closedRulesWithP);
+    closedRuleTableByC = new UnaryRuleTable(closedRulesWithC);
+    UnaryRule[][] rulesWithC = new UnaryRule[numStates][];
+    for (int i = 0; i < numStates; i++) {
+      List<UnaryRule> rules = new ArrayList<>(rulesWithChild[i].size());
+      for (UnaryRule ur : rulesWithChild[i]) {
+        if (ur.parent != ur.child) {
+          rules.add(ur);
+        }
+      }
+      rulesWithC[i] = rules.toArray(new UnaryRule[rules.size()]);
     }
+    ruleTableByC = new UnaryRuleTable(rulesWithC);
+    closedRuleTailsByC = new int[closedRuleTableByC.numRules()];
+    for (int r = 0; r < closedRuleTailsByC.length; r++) {
+      closedRuleTailsByC[r] = tail(closedRuleTableByC.parent[r], closedRuleTableByC.child[r]);
+    }
+  }
+
+  /** The rule of closedRuleTableByC from the state below parent on the
+   *  best chain of core rules from parent down to child, to child; -1 if
+   *  that chain is a single rule.
+   */
+  private int tail(int parent, int child) {
+    int step = child;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (UnaryRule ur : rulesWithParent[parent]) {
+      if (ur.child == parent) {
+        continue;
+      }
+      double score = ur.score + ((ur.child == child) ? 0.0 : closedScores.getCount(key(ur.child, child)));
+      if (score > bestScore) {
+        bestScore = score;
+        step = ur.child;
+      }
+    }
+    if (step != child) {
+      for (int r = closedRuleTableByC.offsets[child], rMax = closedRuleTableByC.offsets[child + 1]; r < rMax; r++) {
+        if (closedRuleTableByC.parent[r] == step) {
+          return r;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /** The (unclosed) rules of {@link #rulesByChild(int)} for every state,
+   *  grouped by child, leaving out any A -&gt; A rules.
+   */
+  public UnaryRuleTable ruleTableByChild() {
+    close();
+    return ruleTableByC;
+  }
+
+  /** The rules of {@link #closedRulesByParent(int)} for every state, grouped by parent. */
+  public UnaryRuleTable closedRuleTableByParent() {
+    close();
+    return closedRuleTableByP;
+  }
+
+  /** The rules of {@link #closedRulesByChild(int)} for every state, grouped by child. */
+  public UnaryRuleTable closedRuleTableByChild() {
+    close();
+    return closedRuleTableByC;
+  }
+
+  /** [rule r of {@link #closedRuleTableByChild()}] -&gt; the rule of that
+   *  table which, below r's parent, continues the best chain of core rules
+   *  that r stands for; -1 if r stands for a single core rule.  Following
+   *  these expands a closed rule into its chain.
+   */
+  public int[] closedRuleTailsByChild() {
+    close();
+    return closedRuleTailsByC;
   }
 
   public UnaryRule[] closedRulesByParent(int state) {
+    close();
     if (state >= closedRulesWithP.length) {  // cdm [2012]: This check shouldn't be needed; delete
       return EMPTY_UNARY_RULE_ARRAY;
     }
@@ -185,6 +410,7 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
   }
 
   public UnaryRule[] closedRulesByChild(int state) {
+    close();
     if (state >= closedRulesWithC.length) {  // cdm [2012]: This check shouldn't be needed; delete
       return EMPTY_UNARY_RULE_ARRAY;
     }
@@ -192,19 +418,11 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
   }
 
   public Iterator<UnaryRule> closedRuleIteratorByParent(int state) {
-    if (state >= closedRulesWithParent.length) {
-      List<UnaryRule> lur = Collections.emptyList();
-      return lur.iterator();
-    }
-    return closedRulesWithParent[state].iterator();
+    return Arrays.asList(closedRulesByParent(state)).iterator();
   }
 
   public Iterator<UnaryRule> closedRuleIteratorByChild(int state) {
-    if (state >= closedRulesWithChild.length) {
-      List<UnaryRule> lur = Collections.emptyList();
-      return lur.iterator();
-    }
-    return closedRulesWithChild[state].iterator();
+    return Arrays.asList(closedRulesByChild(state)).iterator();
   }
 
   public Iterator<UnaryRule> ruleIteratorByParent(int state) {
@@ -251,26 +469,27 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
     purgeRules();
   }
 
-  /** Create all the array variables, and put in A -&gt; A UnaryRules to feed
-   *  the closure algorithm. They then get deleted later.
+  /** Create all the array variables, with the closure to be computed
+   *  when first needed; until {@link #purgeRules()}, it has A -&gt; A rules.
    */
-  @SuppressWarnings("unchecked")
   private void init() {
+    allocate();
+    closedRulesWithP = null;
+    staleRows = null;
+    purged = false;
+    closed = false;
+  }
+
+  /** Create empty rule maps and lists. */
+  @SuppressWarnings("unchecked")
+  private void allocate() {
     int numStates = index.size();
     coreRules = Generics.newHashMap();
     rulesWithParent = new List[numStates];
     rulesWithChild = new List[numStates];
-    closedRulesWithParent = new List[numStates];
-    closedRulesWithChild = new List[numStates];
-    bestRulesUnderMax = Generics.newHashMap();
-    // backTrace = Generics.newHashMap();
     for (int s = 0; s < numStates; s++) {
       rulesWithParent[s] = new ArrayList<>();
       rulesWithChild[s] = new ArrayList<>();
-      closedRulesWithParent[s] = new ArrayList<>();
-      closedRulesWithChild[s] = new ArrayList<>();
-      UnaryRule selfR = new UnaryRule(s, s, 0.0);
-      relaxRule(selfR);
     }
   }
 
@@ -279,6 +498,52 @@ public class UnaryGrammar implements Serializable, Iterable<UnaryRule> {
     init();
   }
 
+  /**
+   * Restore a purged grammar from its rules and their closure, as written
+   * by {@link ParserModelFile}, without recomputing the closure.  Each
+   * rule array is in the order of the by-parent lists; the matching
+   * <code>ByChild</code> array gives the order of the by-child lists as
+   * positions in it.
+   */
+  UnaryGrammar(Index<String> stateIndex, UnaryRule[] rules, int[] rulesByChild,
+               UnaryRule[] closedRules, int[] closedRulesByChild) {
+    this.index = stateIndex;
+    allocate();
+    for (UnaryRule ur : rules) {
+      coreRules.put(ur, ur);
+      rulesWithParent[ur.parent].add(ur);
+    }
+    for (int i : rulesByChild) {
+      rulesWithChild[rules[i].child].add(rules[i]);
+    }
+    int numStates = stateIndex.size();
+    int[] numWithP = new int[numStates];
+    int[] numWithC = new int[numStates];
+    for (UnaryRule ur : closedRules) {
+      numWithP[ur.parent]++;
+      numWithC[ur.child]++;
+    }
+    closedRulesWithP = new UnaryRule[numStates][];
+    closedRulesWithC = new UnaryRule[numStates][];
+    for (int s = 0; s < numStates; s++) {
+      closedRulesWithP[s] = new UnaryRule[numWithP[s]];
+      closedRulesWithC[s] = new UnaryRule[numWithC[s]];
+      numWithP[s] = 0;
+      numWithC[s] = 0;
+    }
+    for (UnaryRule ur : closedRules) {
+      closedRulesWithP[ur.parent][numWithP[ur.parent]++] = ur;
+    }
+    for (int i : closedRulesByChild) {
+      UnaryRule ur = closedRules[i];
+      closedRulesWithC[ur.child][numWithC[ur.child]++] = ur;
+    }
+    purged = true;
+    indexScores();
+    makeCRArrays();
+    closed = true;
+  }
+
   /**
    * Populates data in this UnaryGrammar from a character stream.
    *
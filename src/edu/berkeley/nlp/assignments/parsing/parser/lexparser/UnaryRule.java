@@ -1,6 +1,7 @@
 package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
 
 import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.StringUtils;
 
 import java.io.Serializable;
 
@@ -43,7 +44,7 @@ public class UnaryRule implements Rule, Comparable<UnaryRule>, Serializable {
    *  @param index The Index used to convert String to int
    */
   public UnaryRule(String s, Index<String> index) {
-    String[] fields = null;
+    String[] fields = StringUtils.splitOnCharWithQuoting(s, ' ', '\"', '\\');
     this.parent = index.indexOf(fields[0]);
     this.child = index.indexOf(fields[2]);
     this.score = Float.parseFloat(fields[3]);
@@ -106,12 +107,17 @@ public class UnaryRule implements Rule, Comparable<UnaryRule>, Serializable {
   }
 
   public String toString(Index<String> index) {
-    return "";
+    return '\"' + StringUtils.escapeString(index.get(parent), charsToEscape, '\\') + "\" -> \"" +
+        StringUtils.escapeString(index.get(child), charsToEscape, '\\') + "\" " + score;
   }
 
   private transient String cached; // = null;
 
   public String toStringNoScore(Index<String> index) {
+    if (cached == null) {
+      cached = '\"' + StringUtils.escapeString(index.get(parent), charsToEscape, '\\') + "\" -> \"" +
+          StringUtils.escapeString(index.get(child), charsToEscape, '\\') + '\"';
+    }
     return cached;
   }
 
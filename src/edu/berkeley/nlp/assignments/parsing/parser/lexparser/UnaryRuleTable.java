@@ -0,0 +1,50 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import java.io.Serializable;
+
+/**
+ * An immutable, struct-of-arrays copy of groups of unary rules, for the
+ * parser's inner loops.  The rules of group g (normally a state) occupy
+ * positions offsets[g] up to offsets[g+1] of the parallel parent, child
+ * and score arrays, in the order of the rule arrays they were compiled
+ * from (compressed sparse row layout).
+ *
+ * @see UnaryGrammar#closedRuleTableByChild()
+ * @see UnaryGrammar#closedRuleTableByParent()
+ */
+public final class UnaryRuleTable implements Serializable {
+
+  /** [group] -&gt; first rule of the group; offsets[numGroups] is the number of rules. */
+  public final int[] offsets;
+  public final int[] parent;
+  public final int[] child;
+  /** Log probabilities. */
+  public final float[] score;
+
+  public UnaryRuleTable(UnaryRule[][] groups) {
+    offsets = new int[groups.length + 1];
+    for (int g = 0; g < groups.length; g++) {
+      offsets[g + 1] = offsets[g] + groups[g].length;
+    }
+    int numRules = offsets[groups.length];
+    parent = new int[numRules];
+    child = new int[numRules];
+    score = new float[numRules];
+    int r = 0;
+    for (UnaryRule[] group : groups) {
+      for (UnaryRule rule : group) {
+        parent[r] = rule.parent;
+        child[r] = rule.child;
+        score[r] = rule.score;
+        r++;
+      }
+    }
+  }
+
+  public int numRules() {
+    return parent.length;
+  }
+
+  private static final long serialVersionUID = 1L;
+
+}
@@ -89,4 +89,12 @@ public interface UnknownWordModel extends Serializable {
   /** Returns a Counter from IntTaggedWord to how often they have been seen. */
   Counter<IntTaggedWord> unSeenCounter();
 
+  /**
+   * The count in {@link #unSeenCounter()} of a word (or signature) and
+   * tag, either of which may be -1 for any.
+   */
+  default double unSeenCount(int word, int tag) {
+    return unSeenCounter().getCount(new IntTaggedWord(word, tag));
+  }
+
 }
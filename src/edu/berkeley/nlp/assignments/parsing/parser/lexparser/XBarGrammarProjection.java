@@ -0,0 +1,188 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+
+import java.util.Collection;
+
+/**
+ * Projects the annotated, binarized states of a grammar onto their basic
+ * categories, giving a small X-bar style grammar for the coarse pass of
+ * coarse-to-fine parsing.  So NP^S and NP^VP both become NP, and the
+ * binarization state "@VP^S : ... PP^VP" becomes @VP.
+ * <p>
+ * The coarse grammar and lexicon are estimated from the same binarized
+ * training trees as the fine grammar, relabeled through the projection,
+ * so they are proper maximum likelihood estimates rather than sums of
+ * fine rule scores.
+ *
+ * @see CoarseToFinePCFGParser
+ */
+public class XBarGrammarProjection implements GrammarProjection {
+
+  private final TreebankLanguagePack tlp;
+
+  private final BinaryGrammar sourceBG;
+  private final UnaryGrammar sourceUG;
+  private final Index<String> sourceStateIndex;
+
+  private final BinaryGrammar targetBG;
+  private final UnaryGrammar targetUG;
+  private final Lexicon targetLex;
+  private final Index<String> targetStateIndex;
+  private final Index<String> targetTagIndex;
+
+  /** [fine state] -&gt; coarse state, or -1 if the fine state has no coarse counterpart. */
+  private final int[] projection;
+
+  /**
+   * Estimate the coarse grammar and lexicon.
+   *
+   * @param bg The fine binary grammar
+   * @param ug The fine unary grammar
+   * @param stateIndex The fine grammar's states
+   * @param wordIndex The word index, shared with the fine lexicon
+   * @param trainTrees The annotated and binarized trees the fine grammar was read from
+   * @param op Options, which supply the language pack and lexicon type
+   */
+  public XBarGrammarProjection(BinaryGrammar bg, UnaryGrammar ug, Index<String> stateIndex,
+                               Index<String> wordIndex, Collection<Tree> trainTrees, Options op) {
+    this(bg, ug, stateIndex, extract(wordIndex, trainTrees, op), op);
+  }
+
+  /**
+   * Make the projection from a coarse grammar and lexicon already read,
+   * alongside the fine ones, by a {@link ParallelTreebankExtractor}.
+   *
+   * @param bg The fine binary grammar
+   * @param ug The fine unary grammar
+   * @param stateIndex The fine grammar's states
+   * @param coarse A target made by {@link #coarseTarget}, once extracted
+   * @param op Options, which supply the language pack
+   */
+  public XBarGrammarProjection(BinaryGrammar bg, UnaryGrammar ug, Index<String> stateIndex,
+                               CoarseTarget coarse, Options op) {
+    this.tlp = op.langpack();
+    this.sourceBG = bg;
+    this.sourceUG = ug;
+    this.sourceStateIndex = stateIndex;
+
+    targetStateIndex = coarse.stateIndex();
+    targetTagIndex = coarse.tagIndex;
+    Pair<UnaryGrammar, BinaryGrammar> bgug = coarse.grammar();
+    targetBG = bgug.second;
+    targetBG.splitRules();
+    targetUG = bgug.first;
+    targetUG.purgeRules();
+    targetLex = coarse.lexicon();
+
+    projection = new int[stateIndex.size()];
+    for (int state = 0; state < projection.length; state++) {
+      projection[state] = targetStateIndex.indexOf(project(stateIndex.get(state)));
+    }
+  }
+
+  /** The coarse grammar and lexicon to extract, with the tag index of the lexicon. */
+  public static class CoarseTarget extends ParallelTreebankExtractor.Target {
+
+    private final Index<String> tagIndex;
+
+    private CoarseTarget(TreebankLanguagePack tlp, Index<String> tagIndex, Lexicon lexicon) {
+      super(tree -> projectTree(tree, tlp), new HashIndex<>(), lexicon);
+      this.tagIndex = tagIndex;
+    }
+
+  }
+
+  /**
+   * A target that reads the coarse grammar and lexicon from the fine
+   * training trees, relabeled through the projection.
+   *
+   * @param wordIndex The word index, shared with the fine lexicon
+   * @param op Options, which supply the language pack and lexicon type
+   */
+  public static CoarseTarget coarseTarget(Index<String> wordIndex, Options op) {
+    Index<String> tagIndex = new HashIndex<>();
+    return new CoarseTarget(op.langpack(), tagIndex, op.tlpParams.lex(op, wordIndex, tagIndex));
+  }
+
+  private static CoarseTarget extract(Index<String> wordIndex, Collection<Tree> trainTrees, Options op) {
+    CoarseTarget coarse = coarseTarget(wordIndex, op);
+    new ParallelTreebankExtractor(op).extract(trainTrees.iterator(), trainTrees.size(), () -> tree -> tree, coarse);
+    return coarse;
+  }
+
+  /** The coarse category of a fine state name. */
+  public String project(String state) {
+    return project(state, tlp);
+  }
+
+  private static String project(String state, TreebankLanguagePack tlp) {
+    if (state.equals(tlp.startSymbol()) || state.equals(Lexicon.BOUNDARY_TAG)) {
+      return state;
+    }
+    String basic = tlp.basicCategory(state);
+    return basic.isEmpty() ? state : basic;
+  }
+
+  @Override
+  public int project(int state) {
+    return projection[state];
+  }
+
+  /** The whole fine to coarse state map, indexed by fine state. */
+  public int[] projection() {
+    return projection;
+  }
+
+  /** A copy of tree with every non-leaf label replaced by its coarse category. */
+  private static Tree projectTree(Tree tree, TreebankLanguagePack tlp) {
+    Tree copy = tree.deepCopy();
+    for (Tree node : copy) {
+      if ( ! node.isLeaf()) {
+        node.label().setValue(project(node.label().value(), tlp));
+      }
+    }
+    return copy;
+  }
+
+  @Override
+  public UnaryGrammar sourceUG() {
+    return sourceUG;
+  }
+
+  @Override
+  public BinaryGrammar sourceBG() {
+    return sourceBG;
+  }
+
+  @Override
+  public UnaryGrammar targetUG() {
+    return targetUG;
+  }
+
+  @Override
+  public BinaryGrammar targetBG() {
+    return targetBG;
+  }
+
+  public Index<String> sourceStateIndex() {
+    return sourceStateIndex;
+  }
+
+  public Lexicon targetLexicon() {
+    return targetLex;
+  }
+
+  public Index<String> targetStateIndex() {
+    return targetStateIndex;
+  }
+
+  public Index<String> targetTagIndex() {
+    return targetTagIndex;
+  }
+
+}
@@ -0,0 +1,248 @@
+package edu.berkeley.nlp.assignments.parsing.stats;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A counter from primitive long keys to double counts.  Callers pack
+ * compound keys, such as the state ids of a rule or a word and tag id,
+ * into a long; {@link PackedCounter} puts the {@link Counter} interface
+ * over it.
+ * <p>
+ * The entries are kept in parallel key and count arrays, in the order
+ * they were added, and found through an open-addressing (linear probing)
+ * table of their positions, so nothing is boxed and lookups do not
+ * allocate.  The entries can be read by position, from 0 to
+ * {@link #size()}, which is insertion order, except that removing an
+ * entry moves the last one into its place.  Not thread-safe.
+ *
+ * @see PackedCounter
+ */
+public class LongCounter implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private long[] keys;
+  private double[] counts;
+  private int size;
+  /** Position + 1 of the entry in each slot, or 0 for an empty slot.  A
+   *  power of two in length, and at most half full. */
+  private int[] table;
+  private double totalCount;
+  private double defaultValue; // = 0.0;
+
+  public LongCounter() {
+    this(8);
+  }
+
+  public LongCounter(int expectedSize) {
+    int capacity = Math.max(expectedSize, 4);
+    keys = new long[capacity];
+    counts = new double[capacity];
+    table = new int[Integer.highestOneBit(capacity - 1) << 2];
+  }
+
+  /** Makes a copy of the given counter, with its entries in the same order. */
+  public LongCounter(LongCounter c) {
+    keys = c.keys.clone();
+    counts = c.counts.clone();
+    size = c.size;
+    table = c.table.clone();
+    totalCount = c.totalCount;
+    defaultValue = c.defaultValue;
+  }
+
+  public void setDefaultReturnValue(double rv) {
+    defaultValue = rv;
+  }
+
+  public double defaultReturnValue() {
+    return defaultValue;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** The key of the entry at position i, for 0 &lt;= i &lt; size(). */
+  public long keyAt(int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException(i + " >= " + size);
+    }
+    return keys[i];
+  }
+
+  /** The count of the entry at position i, for 0 &lt;= i &lt; size(). */
+  public double countAt(int i) {
+    if (i >= size) {
+      throw new IndexOutOfBoundsException(i + " >= " + size);
+    }
+    return counts[i];
+  }
+
+  /** The position of the key's entry, or -1 if it has none. */
+  public int indexOf(long key) {
+    int mask = table.length - 1;
+    for (int slot = hash(key) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int i = table[slot] - 1;
+      if (keys[i] == key) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) >= 0;
+  }
+
+  /** The count of the key, or the default return value if it has none. */
+  public double getCount(long key) {
+    int i = indexOf(key);
+    return (i >= 0) ? counts[i] : defaultValue;
+  }
+
+  public void setCount(long key, double count) {
+    int i = entry(key);
+    totalCount += count - counts[i];
+    counts[i] = count;
+  }
+
+  /**
+   * Adds amount to the count of the key, which starts from 0 (not the
+   * default return value) if the key has no entry yet.
+   *
+   * @return The new count
+   */
+  public double incrementCount(long key, double amount) {
+    int i = entry(key);
+    totalCount += amount;
+    return counts[i] += amount;
+  }
+
+  public double incrementCount(long key) {
+    return incrementCount(key, 1.0);
+  }
+
+  /** Adds the counts of another counter, in its order. */
+  public void addAll(LongCounter c) {
+    for (int i = 0; i < c.size; i++) {
+      incrementCount(c.keys[i], c.counts[i]);
+    }
+  }
+
+  /**
+   * Removes the key's entry, moving the last entry into its position.
+   *
+   * @return The count it had, or the default return value if it had none
+   */
+  public double remove(long key) {
+    int mask = table.length - 1;
+    int slot = hash(key) & mask;
+    while (table[slot] != 0 && keys[table[slot] - 1] != key) {
+      slot = (slot + 1) & mask;
+    }
+    if (table[slot] == 0) {
+      return defaultValue;
+    }
+    int i = table[slot] - 1;
+    double count = counts[i];
+    deleteSlot(slot);
+    int last = size - 1;
+    if (i != last) {
+      int lastSlot = hash(keys[last]) & mask;
+      while (table[lastSlot] != last + 1) {
+        lastSlot = (lastSlot + 1) & mask;
+      }
+      table[lastSlot] = i + 1;
+      keys[i] = keys[last];
+      counts[i] = counts[last];
+    }
+    size--;
+    totalCount -= count;
+    return count;
+  }
+
+  public void clear() {
+    Arrays.fill(table, 0);
+    size = 0;
+    totalCount = 0.0;
+  }
+
+  /** The sum of the counts, kept as they change. */
+  public double totalCount() {
+    return totalCount;
+  }
+
+  /** The position of the key's entry, adding one with count 0 if need be. */
+  private int entry(long key) {
+    int mask = table.length - 1;
+    int slot = hash(key) & mask;
+    while (table[slot] != 0) {
+      int i = table[slot] - 1;
+      if (keys[i] == key) {
+        return i;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * size);
+      counts = Arrays.copyOf(counts, 2 * size);
+    }
+    int i = size++;
+    keys[i] = key;
+    counts[i] = 0.0;
+    table[slot] = i + 1;
+    if (2 * size > table.length) {
+      rehash(2 * table.length);
+    }
+    return i;
+  }
+
+  private void rehash(int length) {
+    table = new int[length];
+    int mask = length - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = hash(keys[i]) & mask;
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = i + 1;
+    }
+  }
+
+  /** Empties a slot, shifting back the entries after it that probed past it. */
+  private void deleteSlot(int hole) {
+    int mask = table.length - 1;
+    for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      int home = hash(keys[table[slot] - 1]) & mask;
+      if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+        table[hole] = table[slot];
+        hole = slot;
+      }
+    }
+    table[hole] = 0;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h >>> 32);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < size; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(keys[i]).append('=').append(counts[i]);
+    }
+    return sb.append('}').toString();
+  }
+
+}
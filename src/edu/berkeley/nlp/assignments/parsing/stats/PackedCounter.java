@@ -0,0 +1,232 @@
+package edu.berkeley.nlp.assignments.parsing.stats;
+
+import edu.berkeley.nlp.assignments.parsing.util.Factory;
+
+import java.io.Serializable;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A {@link Counter} over a {@link LongCounter}, for keys that pack into a
+ * long, such as pairs of small ids.  Each key is stored only as its packed
+ * long, with its count in a double array, and the key objects handed out
+ * by {@link #keySet()} and {@link #entrySet()} are unpacked as they are
+ * iterated over.  Code that can pack its keys itself can look counts up
+ * without allocating through {@link #counts()}.
+ * <p>
+ * The keys iterate in the order they were added (see {@link LongCounter}).
+ * The views are read-only, but reflect changes to the counter.
+ *
+ * @param <E> The type of the keys
+ */
+public class PackedCounter<E> extends AbstractCounter<E> implements Iterable<E>, Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** How keys pack into longs, which must be a one-to-one map. */
+  public interface Packing<E> extends Serializable {
+
+    /** The type of the keys, to tell which objects may be looked up. */
+    Class<E> keyType();
+
+    long pack(E key);
+
+    E unpack(long key);
+
+  }
+
+  private final Packing<E> packing;
+  private final LongCounter counts;
+
+  public PackedCounter(Packing<E> packing) {
+    this(packing, new LongCounter());
+  }
+
+  /** A counter whose counts are those in, and change with, the given LongCounter. */
+  public PackedCounter(Packing<E> packing, LongCounter counts) {
+    this.packing = packing;
+    this.counts = counts;
+  }
+
+  /** The counts by packed key, which this counter is a view of. */
+  public LongCounter counts() {
+    return counts;
+  }
+
+  public Packing<E> packing() {
+    return packing;
+  }
+
+  @Override
+  public Factory<Counter<E>> getFactory() {
+    Packing<E> packing = this.packing;
+    return () -> new PackedCounter<>(packing);
+  }
+
+  @Override
+  public void setDefaultReturnValue(double rv) {
+    counts.setDefaultReturnValue(rv);
+  }
+
+  @Override
+  public double defaultReturnValue() {
+    return counts.defaultReturnValue();
+  }
+
+  @Override
+  public double getCount(Object key) {
+    Class<E> type = packing.keyType();
+    if ( ! type.isInstance(key)) {
+      return counts.defaultReturnValue();
+    }
+    return counts.getCount(packing.pack(type.cast(key)));
+  }
+
+  @Override
+  public void setCount(E key, double value) {
+    counts.setCount(packing.pack(key), value);
+  }
+
+  @Override
+  public double incrementCount(E key, double value) {
+    return counts.incrementCount(packing.pack(key), value);
+  }
+
+  @Override
+  public double remove(E key) {
+    return counts.remove(packing.pack(key));
+  }
+
+  @Override
+  public boolean containsKey(E key) {
+    return counts.containsKey(packing.pack(key));
+  }
+
+  @Override
+  public void clear() {
+    counts.clear();
+  }
+
+  @Override
+  public int size() {
+    return counts.size();
+  }
+
+  public boolean isEmpty() {
+    return counts.isEmpty();
+  }
+
+  @Override
+  public double totalCount() {
+    return counts.totalCount();
+  }
+
+  @Override
+  public Iterator<E> iterator() {
+    return keySet().iterator();
+  }
+
+  @Override
+  public Set<E> keySet() {
+    return new AbstractSet<E>() {
+      @Override
+      public Iterator<E> iterator() {
+        return new EntryIterator<E>() {
+          @Override
+          E get(int i) {
+            return packing.unpack(counts.keyAt(i));
+          }
+        };
+      }
+
+      @Override
+      public boolean contains(Object o) {
+        Class<E> type = packing.keyType();
+        return type.isInstance(o) && counts.containsKey(packing.pack(type.cast(o)));
+      }
+
+      @Override
+      public int size() {
+        return counts.size();
+      }
+    };
+  }
+
+  @Override
+  public Collection<Double> values() {
+    return new AbstractCollection<Double>() {
+      @Override
+      public Iterator<Double> iterator() {
+        return new EntryIterator<Double>() {
+          @Override
+          Double get(int i) {
+            return counts.countAt(i);
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return counts.size();
+      }
+    };
+  }
+
+  @Override
+  public Set<Map.Entry<E, Double>> entrySet() {
+    return new AbstractSet<Map.Entry<E, Double>>() {
+      @Override
+      public Iterator<Map.Entry<E, Double>> iterator() {
+        return new EntryIterator<Map.Entry<E, Double>>() {
+          @Override
+          Map.Entry<E, Double> get(int i) {
+            return new AbstractMap.SimpleImmutableEntry<>(packing.unpack(counts.keyAt(i)), counts.countAt(i));
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return counts.size();
+      }
+    };
+  }
+
+  private abstract class EntryIterator<T> implements Iterator<T> {
+    private int next; // = 0;
+
+    abstract T get(int i);
+
+    @Override
+    public boolean hasNext() {
+      return next < counts.size();
+    }
+
+    @Override
+    public T next() {
+      if ( ! hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return get(next++);
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < counts.size(); i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(packing.unpack(counts.keyAt(i))).append('=').append(counts.countAt(i));
+    }
+    return sb.append('}').toString();
+  }
+
+}
@@ -0,0 +1,15 @@
+package edu.berkeley.nlp.assignments.parsing.student;
+
+import java.util.List;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.ParserFactory;
+import edu.berkeley.nlp.ling.Tree;
+
+
+public class AStarParserFactory implements ParserFactory {
+
+  public Parser getParser(List<Tree<String>> trainTrees) {
+    return new GenerativeParserFactory.GenerativeParser(trainTrees, GenerativeParserFactory.GenerativeParser.Search.A_STAR);
+  }
+}
@@ -10,7 +10,6 @@ import edu.berkeley.nlp.ling.Tree;
 public class CoarseToFineParserFactory implements ParserFactory {
 
   public Parser getParser(List<Tree<String>> trainTrees) {
-
-     return null;
+    return new GenerativeParserFactory.GenerativeParser(trainTrees, GenerativeParserFactory.GenerativeParser.Search.COARSE_TO_FINE);
   }
 }
@@ -6,6 +6,7 @@ import edu.berkeley.nlp.assignments.parsing.TreeAnnotations;
 import edu.berkeley.nlp.assignments.parsing.ling.CoreLabel;
 import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
 import edu.berkeley.nlp.assignments.parsing.ling.Label;
+import edu.berkeley.nlp.assignments.parsing.parser.ViterbiParser;
 import edu.berkeley.nlp.assignments.parsing.parser.lexparser.*;
 import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
 import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeNode;
@@ -13,13 +14,23 @@ import edu.berkeley.nlp.assignments.parsing.trees.TreeTransformer;
 import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
 import edu.berkeley.nlp.assignments.parsing.util.Index;
 import edu.berkeley.nlp.assignments.parsing.util.Pair;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredObject;
 import edu.berkeley.nlp.ling.Tree;
 import edu.berkeley.nlp.util.CounterMap;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 public class GenerativeParserFactory implements ParserFactory {
 	public GenerativeParserFactory() {
@@ -29,18 +40,102 @@ public class GenerativeParserFactory implements ParserFactory {
 		return new GenerativeParser(trainTrees);
 	}
 
-	public static class GenerativeParser implements Parser {
+	public static class GenerativeParser implements Parser, AutoCloseable {
 		CounterMap<Integer, String> spanToCategories;
 //		SimpleLexicon lexicon;
 //		Grammar grammar;
 		LabeledScoredTreeFactory lf = new LabeledScoredTreeFactory();
 		LexicalizedParser lp;
-		ExhaustivePCFGParser pparser;
+		Options op;
+		BinaryGrammar bg;
+		UnaryGrammar ug;
+		Lexicon lex;
+		Index<String> stateIndex;
+		Index<String> wordIndex;
+		Index<String> tagIndex;
+		/** The coarse grammar, when parsing coarse-to-fine; otherwise null. */
+		XBarGrammarProjection projection;
+		/** The outside estimates, when parsing with A*; otherwise null. */
+		SXOutsideEstimate sxEstimate;
+		/** The dependency grammar, when parsing factored; otherwise null. */
+		DependencyGrammar dg;
+		/** One chart parser per thread; they share the grammars and lexicon read-only. */
+		ThreadLocal<ViterbiParser> pparser = ThreadLocal.withInitial(this::newPCFGParser);
+		/** One posterior decoding parser per thread, made when first needed. */
+		ThreadLocal<InsideOutsidePCFGParser> posteriorParser = ThreadLocal.withInitial(
+				() -> new InsideOutsidePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex));
+		/** One k-best parser per thread, made when first needed. */
+		ThreadLocal<ExhaustivePCFGParser> kBestParser = ThreadLocal.withInitial(
+				() -> new ExhaustivePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex));
+		/** One factored parser query per thread, made when first needed. */
+		ThreadLocal<LexicalizedParserQuery> factoredQuery = ThreadLocal.withInitial(this::newFactoredQuery);
+		/** Every factored query made, for adding up their stats. */
+		final List<LexicalizedParserQuery> factoredQueries = new ArrayList<>();
+		ExecutorService pool;
 		TreeTransformer debinarizer = new Debinarizer(false);
 		TreeTransformer subcategoryStripper;
+		/** Builds the output trees in one pass; null if the treebank parameters do not allow it. */
+		OutputTreeBuilder outputBuilder;
 		TreeAnnotatorAndBinarizer binarizer;
 
 		public Tree<String> getBestParse(List<String> sentence) {
+			List<HasWord> sentenceB = toParserInput(sentence);
+			Tree<String> tree;
+			if (dg != null) {
+				LexicalizedParserQuery query = factoredQuery.get();
+				edu.berkeley.nlp.assignments.parsing.trees.Tree parse = query.parse(sentenceB) ? query.getBestBinarizedParse() : null;
+				tree = (parse == null) ? null : toOutputTree(parse, sentenceB);
+			} else {
+				ViterbiParser parser = (op.testOptions.pcfgDecoder == TestOptions.Decoder.VITERBI) ? pparser.get() : posteriorParser.get();
+				parser.parse(sentenceB);
+				tree = bestOutputParse(parser, sentenceB);
+			}
+			if (tree != null) {
+				return tree;
+			}
+			return new Tree<String>("ROOT", Collections.singletonList(new Tree<String>("JUNK")));
+		}
+
+		/** The output tree of the parser's best parse of the sentence it last parsed, or null if it has none. */
+		private Tree<String> bestOutputParse(ViterbiParser parser, List<HasWord> sentenceB) {
+			if (outputBuilder != null && op.testOptions.fusedOutputTrees) {
+				// these can build it straight from their chart
+				if (parser instanceof ExhaustivePCFGParser) {
+					return ((ExhaustivePCFGParser) parser).getBestParse(outputBuilder);
+				} else if (parser instanceof CoarseToFinePCFGParser) {
+					return ((CoarseToFinePCFGParser) parser).getBestParse(outputBuilder);
+				}
+			}
+			edu.berkeley.nlp.assignments.parsing.trees.Tree tree = parser.getBestParse();
+			return (tree == null) ? null : toOutputTree(tree, sentenceB);
+		}
+
+		/**
+		 * The parses of a sentence, best first, from an exhaustive PCFG chart.
+		 * Each parse is only extracted when the iterator gets to it, so the
+		 * caller can stop at any k.  The iterator reads this thread's k-best
+		 * parser, so it must be done with before the thread asks for the parses
+		 * of another sentence.
+		 */
+		public Iterator<ScoredObject<Tree<String>>> getKBestParses(List<String> sentence) {
+			List<HasWord> sentenceB = toParserInput(sentence);
+			ExhaustivePCFGParser parser = kBestParser.get();
+			parser.parse(sentenceB);
+			Iterator<ScoredObject<edu.berkeley.nlp.assignments.parsing.trees.Tree>> parses = parser.kBestParseIterator();
+			return new Iterator<ScoredObject<Tree<String>>>() {
+				public boolean hasNext() {
+					return parses.hasNext();
+				}
+
+				public ScoredObject<Tree<String>> next() {
+					ScoredObject<edu.berkeley.nlp.assignments.parsing.trees.Tree> parse = parses.next();
+					return new ScoredObject<>(toOutputTree(parse.object(), sentenceB), parse.score());
+				}
+			};
+		}
+
+		/** The sentence as the parsers take it: CoreLabels, ending with the boundary. */
+		private static List<HasWord> toParserInput(List<String> sentence) {
 			List<HasWord> sentenceB = new ArrayList<>();
 			for (String word : sentence) {
 				CoreLabel w = new CoreLabel();
@@ -54,67 +149,275 @@ public class GenerativeParserFactory implements ParserFactory {
 			boundary.setTag(Lexicon.BOUNDARY_TAG);
 			boundary.setIndex(sentence.size()+1);//1-based indexing used in the parser
 			sentenceB.add(boundary);
+			return sentenceB;
+		}
+
+		/** Debinarize and unannotate a parse of the parser input, with the input words as its leaves. */
+		private Tree<String> toOutputTree(edu.berkeley.nlp.assignments.parsing.trees.Tree tree, List<HasWord> sentenceB) {
+			if (outputBuilder != null && op.testOptions.fusedOutputTrees) {
+				return outputBuilder.build(tree, sentenceB);
+			}
+			tree = debinarizer.transformTree(tree);
+			tree = subcategoryStripper.transformTree(tree);
+
+			List<edu.berkeley.nlp.assignments.parsing.trees.Tree> leaves = tree.getLeaves();
+			Iterator<edu.berkeley.nlp.assignments.parsing.trees.Tree> leafIterator = leaves.iterator();
+			for (HasWord word : sentenceB.subList(0, sentenceB.size() - 1)) {
+				edu.berkeley.nlp.assignments.parsing.trees.Tree leaf = leafIterator.next();
+				if (!(word instanceof Label)) {
+					continue;
+				}
+				leaf.setLabel((Label) word);
+			}
 
-			pparser.parse(sentenceB);
+			return TreeAnnotations.unAnnotateTree(convertBack(tree));
+		}
 
-			edu.berkeley.nlp.assignments.parsing.trees.Tree tree = pparser.getBestParse();
-			if (tree != null) {
-				tree = debinarizer.transformTree(tree);
-				tree = subcategoryStripper.transformTree(tree);
-
-				List<edu.berkeley.nlp.assignments.parsing.trees.Tree> leaves = tree.getLeaves();
-				Iterator<edu.berkeley.nlp.assignments.parsing.trees.Tree> leafIterator = leaves.iterator();
-				sentenceB.remove(sentenceB.size() - 1);
-				for (HasWord word : sentenceB) {
-					edu.berkeley.nlp.assignments.parsing.trees.Tree leaf = leafIterator.next();
-					if (!(word instanceof Label)) {
-						continue;
+		/**
+		 * Parse a batch of sentences on {@code op.testOptions.testingThreads}
+		 * threads.  The trees are returned in the order of the input.  The
+		 * threads are kept for later batches until {@link #close}.
+		 */
+		public List<Tree<String>> parseAll(List<List<String>> sentences) {
+			List<Tree<String>> trees = new ArrayList<>(sentences.size());
+			Iterator<Tree<String>> it = parseStream(sentences.iterator());
+			while (it.hasNext()) {
+				trees.add(it.next());
+			}
+			return trees;
+		}
+
+		/**
+		 * Parse sentences as they are pulled from the returned iterator, keeping
+		 * a bounded number of them in flight on the worker threads.  Trees come
+		 * back in the order of the input.
+		 */
+		public Iterator<Tree<String>> parseStream(final Iterator<List<String>> sentences) {
+			final int threads = numThreads();
+			if (threads == 1) {
+				return new Iterator<Tree<String>>() {
+					public boolean hasNext() {
+						return sentences.hasNext();
+					}
+
+					public Tree<String> next() {
+						return getBestParse(sentences.next());
+					}
+				};
+			}
+			final ExecutorService pool = pool(threads);
+			final int window = 4 * threads;
+			return new Iterator<Tree<String>>() {
+				private final ArrayDeque<Future<Tree<String>>> pending = new ArrayDeque<>();
+
+				private void fill() {
+					while (pending.size() < window && sentences.hasNext()) {
+						final List<String> sentence = sentences.next();
+						pending.add(pool.submit(() -> getBestParse(sentence)));
+					}
+				}
+
+				public boolean hasNext() {
+					fill();
+					return ! pending.isEmpty();
+				}
+
+				public Tree<String> next() {
+					if ( ! hasNext()) {
+						throw new NoSuchElementException();
+					}
+					try {
+						return pending.poll().get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					} catch (ExecutionException e) {
+						throw new RuntimeException(e.getCause());
 					}
-					leaf.setLabel((Label) word);
 				}
+			};
+		}
 
-				return TreeAnnotations.unAnnotateTree(convertBack(tree));
+		/**
+		 * Shut down the worker threads of parseAll and parseStream, after the
+		 * sentences already submitted to them are parsed.  The parser stays
+		 * usable; a later batch on more than one thread starts new workers.
+		 */
+		@Override
+		public synchronized void close() {
+			if (pool != null) {
+				pool.shutdown();
+				pool = null;
 			}
-			return new Tree<String>("ROOT", Collections.singletonList(new Tree<String>("JUNK")));
 		}
 
-		public GenerativeParser(List<Tree<String>> trainTrees) {
-//			List<Tree<String>> annotatedTrainTrees = this.annotateTrees(trainTrees);
-			Options op = new Options();
-			op.doDep = false;
-			op.testOptions.iterativeCKY = false;
-			binarizer = new TreeAnnotatorAndBinarizer(op.tlpParams, op.forceCNF, !op.trainOptions.outsideFactor(), !op.trainOptions.predictSplits, op);
+		/** The test-time options, for tuning threads and pruning after training. */
+		public TestOptions testOptions() {
+			return op.testOptions;
+		}
+
+		/**
+		 * The time in each stage of the factored parses so far, on all
+		 * threads, and how their A* searches ended; all zero unless parsing
+		 * factored.  Read them when no sentence is being parsed.
+		 */
+		public LexicalizedParserQuery.Stats factoredStats() {
+			LexicalizedParserQuery.Stats total = new LexicalizedParserQuery.Stats();
+			synchronized (factoredQueries) {
+				for (LexicalizedParserQuery query : factoredQueries) {
+					total.add(query.stats());
+				}
+			}
+			return total;
+		}
+
+		/** Start the factored stats again from zero. */
+		public void clearFactoredStats() {
+			synchronized (factoredQueries) {
+				for (LexicalizedParserQuery query : factoredQueries) {
+					query.stats().clear();
+				}
+			}
+		}
+
+		private LexicalizedParserQuery newFactoredQuery() {
+			LexicalizedParserQuery query = lp.lexicalizedParserQuery();
+			synchronized (factoredQueries) {
+				factoredQueries.add(query);
+			}
+			return query;
+		}
 
-			List<edu.berkeley.nlp.assignments.parsing.trees.Tree> treeBank = convertTrainTrees(trainTrees);
+		private int numThreads() {
+			int threads = op.testOptions.testingThreads;
+			return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		}
 
-			Index<String> stateIndex;
-			Index<String> wordIndex;
-			Index<String> tagIndex;
+		private synchronized ExecutorService pool(int threads) {
+			if (pool == null) {
+				pool = Executors.newFixedThreadPool(threads, r -> {
+					Thread t = new Thread(r, "GenerativeParser-worker");
+					t.setDaemon(true);
+					return t;
+				});
+			}
+			return pool;
+		}
 
-			Pair<UnaryGrammar, BinaryGrammar> bgug;
+		private ViterbiParser newPCFGParser() {
+			if (sxEstimate != null) {
+				return new AStarPCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex, sxEstimate);
+			}
+			ExhaustivePCFGParser parser = new ExhaustivePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex);
+			if (projection != null) {
+				return new CoarseToFinePCFGParser(parser, projection, wordIndex, op);
+			}
+			return parser;
+		}
+
+		/** How the parser searches for the best parse. */
+		public enum Search {
+			/** Fill the whole CKY chart. */
+			EXHAUSTIVE,
+			/** Prune each sentence's chart with an X-bar projection of the
+			 *  grammar before parsing it exhaustively. */
+			COARSE_TO_FINE,
+			/** Agenda-based A* search with SX outside estimates. */
+			A_STAR,
+			/** Parse with the product of the PCFG and a dependency grammar
+			 *  trained with it: exhaustive PCFG and dependency parses give
+			 *  the outside estimates of an A* search of the product (see
+			 *  LexicalizedParserQuery), or, with
+			 *  TestOptions.useFastFactored, the PCFG's k best parses are
+			 *  rescored by the dependency grammar. */
+			FACTORED
+		}
+
+		public GenerativeParser(List<Tree<String>> trainTrees) {
+			this(trainTrees, Search.EXHAUSTIVE);
+		}
+
+		/** Set up the options and empty indices, before training or loading. */
+		private GenerativeParser() {
+			this(new TrainOptions());
+		}
+
+		private GenerativeParser(TrainOptions trainOptions) {
+			op = new Options();
+			op.trainOptions = trainOptions;
+			op.doDep = false;
+			op.testOptions.iterativeCKY = false;
+			op.testOptions.chartStorage = TestOptions.ChartStorage.FLAT;
+			op.testOptions.testingThreads = 0;
+			binarizer = newBinarizer();
 
 			stateIndex = new HashIndex<>();
+			// locked once trained; parsing threads then only read it
 			wordIndex = new HashIndex<>();
 			tagIndex = new HashIndex<>();
+		}
 
-			BinaryGrammarExtractor bgExtractor = new BinaryGrammarExtractor(stateIndex);
-			bgug = bgExtractor.extract(treeBank);
+		public GenerativeParser(List<Tree<String>> trainTrees, Search search) {
+			this(trainTrees, search, defaultTrainOptions());
+		}
 
-			double trainSize = treeBank.size();
+		private static TrainOptions defaultTrainOptions() {
+			TrainOptions trainOptions = new TrainOptions();
+			trainOptions.trainingThreads = 0;
+			return trainOptions;
+		}
 
-			Lexicon lex = op.tlpParams.lex(op, wordIndex, tagIndex);
-			lex.initializeTraining(trainSize);
-			lex.train(treeBank);
-			lex.finishTraining();
+		/**
+		 * Train with the given training options; with
+		 * {@code trainOptions.predictSplits} the states are refined by
+		 * split-merge EM instead of parent annotation.
+		 */
+		public GenerativeParser(List<Tree<String>> trainTrees, Search search, TrainOptions trainOptions) {
+			this(trainOptions);
+//			List<Tree<String>> annotatedTrainTrees = this.annotateTrees(trainTrees);
+			Pair<UnaryGrammar, BinaryGrammar> bgug;
+			List<edu.berkeley.nlp.assignments.parsing.trees.Tree> treeBank = null;
+			XBarGrammarProjection.CoarseTarget coarse = null;
+
+			if (op.trainOptions.predictSplits) {
+				// EM goes over the binarized trees again and again, so they are all kept
+				treeBank = convertTrainTrees(trainTrees);
+				SplittingGrammarExtractor extractor = new SplittingGrammarExtractor(op, stateIndex, wordIndex, tagIndex);
+				bgug = extractor.extract(treeBank);
+				lex = extractor.lexicon();
+			} else {
+				// the trees are annotated and binarized a batch at a time as they are counted
+				ParallelTreebankExtractor.Target fine = new ParallelTreebankExtractor.Target(tree -> tree, stateIndex,
+						op.tlpParams.lex(op, wordIndex, tagIndex));
+				ParallelTreebankExtractor extractor = new ParallelTreebankExtractor(op);
+				if (search == Search.COARSE_TO_FINE) {
+					coarse = XBarGrammarProjection.coarseTarget(wordIndex, op);
+					extractor.extract(trainTrees.iterator(), trainTrees.size(), this::newTrainTransform, fine, coarse);
+				} else {
+					extractor.extract(trainTrees.iterator(), trainTrees.size(), this::newTrainTransform, fine);
+				}
+				bgug = fine.grammar();
+				lex = fine.lexicon();
+			}
 
-			BinaryGrammar bg = bgug.second;
+			bg = bgug.second;
 			bg.splitRules();
-			UnaryGrammar ug = bgug.first;
+			ug = bgug.first;
 			ug.purgeRules();
 
-			lp = new LexicalizedParser(lex, bg, ug, null, stateIndex, wordIndex, tagIndex, op);
-			pparser = new ExhaustivePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex);
-			subcategoryStripper = op.tlpParams.subcategoryStripper();
+			if (search == Search.FACTORED) {
+				// before setUp locks the word index, as the extractor adds the unknown word to it
+				op.doDep = true;
+				Iterator<edu.berkeley.nlp.assignments.parsing.trees.Tree> trees = trainTrees.stream()
+						.<edu.berkeley.nlp.assignments.parsing.trees.Tree>map(this::convert).iterator();
+				dg = op.tlpParams.dependencyGrammarExtractor(op, wordIndex, tagIndex).extract(trees, binarizer::transformTree);
+				dg.setLexicon(lex);
+			}
+			if (search == Search.COARSE_TO_FINE) {
+				projection = (coarse != null) ? new XBarGrammarProjection(bg, ug, stateIndex, coarse, op)
+						: new XBarGrammarProjection(bg, ug, stateIndex, wordIndex, treeBank, op);
+			}
+			setUp(search);
 
 //			this.grammar = Grammar.generativeGrammarFromTrees(annotatedTrainTrees);
 //			System.out.println("done. (" + this.grammar.getLabelIndexer().size() + " states)");
@@ -131,6 +434,47 @@ public class GenerativeParserFactory implements ParserFactory {
 			System.out.println("done.");
 		}
 
+		/**
+		 * Load a parser from a model file written by {@link #save}, without
+		 * training.  Coarse-to-fine search is not available, as its coarse
+		 * grammar is estimated from the training trees, and neither is
+		 * factored parsing, as the model has no dependency grammar.
+		 */
+		public static GenerativeParser load(Path path, Search search) throws IOException {
+			if (search == Search.COARSE_TO_FINE) {
+				throw new IllegalArgumentException("A loaded model cannot be parsed coarse-to-fine");
+			} else if (search == Search.FACTORED) {
+				throw new IllegalArgumentException("A loaded model has no dependency grammar to parse factored with");
+			}
+			GenerativeParser parser = new GenerativeParser();
+			ParserModelFile.Model model = ParserModelFile.read(path, parser.op, parser.stateIndex, parser.wordIndex, parser.tagIndex);
+			parser.bg = model.bg;
+			parser.ug = model.ug;
+			parser.lex = model.lex;
+			parser.setUp(search);
+			return parser;
+		}
+
+		/** Write the trained grammars, lexicon and indices to a model file. */
+		public void save(Path path) throws IOException {
+			ParserModelFile.write(path, bg, ug, lex, stateIndex, wordIndex, tagIndex);
+		}
+
+		/** Build what parsing needs on top of the trained grammars and lexicon. */
+		private void setUp(Search search) {
+			// words the parsers have not seen get transient per-sentence ids
+			wordIndex.lock();
+			if (search == Search.A_STAR) {
+				// + 1 for the boundary symbol
+				sxEstimate = new SXOutsideEstimate(bg, ug, stateIndex, tagIndex, op.langpack().startSymbol(),
+						op.testOptions.aStarMaxSentenceLength + 1);
+			}
+
+			lp = new LexicalizedParser(lex, bg, ug, dg, stateIndex, wordIndex, tagIndex, op);
+			subcategoryStripper = op.tlpParams.subcategoryStripper();
+			outputBuilder = OutputTreeBuilder.forStates(stateIndex, op.tlpParams);
+		}
+
 		public List<edu.berkeley.nlp.assignments.parsing.trees.Tree> convertTrainTrees(List<Tree<String>> trainTrees) {
 			List<edu.berkeley.nlp.assignments.parsing.trees.Tree> newTrees = new ArrayList<>();
 			for (Tree<String> tree: trainTrees) {
@@ -139,6 +483,16 @@ public class GenerativeParserFactory implements ParserFactory {
 			return newTrees;
 		}
 
+		private TreeAnnotatorAndBinarizer newBinarizer() {
+			return new TreeAnnotatorAndBinarizer(op.tlpParams, op.forceCNF, !op.trainOptions.outsideFactor(), !op.trainOptions.predictSplits, op);
+		}
+
+		/** Annotate and binarize a training tree, with a binarizer of its own for each thread. */
+		private Function<Tree<String>, edu.berkeley.nlp.assignments.parsing.trees.Tree> newTrainTransform() {
+			TreeAnnotatorAndBinarizer binarizer = newBinarizer();
+			return tree -> binarizer.transformTree(convert(tree));
+		}
+
 		private LabeledScoredTreeNode convert(Tree<String> tree) {
 			if (tree.isLeaf()) {
 				return (LabeledScoredTreeNode)lf.newLeaf(tree.getLabel());
@@ -0,0 +1,21 @@
+package edu.berkeley.nlp.assignments.parsing.student;
+
+import java.util.List;
+
+import edu.berkeley.nlp.assignments.parsing.Parser;
+import edu.berkeley.nlp.assignments.parsing.ParserFactory;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.TrainOptions;
+import edu.berkeley.nlp.ling.Tree;
+
+
+public class SplitMergeParserFactory implements ParserFactory {
+
+  public Parser getParser(List<Tree<String>> trainTrees) {
+    TrainOptions trainOptions = new TrainOptions();
+    trainOptions.predictSplits = true;
+    trainOptions.splitCount = 2;
+    trainOptions.splitRecombineRate = 0.5;
+    trainOptions.trainingThreads = 0;
+    return new GenerativeParserFactory.GenerativeParser(trainTrees, GenerativeParserFactory.GenerativeParser.Search.EXHAUSTIVE, trainOptions);
+  }
+}
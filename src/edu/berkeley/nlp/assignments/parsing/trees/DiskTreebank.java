@@ -0,0 +1,144 @@
+package edu.berkeley.nlp.assignments.parsing.trees;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>Treebank</code> that keeps only the files its trees are in, and
+ * reads the trees afresh, one at a time, each time it is iterated over or
+ * applied, so that a treebank of any size can be gone through in the
+ * memory of its largest tree.  The files are read by the
+ * <code>TreeReaderFactory</code>'s file readers (see
+ * {@link TreeReaderFactory#newTreeReader(java.nio.file.Path, Charset)}),
+ * in the order they were loaded, and in name order within a directory.
+ * An I/O error while iterating is thrown as an UncheckedIOException.
+ */
+public final class DiskTreebank extends Treebank {
+
+  private final List<File> files = new ArrayList<>();
+
+  /**
+   * Create a new DiskTreebank (using a LabeledScoredTreeReaderFactory).
+   */
+  public DiskTreebank() {
+    super();
+  }
+
+  public DiskTreebank(TreeReaderFactory trf) {
+    super(trf);
+  }
+
+  public DiskTreebank(TreeReaderFactory trf, String encoding) {
+    super(trf, encoding);
+  }
+
+  /** The files the trees are read from. */
+  public List<File> files() {
+    return files;
+  }
+
+  @Override
+  public void clear() {
+    files.clear();
+  }
+
+  /**
+   * Add a file, or the files that the filter accepts in a directory and in
+   * the subdirectories the filter accepts.
+   *
+   * @param path file or directory to load from
+   * @param filt a FilenameFilter of files to load
+   */
+  @Override
+  public void loadPath(File path, FileFilter filt) {
+    if ( ! path.isDirectory()) {
+      if ( ! path.exists()) {
+        throw new UncheckedIOException(new IOException("No such file: " + path));
+      }
+      files.add(path);
+      return;
+    }
+    File[] children = path.listFiles(filt);
+    if (children == null) {
+      throw new UncheckedIOException(new IOException("Cannot list directory: " + path));
+    }
+    Arrays.sort(children);
+    for (File child : children) {
+      if (child.isDirectory()) {
+        loadPath(child, filt);
+      } else {
+        files.add(child);
+      }
+    }
+  }
+
+  @Override
+  public void apply(TreeVisitor tp) {
+    for (Tree tree : this) {
+      tp.visitTree(tree);
+    }
+  }
+
+  @Override
+  public Iterator<Tree> iterator() {
+    return new DiskTreebankIterator();
+  }
+
+
+  private class DiskTreebankIterator implements Iterator<Tree> {
+
+    private final Charset encoding = Charset.forName(encoding());
+    private int nextFile; // = 0;
+    private TreeReader reader; // = null;
+    private Tree next; // = null;
+
+    DiskTreebankIterator() {
+      primeNext();
+    }
+
+    private void primeNext() {
+      try {
+        while (true) {
+          if (reader != null) {
+            next = reader.readTree();
+            if (next != null) {
+              return;
+            }
+            reader.close();
+            reader = null;
+          }
+          if (nextFile == files.size()) {
+            return;
+          }
+          reader = treeReaderFactory().newTreeReader(files.get(nextFile++).toPath(), encoding);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public Tree next() {
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+      Tree tree = next;
+      primeNext();
+      return tree;
+    }
+  }
+
+}
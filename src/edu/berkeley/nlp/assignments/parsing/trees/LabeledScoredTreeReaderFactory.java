@@ -3,14 +3,21 @@ package edu.berkeley.nlp.assignments.parsing.trees;
 import edu.berkeley.nlp.assignments.parsing.ling.CoreLabel;
 import edu.berkeley.nlp.assignments.parsing.ling.LabelFactory;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
 
 /**
  * This class implements a <code>TreeReaderFactory</code> that produces
- * labeled, scored array-based Trees, which have been cleaned up to
- * delete empties, etc.   This seems to be a common case (for English).
- * By default, the labels are of type CategoryWordTag,
- * but a different Label type can be specified by the user.
+ * labeled, scored array-based Trees, read by a {@link PennTreeReader} and
+ * normalized by a <code>TreeNormalizer</code>, if one is given.  The labels
+ * are of type CoreLabel, unless another Label type is given.
+ * <p>
+ * The readers a factory makes intern the labels and words they read
+ * through one table, so that the trees read from all of them share their
+ * Strings.  So the readers of one factory should be used on one thread at
+ * a time.
  *
  * @author Christopher Manning
  */
@@ -18,6 +25,7 @@ public class LabeledScoredTreeReaderFactory implements TreeReaderFactory {
 
   private final LabelFactory lf;
   private final TreeNormalizer tm;
+  private final PennTreeReader.LabelTable labels = new PennTreeReader.LabelTable();
 
   /**
    * Create a new TreeReaderFactory with CoreLabel labels.
@@ -32,15 +40,29 @@ public class LabeledScoredTreeReaderFactory implements TreeReaderFactory {
     this.tm = tm;
   }
 
+  public LabeledScoredTreeReaderFactory(LabelFactory lf, TreeNormalizer tm) {
+    this.lf = lf;
+    this.tm = tm;
+  }
+
   /**
    * An implementation of the <code>TreeReaderFactory</code> interface.
    * It creates a <code>TreeReader</code> which normalizes trees using
-   * the <code>BobChrisTreeNormalizer</code>, and makes
-   * <code>LabeledScoredTree</code> objects with
-   * <code>CategoryWordTag</code> labels (unless otherwise specified on
-   * construction).
+   * the <code>TreeNormalizer</code> given on construction, if any, and
+   * makes <code>LabeledScoredTree</code> objects.
    */
+  @Override
   public TreeReader newTreeReader(Reader in) {
-    return null;
+    return new PennTreeReader(in, new LabeledScoredTreeFactory(lf), tm, labels);
+  }
+
+  /**
+   * Creates a <code>TreeReader</code> that tokenizes the file mapped into
+   * memory (see {@link PennTreeReader#mapped}).
+   */
+  @Override
+  public TreeReader newTreeReader(Path file, Charset encoding) throws IOException {
+    return PennTreeReader.mapped(file, encoding, new LabeledScoredTreeFactory(lf), tm, labels);
   }
+
 }
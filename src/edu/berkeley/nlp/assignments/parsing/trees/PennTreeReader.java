@@ -0,0 +1,488 @@
+package edu.berkeley.nlp.assignments.parsing.trees;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads trees in the bracketed format of the Penn Treebank, such as
+ * <code>( (S (NP (DT The) (NN cat)) (VP (VBD sat))) )</code>, one tree per
+ * call to {@link #readTree()}, so that a treebank of any size can be read
+ * through in the memory of its largest tree.  A node with no label, such
+ * as the outer node of most Penn Treebank trees, gets a null label value,
+ * for the TreeNormalizer to name.  Text outside the trees, such as the
+ * <code>*x*</code> header lines of some distributions of the treebank, is
+ * skipped.
+ * <p>
+ * The input is tokenized where it lies, whether in the buffer of a Reader
+ * or, for a file read by {@link #mapped}, in the file mapped into memory,
+ * whose bytes are not decoded at all except for the tokens: each token is
+ * looked up in a {@link LabelTable} by its characters (or bytes) in place,
+ * and only a token not seen before is made into a String.  So the labels
+ * and words of the trees read are shared Strings, one per distinct token.
+ * (Tokens read as bytes are looked up apart from those read as chars, and
+ * apart from those read as bytes in another encoding, since the same units
+ * can be different text.)
+ *
+ * @see LabeledScoredTreeReaderFactory
+ */
+public class PennTreeReader implements TreeReader {
+
+  /** The most of a file that is mapped at a time. */
+  private static final int MAP_WINDOW = 1 << 28;
+
+  private final Source in;
+  private final TreeFactory tf;
+  private final TreeNormalizer tn;
+  /** The part of the table for the units of the source. */
+  private final Units labels;
+  /** The position of the next unit of the input, in the source's window. */
+  private int pos; // = 0;
+  /** The end of the source's window, as of the last call to {@link #has}. */
+  private int limit; // = 0;
+
+  /**
+   * Read trees from a Reader.
+   *
+   * @param tf Makes the nodes of the trees
+   * @param tn Normalizes the labels, words and trees read, or null to leave them as read
+   * @param labels The table the labels and words are interned through
+   */
+  public PennTreeReader(Reader in, TreeFactory tf, TreeNormalizer tn, LabelTable labels) {
+    this(new CharSource(in), tf, tn, labels);
+  }
+
+  private PennTreeReader(Source in, TreeFactory tf, TreeNormalizer tn, LabelTable labels) {
+    this.in = in;
+    this.tf = tf;
+    this.tn = tn;
+    this.labels = labels.units(in.unitKind());
+  }
+
+  /**
+   * Read trees from a file mapped into memory a window at a time, if its
+   * encoding is one in which the brackets and white space are single bytes
+   * that are never part of another character (UTF-8, ISO-8859-1 or
+   * US-ASCII); in any other encoding, the file is read through a Reader.
+   */
+  public static PennTreeReader mapped(Path file, Charset encoding, TreeFactory tf, TreeNormalizer tn,
+                                      LabelTable labels) throws IOException {
+    if ( ! encoding.equals(StandardCharsets.UTF_8) && ! encoding.equals(StandardCharsets.ISO_8859_1) &&
+        ! encoding.equals(StandardCharsets.US_ASCII)) {
+      return new PennTreeReader(Files.newBufferedReader(file, encoding), tf, tn, labels);
+    }
+    return new PennTreeReader(new MappedSource(FileChannel.open(file, StandardOpenOption.READ), encoding), tf, tn,
+        labels);
+  }
+
+  @Override
+  public Tree readTree() throws IOException {
+    while (true) {
+      // nothing before the next tree is needed any more
+      in.release(pos);
+      pos = 0;
+      limit = in.limit();
+      if ( ! skipToTree()) {
+        return null;
+      }
+      Tree tree = readNode();
+      if (tn != null) {
+        tree = tn.normalizeWholeTree(tree, tf);
+      }
+      if (tree != null) {
+        return tree;
+      }
+    }
+  }
+
+  /** Move to the next '(' outside a tree; false if there is none. */
+  private boolean skipToTree() throws IOException {
+    while (true) {
+      skipWhitespace();
+      if ( ! has(pos)) {
+        return false;
+      }
+      int c = in.at(pos);
+      if (c == '(') {
+        return true;
+      } else if (c == ')') {
+        pos++;
+      } else if (c == '*' && has(pos + 2) && in.at(pos + 1) == 'x' && in.at(pos + 2) == '*') {
+        while (has(pos) && in.at(pos) != '\n') {
+          pos++;
+        }
+      } else {
+        skipToken();
+      }
+    }
+  }
+
+  /** Read the tree whose '(' is at pos. */
+  private Tree readNode() throws IOException {
+    pos++;
+    skipWhitespace();
+    String label = null;
+    int c = peek();
+    if (c != '(' && c != ')') {
+      label = token();
+      if (tn != null) {
+        label = tn.normalizeNonterminal(label);
+      }
+    }
+    List<Tree> children = new ArrayList<>(2);
+    while (true) {
+      skipWhitespace();
+      c = peek();
+      if (c == ')') {
+        pos++;
+        return tf.newTreeNode(label, children);
+      } else if (c == '(') {
+        children.add(readNode());
+      } else {
+        String word = token();
+        children.add(tf.newLeaf((tn != null) ? tn.normalizeTerminal(word) : word));
+      }
+    }
+  }
+
+  /** The unit at pos, which must be inside a tree. */
+  private int peek() throws IOException {
+    if ( ! has(pos)) {
+      throw new EOFException("The input ends inside a tree");
+    }
+    return in.at(pos);
+  }
+
+  /** Whether the input reaches position i, which is then in the window. */
+  private boolean has(int i) throws IOException {
+    if (i < limit) {
+      return true;
+    }
+    boolean has = in.ensure(i);
+    limit = in.limit();
+    return has;
+  }
+
+  private void skipWhitespace() throws IOException {
+    while (has(pos) && in.at(pos) <= ' ') {
+      pos++;
+    }
+  }
+
+  private void skipToken() throws IOException {
+    while (has(pos) && ! endsToken(in.at(pos))) {
+      pos++;
+    }
+  }
+
+  /** The interned token that starts at pos. */
+  private String token() throws IOException {
+    int start = pos;
+    int hash = 0;
+    for (int c; has(pos) && ! endsToken(c = in.at(pos)); pos++) {
+      hash = 31 * hash + c;
+    }
+    return labels.intern(in, start, pos, hash);
+  }
+
+  private static boolean endsToken(int c) {
+    return c <= ' ' || c == '(' || c == ')';
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+
+  /**
+   * The input, read through a window that moves forward over it.  A
+   * position is an offset from the start of the window, which
+   * {@link #release} moves forward.
+   */
+  private abstract static class Source {
+
+    /** The unit (a char, or an unsigned byte) at a position that {@link #ensure} has been called for. */
+    abstract int at(int i);
+
+    /** Whether the input reaches position i, which is then in the window. */
+    abstract boolean ensure(int i) throws IOException;
+
+    /** The end of the window: the positions before it are in the window. */
+    abstract int limit();
+
+    /** Start the window n units further on. */
+    abstract void release(int n);
+
+    /** The text of the units from start to end. */
+    abstract String decode(int start, int end);
+
+    /**
+     * What the units are, such that the same units of two sources of the
+     * same kind are the same text: the chars of any Reader, or the bytes
+     * of a file in one encoding.
+     */
+    abstract Object unitKind();
+
+    abstract void close() throws IOException;
+
+  }
+
+  private static class CharSource extends Source {
+
+    private final Reader reader;
+    private char[] buf = new char[8192];
+    /** The window is buf[off], ..., buf[len - 1]. */
+    private int off; // = 0;
+    private int len; // = 0;
+
+    CharSource(Reader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    int at(int i) {
+      return buf[off + i];
+    }
+
+    @Override
+    boolean ensure(int i) throws IOException {
+      while (off + i >= len) {
+        if (off > 0) {
+          System.arraycopy(buf, off, buf, 0, len - off);
+          len -= off;
+          off = 0;
+        }
+        if (len == buf.length) {
+          buf = Arrays.copyOf(buf, 2 * buf.length);
+        }
+        int n = reader.read(buf, len, buf.length - len);
+        if (n < 0) {
+          return false;
+        }
+        len += n;
+      }
+      return true;
+    }
+
+    @Override
+    int limit() {
+      return len - off;
+    }
+
+    @Override
+    void release(int n) {
+      off += n;
+    }
+
+    @Override
+    String decode(int start, int end) {
+      return new String(buf, off + start, end - start);
+    }
+
+    @Override
+    Object unitKind() {
+      return char.class;
+    }
+
+    @Override
+    void close() throws IOException {
+      reader.close();
+    }
+
+  }
+
+  private static class MappedSource extends Source {
+
+    private final FileChannel channel;
+    private final Charset encoding;
+    private final long size;
+    /** The window is the part of buf from off on, which is mapped from the file at base. */
+    private MappedByteBuffer buf;
+    private long base; // = 0;
+    private int off; // = 0;
+
+    MappedSource(FileChannel channel, Charset encoding) throws IOException {
+      this.channel = channel;
+      this.encoding = encoding;
+      size = channel.size();
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAP_WINDOW));
+    }
+
+    @Override
+    int at(int i) {
+      return buf.get(off + i) & 0xff;
+    }
+
+    @Override
+    boolean ensure(int i) throws IOException {
+      if (off + i < buf.limit()) {
+        return true;
+      }
+      long start = base + off;
+      if (start + i >= size) {
+        return false;
+      }
+      long length = Math.min(size - start, Math.max(MAP_WINDOW, 2L * (i + 1)));
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("A tree of more than 1GB at byte " + start);
+      }
+      buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      base = start;
+      off = 0;
+      return true;
+    }
+
+    @Override
+    int limit() {
+      return buf.limit() - off;
+    }
+
+    @Override
+    void release(int n) {
+      off += n;
+    }
+
+    @Override
+    String decode(int start, int end) {
+      byte[] bytes = new byte[end - start];
+      for (int k = 0; k < bytes.length; k++) {
+        bytes[k] = buf.get(off + start + k);
+      }
+      return new String(bytes, encoding);
+    }
+
+    @Override
+    Object unitKind() {
+      return encoding;
+    }
+
+    @Override
+    void close() throws IOException {
+      channel.close();
+    }
+
+  }
+
+
+  /**
+   * The Strings of the tokens read, found by the units (chars, or bytes)
+   * of a token where it lies in the input, in an open-addressing table, so
+   * that a token seen before is not made into a String again.  There is a
+   * table of units for each kind of source (chars, or bytes in a given
+   * encoding), since the same units of two kinds need not be the same text;
+   * the tables share their Strings.  Readers can share a table, so that the
+   * trees read from many files share their labels and words; a table is not
+   * thread-safe, so readers that share one must be used on one thread at a
+   * time.
+   */
+  public static class LabelTable {
+
+    /** The units table for each kind of units, by Source.unitKind(). */
+    private final Map<Object, Units> byKind = new HashMap<>();
+    /** The Strings of the tokens, so that the same text read as different units is the same String. */
+    private final Map<String, String> canonical = new HashMap<>();
+
+    /** The number of distinct tokens interned. */
+    public int size() {
+      return canonical.size();
+    }
+
+    Units units(Object unitKind) {
+      return byKind.computeIfAbsent(unitKind, k -> new Units(canonical));
+    }
+
+  }
+
+  /** The tokens of one kind of units, and their Strings. */
+  static class Units {
+
+    /** The units of each token, as chars, and its String, by slot; a power of two in length, at most half full. */
+    private char[][] units = new char[1024][];
+    private String[] strings = new String[1024];
+    private int size; // = 0;
+    private final Map<String, String> canonical;
+
+    Units(Map<String, String> canonical) {
+      this.canonical = canonical;
+    }
+
+    String intern(Source in, int start, int end, int hash) {
+      int mask = units.length - 1;
+      int slot = mix(hash) & mask;
+      for (char[] key; (key = units[slot]) != null; slot = (slot + 1) & mask) {
+        if (matches(key, in, start, end)) {
+          return strings[slot];
+        }
+      }
+      char[] key = new char[end - start];
+      for (int k = 0; k < key.length; k++) {
+        key[k] = (char) in.at(start + k);
+      }
+      String s = in.decode(start, end);
+      String t = canonical.putIfAbsent(s, s);
+      if (t != null) {
+        s = t;
+      }
+      units[slot] = key;
+      strings[slot] = s;
+      if (2 * ++size > units.length) {
+        rehash();
+      }
+      return s;
+    }
+
+    private static boolean matches(char[] key, Source in, int start, int end) {
+      if (key.length != end - start) {
+        return false;
+      }
+      for (int k = 0; k < key.length; k++) {
+        if (key[k] != in.at(start + k)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehash() {
+      char[][] oldUnits = units;
+      String[] oldStrings = strings;
+      units = new char[2 * oldUnits.length][];
+      strings = new String[2 * oldStrings.length];
+      int mask = units.length - 1;
+      for (int i = 0; i < oldUnits.length; i++) {
+        if (oldUnits[i] != null) {
+          int hash = 0;
+          for (char c : oldUnits[i]) {
+            hash = 31 * hash + c;
+          }
+          int slot = mix(hash) & mask;
+          while (units[slot] != null) {
+            slot = (slot + 1) & mask;
+          }
+          units[slot] = oldUnits[i];
+          strings[slot] = oldStrings[i];
+        }
+      }
+    }
+
+    private static int mix(int hash) {
+      int h = hash * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+
+  }
+
+}
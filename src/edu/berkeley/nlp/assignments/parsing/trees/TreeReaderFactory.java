@@ -1,6 +1,10 @@
 package edu.berkeley.nlp.assignments.parsing.trees;
 
+import java.io.IOException;
 import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /**
  * A <code>TreeReaderFactory</code> is a factory for creating objects of
@@ -19,4 +23,18 @@ public interface TreeReaderFactory {
    */
   public TreeReader newTreeReader(Reader in);
 
+  /**
+   * Create a new <code>TreeReader</code> of a file.  By default, it reads
+   * the file through a buffered <code>Reader</code>; a factory can read
+   * files more directly.
+   *
+   * @param file The file to read
+   * @param encoding The encoding of the file
+   * @return The new TreeReader
+   * @throws IOException If the file cannot be opened
+   */
+  public default TreeReader newTreeReader(Path file, Charset encoding) throws IOException {
+    return newTreeReader(Files.newBufferedReader(file, encoding));
+  }
+
 }
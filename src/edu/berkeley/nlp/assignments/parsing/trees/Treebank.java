@@ -164,6 +164,7 @@ public abstract class Treebank extends AbstractCollection<Tree> {
    * @param recursively descend into subdirectories as well
    */
   public void loadPath(String pathName, String suffix, boolean recursively) {
+    loadPath(new File(pathName), suffix, recursively);
   }
 
 
@@ -175,6 +176,7 @@ public abstract class Treebank extends AbstractCollection<Tree> {
    * @param recursively descend into subdirectories as well
    */
   public void loadPath(File path, String suffix, boolean recursively) {
+    loadPath(path, file -> file.isDirectory() ? recursively : (suffix == null || file.getName().endsWith('.' + suffix)));
   }
 
 
@@ -0,0 +1,210 @@
+package edu.berkeley.nlp.assignments.parsing.util;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A binary min-heap, in an array, of objects ordered by a Comparator, with
+ * a map from each object to its entry so that {@link #decreaseKey} can find
+ * it.  An object is in the heap at most once: adding an object that
+ * <code>equals()</code> one already in it is a decrease-key.
+ * <p>
+ * add, extractMin and decreaseKey are O(log n); min, size and isEmpty are
+ * O(1).  The iterator goes over the objects in order, by extracting them
+ * from a copy of the heap, which is O(n log n).
+ */
+public class ArrayHeap<E> extends AbstractSet<E> implements Heap<E> {
+
+  /** An object and its position in the heap array. */
+  private static final class HeapEntry<E> {
+    E object;
+    int index;
+  }
+
+  private final Comparator<? super E> cmp;
+  private final List<HeapEntry<E>> indexToEntry;
+  private final Map<E, HeapEntry<E>> objectToEntry;
+
+  /** An empty heap, whose minimum is the least object by cmp. */
+  public ArrayHeap(Comparator<? super E> cmp) {
+    this.cmp = cmp;
+    indexToEntry = new ArrayList<>();
+    objectToEntry = new HashMap<>();
+  }
+
+  /** An empty heap with room for initCapacity objects before it grows. */
+  public ArrayHeap(Comparator<? super E> cmp, int initCapacity) {
+    this.cmp = cmp;
+    indexToEntry = new ArrayList<>(initCapacity);
+    objectToEntry = new HashMap<>(initCapacity);
+  }
+
+  private static int parent(int index) {
+    return (index - 1) / 2;
+  }
+
+  private static int leftChild(int index) {
+    return 2 * index + 1;
+  }
+
+  private static int rightChild(int index) {
+    return 2 * index + 2;
+  }
+
+  private int compare(HeapEntry<E> a, HeapEntry<E> b) {
+    return cmp.compare(a.object, b.object);
+  }
+
+  private void swap(HeapEntry<E> a, HeapEntry<E> b) {
+    int ia = a.index;
+    int ib = b.index;
+    a.index = ib;
+    b.index = ia;
+    indexToEntry.set(ib, a);
+    indexToEntry.set(ia, b);
+  }
+
+  /** Move an entry up while it is less than its parent; the number of swaps. */
+  private int heapifyUp(HeapEntry<E> entry) {
+    int moves = 0;
+    while (entry.index > 0) {
+      HeapEntry<E> parent = indexToEntry.get(parent(entry.index));
+      if (compare(entry, parent) >= 0) {
+        break;
+      }
+      swap(entry, parent);
+      moves++;
+    }
+    return moves;
+  }
+
+  /** Move an entry down while one of its children is less than it. */
+  private void heapifyDown(HeapEntry<E> entry) {
+    int size = indexToEntry.size();
+    while (true) {
+      HeapEntry<E> min = entry;
+      int left = leftChild(entry.index);
+      if (left < size) {
+        HeapEntry<E> leftEntry = indexToEntry.get(left);
+        if (compare(leftEntry, min) < 0) {
+          min = leftEntry;
+        }
+        int right = rightChild(entry.index);
+        if (right < size) {
+          HeapEntry<E> rightEntry = indexToEntry.get(right);
+          if (compare(rightEntry, min) < 0) {
+            min = rightEntry;
+          }
+        }
+      }
+      if (min == entry) {
+        return;
+      }
+      swap(min, entry);
+    }
+  }
+
+  @Override
+  public E extractMin() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    HeapEntry<E> minEntry = indexToEntry.get(0);
+    int last = indexToEntry.size() - 1;
+    if (last > 0) {
+      HeapEntry<E> lastEntry = indexToEntry.get(last);
+      swap(lastEntry, minEntry);
+      indexToEntry.remove(last);
+      heapifyDown(lastEntry);
+    } else {
+      indexToEntry.remove(last);
+    }
+    objectToEntry.remove(minEntry.object);
+    return minEntry.object;
+  }
+
+  @Override
+  public E min() {
+    if (isEmpty()) {
+      throw new NoSuchElementException();
+    }
+    return indexToEntry.get(0).object;
+  }
+
+  @Override
+  public boolean add(E o) {
+    HeapEntry<E> entry = objectToEntry.get(o);
+    if (entry != null) {
+      // already in the heap: keep it there with the better of the two
+      if (cmp.compare(o, entry.object) < 0) {
+        entry.object = o;
+        heapifyUp(entry);
+      }
+      return true;
+    }
+    entry = new HeapEntry<>();
+    entry.object = o;
+    entry.index = indexToEntry.size();
+    indexToEntry.add(entry);
+    objectToEntry.put(o, entry);
+    heapifyUp(entry);
+    return true;
+  }
+
+  /**
+   * Move o up to where its changed key puts it.  An object that is not in
+   * the heap (say, because it has been extracted already) is left out of
+   * it, at a cost of 0.
+   */
+  @Override
+  public int decreaseKey(E o) {
+    HeapEntry<E> entry = objectToEntry.get(o);
+    if (entry == null) {
+      return 0;
+    }
+    entry.object = o;
+    return heapifyUp(entry);
+  }
+
+  @Override
+  public int size() {
+    return indexToEntry.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return indexToEntry.isEmpty();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return objectToEntry.containsKey(o);
+  }
+
+  @Override
+  public void clear() {
+    indexToEntry.clear();
+    objectToEntry.clear();
+  }
+
+  /** The objects, in order; the heap is not changed. */
+  @Override
+  public Iterator<E> iterator() {
+    ArrayHeap<E> copy = new ArrayHeap<>(cmp, size());
+    for (HeapEntry<E> entry : indexToEntry) {
+      copy.add(entry.object);
+    }
+    List<E> ordered = new ArrayList<>(size());
+    while ( ! copy.isEmpty()) {
+      ordered.add(copy.extractMin());
+    }
+    return ordered.iterator();
+  }
+
+}
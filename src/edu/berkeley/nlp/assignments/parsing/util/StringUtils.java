@@ -0,0 +1,96 @@
+package edu.berkeley.nlp.assignments.parsing.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The String quoting and splitting utilities used to write and read the
+ * text form of grammars.
+ *
+ * @author Dan Klein
+ * @author Christopher Manning
+ */
+public class StringUtils {
+
+  private StringUtils() {}
+
+  /**
+   * Escapes each occurrence of the given characters, and of the escape
+   * character itself, by preceding it with the escape character.
+   *
+   * @param s The String to escape
+   * @param charsToEscape The characters that need escaping
+   * @param escapeChar The escape character
+   * @return The escaped String
+   */
+  public static String escapeString(String s, char[] charsToEscape, char escapeChar) {
+    StringBuilder result = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == escapeChar) {
+        result.append(escapeChar);
+      } else {
+        for (char charToEscape : charsToEscape) {
+          if (c == charToEscape) {
+            result.append(escapeChar);
+            break;
+          }
+        }
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Splits a String on a character, where fields may be quoted so as to
+   * contain the split character.  Inside quotes, the escape character
+   * followed by a quote or by itself stands for that character, which
+   * undoes {@link #escapeString}.  A trailing empty field is dropped.
+   *
+   * @param s The String to split
+   * @param splitChar The field separator
+   * @param quoteChar The quote character
+   * @param escapeChar The escape character
+   * @return The fields, with quotes removed
+   */
+  public static String[] splitOnCharWithQuoting(String s, char splitChar, char quoteChar, char escapeChar) {
+    List<String> result = new ArrayList<>();
+    int i = 0;
+    int length = s.length();
+    StringBuilder b = new StringBuilder();
+    while (i < length) {
+      char curr = s.charAt(i);
+      if (curr == splitChar) {
+        result.add(b.toString());
+        b = new StringBuilder();
+        i++;
+      } else if (curr == quoteChar) {
+        // find next instance of quoteChar
+        i++;
+        while (i < length) {
+          curr = s.charAt(i);
+          if (curr == escapeChar && i + 1 < length
+              && (s.charAt(i + 1) == quoteChar || s.charAt(i + 1) == escapeChar)) {
+            b.append(s.charAt(i + 1));
+            i += 2;
+          } else if (curr == quoteChar) {
+            i++;
+            break;
+          } else {
+            b.append(curr);
+            i++;
+          }
+        }
+      } else {
+        b.append(curr);
+        i++;
+      }
+    }
+    if (b.length() > 0) {
+      result.add(b.toString());
+    }
+    return result.toArray(new String[result.size()]);
+  }
+
+}
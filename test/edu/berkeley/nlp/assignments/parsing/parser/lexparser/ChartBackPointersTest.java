@@ -0,0 +1,115 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.ling.Trees;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that ExhaustivePCFGParser builds the same best parse, with the
+ * same scores, from its chart back-pointers (TestOptions.pcfgBackPointers)
+ * as by matching inside scores.  Besides synthetic trees, the small
+ * treebank has phrases of one word under a chain of unary rules, which the
+ * parser applies as one closed rule, so the back-pointer trees must expand
+ * chains through UnaryGrammar.closedRuleTailsByChild(); the test fails if
+ * no parse has such a chain.
+ * <p>
+ * Usage: ChartBackPointersTest (it throws an AssertionError on a failure)
+ */
+public class ChartBackPointersTest {
+
+  private static final double TOLERANCE = 1.0e-4;
+
+  /** Trees with one-word phrases, some of them under a chain of two unary rules, such as S over VP over VB. */
+  private static final String[] CHAIN_TREES = {
+      "(ROOT (S (VP (VB go))))",
+      "(ROOT (S (VP (VB sell))))",
+      "(ROOT (NP (NNS dogs)))",
+      "(ROOT (NP (NNS shares)))",
+      "(ROOT (S (NP (NNS dogs)) (VP (VBD barked))))",
+      "(ROOT (S (NP (PRP he)) (VP (VBD sold))))",
+  };
+
+  private static final List<List<String>> CHAIN_SENTENCES = Arrays.asList(
+      Arrays.asList("go"), Arrays.asList("dogs"), Arrays.asList("sell"), Arrays.asList("prices"),
+      Arrays.asList("investors", "sold"), Arrays.asList("he", "barked"));
+
+  public static void main(String[] args) {
+    Options op = new Options();
+    op.doDep = false;
+    Index<String> stateIndex = new HashIndex<>();
+    Index<String> wordIndex = new HashIndex<>();
+    Index<String> tagIndex = new HashIndex<>();
+    List<edu.berkeley.nlp.ling.Tree<String>> trainTrees = new ArrayList<>(new SyntheticTreebank(1).trees(300));
+    for (String tree : CHAIN_TREES) {
+      for (int i = 0; i < 5; i++) {
+        trainTrees.add(new Trees.PennTreeReader(new StringReader(tree)).next());
+      }
+    }
+    InsideOutsidePCFGParserTest.Grammar grammar = new InsideOutsidePCFGParserTest.Grammar(op, trainTrees,
+        stateIndex, wordIndex, tagIndex);
+    ExhaustivePCFGParser parser = new ExhaustivePCFGParser(grammar.bg, grammar.ug, grammar.lex, op, stateIndex,
+        wordIndex, tagIndex);
+
+    List<List<String>> sentences = new ArrayList<>(CHAIN_SENTENCES);
+    for (edu.berkeley.nlp.ling.Tree<String> tree : new SyntheticTreebank(2, 2.0).trees(40, 3, 25)) {
+      sentences.add(tree.getYield());
+    }
+    int chains = 0;
+    for (List<String> words : sentences) {
+      List<HasWord> sentence = InsideOutsidePCFGParserTest.sentence(words);
+      op.testOptions.pcfgBackPointers = false;
+      if ( ! parser.parse(sentence)) {
+        throw new AssertionError("No parse of " + words);
+      }
+      Tree matched = parser.getBestParse();
+      op.testOptions.pcfgBackPointers = true;
+      if ( ! parser.parse(sentence)) {
+        throw new AssertionError("No back-pointer parse of " + words);
+      }
+      Tree followed = parser.getBestParse();
+      if ( ! followed.equals(matched)) {
+        throw new AssertionError("Back-pointer parse of " + words + ":\n" + followed.pennString()
+            + "score-matching parse:\n" + matched.pennString());
+      }
+      checkScores(followed, matched, words);
+      chains += unaryChains(followed);
+    }
+    if (chains == 0) {
+      throw new AssertionError("No parse has a chain of unary rules");
+    }
+    System.out.printf("ChartBackPointersTest: OK (%d sentences, %d unary chains)%n", sentences.size(), chains);
+  }
+
+  private static void checkScores(Tree followed, Tree matched, List<String> words) {
+    if (Math.abs(followed.score() - matched.score()) > TOLERANCE) {
+      throw new AssertionError("Back-pointer score of " + followed.label() + " in the parse of " + words + ": "
+          + followed.score() + ", score-matching " + matched.score());
+    }
+    Tree[] followedKids = followed.children();
+    Tree[] matchedKids = matched.children();
+    for (int i = 0; i < followedKids.length; i++) {
+      checkScores(followedKids[i], matchedKids[i], words);
+    }
+  }
+
+  /** The number of phrasal nodes whose only child has an only child that is not a word. */
+  private static int unaryChains(Tree tree) {
+    int chains = 0;
+    if (tree.numChildren() == 1 && tree.getChild(0).numChildren() == 1 && ! tree.getChild(0).getChild(0).isLeaf()) {
+      chains++;
+    }
+    for (Tree child : tree.children()) {
+      chains += unaryChains(child);
+    }
+    return chains;
+  }
+
+}
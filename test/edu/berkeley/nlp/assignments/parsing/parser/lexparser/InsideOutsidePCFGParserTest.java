@@ -0,0 +1,269 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank;
+import edu.berkeley.nlp.assignments.parsing.ling.CoreLabel;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.math.SloppyMath;
+import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.TreebankLanguagePack;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks the LOG_SUM inside and outside scores of InsideOutsidePCFGParser
+ * against a dense reference: a chart over every state of every cell,
+ * filled by SloppyMath.logAdd over every binary rule and split in double
+ * precision, with the closed unary rules applied once per cell as the
+ * parser applies them.  The log probability of each sentence and every
+ * span posterior must agree with the reference to within 1e-5.
+ * <p>
+ * Usage: InsideOutsidePCFGParserTest (it throws an AssertionError on a failure)
+ */
+public class InsideOutsidePCFGParserTest {
+
+  private static final double TOLERANCE = 1.0e-5;
+
+  public static void main(String[] args) {
+    Options op = new Options();
+    op.doDep = false;
+    op.dcTags = false;
+    op.testOptions.insideOutsideSemiring = TestOptions.Semiring.LOG_SUM;
+    Index<String> stateIndex = new HashIndex<>();
+    Index<String> wordIndex = new HashIndex<>();
+    Index<String> tagIndex = new HashIndex<>();
+    Grammar grammar = new Grammar(op, new SyntheticTreebank(1).trees(500), stateIndex, wordIndex, tagIndex);
+    BinaryGrammar bg = grammar.bg;
+    UnaryGrammar ug = grammar.ug;
+    Lexicon lex = grammar.lex;
+    InsideOutsidePCFGParser parser = new InsideOutsidePCFGParser(bg, ug, lex, op, stateIndex, wordIndex, tagIndex);
+
+    int sentences = 0;
+    double worstLogZ = 0.0;
+    double worstPosterior = 0.0;
+    for (edu.berkeley.nlp.ling.Tree<String> tree : new SyntheticTreebank(2, 2.0).trees(20, 3, 16)) {
+      List<HasWord> sentence = sentence(tree.getYield());
+      if ( ! parser.parse(sentence)) {
+        continue;
+      }
+      DenseChart reference = new DenseChart(bg, ug, lex, op, stateIndex, tagIndex, sentence);
+      double logZError = Math.abs(parser.getBestScore() - reference.logZ);
+      worstLogZ = Math.max(worstLogZ, logZError);
+      if (logZError > TOLERANCE) {
+        throw new AssertionError("log Z of " + tree.getYield() + ": " + parser.getBestScore() + ", reference "
+            + reference.logZ);
+      }
+      int length = sentence.size();
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
+          for (int state = 0; state < stateIndex.size(); state++) {
+            double expected = reference.spanPosterior(start, end, state);
+            double actual = parser.spanPosterior(start, end, state);
+            worstPosterior = Math.max(worstPosterior, Math.abs(expected - actual));
+            if (Math.abs(expected - actual) > TOLERANCE) {
+              throw new AssertionError("posterior of " + stateIndex.get(state) + " over [" + start + ", " + end
+                  + ") of " + tree.getYield() + ": " + actual + ", reference " + expected);
+            }
+          }
+        }
+      }
+      sentences++;
+    }
+    if (sentences == 0) {
+      throw new AssertionError("No test sentence parsed");
+    }
+    System.out.printf("InsideOutsidePCFGParserTest: OK (%d sentences; largest error %.2g in log Z, %.2g in a "
+        + "posterior)%n", sentences, worstLogZ, worstPosterior);
+  }
+
+  /** A PCFG and lexicon trained on synthetic trees as ParsingBenchmarks trains them. */
+  static final class Grammar {
+    final BinaryGrammar bg;
+    final UnaryGrammar ug;
+    final Lexicon lex;
+
+    Grammar(Options op, List<edu.berkeley.nlp.ling.Tree<String>> trainTrees, Index<String> stateIndex,
+            Index<String> wordIndex, Index<String> tagIndex) {
+      TreeAnnotatorAndBinarizer binarizer = new TreeAnnotatorAndBinarizer(op.tlpParams, op.forceCNF,
+          ! op.trainOptions.outsideFactor(), ! op.trainOptions.predictSplits, op);
+      TreeFactory tf = new LabeledScoredTreeFactory();
+      List<Tree> trees = new ArrayList<>();
+      for (edu.berkeley.nlp.ling.Tree<String> tree : trainTrees) {
+        trees.add(binarizer.transformTree(convert(tree, tf)));
+      }
+      Pair<UnaryGrammar, BinaryGrammar> bgug = new BinaryGrammarExtractor(stateIndex).extract(trees);
+      bg = bgug.second;
+      bg.splitRules();
+      ug = bgug.first;
+      ug.purgeRules();
+      lex = op.tlpParams.lex(op, wordIndex, tagIndex);
+      lex.initializeTraining(trees.size());
+      lex.train(trees);
+      lex.finishTraining();
+    }
+  }
+
+  /** The words of a sentence followed by the boundary symbol, as the parser expects them. */
+  static List<HasWord> sentence(List<String> words) {
+    List<HasWord> sentence = new ArrayList<>(words.size() + 1);
+    for (String word : words) {
+      CoreLabel w = new CoreLabel();
+      w.setWord(word);
+      w.setValue(word);
+      sentence.add(w);
+    }
+    CoreLabel boundary = new CoreLabel();
+    boundary.setWord(Lexicon.BOUNDARY);
+    boundary.setValue(Lexicon.BOUNDARY);
+    boundary.setTag(Lexicon.BOUNDARY_TAG);
+    sentence.add(boundary);
+    return sentence;
+  }
+
+  private static Tree convert(edu.berkeley.nlp.ling.Tree<String> tree, TreeFactory tf) {
+    if (tree.isLeaf()) {
+      return tf.newLeaf(tree.getLabel());
+    }
+    List<Tree> children = new ArrayList<>();
+    for (edu.berkeley.nlp.ling.Tree<String> child : tree.getChildren()) {
+      children.add(convert(child, tf));
+    }
+    return tf.newTreeNode(tree.getLabel(), children);
+  }
+
+  /**
+   * Log inside and outside scores over every state of every cell, before
+   * (B) and after (U) the closed unary rules, summed with logAdd.
+   */
+  private static final class DenseChart {
+
+    private final int length;
+    private final double[][][] iB;
+    private final double[][][] iU;
+    private final double[][][] oB;
+    private final double[][][] oU;
+    final double logZ;
+
+    DenseChart(BinaryGrammar bg, UnaryGrammar ug, Lexicon lex, Options op, Index<String> stateIndex,
+               Index<String> tagIndex, List<HasWord> sentence) {
+      int numStates = stateIndex.size();
+      TreebankLanguagePack tlp = op.langpack();
+      length = sentence.size();
+      iB = chart(length, numStates);
+      iU = chart(length, numStates);
+      oB = chart(length, numStates);
+      oU = chart(length, numStates);
+      List<BinaryRule> binaries = bg.rules();
+      List<UnaryRule> unaries = new ArrayList<>();
+      for (int state = 0; state < numStates; state++) {
+        unaries.addAll(Arrays.asList(ug.closedRulesByParent(state)));
+      }
+
+      for (int start = 0; start < length; start++) {
+        String word = sentence.get(start).word();
+        String trueTag = ((CoreLabel) sentence.get(start)).tag();
+        for (Iterator<IntTaggedWord> it = lex.ruleIteratorByWord(word, start, null); it.hasNext(); ) {
+          IntTaggedWord tagging = it.next();
+          int state = stateIndex.indexOf(tagIndex.get(tagging.tag));
+          if (state < 0 || (trueTag != null && ! tlp.basicCategory(tagging.tagString(tagIndex)).equals(trueTag))) {
+            continue;
+          }
+          iB[start][start + 1][state] = Math.max(iB[start][start + 1][state], lex.score(tagging, start, word, null));
+        }
+        insideUnaries(unaries, start, start + 1);
+      }
+      for (int diff = 2; diff <= length; diff++) {
+        for (int start = 0; start + diff <= length; start++) {
+          int end = start + diff;
+          if ( ! inChart(start, end)) {
+            continue;
+          }
+          for (int split = start + 1; split < end; split++) {
+            for (BinaryRule br : binaries) {
+              iB[start][end][br.parent] = SloppyMath.logAdd(iB[start][end][br.parent],
+                  br.score + iU[start][split][br.leftChild] + iU[split][end][br.rightChild]);
+            }
+          }
+          insideUnaries(unaries, start, end);
+        }
+      }
+      int goal = stateIndex.indexOf(tlp.startSymbol());
+      logZ = iU[0][length][goal];
+
+      oU[0][length][goal] = 0.0;
+      for (int diff = length; diff >= 1; diff--) {
+        for (int start = 0; start + diff <= length; start++) {
+          int end = start + diff;
+          if ( ! inChart(start, end)) {
+            continue;
+          }
+          for (int state = 0; state < numStates; state++) {
+            if (iB[start][end][state] > Double.NEGATIVE_INFINITY) {
+              oB[start][end][state] = oU[start][end][state];
+            }
+          }
+          for (UnaryRule ur : unaries) {
+            if (iB[start][end][ur.child] > Double.NEGATIVE_INFINITY) {
+              oB[start][end][ur.child] = SloppyMath.logAdd(oB[start][end][ur.child],
+                  ur.score + oU[start][end][ur.parent]);
+            }
+          }
+          for (int split = start + 1; split < end; split++) {
+            for (BinaryRule br : binaries) {
+              double left = iU[start][split][br.leftChild];
+              double right = iU[split][end][br.rightChild];
+              if (left == Double.NEGATIVE_INFINITY || right == Double.NEGATIVE_INFINITY) {
+                continue;
+              }
+              double parent = oB[start][end][br.parent] + br.score;
+              oU[start][split][br.leftChild] = SloppyMath.logAdd(oU[start][split][br.leftChild], parent + right);
+              oU[split][end][br.rightChild] = SloppyMath.logAdd(oU[split][end][br.rightChild], parent + left);
+            }
+          }
+        }
+      }
+    }
+
+    /** The B scores, and each closed unary rule applied once to them, summed into the U scores. */
+    private void insideUnaries(List<UnaryRule> unaries, int start, int end) {
+      double[] b = iB[start][end];
+      double[] u = iU[start][end];
+      System.arraycopy(b, 0, u, 0, b.length);
+      for (UnaryRule ur : unaries) {
+        u[ur.parent] = SloppyMath.logAdd(u[ur.parent], ur.score + b[ur.child]);
+      }
+    }
+
+    private boolean inChart(int start, int end) {
+      return end < length || end == start + 1 || start == 0;
+    }
+
+    double spanPosterior(int start, int end, int state) {
+      if ( ! inChart(start, end)) {
+        return 0.0;
+      }
+      double b = iB[start][end][state] + oB[start][end][state];
+      double u = iU[start][end][state] + oU[start][end][state];
+      return Math.exp(Math.max(b, u) - logZ);
+    }
+
+    private static double[][][] chart(int length, int numStates) {
+      double[][][] chart = new double[length][length + 1][numStates];
+      for (double[][] row : chart) {
+        for (double[] cell : row) {
+          Arrays.fill(cell, Double.NEGATIVE_INFINITY);
+        }
+      }
+      return chart;
+    }
+
+  }
+
+}
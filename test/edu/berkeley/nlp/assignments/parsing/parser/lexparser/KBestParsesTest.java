@@ -0,0 +1,191 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.ScoredObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks the lazy k-best parses of ExhaustivePCFGParser.  For each test
+ * sentence, the scores of kBestParseIterator() must not increase (but for
+ * the chart's float rounding, which its doc allows), the first parse must
+ * be getBestParse() with the chart's best score, unless it ties with
+ * another parse but for rounding (two attachments of a PP by the same
+ * rules, say) and getBestParse() is among the parses tied with it, and
+ * getKBestParses(k) must be the first k parses.  As the lexparser's original getKBestParses failed
+ * on its first call, the scores are checked against a reference made the
+ * slow way over the same hypergraph: every vertex's full list of its K
+ * best derivation scores, from every pair of its tails' lists.
+ * <p>
+ * Usage: KBestParsesTest (it throws an AssertionError on a failure)
+ */
+public class KBestParsesTest {
+
+  private static final int K = 20;
+  private static final int[] SMALL_KS = {1, 2, 5, 10};
+  private static final double TOLERANCE = 1.0e-4;
+
+  public static void main(String[] args) {
+    Options op = new Options();
+    op.doDep = false;
+    Index<String> stateIndex = new HashIndex<>();
+    Index<String> wordIndex = new HashIndex<>();
+    Index<String> tagIndex = new HashIndex<>();
+    InsideOutsidePCFGParserTest.Grammar grammar = new InsideOutsidePCFGParserTest.Grammar(op,
+        new SyntheticTreebank(1).trees(500), stateIndex, wordIndex, tagIndex);
+    ExhaustivePCFGParser parser = new ExhaustivePCFGParser(grammar.bg, grammar.ug, grammar.lex, op, stateIndex,
+        wordIndex, tagIndex);
+
+    int sentences = 0;
+    int parses = 0;
+    int ties = 0;
+    for (edu.berkeley.nlp.ling.Tree<String> gold : new SyntheticTreebank(2, 2.0).trees(40, 6, 24)) {
+      List<String> words = gold.getYield();
+      List<HasWord> sentence = InsideOutsidePCFGParserTest.sentence(words);
+      if ( ! parser.parse(sentence)) {
+        throw new AssertionError("No parse of " + words);
+      }
+      Tree best = parser.getBestParse();
+      List<ScoredObject<Tree>> kBest = new ArrayList<>();
+      for (Iterator<ScoredObject<Tree>> it = parser.kBestParseIterator(); kBest.size() < K && it.hasNext(); ) {
+        kBest.add(it.next());
+      }
+      if (kBest.isEmpty()) {
+        throw new AssertionError("No k-best parse of " + words);
+      }
+      if ( ! kBest.get(0).object().equals(best)) {
+        // only a parse of the same score, but for rounding, may come first instead
+        boolean tied = false;
+        for (int i = 1; i < kBest.size() && kBest.get(i).score() >= kBest.get(0).score() - TOLERANCE; i++) {
+          tied |= kBest.get(i).object().equals(best);
+        }
+        if ( ! tied) {
+          throw new AssertionError("First k-best parse of " + words + ":\n" + kBest.get(0).object().pennString()
+              + "best parse:\n" + best.pennString());
+        }
+        ties++;
+      }
+      if (kBest.get(0).score() != parser.getBestScore()) {
+        throw new AssertionError("First k-best score of " + words + ": " + kBest.get(0).score() + ", best score "
+            + parser.getBestScore());
+      }
+      for (int i = 1; i < kBest.size(); i++) {
+        if (kBest.get(i).score() > kBest.get(i - 1).score() + TOLERANCE) {
+          throw new AssertionError("k-best score " + i + " of " + words + " rises: " + kBest.get(i - 1).score()
+              + ", then " + kBest.get(i).score());
+        }
+      }
+
+      List<Double> expected = new ReferenceKBest(parser, grammar.bg, grammar.ug, stateIndex, sentence.size()).scores;
+      if (expected.size() != kBest.size()) {
+        throw new AssertionError(kBest.size() + " k-best parses of " + words + ", reference " + expected.size());
+      }
+      for (int i = 0; i < kBest.size(); i++) {
+        if (Math.abs(kBest.get(i).score() - expected.get(i)) > TOLERANCE) {
+          throw new AssertionError("k-best score " + i + " of " + words + ": " + kBest.get(i).score()
+              + ", reference " + expected.get(i));
+        }
+      }
+
+      for (int k : SMALL_KS) {
+        List<ScoredObject<Tree>> first = parser.getKBestParses(k);
+        if (first.size() != Math.min(k, kBest.size())) {
+          throw new AssertionError("getKBestParses(" + k + ") of " + words + " has " + first.size() + " parses");
+        }
+        for (int i = 0; i < first.size(); i++) {
+          if ( ! first.get(i).object().equals(kBest.get(i).object()) || first.get(i).score() != kBest.get(i).score()) {
+            throw new AssertionError("getKBestParses(" + k + ") parse " + i + " of " + words
+                + " is not the iterator's");
+          }
+        }
+      }
+      sentences++;
+      parses += kBest.size();
+    }
+    System.out.printf("KBestParsesTest: OK (%d sentences, %d parses, %d best parses tied)%n", sentences, parses,
+        ties);
+  }
+
+  /**
+   * The K best derivation scores of the goal, over the hypergraph the
+   * parser's k-best search uses: each state over a span as built by a
+   * binary rule or as a tag (B), and after the closed unary rules or none
+   * (U), for the states with an inside score.
+   */
+  private static final class ReferenceKBest {
+
+    final List<Double> scores;
+
+    ReferenceKBest(ExhaustivePCFGParser parser, BinaryGrammar bg, UnaryGrammar ug, Index<String> stateIndex,
+                   int length) {
+      int numStates = stateIndex.size();
+      List<Double>[][][] bLists = newLists(length, numStates);
+      List<Double>[][][] uLists = newLists(length, numStates);
+      for (int diff = 1; diff <= length; diff++) {
+        for (int start = 0; start + diff <= length; start++) {
+          int end = start + diff;
+          for (int state = 0; state < numStates; state++) {
+            List<Double> list = new ArrayList<>();
+            if (inChart(parser, start, end, state)) {
+              if (diff == 1 && parser.isTag[state]) {
+                list.add((double) parser.iScore.get(start, end, state));
+              }
+              for (BinaryRule br : bg.ruleListByParent(state)) {
+                for (int split = start + 1; split < end; split++) {
+                  if ( ! inChart(parser, start, split, br.leftChild) || ! inChart(parser, split, end, br.rightChild)) {
+                    continue;
+                  }
+                  for (double left : uLists[start][split][br.leftChild]) {
+                    for (double right : uLists[split][end][br.rightChild]) {
+                      list.add((double) (float) br.score + left + right);
+                    }
+                  }
+                }
+              }
+            }
+            bLists[start][end][state] = best(list);
+          }
+          for (int state = 0; state < numStates; state++) {
+            List<Double> list = new ArrayList<>();
+            if (inChart(parser, start, end, state)) {
+              list.addAll(bLists[start][end][state]);
+              for (UnaryRule ur : ug.closedRulesByParent(state)) {
+                if (ur.child != state && inChart(parser, start, end, ur.child)) {
+                  for (double child : bLists[start][end][ur.child]) {
+                    list.add((double) (float) ur.score + child);
+                  }
+                }
+              }
+            }
+            uLists[start][end][state] = best(list);
+          }
+        }
+      }
+      scores = uLists[0][length][stateIndex.indexOf(parser.goalStr)];
+    }
+
+    private static boolean inChart(ExhaustivePCFGParser parser, int start, int end, int state) {
+      return parser.iScore.get(start, end, state) > Float.NEGATIVE_INFINITY;
+    }
+
+    private static List<Double> best(List<Double> list) {
+      list.removeIf(score -> score == Double.NEGATIVE_INFINITY);
+      list.sort(Collections.reverseOrder());
+      return new ArrayList<>(list.subList(0, Math.min(K, list.size())));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Double>[][][] newLists(int length, int numStates) {
+      return new List[length][length + 1][numStates];
+    }
+
+  }
+
+}
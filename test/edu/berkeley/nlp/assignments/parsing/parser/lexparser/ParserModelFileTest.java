@@ -0,0 +1,173 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank;
+import edu.berkeley.nlp.assignments.parsing.trees.LabeledScoredTreeFactory;
+import edu.berkeley.nlp.assignments.parsing.trees.Tree;
+import edu.berkeley.nlp.assignments.parsing.trees.TreeFactory;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+import edu.berkeley.nlp.assignments.parsing.util.Pair;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that a PCFG written by ParserModelFile and read back is the model
+ * that was written: the same indices, binary rules, unary rules and unary
+ * closure, and a lexicon that gives every word and tag, seen or not, the
+ * same tags and scores.  The model is trained on synthetic trees and on a
+ * few trees whose tags and words have spaces, quotes, backslashes and
+ * non-ASCII characters.
+ * <p>
+ * Usage: ParserModelFileTest (it throws an AssertionError on a failure)
+ */
+public class ParserModelFileTest {
+
+  private static final String[] UNSEEN_WORDS = {"xyzzy", "Zork-42", "unseenly", "\"", "naïve"};
+
+  public static void main(String[] args) throws IOException {
+    Options op = new Options();
+    TreeAnnotatorAndBinarizer binarizer = new TreeAnnotatorAndBinarizer(op.tlpParams, op.forceCNF,
+        ! op.trainOptions.outsideFactor(), ! op.trainOptions.predictSplits, op);
+    TreeFactory tf = new LabeledScoredTreeFactory();
+    List<Tree> trees = new ArrayList<>();
+    for (edu.berkeley.nlp.ling.Tree<String> tree : new SyntheticTreebank(1).trees(500)) {
+      trees.add(binarizer.transformTree(convert(tree, tf)));
+    }
+    for (Tree tree : oddTrees(tf)) {
+      trees.add(binarizer.transformTree(tree));
+    }
+    Index<String> stateIndex = new HashIndex<>();
+    Index<String> wordIndex = new HashIndex<>();
+    Index<String> tagIndex = new HashIndex<>();
+    Pair<UnaryGrammar, BinaryGrammar> bgug = new BinaryGrammarExtractor(stateIndex).extract(trees);
+    BinaryGrammar bg = bgug.second;
+    bg.splitRules();
+    UnaryGrammar ug = bgug.first;
+    ug.purgeRules();
+    Lexicon lex = op.tlpParams.lex(op, wordIndex, tagIndex);
+    lex.initializeTraining(trees.size());
+    lex.train(trees);
+    lex.finishTraining();
+    check("odd words", wordIndex.indexOf("two words") >= 0 && wordIndex.indexOf("back\\slash") >= 0,
+        wordIndex.objectsList());
+    check("odd tags", tagIndex.indexOf("N\"N") >= 0 && tagIndex.indexOf("V B Z") >= 0, tagIndex.objectsList());
+
+    Path file = Files.createTempFile("ParserModelFileTest", ".model");
+    try {
+      ParserModelFile.write(file, bg, ug, lex, stateIndex, wordIndex, tagIndex);
+      Index<String> readStates = new HashIndex<>();
+      Index<String> readWords = new HashIndex<>();
+      Index<String> readTags = new HashIndex<>();
+      ParserModelFile.Model model = ParserModelFile.read(file, op, readStates, readWords, readTags);
+
+      check("state index", stateIndex.objectsList().equals(readStates.objectsList()), readStates.objectsList());
+      check("word index", wordIndex.objectsList().equals(readWords.objectsList()), readWords.objectsList());
+      check("tag index", tagIndex.objectsList().equals(readTags.objectsList()), readTags.objectsList());
+
+      check("binary rules", binaries(bg, stateIndex).equals(binaries(model.bg, readStates)),
+          binaries(model.bg, readStates));
+      for (int state = 0; state < stateIndex.size(); state++) {
+        String label = stateIndex.get(state);
+        check("unary rules of " + label, unaries(ug.rulesByParent(state), stateIndex)
+            .equals(unaries(model.ug.rulesByParent(state), readStates)), model.ug.rulesByParent(state));
+        check("unary rules by child of " + label, unaries(ug.rulesByChild(state), stateIndex)
+            .equals(unaries(model.ug.rulesByChild(state), readStates)), model.ug.rulesByChild(state));
+        check("closed unary rules of " + label, unaries(Arrays.asList(ug.closedRulesByParent(state)), stateIndex)
+                .equals(unaries(Arrays.asList(model.ug.closedRulesByParent(state)), readStates)),
+            Arrays.asList(model.ug.closedRulesByParent(state)));
+        check("closed unary rules by child of " + label,
+            unaries(Arrays.asList(ug.closedRulesByChild(state)), stateIndex)
+                .equals(unaries(Arrays.asList(model.ug.closedRulesByChild(state)), readStates)),
+            Arrays.asList(model.ug.closedRulesByChild(state)));
+      }
+
+      check("lexicon rules", lex.numRules() == model.lex.numRules(), model.lex.numRules());
+      List<String> words = new ArrayList<>(wordIndex.objectsList());
+      words.addAll(Arrays.asList(UNSEEN_WORDS));
+      for (String word : words) {
+        for (int loc = 0; loc < 2; loc++) {
+          check("tags of " + word, taggings(lex, word, loc).equals(taggings(model.lex, word, loc)),
+              taggings(model.lex, word, loc));
+          int id = wordIndex.indexOf(word);
+          if (id < 0) {
+            id = wordIndex.indexOf(Lexicon.UNKNOWN_WORD);
+          }
+          for (int tag = 0; tag < tagIndex.size(); tag++) {
+            IntTaggedWord itw = new IntTaggedWord(id, tag);
+            float expected = lex.score(itw, loc, word, null);
+            float actual = model.lex.score(itw, loc, word, null);
+            check("score of " + word + '/' + tagIndex.get(tag) + " expected " + expected,
+                Float.compare(expected, actual) == 0, actual);
+          }
+        }
+      }
+    } finally {
+      Files.delete(file);
+    }
+    System.out.println("ParserModelFileTest: OK (" + stateIndex.size() + " states, " + wordIndex.size() + " words)");
+  }
+
+  /** Trees whose tags and words must be quoted or escaped in text. */
+  private static List<Tree> oddTrees(TreeFactory tf) {
+    Tree first = node(tf, "ROOT", node(tf, "S",
+        node(tf, "NP", node(tf, "D\\T", tf.newLeaf("the")), node(tf, "N\"N", tf.newLeaf("two words"))),
+        node(tf, "VP", node(tf, "V B Z", tf.newLeaf("\"quotes\"")),
+            node(tf, "NP", node(tf, "N\"N", tf.newLeaf("café"))))));
+    Tree second = node(tf, "ROOT", node(tf, "S",
+        node(tf, "NP", node(tf, "N\"N", tf.newLeaf("back\\slash"))),
+        node(tf, "VP", node(tf, "V B Z", tf.newLeaf("end\\")))));
+    return Arrays.asList(first, second);
+  }
+
+  private static Tree node(TreeFactory tf, String label, Tree... children) {
+    return tf.newTreeNode(label, Arrays.asList(children));
+  }
+
+  private static List<String> binaries(BinaryGrammar bg, Index<String> stateIndex) {
+    List<String> rules = new ArrayList<>();
+    for (BinaryRule br : bg.rules()) {
+      rules.add(br.toString(stateIndex));
+    }
+    return rules;
+  }
+
+  private static List<String> unaries(List<UnaryRule> unaryRules, Index<String> stateIndex) {
+    List<String> rules = new ArrayList<>();
+    for (UnaryRule ur : unaryRules) {
+      rules.add(ur.toString(stateIndex));
+    }
+    return rules;
+  }
+
+  private static List<String> taggings(Lexicon lex, String word, int loc) {
+    List<String> tags = new ArrayList<>();
+    for (Iterator<IntTaggedWord> it = lex.ruleIteratorByWord(word, loc, null); it.hasNext(); ) {
+      tags.add(it.next().toString());
+    }
+    return tags;
+  }
+
+  private static Tree convert(edu.berkeley.nlp.ling.Tree<String> tree, TreeFactory tf) {
+    if (tree.isLeaf()) {
+      return tf.newLeaf(tree.getLabel());
+    }
+    List<Tree> children = new ArrayList<>();
+    for (edu.berkeley.nlp.ling.Tree<String> child : tree.getChildren()) {
+      children.add(convert(child, tf));
+    }
+    return tf.newTreeNode(tree.getLabel(), children);
+  }
+
+  private static void check(String what, boolean ok, Object actual) {
+    if ( ! ok) {
+      throw new AssertionError(what + ": read " + actual);
+    }
+  }
+
+}
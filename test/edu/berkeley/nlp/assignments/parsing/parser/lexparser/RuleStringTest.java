@@ -0,0 +1,56 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.Arrays;
+
+/**
+ * Checks that BinaryRule and UnaryRule read back what toString(Index)
+ * writes, as the text grammar files hold them, for every combination of
+ * state labels that must be quoted or escaped: labels with spaces,
+ * quotes, backslashes, a trailing backslash, the arrow, and the empty
+ * label, and for scores that are not finite.
+ * <p>
+ * Usage: RuleStringTest (it throws an AssertionError on a failure)
+ */
+public class RuleStringTest {
+
+  private static final String[] LABELS = {"NP", "A B", "Q\"P", "X\\Y", "\\\"", "end\\", "\"", "->", "", "café"};
+  private static final float[] SCORES = {-1.2345678f, 0.0f, -Float.MIN_VALUE, Float.NEGATIVE_INFINITY};
+
+  public static void main(String[] args) {
+    Index<String> index = new HashIndex<>();
+    index.addAll(Arrays.asList(LABELS));
+    int rules = 0;
+    for (int parent = 0; parent < LABELS.length; parent++) {
+      for (int left = 0; left < LABELS.length; left++) {
+        for (float score : SCORES) {
+          UnaryRule ur = new UnaryRule(parent, left, score);
+          String text = ur.toString(index);
+          UnaryRule read = new UnaryRule(text, index);
+          check(text, ur.parent == read.parent && ur.child == read.child
+              && Float.compare(ur.score, read.score) == 0, read.toString(index));
+          rules++;
+          for (int right = 0; right < LABELS.length; right++) {
+            BinaryRule br = new BinaryRule(parent, left, right, score);
+            text = br.toString(index);
+            BinaryRule readBinary = new BinaryRule(text, index);
+            check(text, br.parent == readBinary.parent && br.leftChild == readBinary.leftChild
+                && br.rightChild == readBinary.rightChild && Float.compare(br.score, readBinary.score) == 0,
+                readBinary.toString(index));
+            rules++;
+          }
+        }
+      }
+    }
+    System.out.println("RuleStringTest: OK (" + rules + " rules)");
+  }
+
+  private static void check(String text, boolean same, String read) {
+    if ( ! same) {
+      throw new AssertionError("Wrote " + text + ", read back " + read);
+    }
+  }
+
+}
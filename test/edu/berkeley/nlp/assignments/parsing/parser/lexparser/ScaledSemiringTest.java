@@ -0,0 +1,123 @@
+package edu.berkeley.nlp.assignments.parsing.parser.lexparser;
+
+import edu.berkeley.nlp.assignments.parsing.bench.SyntheticTreebank;
+import edu.berkeley.nlp.assignments.parsing.ling.HasWord;
+import edu.berkeley.nlp.assignments.parsing.util.HashIndex;
+import edu.berkeley.nlp.assignments.parsing.util.Index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Checks that the SCALED semiring of InsideOutsidePCFGParser gives the
+ * LOG_SUM log probability of each sentence, to within 1e-6 of its size,
+ * and every span posterior, to within 2e-5 plus a few float ulps of the
+ * log probability (both charts are float, so a posterior, the exp of a
+ * difference of log scores near log Z, is only that precise).  Besides
+ * synthetic test sentences, it parses long sentences of coordinated and
+ * modified noun phrases, some of whose probability is below the smallest
+ * double, so they would underflow in probability space without SCALED's
+ * per-cell exponents.
+ * <p>
+ * Usage: ScaledSemiringTest (it throws an AssertionError on a failure)
+ */
+public class ScaledSemiringTest {
+
+  private static final double LOG_Z_TOLERANCE = 1.0e-6;
+  private static final double POSTERIOR_TOLERANCE = 2.0e-5;
+  /** Float units in the last place of log Z that a posterior may be off by besides POSTERIOR_TOLERANCE. */
+  private static final int POSTERIOR_ULPS = 8;
+  /** The log of the smallest positive double. */
+  private static final double LOG_MIN_VALUE = Math.log(Double.MIN_VALUE);
+
+  public static void main(String[] args) {
+    Options op = new Options();
+    op.doDep = false;
+    Index<String> stateIndex = new HashIndex<>();
+    Index<String> wordIndex = new HashIndex<>();
+    Index<String> tagIndex = new HashIndex<>();
+    InsideOutsidePCFGParserTest.Grammar grammar = new InsideOutsidePCFGParserTest.Grammar(op,
+        new SyntheticTreebank(1).trees(500), stateIndex, wordIndex, tagIndex);
+    InsideOutsidePCFGParser parser = new InsideOutsidePCFGParser(grammar.bg, grammar.ug, grammar.lex, op,
+        stateIndex, wordIndex, tagIndex);
+
+    List<List<String>> sentences = new ArrayList<>();
+    for (edu.berkeley.nlp.ling.Tree<String> tree : new SyntheticTreebank(2, 2.0).trees(10, 3, 30)) {
+      sentences.add(tree.getYield());
+    }
+    for (int phrases : new int[] {40, 80, 120}) {
+      sentences.add(longSentence(phrases));
+    }
+
+    int underflowing = 0;
+    double worstLogZ = 0.0;
+    double worstPosterior = 0.0;
+    for (List<String> words : sentences) {
+      List<HasWord> sentence = InsideOutsidePCFGParserTest.sentence(words);
+      int length = sentence.size();
+      op.testOptions.insideOutsideSemiring = TestOptions.Semiring.LOG_SUM;
+      if ( ! parser.parse(sentence)) {
+        throw new AssertionError("No LOG_SUM parse of " + words);
+      }
+      double logZ = parser.getBestScore();
+      double[][][] posteriors = new double[length][length + 1][stateIndex.size()];
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
+          for (int state = 0; state < stateIndex.size(); state++) {
+            posteriors[start][end][state] = parser.spanPosterior(start, end, state);
+          }
+        }
+      }
+      if (logZ < LOG_MIN_VALUE) {
+        underflowing++;
+      }
+
+      op.testOptions.insideOutsideSemiring = TestOptions.Semiring.SCALED;
+      if ( ! parser.parse(sentence)) {
+        throw new AssertionError("No SCALED parse of " + words.size() + " words, LOG_SUM log Z " + logZ);
+      }
+      double logZError = Math.abs(parser.getBestScore() - logZ);
+      worstLogZ = Math.max(worstLogZ, logZError / Math.abs(logZ));
+      if (logZError > LOG_Z_TOLERANCE * Math.abs(logZ)) {
+        throw new AssertionError("SCALED log Z of " + words.size() + " words: " + parser.getBestScore()
+            + ", LOG_SUM " + logZ);
+      }
+      double tolerance = POSTERIOR_TOLERANCE + POSTERIOR_ULPS * Math.ulp((float) logZ);
+      for (int start = 0; start < length; start++) {
+        for (int end = start + 1; end <= length; end++) {
+          for (int state = 0; state < stateIndex.size(); state++) {
+            double expected = posteriors[start][end][state];
+            double actual = parser.spanPosterior(start, end, state);
+            worstPosterior = Math.max(worstPosterior, Math.abs(expected - actual));
+            if (Math.abs(expected - actual) > tolerance) {
+              throw new AssertionError("SCALED posterior of " + stateIndex.get(state) + " over [" + start + ", "
+                  + end + ") of " + words.size() + " words: " + actual + ", LOG_SUM " + expected);
+            }
+          }
+        }
+      }
+    }
+    if (underflowing == 0) {
+      throw new AssertionError("No test sentence has a probability below Double.MIN_VALUE");
+    }
+    System.out.printf("ScaledSemiringTest: OK (%d sentences, %d below Double.MIN_VALUE; largest relative error "
+        + "%.2g in log Z, error %.2g in a posterior)%n", sentences.size(), underflowing, worstLogZ, worstPosterior);
+  }
+
+  /**
+   * A sentence of a subject, a verb and an object of the given number of
+   * noun phrases, each coordinated with or modified by the next, so that
+   * there are many ways to bracket it.
+   */
+  private static List<String> longSentence(int phrases) {
+    List<String> words = new ArrayList<>(Arrays.asList("the", "man", "saw"));
+    for (int i = 0; i < phrases; i++) {
+      words.addAll(Arrays.asList("the", (i % 2 == 0) ? "dog" : "park"));
+      words.add((i % 3 == 2) ? "and" : "in");
+    }
+    words.addAll(Arrays.asList("the", "cat", "."));
+    return words;
+  }
+
+}
@@ -0,0 +1,148 @@
+package edu.berkeley.nlp.assignments.parsing.stats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks LongCounter against a HashMap and a list of its keys in order:
+ * random increments, sets and removes, from a counter that starts at its
+ * smallest size and grows many times, over keys that include 0, the
+ * extremes of long, and multiples of a large power of two, which share
+ * their low bits.  After each step the counts, the total, and the entries
+ * by position (in insertion order, but for a removal moving the last entry
+ * into the removed one's place) must match; then copying, addAll and clear
+ * are checked.
+ * <p>
+ * Usage: LongCounterTest (it throws an AssertionError on a failure)
+ */
+public class LongCounterTest {
+
+  private static final int STEPS = 20000;
+  private static final int KEYS = 3000;
+
+  public static void main(String[] args) {
+    Random random = new Random(1);
+    long[] keySpace = new long[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      switch (i % 3) {
+        case 0:
+          keySpace[i] = i;
+          break;
+        case 1:
+          keySpace[i] = (long) i << 40;
+          break;
+        default:
+          keySpace[i] = random.nextLong();
+      }
+    }
+    keySpace[0] = Long.MIN_VALUE;
+    keySpace[1] = Long.MAX_VALUE;
+    keySpace[2] = -1L;
+
+    LongCounter counter = new LongCounter(1);
+    counter.setDefaultReturnValue(-7.0);
+    Map<Long, Double> expected = new HashMap<>();
+    List<Long> order = new ArrayList<>();
+    int added = 0;
+    int removed = 0;
+    for (int step = 0; step < STEPS; step++) {
+      // insert more than remove, so the counter grows
+      long key = keySpace[random.nextInt(Math.min(KEYS, 10 + step / 4))];
+      int op = random.nextInt(10);
+      if (op < 6) {
+        double amount = random.nextInt(5);
+        if ( ! expected.containsKey(key)) {
+          order.add(key);
+          added++;
+        }
+        double count = expected.merge(key, amount, Double::sum);
+        check(counter.incrementCount(key, amount) == count, "incrementCount of " + key);
+      } else if (op < 8) {
+        double count = random.nextInt(5);
+        if ( ! expected.containsKey(key)) {
+          order.add(key);
+          added++;
+        }
+        expected.put(key, count);
+        counter.setCount(key, count);
+      } else {
+        Double count = expected.remove(key);
+        double actual = counter.remove(key);
+        if (count == null) {
+          check(actual == -7.0, "remove of absent " + key + " gave " + actual);
+        } else {
+          check(actual == count, "remove of " + key + " gave " + actual + ", not " + count);
+          int i = order.indexOf(key);
+          order.set(i, order.get(order.size() - 1));
+          order.remove(order.size() - 1);
+          removed++;
+        }
+      }
+      if (step % 97 == 0 || step == STEPS - 1) {
+        checkSame(counter, expected, order);
+      }
+    }
+    for (long key : keySpace) {
+      if ( ! expected.containsKey(key)) {
+        check(counter.getCount(key) == -7.0 && ! counter.containsKey(key) && counter.indexOf(key) == -1,
+            "absent key " + key + " found");
+      }
+    }
+
+    LongCounter copy = new LongCounter(counter);
+    checkSame(copy, expected, order);
+    copy.incrementCount(keySpace[3], 1.0);
+    checkSame(counter, expected, order);
+
+    LongCounter doubled = new LongCounter();
+    doubled.addAll(counter);
+    doubled.addAll(counter);
+    Map<Long, Double> twice = new HashMap<>();
+    for (Map.Entry<Long, Double> e : expected.entrySet()) {
+      twice.put(e.getKey(), 2 * e.getValue());
+    }
+    checkSame(doubled, twice, order);
+
+    counter.clear();
+    check(counter.isEmpty() && counter.totalCount() == 0.0, "clear left entries");
+    for (long key : order) {
+      check( ! counter.containsKey(key), "cleared key " + key + " found");
+    }
+    counter.incrementCount(keySpace[4], 2.0);
+    check(counter.size() == 1 && counter.keyAt(0) == keySpace[4] && counter.getCount(keySpace[4]) == 2.0,
+        "counter unusable after clear");
+    try {
+      counter.keyAt(1);
+      throw new AssertionError("keyAt past the end did not throw");
+    } catch (IndexOutOfBoundsException expectedException) {
+      // as documented
+    }
+    System.out.printf("LongCounterTest: OK (%d steps, %d keys added, %d removed, %d left)%n", STEPS, added, removed,
+        expected.size());
+  }
+
+  private static void checkSame(LongCounter counter, Map<Long, Double> expected, List<Long> order) {
+    check(counter.size() == expected.size(), "size " + counter.size() + ", expected " + expected.size());
+    double total = 0.0;
+    for (int i = 0; i < order.size(); i++) {
+      long key = order.get(i);
+      double count = expected.get(key);
+      check(counter.keyAt(i) == key, "key at " + i + ": " + counter.keyAt(i) + ", expected " + key);
+      check(counter.countAt(i) == count, "count at " + i + ": " + counter.countAt(i) + ", expected " + count);
+      check(counter.indexOf(key) == i, "index of " + key + ": " + counter.indexOf(key) + ", expected " + i);
+      check(counter.getCount(key) == count, "count of " + key + ": " + counter.getCount(key));
+      total += count;
+    }
+    check(Math.abs(counter.totalCount() - total) < 1.0e-6, "total " + counter.totalCount() + ", expected " + total);
+  }
+
+  private static void check(boolean condition, String message) {
+    if ( ! condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
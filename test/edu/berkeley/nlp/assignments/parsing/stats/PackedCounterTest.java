@@ -0,0 +1,158 @@
+package edu.berkeley.nlp.assignments.parsing.stats;
+
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntDependency;
+import edu.berkeley.nlp.assignments.parsing.parser.lexparser.IntTaggedWord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks that PackedCounter gives back the keys it was given, over the
+ * IntDependency packing: every combination of the smallest and largest
+ * word, tag and distance that pack (the wildcard and stop ids among them),
+ * counted, then looked up, iterated over by keySet, values and entrySet
+ * in the order added, and removed.  A field one past either end of its
+ * range must make IntDependency.pack throw IllegalArgumentException,
+ * without changing a counter it was being added to.  Last, the
+ * IntTaggedWord packing must give back words and tags from either end of
+ * the int and short ranges.
+ * <p>
+ * Usage: PackedCounterTest (it throws an AssertionError on a failure)
+ */
+public class PackedCounterTest {
+
+  private static final int MAX_WORD = (1 << 20) - 3;
+  private static final int MAX_TAG = (1 << 10) - 3;
+  private static final int MAX_DISTANCE = 6;
+
+  private static final int[] WORDS = {IntTaggedWord.STOP_WORD_INT, IntTaggedWord.ANY_WORD_INT, 0, 1, MAX_WORD};
+  private static final int[] TAGS = {IntTaggedWord.STOP_TAG_INT, IntTaggedWord.ANY_TAG_INT, 0, 1, MAX_TAG};
+  private static final int[] DISTANCES = {IntDependency.ANY_DISTANCE_INT, 0, 1, MAX_DISTANCE};
+
+  public static void main(String[] args) {
+    PackedCounter<IntDependency> counter = IntDependency.newCounter();
+    List<IntDependency> keys = new ArrayList<>();
+    for (int headWord : WORDS) {
+      for (int argWord : WORDS) {
+        for (int headTag : TAGS) {
+          for (int argTag : TAGS) {
+            for (boolean leftHeaded : new boolean[] {false, true}) {
+              for (int distance : DISTANCES) {
+                keys.add(new IntDependency(headWord, headTag, argWord, argTag, leftHeaded, distance));
+              }
+            }
+          }
+        }
+      }
+    }
+    Set<Long> packed = new HashSet<>();
+    for (int i = 0; i < keys.size(); i++) {
+      IntDependency key = keys.get(i);
+      check(packed.add(key.pack()), "two dependencies pack to " + key.pack());
+      counter.incrementCount(key, i + 1);
+    }
+    check(counter.size() == keys.size(), "size " + counter.size() + ", expected " + keys.size());
+    for (int i = 0; i < keys.size(); i++) {
+      IntDependency key = keys.get(i);
+      IntDependency copy = new IntDependency(key.head.word, key.head.tag, key.arg.word, key.arg.tag, key.leftHeaded,
+          key.distance);
+      check(counter.getCount(copy) == i + 1 && counter.containsKey(copy), "count of " + describe(key));
+    }
+    check(counter.getCount("not a dependency") == counter.defaultReturnValue(), "count of another type");
+    check( ! counter.keySet().contains(Long.valueOf(keys.get(0).pack())), "keySet contains a packed long");
+
+    Iterator<IntDependency> keyIt = counter.keySet().iterator();
+    Iterator<Double> valueIt = counter.values().iterator();
+    Iterator<Map.Entry<IntDependency, Double>> entryIt = counter.entrySet().iterator();
+    for (int i = 0; i < keys.size(); i++) {
+      IntDependency key = keys.get(i);
+      check(key.equals(keyIt.next()), "keySet key " + i + " is not " + describe(key));
+      check(valueIt.next() == i + 1, "value " + i);
+      Map.Entry<IntDependency, Double> entry = entryIt.next();
+      check(key.equals(entry.getKey()) && entry.getValue() == i + 1, "entry " + i + " is not " + describe(key));
+      check(counter.keySet().contains(key), "keySet does not contain " + describe(key));
+    }
+    check( ! keyIt.hasNext() && ! valueIt.hasNext() && ! entryIt.hasNext(), "iterators run past the keys");
+
+    int removed = 0;
+    for (int i = 0; i < keys.size(); i += 3) {
+      check(counter.remove(keys.get(i)) == i + 1, "remove of " + describe(keys.get(i)));
+      removed++;
+    }
+    check(counter.size() == keys.size() - removed, "size after removes " + counter.size());
+    Set<IntDependency> left = new HashSet<>();
+    for (IntDependency key : counter) {
+      check(left.add(key), "key " + describe(key) + " iterated twice");
+    }
+    for (int i = 0; i < keys.size(); i++) {
+      IntDependency key = keys.get(i);
+      boolean kept = i % 3 != 0;
+      check(left.contains(key) == kept && counter.containsKey(key) == kept, "membership of " + describe(key));
+      check(counter.getCount(key) == (kept ? i + 1 : 0.0), "count after removes of " + describe(key));
+    }
+
+    int[][] outOfRange = {
+        {IntTaggedWord.STOP_WORD_INT - 1, 0, 0, 0, 0}, {MAX_WORD + 1, 0, 0, 0, 0},
+        {0, IntTaggedWord.STOP_TAG_INT - 1, 0, 0, 0}, {0, MAX_TAG + 1, 0, 0, 0},
+        {0, 0, IntTaggedWord.STOP_WORD_INT - 1, 0, 0}, {0, 0, MAX_WORD + 1, 0, 0},
+        {0, 0, 0, IntTaggedWord.STOP_TAG_INT - 1, 0}, {0, 0, 0, MAX_TAG + 1, 0},
+        {0, 0, 0, 0, IntDependency.ANY_DISTANCE_INT - 1}, {0, 0, 0, 0, MAX_DISTANCE + 1},
+    };
+    int size = counter.size();
+    double total = counter.totalCount();
+    for (int[] f : outOfRange) {
+      try {
+        IntDependency.pack(f[0], f[1], f[2], f[3], false, f[4]);
+        throw new AssertionError("pack did not reject " + Arrays.toString(f));
+      } catch (IllegalArgumentException expected) {
+        // as documented
+      }
+      try {
+        counter.incrementCount(new IntDependency(f[0], f[1], f[2], f[3], true, f[4]), 1.0);
+        throw new AssertionError("counter took " + Arrays.toString(f));
+      } catch (IllegalArgumentException expected) {
+        check(counter.size() == size && counter.totalCount() == total, "a rejected key changed the counter");
+      }
+    }
+
+    PackedCounter<IntTaggedWord> taggings = IntTaggedWord.newCounter();
+    List<IntTaggedWord> taggingKeys = new ArrayList<>();
+    for (int word : new int[] {Integer.MIN_VALUE, IntTaggedWord.STOP_WORD_INT, IntTaggedWord.ANY_WORD_INT, 0,
+        Integer.MAX_VALUE}) {
+      for (int tag : new int[] {Short.MIN_VALUE, IntTaggedWord.STOP_TAG_INT, IntTaggedWord.ANY_TAG_INT, 0,
+          Short.MAX_VALUE}) {
+        IntTaggedWord key = new IntTaggedWord(word, tag);
+        taggings.setCount(key, taggingKeys.size());
+        taggingKeys.add(key);
+      }
+    }
+    int i = 0;
+    for (Map.Entry<IntTaggedWord, Double> entry : taggings.entrySet()) {
+      IntTaggedWord key = taggingKeys.get(i);
+      check(key.equals(entry.getKey()) && entry.getValue() == i && taggings.getCount(key) == i,
+          "tagging " + i + ": " + entry.getKey().word + "/" + entry.getKey().tag + ", expected " + key.word + "/"
+          + key.tag);
+      i++;
+    }
+    check(i == taggingKeys.size(), i + " taggings iterated, expected " + taggingKeys.size());
+    System.out.printf("PackedCounterTest: OK (%d dependencies, %d removed, %d out of range rejected; %d taggings)%n",
+        keys.size(), removed, outOfRange.length, taggingKeys.size());
+  }
+
+  private static String describe(IntDependency d) {
+    return d.head.word + "/" + d.head.tag + " -> " + d.arg.word + "/" + d.arg.tag + (d.leftHeaded ? " left" : " right")
+        + " distance " + d.distance;
+  }
+
+  private static void check(boolean condition, String message) {
+    if ( ! condition) {
+      throw new AssertionError(message);
+    }
+  }
+
+}
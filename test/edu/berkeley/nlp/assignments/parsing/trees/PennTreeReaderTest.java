@@ -0,0 +1,77 @@
+package edu.berkeley.nlp.assignments.parsing.trees;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Checks that the readers of one LabeledScoredTreeReaderFactory, which
+ * share a PennTreeReader.LabelTable, read the same words whatever the
+ * source and encoding of the trees, by reading a file with a non-ASCII
+ * word through a Reader and mapped into memory, as UTF-8 and as
+ * ISO-8859-1, in either order.
+ * <p>
+ * Usage: PennTreeReaderTest (it throws an AssertionError on a failure)
+ */
+public class PennTreeReaderTest {
+
+  private static final String UTF8_WORD = "café";
+  /** The UTF-8 bytes of UTF8_WORD, read as ISO-8859-1. */
+  private static final String LATIN1_WORD = "cafÃ©";
+
+  public static void main(String[] args) throws IOException {
+    Path file = Files.createTempFile("PennTreeReaderTest", ".mrg");
+    try {
+      Files.write(file, ("( (S (NN " + UTF8_WORD + ") (NN cafe)) )\n").getBytes(StandardCharsets.UTF_8));
+
+      LabeledScoredTreeReaderFactory trf = new LabeledScoredTreeReaderFactory();
+      check("mapped UTF-8", UTF8_WORD, firstWord(trf.newTreeReader(file, StandardCharsets.UTF_8)));
+      check("Reader UTF-8", UTF8_WORD, firstWord(trf.newTreeReader(reader(file, StandardCharsets.UTF_8))));
+      check("mapped ISO-8859-1", LATIN1_WORD, firstWord(trf.newTreeReader(file, StandardCharsets.ISO_8859_1)));
+      check("Reader ISO-8859-1", LATIN1_WORD,
+          firstWord(trf.newTreeReader(reader(file, StandardCharsets.ISO_8859_1))));
+      check("Reader of the text", LATIN1_WORD,
+          firstWord(trf.newTreeReader(new StringReader("( (S (NN " + LATIN1_WORD + ")) )"))));
+
+      trf = new LabeledScoredTreeReaderFactory();
+      check("Reader ISO-8859-1 first", LATIN1_WORD,
+          firstWord(trf.newTreeReader(reader(file, StandardCharsets.ISO_8859_1))));
+      check("mapped ISO-8859-1 after", LATIN1_WORD, firstWord(trf.newTreeReader(file, StandardCharsets.ISO_8859_1)));
+      check("mapped UTF-8 after", UTF8_WORD, firstWord(trf.newTreeReader(file, StandardCharsets.UTF_8)));
+      check("Reader UTF-8 after", UTF8_WORD, firstWord(trf.newTreeReader(reader(file, StandardCharsets.UTF_8))));
+
+      // the same text read from different sources is one String
+      trf = new LabeledScoredTreeReaderFactory();
+      String mapped = firstWord(trf.newTreeReader(file, StandardCharsets.UTF_8));
+      String read = firstWord(trf.newTreeReader(reader(file, StandardCharsets.UTF_8)));
+      if (mapped != read) {
+        throw new AssertionError("The word read mapped and through a Reader is not one String");
+      }
+    } finally {
+      Files.delete(file);
+    }
+    System.out.println("PennTreeReaderTest: OK");
+  }
+
+  private static StringReader reader(Path file, Charset encoding) throws IOException {
+    return new StringReader(new String(Files.readAllBytes(file), encoding));
+  }
+
+  private static String firstWord(TreeReader tr) throws IOException {
+    try {
+      return tr.readTree().getLeaves().get(0).value();
+    } finally {
+      tr.close();
+    }
+  }
+
+  private static void check(String what, String expected, String actual) {
+    if ( ! expected.equals(actual)) {
+      throw new AssertionError(what + ": read " + actual + ", expected " + expected);
+    }
+  }
+
+}